@@ -65,6 +65,7 @@ dependencies {
     implementation(libs.ktor.json)
     implementation(libs.ktor.client.logging)
     implementation(project(":dashcamCore"))
+    implementation(project(":dashcamLog"))
     implementation(libs.slf4j)
     implementation(libs.tony.log)
     testImplementation(libs.junit)
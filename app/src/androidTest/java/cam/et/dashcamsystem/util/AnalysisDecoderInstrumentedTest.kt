@@ -0,0 +1,71 @@
+package cam.et.dashcamsystem.util
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.io.ByteArrayOutputStream
+import java.nio.ByteBuffer
+
+/**
+ * Instrumented test of [AnalysisDecoder] with the device's BitmapFactory: what a real reduced
+ * decode holds and costs, against a full decode of the same JPEG.
+ */
+@RunWith(AndroidJUnit4::class)
+class AnalysisDecoderInstrumentedTest {
+
+    // A JPEG of a frame with some detail, in a direct buffer as the pipeline hands it over.
+    private fun jpeg(width: Int, height: Int): ByteBuffer {
+        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(bitmap)
+        val paint = Paint()
+        canvas.drawColor(Color.DKGRAY)
+        for (i in 0 until 64) {
+            paint.color = Color.rgb(i * 4, 255 - i * 4, (i * 37) and 255)
+            canvas.drawCircle((i * 97 % width).toFloat(), (i * 61 % height).toFloat(), width / 16f, paint)
+        }
+        val out = ByteArrayOutputStream()
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out)
+        bitmap.recycle()
+        val bytes = out.toByteArray()
+        return ByteBuffer.allocateDirect(bytes.size).put(bytes).also { it.flip() }
+    }
+
+    @Test
+    fun decode_holdsUnderOneMegabyteAndReusesItsPools() {
+        val decoder = AnalysisDecoder()
+        for ((width, height) in listOf(1920 to 1080, 4032 to 3024)) {
+            val data = jpeg(width, height)
+            assertTrue(decoder.decode(data))
+            val allocations = decoder.allocations
+            val sample = AnalysisDecoder.sampleSize(width, height, decoder.targetWidth, decoder.targetHeight)
+            assertTrue("${decoder.width}x${decoder.height}", decoder.width >= decoder.targetWidth
+                    && decoder.width <= (width + sample - 1) / sample)
+
+            val runs = 20
+            var start = System.nanoTime()
+            repeat(runs) { assertTrue(decoder.decode(data)) }
+            val reducedNanos = (System.nanoTime() - start) / runs
+            // The same frame decodes into the pools it grew to.
+            assertEquals(allocations, decoder.allocations)
+
+            val copy = ByteArray(data.remaining())
+            start = System.nanoTime()
+            repeat(runs) {
+                data.duplicate().get(copy)
+                BitmapFactory.decodeByteArray(copy, 0, copy.size)!!.recycle()
+            }
+            val fullNanos = (System.nanoTime() - start) / runs
+            println("${width}x$height: 1/$sample decode ${reducedNanos / 1000} us, ${decoder.pooledBytes} bytes " +
+                    "pooled; full decode ${fullNanos / 1000} us, ${width.toLong() * height * 4} bytes per capture")
+            assertTrue("${width}x$height pools ${decoder.pooledBytes} bytes", decoder.pooledBytes < 1024 * 1024)
+        }
+        decoder.release()
+    }
+}
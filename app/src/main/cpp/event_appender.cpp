@@ -0,0 +1,206 @@
+#include "event_appender.h"
+
+#include <cerrno>
+#include <csignal>
+#include <cstdlib>
+#include <cstring>
+#include <ctime>
+#include <fcntl.h>
+#include <sched.h>
+#include <unistd.h>
+
+namespace {
+
+const int kMaxAppenders = 8;
+
+// Open appenders, for the SIGTERM handler. Whoever takes an appender out of
+// its slot (close() or the handler) does its final flush.
+std::atomic<EventAppender*> gAppenders[kMaxAppenders];
+
+std::atomic<bool> gHandlerInstalled{false};
+struct sigaction gPreviousAction;
+
+} // namespace
+
+EventAppender* EventAppender::open(const char* path, const Options& options) {
+    if (path == nullptr || options.capacity == 0) return nullptr;
+    char* buffer = static_cast<char*>(malloc(options.capacity));
+    if (buffer == nullptr) return nullptr;
+    const int fd = ::open(path, O_WRONLY | O_CREAT | O_APPEND | O_CLOEXEC, 0644);
+    if (fd < 0) {
+        free(buffer);
+        return nullptr;
+    }
+    EventAppender* appender = new EventAppender(fd, options, buffer);
+    installSignalHandler();
+    registerAppender(appender);
+    return appender;
+}
+
+EventAppender::EventAppender(int fd, const Options& options, char* buffer)
+        : mFd(fd), mOptions(options), mBuffer(buffer) {
+}
+
+EventAppender::~EventAppender() {
+    free(mBuffer);
+}
+
+void EventAppender::lock() {
+    while (mLock.test_and_set(std::memory_order_acquire)) {
+        sched_yield();
+    }
+}
+
+void EventAppender::unlock() {
+    mLock.clear(std::memory_order_release);
+}
+
+bool EventAppender::tryLock() {
+    return !mLock.test_and_set(std::memory_order_acquire);
+}
+
+int64_t EventAppender::nowMs() {
+    timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+long EventAppender::append(const char* data, size_t length) {
+    lock();
+    long written = 0;
+    if (length > mOptions.capacity - mSize) {
+        // Full: the pending batch and the line in one system call.
+        iovec iov[2] = {{mBuffer, mSize}, {const_cast<char*>(data), length}};
+        written = writeLocked(iov, 2);
+    } else {
+        memcpy(mBuffer + mSize, data, length);
+        if (mSize == 0) mOldestMs = nowMs();
+        mSize += length;
+        mLines++;
+        if (mLines >= mOptions.maxLines || nowMs() - mOldestMs >= mOptions.maxDelayMs) {
+            written = flushLocked();
+        }
+    }
+    unlock();
+    return written;
+}
+
+long EventAppender::flush() {
+    lock();
+    const long written = flushLocked();
+    unlock();
+    return written;
+}
+
+long EventAppender::flushLocked() {
+    if (mSize == 0) return 0;
+    iovec iov = {mBuffer, mSize};
+    return writeLocked(&iov, 1);
+}
+
+// Writes the iovecs completely (short writes and EINTR are retried) and empties
+// the buffer, also on error: a line which cannot be written is dropped rather
+// than retried on every append.
+long EventAppender::writeLocked(iovec* iov, int count) {
+    long total = 0;
+    while (count > 0) {
+        if (iov->iov_len == 0) {
+            iov++;
+            count--;
+            continue;
+        }
+        const ssize_t n = writev(mFd, iov, count);
+        if (n < 0) {
+            if (errno == EINTR) continue;
+            total = -1;
+            break;
+        }
+        total += n;
+        size_t done = (size_t) n;
+        while (count > 0 && done >= iov->iov_len) {
+            done -= iov->iov_len;
+            iov++;
+            count--;
+        }
+        if (count > 0) {
+            iov->iov_base = static_cast<char*>(iov->iov_base) + done;
+            iov->iov_len -= done;
+        }
+    }
+    mSize = 0;
+    mLines = 0;
+    if (total > 0 && mOptions.syncOnFlush) {
+        fdatasync(mFd);
+    }
+    return total;
+}
+
+long EventAppender::close() {
+    bool owned = false;
+    for (auto& slot : gAppenders) {
+        EventAppender* expected = this;
+        if (slot.compare_exchange_strong(expected, nullptr)) {
+            owned = true;
+            break;
+        }
+    }
+    if (!owned) {
+        // Taken by the signal handler: the process is exiting and the handler flushes.
+        return 0;
+    }
+    lock();
+    const long written = flushLocked();
+    unlock();
+    ::close(mFd);
+    delete this;
+    return written;
+}
+
+void EventAppender::registerAppender(EventAppender* appender) {
+    for (auto& slot : gAppenders) {
+        EventAppender* expected = nullptr;
+        if (slot.compare_exchange_strong(expected, appender)) {
+            return;
+        }
+    }
+    // More open appenders than slots: this one is not flushed on SIGTERM.
+}
+
+void EventAppender::installSignalHandler() {
+    bool expected = false;
+    if (!gHandlerInstalled.compare_exchange_strong(expected, true)) {
+        return;
+    }
+    struct sigaction action = {};
+    action.sa_handler = onSignal;
+    sigemptyset(&action.sa_mask);
+    action.sa_flags = SA_RESTART;
+    sigaction(SIGTERM, &action, &gPreviousAction);
+}
+
+void EventAppender::onSignal(int signal) {
+    const int savedErrno = errno;
+    for (auto& slot : gAppenders) {
+        EventAppender* appender = slot.exchange(nullptr);
+        // Skip an appender whose lock is held, e.g. by the interrupted thread itself.
+        if (appender != nullptr && appender->tryLock()) {
+            appender->flushLocked();
+            appender->unlock();
+        }
+    }
+    errno = savedErrno;
+    // Chain to the previous disposition; by default the process terminates.
+    if ((gPreviousAction.sa_flags & SA_SIGINFO) == 0 && gPreviousAction.sa_handler == SIG_IGN) {
+        return;
+    }
+    if ((gPreviousAction.sa_flags & SA_SIGINFO) == 0 && gPreviousAction.sa_handler != SIG_DFL) {
+        gPreviousAction.sa_handler(signal);
+        return;
+    }
+    if ((gPreviousAction.sa_flags & SA_SIGINFO) != 0 && gPreviousAction.sa_sigaction != nullptr) {
+        gPreviousAction.sa_sigaction(signal, nullptr, nullptr);
+        return;
+    }
+    sigaction(signal, &gPreviousAction, nullptr);
+    raise(signal);
+}
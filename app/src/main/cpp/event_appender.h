@@ -0,0 +1,67 @@
+#ifndef DASHCAMSYSTEM_EVENT_APPENDER_H
+#define DASHCAMSYSTEM_EVENT_APPENDER_H
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <sys/uio.h>
+
+// Appends lines to a file through a descriptor which stays open. Lines are
+// collected in a buffer and written with one write() per batch; a line which
+// does not fit any more goes out together with the batch in one writev().
+//
+// A batch is written when maxLines lines are pending, when the oldest pending
+// line is older than maxDelayMs (checked on append), when the buffer is full,
+// and on flush()/close(). With syncOnFlush every batch is followed by fdatasync().
+// Open appenders are flushed from a SIGTERM handler before the process exits.
+class EventAppender {
+public:
+    struct Options {
+        size_t capacity = 64 * 1024;
+        int maxLines = 16;
+        int64_t maxDelayMs = 2000;
+        bool syncOnFlush = false;
+    };
+
+    // Open (create) the file for appending; null on failure.
+    static EventAppender* open(const char* path, const Options& options);
+
+    // Buffer a line; the caller includes the line terminator.
+    // Returns the number of bytes written to the file by this call, 0 if the line
+    // was only buffered, -1 on a write error.
+    long append(const char* data, size_t length);
+
+    // Write the pending lines. Returns the bytes written, -1 on error.
+    long flush();
+
+    // Flush, close the descriptor and delete the appender.
+    long close();
+
+    size_t pending() const { return mSize; }
+
+private:
+    EventAppender(int fd, const Options& options, char* buffer);
+    ~EventAppender();
+
+    void lock();
+    void unlock();
+    bool tryLock();
+    long flushLocked();
+    long writeLocked(iovec* iov, int count);
+
+    static int64_t nowMs();
+    static void registerAppender(EventAppender* appender);
+    static void installSignalHandler();
+    static void onSignal(int signal);
+
+    const int mFd;
+    const Options mOptions;
+    char* const mBuffer;
+    size_t mSize = 0;  // pending bytes
+    int mLines = 0;
+    int64_t mOldestMs = 0;
+    // Spin lock, so that the signal handler can try it without blocking.
+    std::atomic_flag mLock = ATOMIC_FLAG_INIT;
+};
+
+#endif // DASHCAMSYSTEM_EVENT_APPENDER_H
@@ -0,0 +1,100 @@
+#include "file_write.h"
+
+#include <cerrno>
+#include <cstring>
+#include <ctime>
+#include <dirent.h>
+#include <fcntl.h>
+#include <string>
+#include <sys/stat.h>
+#include <unistd.h>
+
+const char kPartialSuffix[] = ".partial";
+
+namespace {
+
+int writeFully(int fd, const uint8_t* data, size_t length) {
+    while (length > 0) {
+        const ssize_t n = write(fd, data, length);
+        if (n < 0) {
+            if (errno == EINTR) continue;
+            return errno;
+        }
+        data += n;
+        length -= (size_t) n;
+    }
+    return 0;
+}
+
+// Not every file system can sync a directory (e.g. some FUSE mounts of SD
+// cards); the rename has happened either way, so errors are ignored.
+void syncDirectoryOf(const std::string& path) {
+    const size_t slash = path.rfind('/');
+    const std::string dir = slash == std::string::npos ? "." : slash == 0 ? "/" : path.substr(0, slash);
+    const int fd = open(dir.c_str(), O_RDONLY | O_DIRECTORY | O_CLOEXEC);
+    if (fd < 0) return;
+    fsync(fd);
+    close(fd);
+}
+
+int writePlain(const char* path, const uint8_t* data, size_t length, int flags) {
+    const int mode = O_WRONLY | O_CREAT | O_CLOEXEC | ((flags & kWriteAppend) ? O_APPEND : O_TRUNC);
+    const int fd = open(path, mode, 0644);
+    if (fd < 0) return errno;
+    int error = writeFully(fd, data, length);
+    if (error == 0 && (flags & kWriteSync) && fsync(fd) != 0) error = errno;
+    if (close(fd) != 0 && error == 0) error = errno;
+    return error;
+}
+
+int writeAtomic(const char* path, const uint8_t* data, size_t length) {
+    const std::string partial = std::string(path) + kPartialSuffix;
+    const int fd = open(partial.c_str(), O_WRONLY | O_CREAT | O_TRUNC | O_CLOEXEC, 0644);
+    if (fd < 0) return errno;
+    int error = 0;
+    // One contiguous allocation up front. Unsupported (EOPNOTSUPP, e.g. FAT
+    // behind FUSE) just means the file grows with the writes as before;
+    // posix_fallocate is not used, as it would write zeros instead.
+    if (length > 0 && fallocate(fd, 0, 0, (off_t) length) != 0 && errno == ENOSPC) error = ENOSPC;
+    if (error == 0) error = writeFully(fd, data, length);
+    if (error == 0 && fsync(fd) != 0) error = errno;
+    if (close(fd) != 0 && error == 0) error = errno;
+    if (error == 0 && rename(partial.c_str(), path) != 0) error = errno;
+    if (error != 0) {
+        unlink(partial.c_str());
+        return error;
+    }
+    syncDirectoryOf(path);
+    return 0;
+}
+
+bool isPartial(const char* name) {
+    const size_t length = strlen(name);
+    const size_t suffix = sizeof(kPartialSuffix) - 1;
+    return length > suffix && strcmp(name + length - suffix, kPartialSuffix) == 0;
+}
+
+} // namespace
+
+int file_write(const char* path, const uint8_t* data, size_t length, int flags) {
+    if (path == nullptr || (data == nullptr && length > 0)) return EINVAL;
+    if ((flags & kWriteAtomic) && !(flags & kWriteAppend)) return writeAtomic(path, data, length);
+    return writePlain(path, data, length, flags);
+}
+
+int file_sweep_partial(const char* dir, int64_t minAgeSeconds) {
+    DIR* d = opendir(dir);
+    if (d == nullptr) return -1;
+    const time_t now = time(nullptr);
+    int removed = 0;
+    while (dirent* entry = readdir(d)) {
+        if (!isPartial(entry->d_name)) continue;
+        const std::string path = std::string(dir) + "/" + entry->d_name;
+        struct stat st;
+        if (stat(path.c_str(), &st) != 0 || !S_ISREG(st.st_mode)) continue;
+        if (now - st.st_mtime < minAgeSeconds) continue;
+        if (unlink(path.c_str()) == 0) removed++;
+    }
+    closedir(d);
+    return removed;
+}
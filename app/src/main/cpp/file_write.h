@@ -0,0 +1,28 @@
+#ifndef DASHCAMSYSTEM_FILE_WRITE_H
+#define DASHCAMSYSTEM_FILE_WRITE_H
+
+#include <cstddef>
+#include <cstdint>
+
+enum FileWriteFlags {
+    kWriteAppend = 1,  // append instead of replacing the file; kWriteAtomic is ignored
+    kWriteSync = 2,    // fsync before returning
+    kWriteAtomic = 4,  // write to <path>.partial, fsync, rename over path, fsync the directory
+};
+
+// Suffix of the temporary file of an atomic write.
+extern const char kPartialSuffix[];
+
+// Write a whole file. Atomic writes preallocate the temporary file to length
+// (fallocate, where the file system supports it), so that the data is not
+// interleaved with other files on the card and running out of space fails
+// before anything is written; after a crash, path either does not exist or
+// holds all of the data. Returns 0 or an errno value.
+int file_write(const char* path, const uint8_t* data, size_t length, int flags);
+
+// Remove the *.partial files in dir (not recursive) left by interrupted atomic
+// writes whose last modification is at least minAgeSeconds ago, so that writes
+// in progress are not touched. Returns the number removed, -1 if dir cannot be read.
+int file_sweep_partial(const char* dir, int64_t minAgeSeconds);
+
+#endif // DASHCAMSYSTEM_FILE_WRITE_H
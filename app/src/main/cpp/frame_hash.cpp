@@ -0,0 +1,192 @@
+#include "frame_hash.h"
+
+#include "file_write.h"
+#include "luma_kernels.h"
+
+#include <cerrno>
+#include <cstring>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+namespace {
+
+const char kMagic[8] = {'D', 'H', 'I', 'D', 'X', 0, 0, 1};
+const size_t kRecordSize = 16;
+
+// Box averages on a 9x8 grid, then one bit per horizontal neighbour pair.
+// luma(x, y) returns the luminance of a pixel.
+template <typename Luma>
+uint64_t dhash(int width, int height, Luma luma) {
+    if (width < 9 || height < 8) return 0;
+    uint32_t means[8][9];
+    for (int gy = 0; gy < 8; ++gy) {
+        const int y0 = (int) ((int64_t) gy * height / 8);
+        const int y1 = (int) ((int64_t) (gy + 1) * height / 8);
+        for (int gx = 0; gx < 9; ++gx) {
+            const int x0 = (int) ((int64_t) gx * width / 9);
+            const int x1 = (int) ((int64_t) (gx + 1) * width / 9);
+            uint64_t sum = 0;
+            for (int y = y0; y < y1; ++y) {
+                for (int x = x0; x < x1; ++x) sum += luma(x, y);
+            }
+            // Means in 1/256 levels, so that cells of different sizes compare fairly.
+            means[gy][gx] = (uint32_t) ((sum << 8) / ((uint64_t) (x1 - x0) * (y1 - y0)));
+        }
+    }
+    uint64_t hash = 0;
+    for (int gy = 0; gy < 8; ++gy) {
+        for (int gx = 0; gx < 8; ++gx) {
+            if (means[gy][gx] < means[gy][gx + 1]) hash |= (uint64_t) 1 << (gy * 8 + gx);
+        }
+    }
+    return hash;
+}
+
+void putRecord(uint8_t* out, uint64_t hash, int64_t timeMs) {
+    memcpy(out, &hash, 8);
+    memcpy(out + 8, &timeMs, 8);
+}
+
+} // namespace
+
+uint64_t frame_dhash(const LumaPlane& plane) {
+    if (plane.data == nullptr) return 0;
+    return dhash(plane.width, plane.height, [&](int x, int y) {
+        return plane.data[(size_t) y * plane.rowStride + (size_t) x * plane.pixelStride];
+    });
+}
+
+uint64_t frame_dhash_argb(const uint32_t* pixels, int width, int height) {
+    if (pixels == nullptr) return 0;
+    return dhash(width, height, [&](int x, int y) { return luma_of_argb(pixels[(size_t) y * width + x]); });
+}
+
+FrameHashIndex::FrameHashIndex(int64_t retentionMs) : mRetentionMs(retentionMs) {
+}
+
+FrameHashIndex::~FrameHashIndex() {
+    if (mFd >= 0) close(mFd);
+}
+
+bool FrameHashIndex::load(const std::string& path, int64_t nowMs) {
+    if (mFd >= 0) {
+        close(mFd);
+        mFd = -1;
+    }
+    std::vector<uint8_t> content;
+    const int in = open(path.c_str(), O_RDONLY | O_CLOEXEC);
+    if (in >= 0) {
+        struct stat st;
+        if (fstat(in, &st) == 0 && st.st_size > 0) {
+            content.resize((size_t) st.st_size);
+            size_t done = 0;
+            while (done < content.size()) {
+                const ssize_t n = read(in, content.data() + done, content.size() - done);
+                if (n <= 0 && errno != EINTR) break;
+                if (n > 0) done += (size_t) n;
+            }
+            content.resize(done);
+        }
+        close(in);
+    }
+    if (content.size() >= sizeof(kMagic) && memcmp(content.data(), kMagic, sizeof(kMagic)) == 0) {
+        // A partial last record (torn write) is dropped by the division.
+        const size_t records = (content.size() - sizeof(kMagic)) / kRecordSize;
+        for (size_t i = 0; i < records; ++i) {
+            Entry entry;
+            memcpy(&entry.hash, content.data() + sizeof(kMagic) + i * kRecordSize, 8);
+            memcpy(&entry.timeMs, content.data() + sizeof(kMagic) + i * kRecordSize + 8, 8);
+            if (nowMs - entry.timeMs < mRetentionMs) add(entry.hash, entry.timeMs);
+        }
+    }
+
+    // Compact: the file holds the retained entries only.
+    std::vector<uint8_t> compacted(sizeof(kMagic) + mEntries.size() * kRecordSize);
+    memcpy(compacted.data(), kMagic, sizeof(kMagic));
+    for (size_t i = 0; i < mEntries.size(); ++i) {
+        putRecord(compacted.data() + sizeof(kMagic) + i * kRecordSize, mEntries[i].hash, mEntries[i].timeMs);
+    }
+    if (file_write(path.c_str(), compacted.data(), compacted.size(), kWriteAtomic) != 0) return false;
+    mFd = open(path.c_str(), O_WRONLY | O_APPEND | O_CLOEXEC);
+    return mFd >= 0;
+}
+
+void FrameHashIndex::add(uint64_t hash, int64_t timeMs) {
+    mEntries.push_back({hash, timeMs});
+    index(mBase + mEntries.size() - 1, hash);
+    append(mEntries.back());
+}
+
+bool FrameHashIndex::append(const Entry& entry) {
+    if (mFd < 0) return false;
+    uint8_t record[kRecordSize];
+    putRecord(record, entry.hash, entry.timeMs);
+    // Not synced: losing the last hashes on a power cut only weakens the dedup.
+    ssize_t n;
+    do {
+        n = write(mFd, record, sizeof(record));
+    } while (n < 0 && errno == EINTR);
+    return n == (ssize_t) sizeof(record);
+}
+
+void FrameHashIndex::index(uint64_t sequence, uint64_t hash) {
+    for (int table = 0; table < 4; ++table) {
+        mTables[table][(uint16_t) (hash >> (table * 16))].push_back(sequence);
+    }
+}
+
+void FrameHashIndex::verify(uint64_t hash, const std::vector<uint64_t>* bucket, int64_t nowMs, int64_t windowMs,
+                            Match* best) {
+    if (bucket == nullptr) return;
+    // Newest first; sequences below mBase have been pruned.
+    for (auto it = bucket->rbegin(); it != bucket->rend() && *it >= mBase; ++it) {
+        const Entry& entry = mEntries[*it - mBase];
+        mLastCandidates++;
+        if (entry.timeMs > nowMs || nowMs - entry.timeMs > windowMs) continue;
+        const int distance = frame_hash_distance(hash, entry.hash);
+        if (distance < best->distance || (distance == best->distance && entry.timeMs > best->timeMs)) {
+            *best = {entry.hash, entry.timeMs, distance};
+        }
+    }
+}
+
+bool FrameHashIndex::findNear(uint64_t hash, int64_t nowMs, int64_t windowMs, int maxDistance, Match* match) {
+    if (maxDistance > kMaxDistance) maxDistance = kMaxDistance;
+    if (maxDistance < 0) return false;
+    const int radius = maxDistance / 4;
+    Match best = {0, 0, maxDistance + 1};
+    mLastCandidates = 0;
+    for (int table = 0; table < 4; ++table) {
+        const auto& map = mTables[table];
+        const uint16_t key = (uint16_t) (hash >> (table * 16));
+        auto probe = [&](uint16_t value) {
+            const auto it = map.find(value);
+            verify(hash, it == map.end() ? nullptr : &it->second, nowMs, windowMs, &best);
+        };
+        probe(key);
+        for (int a = 0; radius >= 1 && a < 16; ++a) {
+            probe((uint16_t) (key ^ (1u << a)));
+            for (int b = a + 1; radius >= 2 && b < 16; ++b) probe((uint16_t) (key ^ (1u << a) ^ (1u << b)));
+        }
+    }
+    if (best.distance > maxDistance) return false;
+    if (match != nullptr) *match = best;
+    return true;
+}
+
+void FrameHashIndex::prune(int64_t nowMs) {
+    while (!mEntries.empty() && nowMs - mEntries.front().timeMs >= mRetentionMs) {
+        mEntries.pop_front();
+        mBase++;
+        mStale++;
+    }
+    // Stale bucket entries are skipped by findNear; drop them once they outnumber the live ones.
+    if (mStale > 64 && mStale > mEntries.size()) rebuild();
+}
+
+void FrameHashIndex::rebuild() {
+    for (auto& table : mTables) table.clear();
+    for (size_t i = 0; i < mEntries.size(); ++i) index(mBase + i, mEntries[i].hash);
+    mStale = 0;
+}
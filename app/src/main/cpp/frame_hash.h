@@ -0,0 +1,94 @@
+#ifndef DASHCAMSYSTEM_FRAME_HASH_H
+#define DASHCAMSYSTEM_FRAME_HASH_H
+
+#include "luma_kernels.h"
+
+#include <cstdint>
+#include <deque>
+#include <unordered_map>
+#include <string>
+#include <vector>
+
+// 64-bit difference hash (dHash) of a frame: the luminance is box-averaged to
+// a 9x8 grid and bit y * 8 + x is set if cell (x, y) is darker than cell
+// (x + 1, y). Near-identical frames differ in a few bits; exposure changes,
+// noise and recompression hardly flip any.
+uint64_t frame_dhash(const LumaPlane& plane);
+
+// The same for ARGB_8888 pixels, with the luminance of luma_of_argb().
+uint64_t frame_dhash_argb(const uint32_t* pixels, int width, int height);
+
+inline int frame_hash_distance(uint64_t a, uint64_t b) {
+    return __builtin_popcountll(a ^ b);
+}
+
+// Hashes of the frames stored in the last retentionMs, with a multi-index for
+// near-duplicate queries: each hash is split into four 16-bit chunks and every
+// chunk position has a hash table from chunk value to entries. Two hashes
+// within a Hamming distance of r differ in at most r / 4 bits in at least one
+// chunk (pigeonhole), so a query probes the chunk values within r / 4 bits of
+// its own and only verifies the entries found there, instead of every entry.
+//
+// With a path, every added hash is appended to the file (16-byte records after
+// an 8-byte header), and load() restores the index after a restart and
+// compacts the file. A torn last record, e.g. after a power cut, is ignored.
+// Times are wall clock milliseconds, so that they survive a restart. Not
+// thread safe.
+class FrameHashIndex {
+public:
+    static const int kMaxDistance = 11;
+
+    struct Match {
+        uint64_t hash;
+        int64_t timeMs;
+        int distance;
+    };
+
+    explicit FrameHashIndex(int64_t retentionMs);
+    ~FrameHashIndex();
+
+    FrameHashIndex(const FrameHashIndex&) = delete;
+    FrameHashIndex& operator=(const FrameHashIndex&) = delete;
+
+    // Read the entries of path which are younger than retentionMs, rewrite the
+    // file with only those, and append to it from now on. Called once, on an
+    // empty index. False if the file cannot be written; the index then works
+    // in memory only.
+    bool load(const std::string& path, int64_t nowMs);
+
+    void add(uint64_t hash, int64_t timeMs);
+
+    // Closest entry added in [nowMs - windowMs, nowMs] within maxDistance
+    // (at most kMaxDistance); the newest one on a tie.
+    bool findNear(uint64_t hash, int64_t nowMs, int64_t windowMs, int maxDistance, Match* match);
+
+    // Drop the entries older than retentionMs.
+    void prune(int64_t nowMs);
+
+    size_t size() const { return mEntries.size(); }
+
+    // Entries verified by the last findNear, for the statistics.
+    size_t lastCandidates() const { return mLastCandidates; }
+
+private:
+    struct Entry {
+        uint64_t hash;
+        int64_t timeMs;
+    };
+
+    void index(uint64_t sequence, uint64_t hash);
+    void verify(uint64_t hash, const std::vector<uint64_t>* bucket, int64_t nowMs, int64_t windowMs, Match* best);
+    void rebuild();
+    bool append(const Entry& entry);
+
+    const int64_t mRetentionMs;
+    std::deque<Entry> mEntries;
+    // Sequence number of mEntries.front(); bucket entries below it are stale.
+    uint64_t mBase = 0;
+    size_t mStale = 0;
+    std::unordered_map<uint16_t, std::vector<uint64_t>> mTables[4];
+    int mFd = -1;
+    size_t mLastCandidates = 0;
+};
+
+#endif // DASHCAMSYSTEM_FRAME_HASH_H
@@ -0,0 +1,113 @@
+#include "luma_exposure.h"
+
+#include "luma_kernels.h"
+
+#include <algorithm>
+#include <cstring>
+#include <vector>
+
+namespace {
+
+template <typename T>
+void put(uint8_t* out, size_t offset, T value) {
+    memcpy(out + offset, &value, sizeof(value));
+}
+
+int percentile(const uint32_t* histogram, uint64_t count, double fraction) {
+    if (count == 0) return 0;
+    const uint64_t rank = std::max<uint64_t>(1, (uint64_t) (fraction * count + 0.5));
+    uint64_t seen = 0;
+    for (int level = 0; level < 256; ++level) {
+        seen += histogram[level];
+        if (seen >= rank) return level;
+    }
+    return 255;
+}
+
+bool valid(int width, int height, const ExposureParams& p, size_t capacity) {
+    return width > 0 && height > 0 && p.cols > 0 && p.rows > 0 && p.cols <= width && p.rows <= height
+           && capacity >= exposure::bufferSize(p.cols, p.rows);
+}
+
+// One pass over the rows; every row is split at the cell borders and each
+// piece goes through the luma kernel, so the global histogram, sum and min/max
+// come with the per-cell sums (the growth of stats.sum per piece).
+// addPiece(y, x, n, stats) feeds n pixels of row y from column x.
+template <typename AddPiece>
+void analyze(int width, int height, const ExposureParams& p, uint8_t* out, AddPiece addPiece) {
+    LumaStats stats;
+    luma_stats_reset(&stats);
+    std::vector<uint64_t> cellSums((size_t) p.cols * p.rows, 0);
+    // Cell row r holds the rows r * height / rows up to (r + 1) * height / rows, as columns do.
+    int cellRow = 0;
+    for (int y = 0; y < height; ++y) {
+        while ((int64_t) (cellRow + 1) * height / p.rows <= y) cellRow++;
+        for (int col = 0; col < p.cols; ++col) {
+            const int x0 = (int) ((int64_t) col * width / p.cols);
+            const int x1 = (int) ((int64_t) (col + 1) * width / p.cols);
+            const uint64_t before = stats.sum;
+            addPiece(y, x0, x1 - x0, &stats);
+            cellSums[(size_t) cellRow * p.cols + col] += stats.sum - before;
+        }
+    }
+
+    uint64_t crushed = 0;
+    uint64_t clipped = 0;
+    for (int level = 0; level < 256; ++level) {
+        if (level <= p.crushedLevel) crushed += stats.histogram[level];
+        if (level >= p.clippedLevel) clipped += stats.histogram[level];
+    }
+    const double count = (double) stats.count;
+    put<int32_t>(out, exposure::kVersionOffset, exposure::kVersion);
+    put<int32_t>(out, exposure::kCountOffset, (int32_t) stats.count);
+    put<float>(out, exposure::kMeanOffset, (float) (stats.sum / count));
+    put<int32_t>(out, exposure::kMinOffset, stats.min);
+    put<int32_t>(out, exposure::kMaxOffset, stats.max);
+    put<int32_t>(out, exposure::kP5Offset, percentile(stats.histogram, stats.count, 0.05));
+    put<int32_t>(out, exposure::kP50Offset, percentile(stats.histogram, stats.count, 0.50));
+    put<int32_t>(out, exposure::kP95Offset, percentile(stats.histogram, stats.count, 0.95));
+    put<float>(out, exposure::kCrushedOffset, (float) (crushed / count));
+    put<float>(out, exposure::kClippedOffset, (float) (clipped / count));
+    put<int32_t>(out, exposure::kColsOffset, p.cols);
+    put<int32_t>(out, exposure::kRowsOffset, p.rows);
+    memcpy(out + exposure::kHistogramOffset, stats.histogram, sizeof(stats.histogram));
+    for (int row = 0; row < p.rows; ++row) {
+        const int64_t h = (int64_t) (row + 1) * height / p.rows - (int64_t) row * height / p.rows;
+        for (int col = 0; col < p.cols; ++col) {
+            const int64_t w = (int64_t) (col + 1) * width / p.cols - (int64_t) col * width / p.cols;
+            const size_t cell = (size_t) row * p.cols + col;
+            put<float>(out, exposure::kCellsOffset + cell * 4, (float) ((double) cellSums[cell] / (double) (w * h)));
+        }
+    }
+}
+
+} // namespace
+
+bool luma_analyze_exposure(const LumaPlane& plane, const ExposureParams& params, uint8_t* out, size_t capacity) {
+    if (plane.data == nullptr || !valid(plane.width, plane.height, params, capacity)) return false;
+    const LumaKernels& kernels = luma_kernels();
+    uint8_t gathered[1024];
+    analyze(plane.width, plane.height, params, out, [&](int y, int x, int n, LumaStats* stats) {
+        const uint8_t* row = plane.data + (size_t) y * plane.rowStride;
+        if (plane.pixelStride == 1) {
+            kernels.gray(row + x, (size_t) n, stats);
+            return;
+        }
+        for (int done = 0; done < n; done += (int) sizeof(gathered)) {
+            const int m = std::min(n - done, (int) sizeof(gathered));
+            for (int i = 0; i < m; ++i) gathered[i] = row[(size_t) (x + done + i) * plane.pixelStride];
+            kernels.gray(gathered, (size_t) m, stats);
+        }
+    });
+    return true;
+}
+
+bool luma_analyze_exposure_argb(const uint32_t* pixels, int width, int height, const ExposureParams& params,
+                                uint8_t* out, size_t capacity) {
+    if (pixels == nullptr || !valid(width, height, params, capacity)) return false;
+    const LumaKernels& kernels = luma_kernels();
+    analyze(width, height, params, out, [&](int y, int x, int n, LumaStats* stats) {
+        kernels.argb(pixels + (size_t) y * width + x, (size_t) n, stats);
+    });
+    return true;
+}
@@ -0,0 +1,52 @@
+#ifndef DASHCAMSYSTEM_LUMA_EXPOSURE_H
+#define DASHCAMSYSTEM_LUMA_EXPOSURE_H
+
+#include <cstddef>
+#include <cstdint>
+
+#include "luma_kernels.h"
+
+// Exposure analysis of a frame, written into a caller provided buffer so that
+// the Java side can reuse one direct ByteBuffer for every frame. All fields are
+// 32 bits in native byte order; the layout is mirrored by ExposureAnalysis.kt.
+namespace exposure {
+
+const int32_t kVersion = 1;
+
+// Byte offsets.
+const size_t kVersionOffset = 0;
+const size_t kCountOffset = 4;       // int32: pixels analysed
+const size_t kMeanOffset = 8;        // float
+const size_t kMinOffset = 12;        // int32
+const size_t kMaxOffset = 16;        // int32
+const size_t kP5Offset = 20;         // int32
+const size_t kP50Offset = 24;        // int32
+const size_t kP95Offset = 28;        // int32
+const size_t kCrushedOffset = 32;    // float: fraction of pixels <= crushed level
+const size_t kClippedOffset = 36;    // float: fraction of pixels >= clipped level
+const size_t kColsOffset = 40;       // int32
+const size_t kRowsOffset = 44;       // int32
+const size_t kHistogramOffset = 48;  // uint32[256]
+const size_t kCellsOffset = kHistogramOffset + 256 * 4;  // float[rows * cols], row major
+
+inline size_t bufferSize(int cols, int rows) {
+    return kCellsOffset + (size_t) cols * rows * 4;
+}
+
+} // namespace exposure
+
+struct ExposureParams {
+    int cols;
+    int rows;
+    int crushedLevel;
+    int clippedLevel;
+};
+
+// Analyse the plane in one pass. out must hold exposure::bufferSize(cols, rows) bytes.
+bool luma_analyze_exposure(const LumaPlane& plane, const ExposureParams& params, uint8_t* out, size_t capacity);
+
+// The same for ARGB_8888 pixels.
+bool luma_analyze_exposure_argb(const uint32_t* pixels, int width, int height, const ExposureParams& params,
+                                uint8_t* out, size_t capacity);
+
+#endif // DASHCAMSYSTEM_LUMA_EXPOSURE_H
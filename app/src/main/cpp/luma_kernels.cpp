@@ -0,0 +1,76 @@
+#include "luma_kernels.h"
+
+#include <cstring>
+
+void luma_stats_reset(LumaStats* stats) {
+    memset(stats, 0, sizeof(*stats));
+    stats->min = 0xFF;
+    stats->max = 0;
+}
+
+namespace {
+
+void scalar_gray(const uint8_t* samples, size_t count, LumaStats* stats) {
+    uint64_t sum = 0;
+    uint8_t lo = stats->min;
+    uint8_t hi = stats->max;
+    for (size_t i = 0; i < count; ++i) {
+        const uint8_t l = samples[i];
+        sum += l;
+        lo = l < lo ? l : lo;
+        hi = l > hi ? l : hi;
+        stats->histogram[l]++;
+    }
+    stats->sum += sum;
+    stats->count += count;
+    stats->min = lo;
+    stats->max = hi;
+}
+
+void scalar_argb(const uint32_t* pixels, size_t count, LumaStats* stats) {
+    uint64_t sum = 0;
+    uint8_t lo = stats->min;
+    uint8_t hi = stats->max;
+    for (size_t i = 0; i < count; ++i) {
+        const uint8_t l = luma_of_argb(pixels[i]);
+        sum += l;
+        lo = l < lo ? l : lo;
+        hi = l > hi ? l : hi;
+        stats->histogram[l]++;
+    }
+    stats->sum += sum;
+    stats->count += count;
+    stats->min = lo;
+    stats->max = hi;
+}
+
+const LumaKernels kScalar = {"scalar", scalar_argb, scalar_gray};
+
+const LumaKernels* select_kernels() {
+    if (const LumaKernels* k = luma_kernels_neon()) return k;
+    if (const LumaKernels* k = luma_kernels_avx2()) return k;
+    if (const LumaKernels* k = luma_kernels_sse2()) return k;
+    return &kScalar;
+}
+
+// Selected during static initialisation, i.e. when System.loadLibrary() runs.
+const LumaKernels* const gSelected = select_kernels();
+
+} // namespace
+
+const LumaKernels& luma_kernels_scalar() {
+    return kScalar;
+}
+
+const LumaKernels& luma_kernels() {
+    return gSelected != nullptr ? *gSelected : kScalar;
+}
+
+size_t luma_kernels_available(const LumaKernels** out, size_t max) {
+    const LumaKernels* all[] = {&kScalar, luma_kernels_neon(), luma_kernels_sse2(), luma_kernels_avx2()};
+    size_t n = 0;
+    for (const LumaKernels* k : all) {
+        if (k != nullptr && n < max) out[n++] = k;
+    }
+    return n;
+}
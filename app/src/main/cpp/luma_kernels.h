@@ -0,0 +1,102 @@
+#ifndef DASHCAMSYSTEM_LUMA_KERNELS_H
+#define DASHCAMSYSTEM_LUMA_KERNELS_H
+
+#include <cstddef>
+#include <cstdint>
+
+// Luminance statistics of an image, computed in one pass over the pixels.
+struct LumaStats {
+    uint64_t sum;
+    uint64_t count;
+    uint8_t min;
+    uint8_t max;
+    uint32_t histogram[256];
+};
+
+void luma_stats_reset(LumaStats* stats);
+
+// Luminance of an ARGB_8888 pixel (0xAARRGGBB), BT.601 weights in 8-bit fixed point:
+// (77 R + 150 G + 29 B + 128) >> 8. All kernels compute exactly this value.
+static inline uint8_t luma_of_argb(uint32_t pixel) {
+    const uint32_t r = (pixel >> 16) & 0xFF;
+    const uint32_t g = (pixel >> 8) & 0xFF;
+    const uint32_t b = pixel & 0xFF;
+    return (uint8_t) ((77 * r + 150 * g + 29 * b + 128) >> 8);
+}
+
+// An 8-bit luminance plane, e.g. the Y plane of a YUV_420_888 image.
+struct LumaPlane {
+    const uint8_t* data;
+    int width;
+    int height;
+    int rowStride;
+    int pixelStride;
+};
+
+// Histogram counters of the vector kernels. Large inputs are counted in four
+// interleaved tables, so that runs of equal samples (smooth image areas) do
+// not serialise on one counter; small inputs, e.g. single rows, count directly.
+struct LumaHistogram {
+    static const size_t kSplitThreshold = 4096;
+
+    explicit LumaHistogram(LumaStats* stats, size_t count) : mStats(stats), mSplit(count >= kSplitThreshold) {
+        for (int t = 0; t < 4; ++t) {
+            mTables[t] = mSplit ? mLocal[t] : stats->histogram;
+        }
+        if (mSplit) {
+            for (int t = 0; t < 4; ++t) {
+                for (int i = 0; i < 256; ++i) mLocal[t][i] = 0;
+            }
+        }
+    }
+
+    ~LumaHistogram() {
+        if (mSplit) {
+            for (int i = 0; i < 256; ++i) {
+                mStats->histogram[i] += mLocal[0][i] + mLocal[1][i] + mLocal[2][i] + mLocal[3][i];
+            }
+        }
+    }
+
+    // Count 16 samples.
+    inline void add16(const uint8_t* samples) {
+        for (int i = 0; i < 16; i += 4) {
+            mTables[0][samples[i]]++;
+            mTables[1][samples[i + 1]]++;
+            mTables[2][samples[i + 2]]++;
+            mTables[3][samples[i + 3]]++;
+        }
+    }
+
+private:
+    LumaStats* mStats;
+    bool mSplit;
+    uint32_t* mTables[4];
+    uint32_t mLocal[4][256];
+};
+
+// One implementation of the kernels. Both functions add to the statistics,
+// so an image can be fed in pieces, e.g. row by row.
+struct LumaKernels {
+    const char* name;
+    // ARGB_8888 pixels, as delivered by Bitmap.getPixels().
+    void (*argb)(const uint32_t* pixels, size_t count, LumaStats* stats);
+    // 8-bit luminance samples, e.g. a row of the Y plane of a YUV image.
+    void (*gray)(const uint8_t* samples, size_t count, LumaStats* stats);
+};
+
+// The fastest kernels of this CPU, selected once when the library is loaded.
+const LumaKernels& luma_kernels();
+
+// Portable reference implementation.
+const LumaKernels& luma_kernels_scalar();
+
+// All kernels this CPU can run, the scalar one first. Returns the number written.
+size_t luma_kernels_available(const LumaKernels** out, size_t max);
+
+// Architecture specific kernels; null if the CPU or the build does not support them.
+const LumaKernels* luma_kernels_neon();
+const LumaKernels* luma_kernels_sse2();
+const LumaKernels* luma_kernels_avx2();
+
+#endif // DASHCAMSYSTEM_LUMA_KERNELS_H
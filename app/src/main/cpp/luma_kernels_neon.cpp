@@ -0,0 +1,105 @@
+// NEON luminance kernels for arm64-v8a and armeabi-v7a builds with NEON.
+
+#include "luma_kernels.h"
+
+#if defined(__ARM_NEON)
+
+#include <arm_neon.h>
+
+namespace {
+
+// Histogram, sum, min and max of 16 luminance bytes. The sum is kept in
+// 32-bit lanes and flushed before it can overflow.
+inline void add16(uint8x16_t l, uint32x4_t& sum, uint8x16_t& lo, uint8x16_t& hi, LumaHistogram& histogram) {
+    sum = vpadalq_u16(sum, vpaddlq_u8(l));
+    lo = vminq_u8(lo, l);
+    hi = vmaxq_u8(hi, l);
+    uint8_t bytes[16];
+    vst1q_u8(bytes, l);
+    histogram.add16(bytes);
+}
+
+// Each 32-bit lane gains at most 4 * 255 per block.
+constexpr size_t kFlushBlocks = (1u << 20);
+
+inline void flush(uint32x4_t& sum, LumaStats* stats) {
+    stats->sum += (uint64_t) vgetq_lane_u32(sum, 0) + vgetq_lane_u32(sum, 1)
+                  + vgetq_lane_u32(sum, 2) + vgetq_lane_u32(sum, 3);
+    sum = vdupq_n_u32(0);
+}
+
+inline void finish(uint32x4_t sum, uint8x16_t lo, uint8x16_t hi, size_t count, LumaStats* stats) {
+    flush(sum, stats);
+    uint8_t los[16];
+    uint8_t his[16];
+    vst1q_u8(los, lo);
+    vst1q_u8(his, hi);
+    for (int i = 0; i < 16; ++i) {
+        stats->min = los[i] < stats->min ? los[i] : stats->min;
+        stats->max = his[i] > stats->max ? his[i] : stats->max;
+    }
+    stats->count += count;
+}
+
+// (77 R + 150 G + 29 B + 128) >> 8 of 8 pixels; the sum fits 16 bits.
+inline uint8x8_t luma8(uint8x8_t r, uint8x8_t g, uint8x8_t b) {
+    uint16x8_t l = vmull_u8(r, vdup_n_u8(77));
+    l = vmlal_u8(l, g, vdup_n_u8(150));
+    l = vmlal_u8(l, b, vdup_n_u8(29));
+    return vrshrn_n_u16(l, 8);
+}
+
+void neon_argb(const uint32_t* pixels, size_t count, LumaStats* stats) {
+    uint32x4_t sum = vdupq_n_u32(0);
+    uint8x16_t lo = vdupq_n_u8(0xFF);
+    uint8x16_t hi = vdupq_n_u8(0);
+    LumaHistogram histogram(stats, count);
+    size_t i = 0;
+    size_t blocks = 0;
+    for (; i + 16 <= count; i += 16) {
+        // Little endian ARGB_8888 ints are B, G, R, A in memory.
+        const uint8x16x4_t bgra = vld4q_u8(reinterpret_cast<const uint8_t*>(pixels + i));
+        const uint8x16_t l = vcombine_u8(
+                luma8(vget_low_u8(bgra.val[2]), vget_low_u8(bgra.val[1]), vget_low_u8(bgra.val[0])),
+                luma8(vget_high_u8(bgra.val[2]), vget_high_u8(bgra.val[1]), vget_high_u8(bgra.val[0])));
+        add16(l, sum, lo, hi, histogram);
+        if (++blocks == kFlushBlocks) {
+            flush(sum, stats);
+            blocks = 0;
+        }
+    }
+    finish(sum, lo, hi, i, stats);
+    luma_kernels_scalar().argb(pixels + i, count - i, stats);
+}
+
+void neon_gray(const uint8_t* samples, size_t count, LumaStats* stats) {
+    uint32x4_t sum = vdupq_n_u32(0);
+    uint8x16_t lo = vdupq_n_u8(0xFF);
+    uint8x16_t hi = vdupq_n_u8(0);
+    LumaHistogram histogram(stats, count);
+    size_t i = 0;
+    size_t blocks = 0;
+    for (; i + 16 <= count; i += 16) {
+        add16(vld1q_u8(samples + i), sum, lo, hi, histogram);
+        if (++blocks == kFlushBlocks) {
+            flush(sum, stats);
+            blocks = 0;
+        }
+    }
+    finish(sum, lo, hi, i, stats);
+    luma_kernels_scalar().gray(samples + i, count - i, stats);
+}
+
+const LumaKernels kNeon = {"neon", neon_argb, neon_gray};
+
+} // namespace
+
+const LumaKernels* luma_kernels_neon() {
+    return &kNeon;
+}
+
+#else
+
+const LumaKernels* luma_kernels_neon() { return nullptr; }
+
+#endif
@@ -0,0 +1,169 @@
+// SSE2 and AVX2 luminance kernels for x86_64 (emulators, Chromebooks).
+// SSE2 is part of x86_64; AVX2 is compiled with a target attribute and only
+// used if the CPU reports it.
+
+#include "luma_kernels.h"
+
+#if defined(__x86_64__) || defined(__i386__)
+
+#include <immintrin.h>
+
+namespace {
+
+// Histogram, sum, min and max of 16 luminance bytes.
+inline void add16(__m128i l, __m128i& sum, __m128i& lo, __m128i& hi, LumaHistogram& histogram) {
+    sum = _mm_add_epi64(sum, _mm_sad_epu8(l, _mm_setzero_si128()));
+    lo = _mm_min_epu8(lo, l);
+    hi = _mm_max_epu8(hi, l);
+    alignas(16) uint8_t bytes[16];
+    _mm_store_si128(reinterpret_cast<__m128i*>(bytes), l);
+    histogram.add16(bytes);
+}
+
+inline void finish(__m128i sum, __m128i lo, __m128i hi, size_t count, LumaStats* stats) {
+    alignas(16) uint64_t sums[2];
+    alignas(16) uint8_t los[16];
+    alignas(16) uint8_t his[16];
+    _mm_store_si128(reinterpret_cast<__m128i*>(sums), sum);
+    _mm_store_si128(reinterpret_cast<__m128i*>(los), lo);
+    _mm_store_si128(reinterpret_cast<__m128i*>(his), hi);
+    for (int i = 0; i < 16; ++i) {
+        stats->min = los[i] < stats->min ? los[i] : stats->min;
+        stats->max = his[i] > stats->max ? his[i] : stats->max;
+    }
+    stats->sum += sums[0] + sums[1];
+    stats->count += count;
+}
+
+// Luminance of 4 ARGB pixels in the low byte of each 32-bit lane. The products
+// stay below 2^16, so 16-bit multiplies of the zero-extended channels suffice.
+inline __m128i luma4_sse2(__m128i px) {
+    const __m128i mask = _mm_set1_epi32(0xFF);
+    const __m128i r = _mm_and_si128(_mm_srli_epi32(px, 16), mask);
+    const __m128i g = _mm_and_si128(_mm_srli_epi32(px, 8), mask);
+    const __m128i b = _mm_and_si128(px, mask);
+    __m128i l = _mm_mullo_epi16(r, _mm_set1_epi32(77));
+    l = _mm_add_epi16(l, _mm_mullo_epi16(g, _mm_set1_epi32(150)));
+    l = _mm_add_epi16(l, _mm_mullo_epi16(b, _mm_set1_epi32(29)));
+    l = _mm_add_epi16(l, _mm_set1_epi32(128));
+    return _mm_srli_epi32(l, 8);
+}
+
+void sse2_argb(const uint32_t* pixels, size_t count, LumaStats* stats) {
+    __m128i sum = _mm_setzero_si128();
+    __m128i lo = _mm_set1_epi8((char) 0xFF);
+    __m128i hi = _mm_setzero_si128();
+    LumaHistogram histogram(stats, count);
+    size_t i = 0;
+    for (; i + 16 <= count; i += 16) {
+        const __m128i* p = reinterpret_cast<const __m128i*>(pixels + i);
+        const __m128i l0 = luma4_sse2(_mm_loadu_si128(p));
+        const __m128i l1 = luma4_sse2(_mm_loadu_si128(p + 1));
+        const __m128i l2 = luma4_sse2(_mm_loadu_si128(p + 2));
+        const __m128i l3 = luma4_sse2(_mm_loadu_si128(p + 3));
+        add16(_mm_packus_epi16(_mm_packs_epi32(l0, l1), _mm_packs_epi32(l2, l3)), sum, lo, hi, histogram);
+    }
+    finish(sum, lo, hi, i, stats);
+    luma_kernels_scalar().argb(pixels + i, count - i, stats);
+}
+
+void sse2_gray(const uint8_t* samples, size_t count, LumaStats* stats) {
+    __m128i sum = _mm_setzero_si128();
+    __m128i lo = _mm_set1_epi8((char) 0xFF);
+    __m128i hi = _mm_setzero_si128();
+    LumaHistogram histogram(stats, count);
+    size_t i = 0;
+    for (; i + 16 <= count; i += 16) {
+        add16(_mm_loadu_si128(reinterpret_cast<const __m128i*>(samples + i)), sum, lo, hi, histogram);
+    }
+    finish(sum, lo, hi, i, stats);
+    luma_kernels_scalar().gray(samples + i, count - i, stats);
+}
+
+#define AVX2 __attribute__((target("avx2")))
+
+AVX2 inline __m256i luma8_avx2(__m256i px) {
+    const __m256i mask = _mm256_set1_epi32(0xFF);
+    const __m256i r = _mm256_and_si256(_mm256_srli_epi32(px, 16), mask);
+    const __m256i g = _mm256_and_si256(_mm256_srli_epi32(px, 8), mask);
+    const __m256i b = _mm256_and_si256(px, mask);
+    __m256i l = _mm256_mullo_epi16(r, _mm256_set1_epi32(77));
+    l = _mm256_add_epi16(l, _mm256_mullo_epi16(g, _mm256_set1_epi32(150)));
+    l = _mm256_add_epi16(l, _mm256_mullo_epi16(b, _mm256_set1_epi32(29)));
+    l = _mm256_add_epi16(l, _mm256_set1_epi32(128));
+    return _mm256_srli_epi32(l, 8);
+}
+
+// Histogram, sum, min and max of 32 luminance bytes. Their order does not
+// matter, so the lane-wise packs need no permute.
+AVX2 inline void add32(__m256i l, __m256i& sum, __m256i& lo, __m256i& hi, LumaHistogram& histogram) {
+    sum = _mm256_add_epi64(sum, _mm256_sad_epu8(l, _mm256_setzero_si256()));
+    lo = _mm256_min_epu8(lo, l);
+    hi = _mm256_max_epu8(hi, l);
+    alignas(32) uint8_t bytes[32];
+    _mm256_store_si256(reinterpret_cast<__m256i*>(bytes), l);
+    histogram.add16(bytes);
+    histogram.add16(bytes + 16);
+}
+
+AVX2 inline void finish_avx2(__m256i sum, __m256i lo, __m256i hi, size_t count, LumaStats* stats) {
+    const __m128i sum2 = _mm_add_epi64(_mm256_castsi256_si128(sum), _mm256_extracti128_si256(sum, 1));
+    const __m128i lo2 = _mm_min_epu8(_mm256_castsi256_si128(lo), _mm256_extracti128_si256(lo, 1));
+    const __m128i hi2 = _mm_max_epu8(_mm256_castsi256_si128(hi), _mm256_extracti128_si256(hi, 1));
+    finish(sum2, lo2, hi2, count, stats);
+}
+
+AVX2 void avx2_argb(const uint32_t* pixels, size_t count, LumaStats* stats) {
+    __m256i sum = _mm256_setzero_si256();
+    __m256i lo = _mm256_set1_epi8((char) 0xFF);
+    __m256i hi = _mm256_setzero_si256();
+    LumaHistogram histogram(stats, count);
+    size_t i = 0;
+    for (; i + 32 <= count; i += 32) {
+        const __m256i* p = reinterpret_cast<const __m256i*>(pixels + i);
+        const __m256i l0 = luma8_avx2(_mm256_loadu_si256(p));
+        const __m256i l1 = luma8_avx2(_mm256_loadu_si256(p + 1));
+        const __m256i l2 = luma8_avx2(_mm256_loadu_si256(p + 2));
+        const __m256i l3 = luma8_avx2(_mm256_loadu_si256(p + 3));
+        add32(_mm256_packus_epi16(_mm256_packs_epi32(l0, l1), _mm256_packs_epi32(l2, l3)), sum, lo, hi, histogram);
+    }
+    finish_avx2(sum, lo, hi, i, stats);
+    sse2_argb(pixels + i, count - i, stats);
+}
+
+AVX2 void avx2_gray(const uint8_t* samples, size_t count, LumaStats* stats) {
+    __m256i sum = _mm256_setzero_si256();
+    __m256i lo = _mm256_set1_epi8((char) 0xFF);
+    __m256i hi = _mm256_setzero_si256();
+    LumaHistogram histogram(stats, count);
+    size_t i = 0;
+    for (; i + 32 <= count; i += 32) {
+        add32(_mm256_loadu_si256(reinterpret_cast<const __m256i*>(samples + i)), sum, lo, hi, histogram);
+    }
+    finish_avx2(sum, lo, hi, i, stats);
+    sse2_gray(samples + i, count - i, stats);
+}
+
+const LumaKernels kSse2 = {"sse2", sse2_argb, sse2_gray};
+const LumaKernels kAvx2 = {"avx2", avx2_argb, avx2_gray};
+
+} // namespace
+
+const LumaKernels* luma_kernels_sse2() {
+    // Baseline of x86_64, and of the Android x86 ABI.
+    return &kSse2;
+}
+
+const LumaKernels* luma_kernels_avx2() {
+    // May run before the constructors of the runtime: initialise the CPU model first.
+    __builtin_cpu_init();
+    return __builtin_cpu_supports("avx2") ? &kAvx2 : nullptr;
+}
+
+#else
+
+const LumaKernels* luma_kernels_sse2() { return nullptr; }
+
+const LumaKernels* luma_kernels_avx2() { return nullptr; }
+
+#endif
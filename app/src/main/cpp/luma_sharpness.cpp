@@ -0,0 +1,95 @@
+#include "luma_sharpness.h"
+
+#include <algorithm>
+#include <cstdint>
+#include <vector>
+
+namespace {
+
+// As ExposureAnalysis.clippedLevel.
+const uint8_t kClippedLevel = 250;
+
+} // namespace
+
+float luma_sharpness(const LumaPlane& plane, int maxWidth) {
+    if (plane.data == nullptr || plane.width <= 0 || plane.height <= 0 || maxWidth <= 0) return 0;
+    const int factor = (plane.width + maxWidth - 1) / maxWidth;
+    const int w = plane.width / factor;
+    const int h = plane.height / factor;
+    if (w < 3 || h < 3) return 0;
+
+    // Sums of factor x factor boxes; the Laplacian is scaled back at the end.
+    // Rows are added up first (plain loops the compiler vectorizes), then the
+    // column sums of each box. Boxes with a clipped pixel are marked: the
+    // Laplacian is not taken where one of its taps is, so neither a clipped
+    // area nor its border counts as detail.
+    std::vector<uint32_t> boxes((size_t) w * h);
+    std::vector<uint8_t> clipped((size_t) w * h);
+    std::vector<uint16_t> columns((size_t) w * factor);
+    std::vector<uint8_t> columnClipped((size_t) w * factor);
+    const int used = w * factor;
+    for (int by = 0; by < h; ++by) {
+        std::fill(columns.begin(), columns.end(), 0);
+        std::fill(columnClipped.begin(), columnClipped.end(), 0);
+        for (int i = 0; i < factor; ++i) {
+            const uint8_t* row = plane.data + (size_t) (by * factor + i) * plane.rowStride;
+            uint16_t* c = columns.data();
+            uint8_t* k = columnClipped.data();
+            if (plane.pixelStride == 1) {
+                for (int x = 0; x < used; ++x) {
+                    c[x] += row[x];
+                    k[x] |= row[x] >= kClippedLevel;
+                }
+            } else {
+                for (int x = 0; x < used; ++x) {
+                    const uint8_t v = row[(size_t) x * plane.pixelStride];
+                    c[x] += v;
+                    k[x] |= v >= kClippedLevel;
+                }
+            }
+        }
+        uint32_t* out = boxes.data() + (size_t) by * w;
+        uint8_t* outClipped = clipped.data() + (size_t) by * w;
+        const uint16_t* c = columns.data();
+        const uint8_t* k = columnClipped.data();
+        for (int x = 0; x < w; ++x, c += factor, k += factor) {
+            uint32_t sum = 0;
+            uint8_t any = 0;
+            for (int i = 0; i < factor; ++i) {
+                sum += c[i];
+                any |= k[i];
+            }
+            out[x] = sum;
+            outClipped[x] = any;
+        }
+    }
+
+    int64_t sum = 0;
+    int64_t sumSquares = 0;
+    int64_t count = 0;
+    for (int y = 1; y < h - 1; ++y) {
+        const uint32_t* up = boxes.data() + (size_t) (y - 1) * w;
+        const uint32_t* row = up + w;
+        const uint32_t* down = row + w;
+        const uint8_t* clippedUp = clipped.data() + (size_t) (y - 1) * w;
+        const uint8_t* clippedRow = clippedUp + w;
+        const uint8_t* clippedDown = clippedRow + w;
+        for (int x = 1; x < w - 1; ++x) {
+            // Without a branch: the clipped taps are scattered on a noisy frame.
+            const int64_t use = 1 - (clippedRow[x - 1] | clippedRow[x] | clippedRow[x + 1] | clippedUp[x] | clippedDown[x]);
+            const int64_t lap = use * (4 * (int64_t) row[x] - row[x - 1] - row[x + 1] - up[x] - down[x]);
+            sum += lap;
+            sumSquares += lap * lap;
+            count += use;
+        }
+    }
+    if (count == 0) return 0;
+    const double mean = (double) sum / count;
+    const double scale = (double) factor * factor;
+    return (float) std::max(0.0, ((double) sumSquares / count - mean * mean) / (scale * scale));
+}
+
+float luma_burst_score(float sharpness, float crushedFraction, float clippedFraction) {
+    const float usable = 1.0f - crushedFraction - clippedFraction;
+    return usable > 0 ? sharpness * usable : 0;
+}
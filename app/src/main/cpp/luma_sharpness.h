@@ -0,0 +1,23 @@
+#ifndef DASHCAMSYSTEM_LUMA_SHARPNESS_H
+#define DASHCAMSYSTEM_LUMA_SHARPNESS_H
+
+#include "luma_kernels.h"
+
+// Sharpness of a frame: the variance of the 4-neighbour Laplacian of the
+// luminance, after a box downsample by the smallest integer factor that brings
+// the width to at most maxWidth. Motion blur and defocus remove the fine
+// detail the Laplacian responds to, so of several frames of the same scene the
+// sharpest has the highest variance; the downsample averages out most of the
+// sensor noise, which would otherwise count as detail, and bounds the cost.
+// Clipped areas (pixels at 250 and up) and their borders are left out.
+// In squared luminance levels; 0 for a plane smaller than 3x3 after the
+// downsample.
+float luma_sharpness(const LumaPlane& plane, int maxWidth);
+
+// Score of a frame for a best-of-burst choice: the sharpness, less the share
+// of the frame that is crushed to black or clipped to white. Those pixels
+// carry no detail, and the edges of clipped areas would otherwise inflate the
+// Laplacian of an overexposed frame.
+float luma_burst_score(float sharpness, float crushedFraction, float clippedFraction);
+
+#endif // DASHCAMSYSTEM_LUMA_SHARPNESS_H
@@ -6,11 +6,59 @@
 #include <sys/types.h>
 #include <android/log.h>
 #include <cstring>
+#include <cerrno>
+#include <atomic>
+#include <cstdint>
+#include <algorithm>
+#include <memory>
+#include <mutex>
+
+#include "event_appender.h"
+#include "file_write.h"
+#include "frame_hash.h"
+#include "luma_sharpness.h"
+#include "luma_exposure.h"
+#include "luma_kernels.h"
+#include "scene_change.h"
+#include "write_queue.h"
 
 #define LOG_TAG "bgcam_native"
 #define ALOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define ALOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
+// fsync each file before returning from a write. Cleared when the durability
+// policy batches fsyncs on the Kotlin side (DurabilityManager).
+static std::atomic<bool> g_sync_on_write{true};
+
+extern "C" JNIEXPORT void JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_setSyncOnWrite(JNIEnv* env, jobject clazz, jboolean enabled) {
+    g_sync_on_write.store(enabled == JNI_TRUE, std::memory_order_relaxed);
+}
+
+// Images are written atomically (file_write.h): temp file, fsync, rename.
+static std::atomic<bool> g_atomic_writes{true};
+
+extern "C" JNIEXPORT void JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_setAtomicWrites(JNIEnv* env, jobject clazz, jboolean enabled) {
+    g_atomic_writes.store(enabled == JNI_TRUE, std::memory_order_relaxed);
+}
+
+static int imageWriteFlags() {
+    if (g_atomic_writes.load(std::memory_order_relaxed)) return kWriteAtomic;
+    return g_sync_on_write.load(std::memory_order_relaxed) ? kWriteSync : 0;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_sweepPartialFiles(JNIEnv* env, jobject clazz, jstring jdir, jlong minAgeSeconds) {
+    if (jdir == nullptr) return -1;
+    const char* dir = env->GetStringUTFChars(jdir, nullptr);
+    if (dir == nullptr) return -1;
+    const int removed = file_sweep_partial(dir, minAgeSeconds);
+    if (removed > 0) ALOGI("removed %d interrupted writes in %s", removed, dir);
+    env->ReleaseStringUTFChars(jdir, dir);
+    return removed;
+}
+
 extern "C" JNIEXPORT jstring JNICALL
 Java_cam_et_bgcamapp_MainActivity_stringFromJNI(
         JNIEnv* env,
@@ -19,27 +67,171 @@ Java_cam_et_bgcamapp_MainActivity_stringFromJNI(
     return env->NewStringUTF(hello.c_str());
 }
 
+// Luminance straight from the Y plane of a YUV_420_888 image, without any decode.
+// The plane is a direct ByteBuffer (Image.Plane.getBuffer()) read from address 0;
+// rows are rowStride bytes apart and pixels pixelStride bytes apart.
+static bool planeOf(JNIEnv* env, jobject yPlane, jint width, jint height, jint rowStride, jint pixelStride, LumaPlane* plane) {
+    if (yPlane == nullptr || width <= 0 || height <= 0 || pixelStride <= 0 || rowStride < width * pixelStride) return false;
+    const uint8_t* y = static_cast<const uint8_t*>(env->GetDirectBufferAddress(yPlane));
+    const jlong capacity = env->GetDirectBufferCapacity(yPlane);
+    // The last row may end right after its last pixel, without row padding.
+    if (y == nullptr || (jlong)(height - 1) * rowStride + (jlong)(width - 1) * pixelStride + 1 > capacity) {
+        ALOGE("bad Y plane %dx%d rowStride=%d pixelStride=%d capacity=%lld",
+              width, height, rowStride, pixelStride, (long long)capacity);
+        return false;
+    }
+    *plane = {y, width, height, rowStride, pixelStride};
+    return true;
+}
+
+// Exposure analysis into a reusable direct ByteBuffer, see luma_exposure.h.
+static uint8_t* exposureOut(JNIEnv* env, jobject out, size_t* capacity) {
+    if (out == nullptr) return nullptr;
+    uint8_t* address = static_cast<uint8_t*>(env->GetDirectBufferAddress(out));
+    const jlong size = env->GetDirectBufferCapacity(out);
+    *capacity = size > 0 ? (size_t)size : 0;
+    return address;
+}
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_analyzeExposure(JNIEnv* env, jobject clazz, jobject yPlane, jint width, jint height, jint rowStride, jint pixelStride, jint cols, jint rows, jint crushedLevel, jint clippedLevel, jobject out) {
+    LumaPlane plane;
+    size_t capacity = 0;
+    uint8_t* result = exposureOut(env, out, &capacity);
+    if (result == nullptr || !planeOf(env, yPlane, width, height, rowStride, pixelStride, &plane)) return JNI_FALSE;
+    return luma_analyze_exposure(plane, {cols, rows, crushedLevel, clippedLevel}, result, capacity) ? JNI_TRUE : JNI_FALSE;
+}
+
 extern "C" JNIEXPORT jboolean JNICALL
-Java_cam_et_dashcamsystem_nativelib_NativeLib_isImageDark(JNIEnv* env, jobject clazz, jintArray jpixels, jint width, jint height, jint threshold) {
-    if (jpixels == nullptr) return JNI_FALSE;
-    jint *pixels = env->GetIntArrayElements(jpixels, nullptr);
+Java_cam_et_dashcamsystem_nativelib_NativeLib_analyzeExposureArgb(JNIEnv* env, jobject clazz, jintArray jpixels, jint width, jint height, jint cols, jint rows, jint crushedLevel, jint clippedLevel, jobject out) {
+    size_t capacity = 0;
+    uint8_t* result = exposureOut(env, out, &capacity);
+    if (result == nullptr || jpixels == nullptr || width <= 0 || height <= 0
+            || env->GetArrayLength(jpixels) < width * height) return JNI_FALSE;
+    jint* pixels = static_cast<jint*>(env->GetPrimitiveArrayCritical(jpixels, nullptr));
     if (pixels == nullptr) return JNI_FALSE;
-    long long sum = 0;
-    const int total = width * height;
-    for (int i = 0; i < total; ++i) {
-        jint pix = pixels[i];
-        int a = (pix >> 24) & 0xFF;
-        int r = (pix >> 16) & 0xFF;
-        int g = (pix >> 8) & 0xFF;
-        int b = pix & 0xFF;
-        // luminance
-        int l = (299 * r + 587 * g + 114 * b) / 1000;
-        sum += l;
-    }
-    env->ReleaseIntArrayElements(jpixels, pixels, JNI_ABORT);
-    int avg = (int)(sum / total);
-    ALOGI("Average luminance=%d threshold=%d", avg, threshold);
-    return (avg < threshold) ? JNI_TRUE : JNI_FALSE;
+    const bool ok = luma_analyze_exposure_argb(reinterpret_cast<const uint32_t*>(pixels), width, height,
+                                               {cols, rows, crushedLevel, clippedLevel}, result, capacity);
+    env->ReleasePrimitiveArrayCritical(jpixels, pixels, JNI_ABORT);
+    return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+// Scene change detection against the last stored frame, see scene_change.h.
+extern "C" JNIEXPORT jlong JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_createSceneDetector(JNIEnv* env, jobject clazz, jint thumbWidth, jint thumbHeight, jint blockSize, jfloat blockThreshold, jfloat minChangedFraction, jfloat madThreshold, jlong maxSkipMs) {
+    if (thumbWidth <= 0 || thumbHeight <= 0 || blockSize <= 0) return 0;
+    SceneDetector::Options options;
+    options.thumbWidth = thumbWidth;
+    options.thumbHeight = thumbHeight;
+    options.blockSize = blockSize;
+    options.blockThreshold = blockThreshold;
+    options.minChangedFraction = minChangedFraction;
+    options.madThreshold = madThreshold;
+    options.maxSkipMs = maxSkipMs;
+    return reinterpret_cast<jlong>(new SceneDetector(options));
+}
+
+// diff (size >= 3, optional) receives mad, changedFraction and shift.
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_evaluateScene(JNIEnv* env, jobject clazz, jlong handle, jobject yPlane, jint width, jint height, jint rowStride, jint pixelStride, jlong timestampMs, jboolean force, jfloatArray jdiff) {
+    SceneDetector* detector = reinterpret_cast<SceneDetector*>(handle);
+    LumaPlane plane;
+    if (detector == nullptr || !planeOf(env, yPlane, width, height, rowStride, pixelStride, &plane)) return JNI_TRUE;
+    SceneDiff diff;
+    const bool store = detector->evaluate(plane, timestampMs, force == JNI_TRUE, &diff);
+    if (jdiff != nullptr && env->GetArrayLength(jdiff) >= 3) {
+        const jfloat out[3] = {diff.mad, diff.changedFraction, diff.shift};
+        env->SetFloatArrayRegion(jdiff, 0, 3, out);
+    }
+    return store ? JNI_TRUE : JNI_FALSE;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_resetSceneDetector(JNIEnv* env, jobject clazz, jlong handle) {
+    SceneDetector* detector = reinterpret_cast<SceneDetector*>(handle);
+    if (detector != nullptr) detector->reset();
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_releaseSceneDetector(JNIEnv* env, jobject clazz, jlong handle) {
+    delete reinterpret_cast<SceneDetector*>(handle);
+}
+
+// Sharpness and best-of-burst score of a frame, see luma_sharpness.h.
+extern "C" JNIEXPORT jfloat JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_lumaSharpness(JNIEnv* env, jobject clazz, jobject yPlane, jint width, jint height, jint rowStride, jint pixelStride, jint maxWidth) {
+    LumaPlane plane;
+    if (!planeOf(env, yPlane, width, height, rowStride, pixelStride, &plane)) return 0;
+    return luma_sharpness(plane, maxWidth);
+}
+
+extern "C" JNIEXPORT jfloat JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_burstScore(JNIEnv* env, jobject clazz, jfloat sharpness, jfloat crushedFraction, jfloat clippedFraction) {
+    return luma_burst_score(sharpness, crushedFraction, clippedFraction);
+}
+
+// Perceptual hashes of stored frames and their persistent index, see frame_hash.h.
+extern "C" JNIEXPORT jlong JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_hashYPlane(JNIEnv* env, jobject clazz, jobject yPlane, jint width, jint height, jint rowStride, jint pixelStride) {
+    LumaPlane plane;
+    if (!planeOf(env, yPlane, width, height, rowStride, pixelStride, &plane)) return 0;
+    return (jlong)frame_dhash(plane);
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_hashArgb(JNIEnv* env, jobject clazz, jintArray jpixels, jint width, jint height) {
+    if (jpixels == nullptr || width <= 0 || height <= 0 || env->GetArrayLength(jpixels) < width * height) return 0;
+    jint* pixels = static_cast<jint*>(env->GetPrimitiveArrayCritical(jpixels, nullptr));
+    if (pixels == nullptr) return 0;
+    const uint64_t hash = frame_dhash_argb(reinterpret_cast<const uint32_t*>(pixels), width, height);
+    env->ReleasePrimitiveArrayCritical(jpixels, pixels, JNI_ABORT);
+    return (jlong)hash;
+}
+
+extern "C" JNIEXPORT jlong JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_openHashIndex(JNIEnv* env, jobject clazz, jstring jpath, jlong retentionMs, jlong nowMs) {
+    FrameHashIndex* index = new FrameHashIndex(retentionMs);
+    if (jpath != nullptr) {
+        const char* path = env->GetStringUTFChars(jpath, nullptr);
+        if (path != nullptr) {
+            if (!index->load(path, nowMs)) ALOGE("hash index not persisted: %s", path);
+            env->ReleaseStringUTFChars(jpath, path);
+        }
+    }
+    return reinterpret_cast<jlong>(index);
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_addHash(JNIEnv* env, jobject clazz, jlong handle, jlong hash, jlong timeMs) {
+    FrameHashIndex* index = reinterpret_cast<FrameHashIndex*>(handle);
+    if (index == nullptr) return;
+    index->prune(timeMs);
+    index->add((uint64_t)hash, timeMs);
+}
+
+// match (size >= 3) receives the hash, time and distance of the closest entry.
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_findNearHash(JNIEnv* env, jobject clazz, jlong handle, jlong hash, jlong nowMs, jlong windowMs, jint maxDistance, jlongArray jmatch) {
+    FrameHashIndex* index = reinterpret_cast<FrameHashIndex*>(handle);
+    if (index == nullptr) return JNI_FALSE;
+    FrameHashIndex::Match match;
+    if (!index->findNear((uint64_t)hash, nowMs, windowMs, maxDistance, &match)) return JNI_FALSE;
+    if (jmatch != nullptr && env->GetArrayLength(jmatch) >= 3) {
+        const jlong out[3] = {(jlong)match.hash, match.timeMs, match.distance};
+        env->SetLongArrayRegion(jmatch, 0, 3, out);
+    }
+    return JNI_TRUE;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_hashIndexSize(JNIEnv* env, jobject clazz, jlong handle) {
+    FrameHashIndex* index = reinterpret_cast<FrameHashIndex*>(handle);
+    return index != nullptr ? (jint)index->size() : 0;
+}
+
+extern "C" JNIEXPORT void JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_closeHashIndex(JNIEnv* env, jobject clazz, jlong handle) {
+    delete reinterpret_cast<FrameHashIndex*>(handle);
 }
 
 // POSIX save bytes
@@ -54,26 +246,30 @@ Java_cam_et_dashcamsystem_nativelib_NativeLib_saveBytesToFile(JNIEnv* env, jobje
         return JNI_FALSE;
     }
 
-    int fd = open(path, O_WRONLY | O_CREAT | O_TRUNC, 0644);
-    if (fd < 0) {
-        ALOGE("open failed: %s", path);
-        env->ReleaseStringUTFChars(jpath, path);
-        env->ReleaseByteArrayElements(jdata, data, JNI_ABORT);
-        return JNI_FALSE;
-    }
-    ssize_t wrote = write(fd, data, (size_t)len);
-    if (wrote < 0 || wrote != len) {
-        ALOGE("write failed wrote=%zd len=%d", wrote, len);
-        close(fd);
-        env->ReleaseStringUTFChars(jpath, path);
-        env->ReleaseByteArrayElements(jdata, data, JNI_ABORT);
+    const int error = file_write(path, reinterpret_cast<const uint8_t*>(data), (size_t)len, imageWriteFlags());
+    if (error != 0) ALOGE("saveBytesToFile failed len=%d errno=%d: %s", len, error, path);
+    env->ReleaseStringUTFChars(jpath, path);
+    env->ReleaseByteArrayElements(jdata, data, JNI_ABORT);
+    return error == 0 ? JNI_TRUE : JNI_FALSE;
+}
+
+// Save a range of a direct ByteBuffer (e.g. Image.Plane.getBuffer() of a JPEG)
+// straight from its address: no copy into a byte[] and no GetByteArrayElements copy.
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_saveBuffer(JNIEnv* env, jobject clazz, jstring jpath, jobject jbuffer, jint offset, jint length) {
+    if (jpath == nullptr || jbuffer == nullptr || offset < 0 || length < 0) return JNI_FALSE;
+    const uint8_t* data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(jbuffer));
+    const jlong capacity = env->GetDirectBufferCapacity(jbuffer);
+    if (data == nullptr || (jlong)offset + length > capacity) {
+        ALOGE("saveBuffer: not a direct buffer or range %d+%d beyond %lld", offset, length, (long long)capacity);
         return JNI_FALSE;
     }
-    fsync(fd);
-    close(fd);
+    const char* path = env->GetStringUTFChars(jpath, nullptr);
+    if (path == nullptr) return JNI_FALSE;
+    const int error = file_write(path, data + offset, (size_t)length, imageWriteFlags());
+    if (error != 0) ALOGE("saveBuffer failed len=%d errno=%d: %s", length, error, path);
     env->ReleaseStringUTFChars(jpath, path);
-    env->ReleaseByteArrayElements(jdata, data, JNI_ABORT);
-    return JNI_TRUE;
+    return error == 0 ? JNI_TRUE : JNI_FALSE;
 }
 
 extern "C" JNIEXPORT jboolean JNICALL
@@ -102,9 +298,196 @@ Java_cam_et_dashcamsystem_nativelib_NativeLib_appendLog(JNIEnv* env, jobject cla
         env->ReleaseStringUTFChars(jline, line);
         return JNI_FALSE;
     }
-    fsync(fd);
+    if (g_sync_on_write.load(std::memory_order_relaxed)) {
+        fsync(fd);
+    }
     close(fd);
     env->ReleaseStringUTFChars(jpath, path);
     env->ReleaseStringUTFChars(jline, line);
     return JNI_TRUE;
 }
+
+// Persistent-descriptor appender for events.txt, see event_appender.h.
+extern "C" JNIEXPORT jlong JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_openAppender(JNIEnv* env, jobject clazz, jstring jpath, jint capacity, jint maxLines, jlong maxDelayMs, jboolean syncOnFlush) {
+    if (jpath == nullptr || capacity <= 0 || maxLines <= 0) return 0;
+    const char* path = env->GetStringUTFChars(jpath, nullptr);
+    if (path == nullptr) return 0;
+    EventAppender::Options options;
+    options.capacity = (size_t)capacity;
+    options.maxLines = maxLines;
+    options.maxDelayMs = maxDelayMs;
+    options.syncOnFlush = syncOnFlush == JNI_TRUE;
+    EventAppender* appender = EventAppender::open(path, options);
+    if (appender == nullptr) ALOGE("openAppender failed: %s", path);
+    env->ReleaseStringUTFChars(jpath, path);
+    return reinterpret_cast<jlong>(appender);
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_appendLine(JNIEnv* env, jobject clazz, jlong handle, jstring jline) {
+    EventAppender* appender = reinterpret_cast<EventAppender*>(handle);
+    if (appender == nullptr || jline == nullptr) return -1;
+    const char* line = env->GetStringUTFChars(jline, nullptr);
+    if (line == nullptr) return -1;
+    const long written = appender->append(line, strlen(line));
+    env->ReleaseStringUTFChars(jline, line);
+    return (jint)written;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_flushAppender(JNIEnv* env, jobject clazz, jlong handle) {
+    EventAppender* appender = reinterpret_cast<EventAppender*>(handle);
+    return appender != nullptr ? (jint)appender->flush() : -1;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_closeAppender(JNIEnv* env, jobject clazz, jlong handle) {
+    EventAppender* appender = reinterpret_cast<EventAppender*>(handle);
+    return appender != nullptr ? (jint)appender->close() : -1;
+}
+
+// Background writer (write_queue.h). Completions are reported to
+// NativeWriter.onWriteComplete on the I/O thread, which is attached to the VM
+// once and detached when it exits.
+static std::mutex g_writer_lock;
+static std::shared_ptr<WriteQueue> g_writer;
+static JavaVM* g_vm = nullptr;
+static jclass g_writer_class = nullptr;
+static jmethodID g_writer_complete = nullptr;
+
+namespace {
+
+struct AttachedThread {
+    JNIEnv* env = nullptr;
+
+    ~AttachedThread() {
+        if (env != nullptr) g_vm->DetachCurrentThread();
+    }
+};
+
+JNIEnv* attachedEnv() {
+    thread_local AttachedThread thread;
+    if (thread.env == nullptr && g_vm->AttachCurrentThreadAsDaemon(&thread.env, nullptr) != JNI_OK) {
+        thread.env = nullptr;
+    }
+    return thread.env;
+}
+
+void onWriteComplete(const WriteQueue::Result& result) {
+    if (!result.ok) ALOGE("background write %lld failed errno=%d", (long long)result.id, result.error);
+    JNIEnv* env = attachedEnv();
+    if (env == nullptr) return;
+    env->CallStaticVoidMethod(g_writer_class, g_writer_complete, (jlong)result.id, result.ok ? JNI_TRUE : JNI_FALSE,
+                              (jint)result.error, (jlong)result.bytes, (jlong)result.queuedNs, (jlong)result.writeNs);
+    if (env->ExceptionCheck()) {
+        env->ExceptionDescribe();
+        env->ExceptionClear();
+    }
+}
+
+std::shared_ptr<WriteQueue> currentWriter() {
+    std::lock_guard<std::mutex> guard(g_writer_lock);
+    return g_writer;
+}
+
+} // namespace
+
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_startWriter(JNIEnv* env, jobject clazz, jclass callbackClass, jint threads, jint maxJobs, jlong maxBytes, jlong blockMs) {
+    if (callbackClass == nullptr || threads <= 0 || maxJobs <= 0 || maxBytes <= 0 || blockMs < 0) return JNI_FALSE;
+    std::lock_guard<std::mutex> guard(g_writer_lock);
+    if (g_writer) return JNI_TRUE;
+    if (g_vm == nullptr) {
+        env->GetJavaVM(&g_vm);
+        g_writer_class = static_cast<jclass>(env->NewGlobalRef(callbackClass));
+        g_writer_complete = env->GetStaticMethodID(g_writer_class, "onWriteComplete", "(JZIJJJ)V");
+    }
+    if (g_writer_complete == nullptr) return JNI_FALSE;
+    WriteQueue::Options options;
+    options.threads = threads;
+    options.maxJobs = (size_t)maxJobs;
+    options.maxBytes = (size_t)maxBytes;
+    options.blockMs = blockMs;
+    g_writer = std::make_shared<WriteQueue>(options, onWriteComplete);
+    ALOGI("writer started threads=%d maxJobs=%d maxBytes=%lld", threads, maxJobs, (long long)maxBytes);
+    return JNI_TRUE;
+}
+
+namespace {
+
+// Queues length bytes from offset of a direct buffer: a copy, or the buffer's
+// own bytes if borrow (the caller keeps the buffer until the completion).
+jboolean submitWrite(JNIEnv* env, jlong id, jstring jpath, jobject jbuffer, jint offset, jint length,
+                     jboolean append, bool borrow) {
+    std::shared_ptr<WriteQueue> writer = currentWriter();
+    if (!writer || jpath == nullptr || jbuffer == nullptr || offset < 0 || length < 0) return JNI_FALSE;
+    const uint8_t* data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(jbuffer));
+    const jlong capacity = env->GetDirectBufferCapacity(jbuffer);
+    if (data == nullptr || capacity < 0 || (jlong)offset + length > capacity) return JNI_FALSE;
+    const char* path = env->GetStringUTFChars(jpath, nullptr);
+    if (path == nullptr) return JNI_FALSE;
+    WriteQueue::Job job;
+    job.id = id;
+    job.path = path;
+    env->ReleaseStringUTFChars(jpath, path);
+    if (borrow) {
+        job.borrowed = data + offset;
+        job.borrowedSize = (size_t)length;
+    } else {
+        job.data.assign(data + offset, data + offset + length);
+    }
+    job.flags = append == JNI_TRUE
+                ? WriteQueue::kAppend | (g_sync_on_write.load(std::memory_order_relaxed) ? WriteQueue::kSync : 0)
+                : imageWriteFlags();
+    return writer->submit(std::move(job)) ? JNI_TRUE : JNI_FALSE;
+}
+
+} // namespace
+
+// Copies the bytes into the job, so that the caller may release the buffer
+// (close the Image) as soon as this returns.
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_submitWrite(JNIEnv* env, jobject clazz, jlong id, jstring jpath, jobject jbuffer, jint offset, jint length, jboolean append) {
+    return submitWrite(env, id, jpath, jbuffer, offset, length, append, false);
+}
+
+// Writes from the buffer itself, without a copy; the caller must neither change
+// nor release it until the completion of the job.
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_submitWriteBorrowed(JNIEnv* env, jobject clazz, jlong id, jstring jpath, jobject jbuffer, jint offset, jint length, jboolean append) {
+    return submitWrite(env, id, jpath, jbuffer, offset, length, append, true);
+}
+
+// out (size >= 14): submitted, completed, failed, rejected, blockedSubmits, blockedNs, depth,
+// maxDepth, queuedBytes, queuedP50Ns, queuedP99Ns, writeP50Ns, writeP99Ns, writeMaxNs.
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_writerStats(JNIEnv* env, jobject clazz, jlongArray jout) {
+    std::shared_ptr<WriteQueue> writer = currentWriter();
+    if (!writer || jout == nullptr || env->GetArrayLength(jout) < 14) return JNI_FALSE;
+    const WriteQueue::Stats s = writer->stats();
+    const jlong out[14] = {s.submitted, s.completed, s.failed, s.rejected, s.blockedSubmits, s.blockedNs, s.depth,
+                           s.maxDepth, s.queuedBytes, s.queuedP50Ns, s.queuedP99Ns, s.writeP50Ns, s.writeP99Ns,
+                           s.writeMaxNs};
+    env->SetLongArrayRegion(jout, 0, 14, out);
+    return JNI_TRUE;
+}
+
+// Waits up to timeoutMs for the queued writes, then stops the I/O threads. Jobs
+// still queued after the timeout are failed with ECANCELED instead of written,
+// so that only the writes in progress are waited for.
+extern "C" JNIEXPORT jboolean JNICALL
+Java_cam_et_dashcamsystem_nativelib_NativeLib_stopWriter(JNIEnv* env, jobject clazz, jlong timeoutMs) {
+    std::shared_ptr<WriteQueue> writer;
+    {
+        std::lock_guard<std::mutex> guard(g_writer_lock);
+        writer.swap(g_writer);
+    }
+    if (!writer) return JNI_TRUE;
+    const bool drained = writer->drain(timeoutMs);
+    if (!drained) {
+        const size_t abandoned = writer->abandon();
+        ALOGE("writer stop: queue not drained after %lld ms, %zu writes abandoned", (long long)timeoutMs, abandoned);
+    }
+    return drained ? JNI_TRUE : JNI_FALSE;
+}
@@ -0,0 +1,110 @@
+#include "scene_change.h"
+
+#include <algorithm>
+#include <cmath>
+#include <cstdlib>
+
+SceneDetector::SceneDetector(const Options& options)
+        : mOptions(options),
+          mReference((size_t) options.thumbWidth * options.thumbHeight),
+          mCurrent((size_t) options.thumbWidth * options.thumbHeight) {
+}
+
+void SceneDetector::reset() {
+    mHasReference = false;
+}
+
+bool SceneDetector::evaluate(const LumaPlane& plane, int64_t timestampMs, bool force, SceneDiff* diff) {
+    SceneDiff result = {0, 0, 0};
+    const Options& o = mOptions;
+    if (plane.data == nullptr || plane.width < o.thumbWidth || plane.height < o.thumbHeight
+            || o.thumbWidth <= 0 || o.thumbHeight <= 0 || o.blockSize <= 0) {
+        // Cannot judge the frame: store it.
+        if (diff != nullptr) *diff = result;
+        return true;
+    }
+    thumbnail(plane, mCurrent.data());
+    bool store = force || !mHasReference || timestampMs - mReferenceMs >= o.maxSkipMs;
+    if (mHasReference) {
+        result = compare(mCurrent.data());
+        store = store || result.changedFraction >= o.minChangedFraction || result.mad >= o.madThreshold;
+    } else {
+        result.changedFraction = 1;
+    }
+    if (store) {
+        mReference.swap(mCurrent);
+        mHasReference = true;
+        mReferenceMs = timestampMs;
+    }
+    if (diff != nullptr) *diff = result;
+    return store;
+}
+
+// Box average: thumbnail pixel (tx, ty) is the mean of the source pixels
+// tx * width / tw up to (tx + 1) * width / tw, and the same for rows.
+void SceneDetector::thumbnail(const LumaPlane& plane, uint8_t* out) const {
+    const int tw = mOptions.thumbWidth;
+    const int th = mOptions.thumbHeight;
+    std::vector<uint32_t> sums((size_t) tw);
+    std::vector<int> x0((size_t) tw + 1);
+    for (int tx = 0; tx <= tw; ++tx) x0[tx] = (int) ((int64_t) tx * plane.width / tw);
+    for (int ty = 0; ty < th; ++ty) {
+        const int y0 = (int) ((int64_t) ty * plane.height / th);
+        const int y1 = (int) ((int64_t) (ty + 1) * plane.height / th);
+        std::fill(sums.begin(), sums.end(), 0);
+        for (int y = y0; y < y1; ++y) {
+            const uint8_t* row = plane.data + (size_t) y * plane.rowStride;
+            for (int tx = 0; tx < tw; ++tx) {
+                uint32_t sum = 0;
+                if (plane.pixelStride == 1) {
+                    for (int x = x0[tx]; x < x0[tx + 1]; ++x) sum += row[x];
+                } else {
+                    for (int x = x0[tx]; x < x0[tx + 1]; ++x) sum += row[(size_t) x * plane.pixelStride];
+                }
+                sums[tx] += sum;
+            }
+        }
+        for (int tx = 0; tx < tw; ++tx) {
+            const uint32_t count = (uint32_t) (x0[tx + 1] - x0[tx]) * (uint32_t) (y1 - y0);
+            out[(size_t) ty * tw + tx] = (uint8_t) ((sums[tx] + count / 2) / count);
+        }
+    }
+}
+
+SceneDiff SceneDetector::compare(const uint8_t* current) const {
+    const int tw = mOptions.thumbWidth;
+    const int th = mOptions.thumbHeight;
+    const int bs = mOptions.blockSize;
+    const size_t n = (size_t) tw * th;
+    int64_t sumCurrent = 0;
+    int64_t sumReference = 0;
+    for (size_t i = 0; i < n; ++i) {
+        sumCurrent += current[i];
+        sumReference += mReference[i];
+    }
+    const int shift = (int) std::lround((double) (sumCurrent - sumReference) / (double) n);
+
+    int64_t total = 0;
+    int blocks = 0;
+    int changed = 0;
+    for (int by = 0; by < th; by += bs) {
+        for (int bx = 0; bx < tw; bx += bs) {
+            const int yEnd = std::min(by + bs, th);
+            const int xEnd = std::min(bx + bs, tw);
+            int64_t blockSum = 0;
+            for (int y = by; y < yEnd; ++y) {
+                const uint8_t* c = current + (size_t) y * tw;
+                const uint8_t* r = mReference.data() + (size_t) y * tw;
+                for (int x = bx; x < xEnd; ++x) blockSum += std::abs(c[x] - r[x] - shift);
+            }
+            total += blockSum;
+            blocks++;
+            if ((double) blockSum / ((yEnd - by) * (xEnd - bx)) > mOptions.blockThreshold) changed++;
+        }
+    }
+    SceneDiff diff;
+    diff.mad = (float) ((double) total / (double) n);
+    diff.changedFraction = (float) changed / (float) blocks;
+    diff.shift = (float) shift;
+    return diff;
+}
@@ -0,0 +1,62 @@
+#ifndef DASHCAMSYSTEM_SCENE_CHANGE_H
+#define DASHCAMSYSTEM_SCENE_CHANGE_H
+
+#include "luma_kernels.h"
+
+#include <cstdint>
+#include <vector>
+
+// Difference of a frame against the last stored one.
+// The mean luminance shift between the thumbnails is taken out of both
+// differences, so that exposure changes alone do not count as a new scene.
+struct SceneDiff {
+    // Mean absolute difference of the thumbnails, 0..255.
+    float mad;
+    // Fraction of blocks whose own mean absolute difference exceeds blockThreshold.
+    float changedFraction;
+    // Mean luminance of the new thumbnail minus the reference.
+    float shift;
+};
+
+// Decides whether a frame differs enough from the last stored frame to be
+// stored. Each frame is reduced to a small thumbnail (box average), which also
+// averages out sensor noise; the thumbnail of the last stored frame is kept.
+//
+// A frame is stored if it is the first, if changedFraction >= minChangedFraction
+// or mad >= madThreshold, if the caller forces it, or if maxSkipMs have passed
+// since the last stored frame. Not thread safe.
+class SceneDetector {
+public:
+    struct Options {
+        int thumbWidth = 64;
+        int thumbHeight = 48;
+        int blockSize = 8;           // in thumbnail pixels
+        float blockThreshold = 10;   // mean absolute difference of a block
+        float minChangedFraction = 0.02f;
+        float madThreshold = 12;
+        int64_t maxSkipMs = 5 * 60 * 1000;
+    };
+
+    explicit SceneDetector(const Options& options);
+
+    // Compare the frame with the last stored one; if it is to be stored (the
+    // return value), it becomes the new reference. diff may be null.
+    bool evaluate(const LumaPlane& plane, int64_t timestampMs, bool force, SceneDiff* diff);
+
+    // Forget the reference; the next frame is stored.
+    void reset();
+
+    const Options& options() const { return mOptions; }
+
+private:
+    void thumbnail(const LumaPlane& plane, uint8_t* out) const;
+    SceneDiff compare(const uint8_t* current) const;
+
+    const Options mOptions;
+    std::vector<uint8_t> mReference;
+    std::vector<uint8_t> mCurrent;
+    bool mHasReference = false;
+    int64_t mReferenceMs = 0;
+};
+
+#endif // DASHCAMSYSTEM_SCENE_CHANGE_H
@@ -0,0 +1,154 @@
+#include "write_queue.h"
+
+#include <cerrno>
+#include <chrono>
+#include <ctime>
+
+WriteQueue::WriteQueue(const Options& options, Completion completion, Writer writer)
+        : mOptions(options), mCompletion(std::move(completion)), mWriter(writer ? std::move(writer) : Writer(writeFile)) {
+    const int threads = options.threads > 0 ? options.threads : 1;
+    for (int i = 0; i < threads; ++i) {
+        mThreads.emplace_back(&WriteQueue::run, this);
+    }
+}
+
+WriteQueue::~WriteQueue() {
+    {
+        std::lock_guard<std::mutex> guard(mLock);
+        mStopping = true;
+    }
+    mNotEmpty.notify_all();
+    mNotFull.notify_all();
+    for (auto& thread : mThreads) thread.join();
+}
+
+int64_t WriteQueue::nowNs() {
+    timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+bool WriteQueue::submit(Job&& job) {
+    const int64_t size = (int64_t) job.size();
+    std::unique_lock<std::mutex> lock(mLock);
+    // A job larger than maxBytes is accepted into an empty queue, otherwise it never would be.
+    auto hasRoom = [&] {
+        return mStopping || (mJobs.size() < mOptions.maxJobs
+                             && (mStats.queuedBytes == 0 || mStats.queuedBytes + size <= (int64_t) mOptions.maxBytes));
+    };
+    if (!hasRoom()) {
+        const int64_t start = nowNs();
+        mStats.blockedSubmits++;
+        mNotFull.wait_for(lock, std::chrono::milliseconds(mOptions.blockMs), hasRoom);
+        mStats.blockedNs += nowNs() - start;
+        if (!hasRoom()) {
+            mStats.rejected++;
+            return false;
+        }
+    }
+    if (mStopping) {
+        mStats.rejected++;
+        return false;
+    }
+    job.submittedNs = nowNs();
+    mJobs.push_back(std::move(job));
+    mStats.submitted++;
+    mStats.queuedBytes += size;
+    mStats.depth = (int64_t) mJobs.size() + mActive;
+    if (mStats.depth > mStats.maxDepth) mStats.maxDepth = mStats.depth;
+    lock.unlock();
+    mNotEmpty.notify_one();
+    return true;
+}
+
+size_t WriteQueue::abandon() {
+    size_t count;
+    {
+        std::lock_guard<std::mutex> guard(mLock);
+        mStopping = true;
+        mAbandoned = true;
+        count = mJobs.size();
+    }
+    mNotEmpty.notify_all();
+    mNotFull.notify_all();
+    return count;
+}
+
+bool WriteQueue::drain(int64_t timeoutMs) {
+    std::unique_lock<std::mutex> lock(mLock);
+    return mIdle.wait_for(lock, std::chrono::milliseconds(timeoutMs), [this] { return mJobs.empty() && mActive == 0; });
+}
+
+void WriteQueue::run() {
+    std::unique_lock<std::mutex> lock(mLock);
+    for (;;) {
+        mNotEmpty.wait(lock, [this] { return mStopping || !mJobs.empty(); });
+        // Pending jobs are still written on shutdown, so that no frame is lost, unless abandoned.
+        if (mJobs.empty()) return;
+        Job job = std::move(mJobs.front());
+        mJobs.pop_front();
+        mActive++;
+        const bool abandoned = mAbandoned;
+        lock.unlock();
+
+        Result result;
+        result.id = job.id;
+        result.bytes = job.size();
+        const int64_t start = nowNs();
+        result.queuedNs = start - job.submittedNs;
+        result.error = abandoned ? ECANCELED : mWriter(job);
+        result.ok = result.error == 0;
+        result.writeNs = nowNs() - start;
+        // Free the frame before the callback, which may take a while to return.
+        std::vector<uint8_t>().swap(job.data);
+
+        lock.lock();
+        mStats.queuedBytes -= (int64_t) result.bytes;
+        mStats.completed++;
+        if (!result.ok) mStats.failed++;
+        record(mQueuedHistogram, result.queuedNs);
+        record(mWriteHistogram, result.writeNs);
+        if (result.writeNs > mStats.writeMaxNs) mStats.writeMaxNs = result.writeNs;
+        lock.unlock();
+        mNotFull.notify_all();
+
+        if (mCompletion) mCompletion(result);
+
+        // The job counts as active until its callback returned, for drain().
+        lock.lock();
+        mActive--;
+        mStats.depth = (int64_t) mJobs.size() + mActive;
+        if (mJobs.empty() && mActive == 0) mIdle.notify_all();
+    }
+}
+
+WriteQueue::Stats WriteQueue::stats() const {
+    std::lock_guard<std::mutex> guard(mLock);
+    Stats stats = mStats;
+    stats.queuedP50Ns = percentile(mQueuedHistogram, stats.completed, 0.50);
+    stats.queuedP99Ns = percentile(mQueuedHistogram, stats.completed, 0.99);
+    stats.writeP50Ns = percentile(mWriteHistogram, stats.completed, 0.50);
+    stats.writeP99Ns = percentile(mWriteHistogram, stats.completed, 0.99);
+    return stats;
+}
+
+void WriteQueue::record(int64_t* histogram, int64_t ns) {
+    int bucket = 0;
+    while (bucket < kBuckets - 1 && (int64_t) 1 << bucket < ns) bucket++;
+    histogram[bucket]++;
+}
+
+int64_t WriteQueue::percentile(const int64_t* histogram, int64_t count, double fraction) {
+    if (count == 0) return 0;
+    const int64_t rank = (int64_t) (fraction * count + 0.5) > 0 ? (int64_t) (fraction * count + 0.5) : 1;
+    int64_t seen = 0;
+    for (int bucket = 0; bucket < kBuckets; ++bucket) {
+        seen += histogram[bucket];
+        if (seen >= rank) return (int64_t) 1 << bucket;
+    }
+    return (int64_t) 1 << (kBuckets - 1);
+}
+
+int WriteQueue::writeFile(const Job& job) {
+    return file_write(job.path.c_str(), job.bytes(), job.size(), job.flags);
+}
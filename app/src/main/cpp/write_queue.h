@@ -0,0 +1,139 @@
+#ifndef DASHCAMSYSTEM_WRITE_QUEUE_H
+#define DASHCAMSYSTEM_WRITE_QUEUE_H
+
+#include "file_write.h"
+
+#include <condition_variable>
+#include <cstddef>
+#include <cstdint>
+#include <deque>
+#include <functional>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+
+// File writes on background I/O threads, so that the camera thread only
+// copies a frame into the queue instead of waiting for the storage.
+//
+// The queue is bounded in jobs and in bytes. submit() waits up to blockMs for
+// room and then rejects the job; the caller decides what to do with it (e.g.
+// write it synchronously). Every accepted job is completed exactly once,
+// through the callback on the I/O thread which wrote it.
+class WriteQueue {
+public:
+    struct Options {
+        int threads = 1;
+        size_t maxJobs = 8;
+        size_t maxBytes = 32 * 1024 * 1024;
+        int64_t blockMs = 50;
+    };
+
+    // FileWriteFlags, see file_write.h.
+    enum Flags {
+        kAppend = kWriteAppend,
+        kSync = kWriteSync,
+        kAtomic = kWriteAtomic,
+    };
+
+    struct Job {
+        int64_t id = 0;
+        std::string path;
+        std::vector<uint8_t> data;
+        // Written instead of data if set: bytes of the caller, e.g. a direct
+        // buffer, left untouched by the caller until the job has completed.
+        const uint8_t* borrowed = nullptr;
+        size_t borrowedSize = 0;
+        int flags = 0;
+        int64_t submittedNs = 0;
+
+        const uint8_t* bytes() const { return borrowed != nullptr ? borrowed : data.data(); }
+        size_t size() const { return borrowed != nullptr ? borrowedSize : data.size(); }
+    };
+
+    struct Result {
+        int64_t id = 0;
+        bool ok = false;
+        int error = 0;           // errno of the failed call
+        size_t bytes = 0;
+        int64_t queuedNs = 0;    // submit to start of the write
+        int64_t writeNs = 0;     // open to close, fsync included
+    };
+
+    // Latency percentiles are upper bounds of power-of-two buckets.
+    struct Stats {
+        int64_t submitted = 0;
+        int64_t completed = 0;
+        int64_t failed = 0;
+        int64_t rejected = 0;
+        int64_t blockedSubmits = 0;   // submits which had to wait for room
+        int64_t blockedNs = 0;        // total time callers waited
+        int64_t depth = 0;            // jobs queued or being written
+        int64_t maxDepth = 0;
+        int64_t queuedBytes = 0;
+        int64_t queuedP50Ns = 0;
+        int64_t queuedP99Ns = 0;
+        int64_t writeP50Ns = 0;
+        int64_t writeP99Ns = 0;
+        int64_t writeMaxNs = 0;
+    };
+
+    using Completion = std::function<void(const Result&)>;
+    // Writes one job, for tests; returns 0 or an errno value.
+    using Writer = std::function<int(const Job&)>;
+
+    WriteQueue(const Options& options, Completion completion, Writer writer = nullptr);
+
+    // Drains the queue and joins the I/O threads; after abandon() only the
+    // writes in progress are waited for.
+    ~WriteQueue();
+
+    WriteQueue(const WriteQueue&) = delete;
+    WriteQueue& operator=(const WriteQueue&) = delete;
+
+    // Takes over the job's data (or borrows its bytes, see Job). False if the
+    // job was rejected, after up to blockMs of waiting for room, or because the
+    // queue is shutting down.
+    bool submit(Job&& job);
+
+    // Waits until every job submitted so far has completed, up to timeoutMs.
+    bool drain(int64_t timeoutMs);
+
+    // Stops accepting jobs and fails the queued ones with ECANCELED instead of
+    // writing them, still through the callback on the I/O threads. Jobs being
+    // written complete normally. Returns the number of jobs abandoned.
+    size_t abandon();
+
+    Stats stats() const;
+
+    // file_write() of a job, the default writer.
+    static int writeFile(const Job& job);
+
+    static int64_t nowNs();
+
+private:
+    static const int kBuckets = 40;
+
+    void run();
+    static void record(int64_t* histogram, int64_t ns);
+    static int64_t percentile(const int64_t* histogram, int64_t count, double fraction);
+
+    const Options mOptions;
+    const Completion mCompletion;
+    const Writer mWriter;
+
+    mutable std::mutex mLock;
+    std::condition_variable mNotEmpty;
+    std::condition_variable mNotFull;
+    std::condition_variable mIdle;
+    std::deque<Job> mJobs;
+    bool mStopping = false;
+    bool mAbandoned = false;
+    int64_t mActive = 0;
+    Stats mStats;
+    int64_t mQueuedHistogram[kBuckets] = {};
+    int64_t mWriteHistogram[kBuckets] = {};
+    std::vector<std::thread> mThreads;
+};
+
+#endif // DASHCAMSYSTEM_WRITE_QUEUE_H
@@ -8,6 +8,10 @@ import cam.et.dashcamsystem.app.services.BackgroundCameraService
 import cam.et.dashcamsystem.app.services.ImmortalService
 import cam.et.dashcamsystem.logger.DashcamLogConfigurator
 import cam.et.dashcamsystem.logger.DashcamLog
+import cam.et.dashcamsystem.logger.DashcamLogMetricsReporter
+import cam.et.dashcamsystem.logger.DashcamLogThrottle
+import cam.et.dashcamsystem.util.DurabilityManager
+import cam.et.dashcamsystem.util.DurabilityPolicy
 import cam.et.dashcamsystem.util.FilePathManager
 
 class DashcamApplication : Application() {
@@ -31,9 +35,18 @@ class DashcamApplication : Application() {
         sInstance = this
         // Initialise FilePath Manager
         FilePathManager.init(this)
+        // Batch the fsyncs of images, events.txt and logs; a power cut loses at most about a second.
+        DurabilityManager.setPolicy(DurabilityPolicy.DEFAULT)
 
         DashcamLogConfigurator.checkDefaultConfig()
         DashcamLog.setDebugFromContext(this)
+        // Collapse repeated warnings, e.g. "No camera available" every retry, into summaries.
+        DashcamLog.setThrottle(DashcamLogThrottle.DEDUP)
+        // Apply filesDir/logback.xml now and whenever it is replaced, without a restart.
+        DashcamLogConfigurator.checkCustomConfig(this)
+        DashcamLogConfigurator.watchCustomConfig(this)
+        // Logging overhead per firmware build, see results/logmetrics_*.csv
+        DashcamLogMetricsReporter.start(5 * 60 * 1000L)
 
         startImmortalService()
         startBackgroundCameraService()
@@ -8,8 +8,8 @@ import android.app.Service
 import android.content.Context
 import android.content.Intent
 import android.content.pm.PackageManager
-import android.graphics.BitmapFactory
 import android.graphics.ImageFormat
+import android.hardware.SensorManager
 import android.hardware.camera2.*
 import android.location.Location
 import android.location.LocationListener
@@ -22,19 +22,40 @@ import android.os.Environment
 import android.os.Handler
 import android.os.HandlerThread
 import android.os.IBinder
-import android.util.Log
+import android.os.SystemClock
+import android.util.Range
+import android.util.Size
 import androidx.core.app.NotificationCompat
 import cam.et.dashcamsystem.R
+import cam.et.dashcamsystem.device.MotionSensorMonitor
+import cam.et.dashcamsystem.logger.DashcamLog
+import cam.et.dashcamsystem.util.AnalysisDecoder
+import cam.et.dashcamsystem.util.DirectBufferPool
+import cam.et.dashcamsystem.util.DurabilityManager
+import cam.et.dashcamsystem.util.DurabilityMode
 import cam.et.dashcamsystem.util.FilePathManager
+import cam.et.dashcamsystem.util.FrameRing
+import cam.et.dashcamsystem.nativelib.EventAppender
+import cam.et.dashcamsystem.nativelib.ExposureAnalysis
 import cam.et.dashcamsystem.nativelib.NativeLib
+import cam.et.dashcamsystem.nativelib.NativeWriter
+import cam.et.dashcamsystem.nativelib.FrameHashIndex
+import cam.et.dashcamsystem.nativelib.FrameSharpness
+import cam.et.dashcamsystem.nativelib.SceneDetector
+import cam.et.dashcamsystem.nativelib.WriteResult
 import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.currentCoroutineContext
 import kotlinx.coroutines.isActive
 import java.io.ByteArrayOutputStream
 import java.io.File
+import java.io.IOException
 import java.nio.ByteBuffer
 import java.text.SimpleDateFormat
 import java.util.*
+import kotlin.concurrent.thread
+import kotlin.math.abs
+import kotlin.math.sqrt
 import kotlin.collections.firstOrNull
 import kotlin.run
 
@@ -43,9 +64,76 @@ class BackgroundCameraService : Service(), LocationListener {
     private var cameraDevice: CameraDevice? = null
     private var captureSession: CameraCaptureSession? = null
     private var imageReader: ImageReader? = null
+    // Small YUV_420_888 stream next to the JPEG one, for the luminance check (CaptureMode.YUV_LUMA).
+    private var lumaReader: ImageReader? = null
+    @Volatile
+    private var captureMode = CaptureMode.YUV_LUMA
+    // Results of the two streams of a capture, paired by sensor timestamp. Only touched on the handler thread.
+    private val exposureByTimestamp = LinkedHashMap<Long, Exposure>()
+    // dHashes of the YUV frames to be stored, for the index once their JPEG is saved.
+    private val hashByTimestamp = LinkedHashMap<Long, Long>()
+    private val captureByTimestamp = LinkedHashMap<Long, Capture>()
+    // Captures whose YUV frame showed no scene change: their JPEG is logged as skipped instead of saved.
+    private val skippedByTimestamp = LinkedHashMap<Long, String>()
+    private val scene = SceneDetector(minChangedFraction = SCENE_MIN_CHANGED_FRACTION,
+        madThreshold = SCENE_MAD_THRESHOLD, maxSkipMs = SCENE_MAX_SKIP_MS)
+    // dHashes of the stored captures, kept across restarts; opened on the handler thread, which
+    // queries it, and added to by the index stage for decoded captures.
+    @Volatile
+    private var hashIndex: FrameHashIndex? = null
+    // The burst of the last capture in YUV_LUMA mode; only touched on the handler thread.
+    private var burst: Burst? = null
+    private val burstTimeout = Runnable { burst?.let { if (!it.decided) decideBurst(it) } }
+    // Reused for every frame, on the handler thread.
+    private val exposure = ExposureAnalysis()
     private var handler: Handler? = null
+    // Capture pipeline: acquire (camera thread) -> analyze -> persist -> index and notify, joined by
+    // bounded queues. JPEG bytes travel in pooled direct buffers: one per queue slot and per job of
+    // the native writer, which writes from them, plus one being analysed and one being written.
+    private val pipeline = PipelineConfig()
+    private val jpegBuffers = DirectBufferPool(pipeline.analyzeDepth + pipeline.persistDepth + WRITER_MAX_JOBS + 2)
+    private val analyzeQueue = StageQueue<Capture>("analyze", pipeline.analyzeDepth, DropPolicy.DROP_NEWEST, ::dropCapture)
+    private val persistQueue = StageQueue<Capture>("persist", pipeline.persistDepth, pipeline.persistPolicy, ::dropCapture)
+    private val indexQueue = StageQueue<Capture>("index", pipeline.indexDepth, DropPolicy.BLOCK)
+    private val indexDispatcher = Dispatchers.Default.limitedParallelism(1)
+    // Analyze stage state (JPEG_DECODE mode).
+    private val analysisDecoder = AnalysisDecoder()
+    private val decodedExposure = ExposureAnalysis()
+    // events.txt, kept open for the lifetime of the service. Appended, flushed and closed on indexDispatcher.
+    @Volatile
+    private var eventLog: EventAppender? = null
+    private var eventFlushScheduled = false
+    // Images are written by NativeWriter's I/O thread; false if it could not be started.
+    private var writerStarted = false
     private var locationManager: LocationManager? = null
     private var lastLocation: Location? = null
+    // Capture interval from GPS speed and accelerometer vibration; times are elapsedRealtime().
+    // Changes wake the capture loop, e.g. to capture at once when a parked car starts moving.
+    private val cadenceChanged = Channel<Unit>(Channel.CONFLATED)
+    private val cadence = CaptureCadence(CadencePolicy()) { cadenceChanged.trySend(Unit) }
+    private var motionMonitor: MotionSensorMonitor? = null
+    // Pre-event buffer: small JPEGs of a repeating request, about the last PRE_EVENT_MS of them in a
+    // preallocated off-heap ring. An event (ACTION_TRIGGER_EVENT, or an impact on the accelerometer)
+    // writes them and those of the following POST_EVENT_MS to a folder of its own, which is not
+    // deduplicated. The stream stops while the capture cadence is paused.
+    private var preEventReader: ImageReader? = null
+    private var preEventFps: Range<Int>? = null
+    // The stream is stopped while the cadence is paused, unless an event wants its post-event frames
+    // until preEventHoldUntilMs (elapsedRealtime). preEventStreaming is only touched on the handler thread.
+    @Volatile
+    private var preEventPaused = false
+    @Volatile
+    private var preEventHoldUntilMs = 0L
+    private var preEventStreaming = false
+    private val preEventRing = FrameRing(PRE_EVENT_RING_BYTES, PRE_EVENT_MAX_FRAMES)
+    // Time of the last frame put in the ring; only touched on the handler thread.
+    private var lastPreEventMs = 0L
+    // Time of the last impact; only touched on the sensor thread.
+    private var lastImpactMs = 0L
+    // Events are written one at a time; eventEndMs (elapsedRealtime, 0 if none) is only touched there.
+    private val eventDispatcher = Dispatchers.IO.limitedParallelism(1)
+    private var eventEndMs = 0L
+    private val eventView = preEventRing.view()
 
     override fun onCreate() {
         super.onCreate()
@@ -60,10 +148,19 @@ class BackgroundCameraService : Service(), LocationListener {
         try {
             locationManager?.requestLocationUpdates(LocationManager.GPS_PROVIDER, 5000L, 5f, this)
         } catch (e: SecurityException) {
-            Log.w(TAG, "Location permission missing")
+            LOG.w("Location permission missing")
         }
 
+        cadence.reset(SystemClock.elapsedRealtime())
+        startMotionMonitor()
+        openEventLog()
+        handler?.post { hashIndex = FrameHashIndex.open(File(filesDir, HASH_INDEX_FILE), HASH_RETENTION_MS) }
+        writerStarted = NativeWriter.start(maxJobs = WRITER_MAX_JOBS)
+        startPipeline()
         openCamera()
+        scope.launch(Dispatchers.IO) {
+            sweepPartialImages()
+        }
         scope.launch {
             captureLoop()
         }
@@ -73,9 +170,47 @@ class BackgroundCameraService : Service(), LocationListener {
         scope.cancel()
         closeCamera()
         locationManager?.removeUpdates(this)
+        motionMonitor?.stop()
+        motionMonitor = null
+        handler?.removeCallbacks(burstTimeout)
+        scene.close()
+        // After the open, which may still be queued.
+        handler?.post {
+            hashIndex?.close()
+            hashIndex = null
+            burst?.release()
+            burst = null
+        }
+        // The analyze stage may still be decoding: its pools are left to the garbage collector.
+        LOG.i("Pipeline {}; {}; {}; largest JPEG buffer {} bytes", analyzeQueue, persistQueue, indexQueue,
+            jpegBuffers.largest)
+        if (analysisDecoder.allocations > 0) {
+            LOG.i("Analysis decoder: {} allocations, {} bytes pooled", analysisDecoder.allocations,
+                analysisDecoder.pooledBytes)
+        }
+        val stopWriter = writerStarted
+        writerStarted = false
+        // Waits for the queued writes and the pending fsyncs: not on the main thread.
+        thread(name = "WriterStop") {
+            if (stopWriter) {
+                LOG.i("Writer {}", NativeWriter.stats())
+                if (!NativeWriter.stop(WRITER_STOP_TIMEOUT_MS)) LOG.w("Image writes abandoned at shutdown")
+            }
+            // Behind the completions of the last writes, which the index stage appends to events.txt.
+            val closed = scope.launch(indexDispatcher, CoroutineStart.ATOMIC) { closeEventLog() }
+            runBlocking { closed.join() }
+            DurabilityManager.commitNow()
+        }
         super.onDestroy()
     }
 
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        if (intent?.action == ACTION_TRIGGER_EVENT) {
+            triggerEvent(intent.getStringExtra(EXTRA_EVENT_REASON) ?: "manual")
+        }
+        return super.onStartCommand(intent, flags, startId)
+    }
+
     override fun onBind(intent: Intent?): IBinder? = null
 
     private fun createNotificationChannel() {
@@ -103,16 +238,41 @@ class BackgroundCameraService : Service(), LocationListener {
             val size = configs?.getOutputSizes(ImageFormat.JPEG)?.firstOrNull()
             val w = size?.width ?: 640
             val h = size?.height ?: 480
-            imageReader = ImageReader.newInstance(w, h, ImageFormat.JPEG, 2)
+            // The JPEGs of a burst are held until its best frame is known.
+            imageReader = ImageReader.newInstance(w, h, ImageFormat.JPEG, BURST_FRAMES + 1)
             imageReader?.setOnImageAvailableListener({ reader ->
-                val image = reader.acquireLatestImage() ?: return@setOnImageAvailableListener
-                handleImage(image)
-                image.close()
+                val image = acquireNext(reader) ?: return@setOnImageAvailableListener
+                onJpegImage(image)
             }, handler)
+            if (captureMode == CaptureMode.YUV_LUMA) {
+                val lumaSize = chooseLumaSize(configs?.getOutputSizes(ImageFormat.YUV_420_888))
+                if (lumaSize != null) {
+                    // One held (the best of the burst so far), one being scored, one spare.
+                    lumaReader = ImageReader.newInstance(lumaSize.width, lumaSize.height, ImageFormat.YUV_420_888, 3)
+                    lumaReader?.setOnImageAvailableListener({ reader ->
+                        val image = acquireNext(reader) ?: return@setOnImageAvailableListener
+                        onLumaImage(image)
+                    }, handler)
+                } else {
+                    captureMode = CaptureMode.JPEG_DECODE
+                }
+            }
+            val preEventSize = choosePreEventSize(configs?.getOutputSizes(ImageFormat.JPEG))
+            if (preEventSize != null) {
+                // One being copied into the ring, one spare.
+                preEventReader = ImageReader.newInstance(preEventSize.width, preEventSize.height, ImageFormat.JPEG, 2)
+                preEventReader?.setOnImageAvailableListener({ reader ->
+                    val image = acquireNext(reader) ?: return@setOnImageAvailableListener
+                    onPreEventImage(image)
+                }, handler)
+                // The lowest frame rate on offer: the ring keeps only PRE_EVENT_INTERVAL_MS anyway.
+                preEventFps = map.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES)
+                    ?.minByOrNull { it.upper }
+            }
 
             try {
                 if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-                    Log.w(TAG, "Camera permission not granted")
+                    LOG.w("Camera permission not granted")
                     return
                 }
                 cm.openCamera(cameraId, object : CameraDevice.StateCallback() {
@@ -132,47 +292,236 @@ class BackgroundCameraService : Service(), LocationListener {
                     }
                 }, handler)
             } catch (e: SecurityException) {
-                Log.w(TAG, "openCamera SecurityException: ${e.message}")
+                LOG.w("openCamera SecurityException: {}", e.message)
             }
         } catch (e: Exception) {
-            Log.e(TAG, "openCamera error", e)
+            LOG.e("openCamera error", e)
         }
     }
 
     private fun createCaptureSession() {
         val camera = cameraDevice ?: return
         try {
-            val target = imageReader!!.surface
-            camera.createCaptureSession(listOf(target), object : CameraCaptureSession.StateCallback() {
+            val targets = listOfNotNull(imageReader!!.surface, lumaReader?.surface, preEventReader?.surface)
+            camera.createCaptureSession(targets, object : CameraCaptureSession.StateCallback() {
                 override fun onConfigured(session: CameraCaptureSession) {
                     captureSession = session
+                    preEventStreaming = false
+                    updatePreEventStream()
                 }
 
                 override fun onConfigureFailed(session: CameraCaptureSession) {
-                    Log.e(TAG, "configure failed")
+                    if (preEventReader != null) {
+                        // The pre-event buffer is given up before the luminance stream.
+                        LOG.w("configure failed with the pre-event stream, continuing without it")
+                        preEventReader?.close()
+                        preEventReader = null
+                        createCaptureSession()
+                    } else if (lumaReader != null) {
+                        // Stream combination not supported: fall back to decoding the JPEG.
+                        LOG.w("configure failed with YUV stream, using JPEG decode for luminance")
+                        lumaReader?.close()
+                        lumaReader = null
+                        captureMode = CaptureMode.JPEG_DECODE
+                        createCaptureSession()
+                    } else {
+                        LOG.e("configure failed")
+                    }
                 }
             }, handler)
         } catch (e: Exception) {
-            Log.e(TAG, "createCaptureSession error", e)
+            LOG.e("createCaptureSession error", e)
         }
     }
 
     private fun closeCamera() {
         captureSession?.close()
         captureSession = null
+        preEventStreaming = false
         cameraDevice?.close()
         cameraDevice = null
         imageReader?.close()
         imageReader = null
+        lumaReader?.close()
+        lumaReader = null
+        preEventReader?.close()
+        preEventReader = null
+    }
+
+    private fun startMotionMonitor() {
+        val monitor = MotionSensorMonitor(this)
+        monitor.accelerometerListener = object : MotionSensorMonitor.AccelerometerListener {
+            override fun onAccelerometer(x: Float, y: Float, z: Float, timestampNs: Long) {
+                val now = SystemClock.elapsedRealtime()
+                cadence.onAcceleration(x, y, z, now)
+                // Gravity alone is 1 g whatever the orientation; an impact is far off it.
+                val g = sqrt(x * x + y * y + z * z)
+                if (abs(g - SensorManager.GRAVITY_EARTH) >= IMPACT_THRESHOLD
+                        && now - lastImpactMs >= IMPACT_COOLDOWN_MS) {
+                    lastImpactMs = now
+                    triggerEvent("impact")
+                }
+            }
+        }
+        // About 16 samples per second: plenty for the vibration energy, and enough to catch an impact peak.
+        monitor.start(SensorManager.SENSOR_DELAY_UI, withGyroscope = false)
+        motionMonitor = monitor
+    }
+
+    /**
+     * Start or stop the pre-event stream, on the camera thread: it runs unless the capture cadence
+     * is paused (parked, nothing moving), and while an event is waiting for its post-event frames.
+     */
+    private fun updatePreEventStream() {
+        handler?.post {
+            val session = captureSession ?: return@post
+            val reader = preEventReader ?: return@post
+            val wanted = !preEventPaused || SystemClock.elapsedRealtime() < preEventHoldUntilMs
+            if (wanted == preEventStreaming) return@post
+            try {
+                if (wanted) {
+                    startPreEventStream(session, reader)
+                } else {
+                    session.stopRepeating()
+                }
+                preEventStreaming = wanted
+                LOG.i("Pre-event stream {}", if (wanted) "started" else "stopped while paused")
+            } catch (e: Exception) {
+                LOG.e("Pre-event stream error", e)
+            }
+        }
+    }
+
+    private fun startPreEventStream(session: CameraCaptureSession, reader: ImageReader) {
+        val camera = cameraDevice ?: return
+        val builder = camera.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW)
+        builder.addTarget(reader.surface)
+        builder.set(CaptureRequest.JPEG_QUALITY, PRE_EVENT_JPEG_QUALITY)
+        preEventFps?.let { builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, it) }
+        session.setRepeatingRequest(builder.build(), null, handler)
+    }
+
+    /**
+     * A frame of the pre-event stream, on the camera thread: copied into the ring, at most every
+     * PRE_EVENT_INTERVAL_MS, and closed right away.
+     */
+    private fun onPreEventImage(image: Image) {
+        try {
+            val now = SystemClock.elapsedRealtime()
+            if (now - lastPreEventMs < PRE_EVENT_INTERVAL_MS) return
+            lastPreEventMs = now
+            preEventRing.put(image.planes[0].buffer, now)
+        } finally {
+            image.close()
+        }
+    }
+
+    /**
+     * Write the pre-event frames of the last PRE_EVENT_MS and those of the next POST_EVENT_MS to an
+     * event folder. A trigger while an event is being written extends it instead.
+     */
+    fun triggerEvent(reason: String) {
+        val now = SystemClock.elapsedRealtime()
+        // A paused stream has no pre-event frames, but the post-event ones are still wanted.
+        if (preEventPaused) {
+            preEventHoldUntilMs = maxOf(preEventHoldUntilMs, now + POST_EVENT_MS)
+            updatePreEventStream()
+        }
+        scope.launch(eventDispatcher) {
+            val end = now + POST_EVENT_MS
+            if (eventEndMs != 0L) {
+                eventEndMs = maxOf(eventEndMs, end)
+                LOG.i("Event {} extends the current one", reason)
+                return@launch
+            }
+            eventEndMs = end
+            try {
+                writeEvent(reason, now)
+            } finally {
+                eventEndMs = 0L
+                preEventRing.unpin()
+                updatePreEventStream()
+            }
+        }
+    }
+
+    private suspend fun writeEvent(reason: String, triggerMs: Long) {
+        val timestamp = SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(Date())
+        val dir = File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "$EVENT_DIR/EVT_${timestamp}_$reason")
+        if (!dir.mkdirs() && !dir.isDirectory) {
+            LOG.w("Cannot create {}", dir)
+            return
+        }
+        // Pinned frames stay in the ring until written; the pin follows the writes.
+        var sequence = preEventRing.pin(triggerMs - PRE_EVENT_MS)
+        var frames = 0
+        var bytes = 0L
+        while (true) {
+            val timeMs = preEventRing.frame(sequence, eventView)
+            if (timeMs < 0) {
+                // The next frame is not there yet.
+                if (SystemClock.elapsedRealtime() > eventEndMs) break
+                delay(PRE_EVENT_INTERVAL_MS)
+                continue
+            }
+            if (timeMs > eventEndMs) break
+            val length = eventView.remaining()
+            val file = File(dir, String.format(Locale.US, "F%03d_%+06d.jpg", frames, timeMs - triggerMs))
+            // Straight from the off-heap ring, without a copy.
+            if (NativeLib.saveBuffer(file.absolutePath, eventView, eventView.position(), length)) {
+                DurabilityManager.onClose(file, length.toLong(), DurabilityManager.nativeSyncsImages)
+                frames++
+                bytes += length
+            } else {
+                LOG.w("Failed to save {}", file)
+            }
+            preEventRing.pinAt(++sequence)
+        }
+        DurabilityManager.commitNow()
+        val place = "${lastLocation?.latitude ?: 0.0},${lastLocation?.longitude ?: 0.0}"
+        val line = "event,${System.currentTimeMillis()},${place},${reason},${dir.name},${frames}\n"
+        scope.launch(indexDispatcher) { appendEvent(line) }
+        LOG.i("Event {}: {} frames, {} bytes in {}; {} pre-event frames refused so far", reason, frames, bytes,
+            dir, preEventRing.refused)
     }
 
     private suspend fun captureLoop() {
+        var lastInterval = 0L
         while (currentCoroutineContext().isActive) {
             try {
-                takePicture()
-                delay(30_000L)
+                var interval = cadence.intervalMs(SystemClock.elapsedRealtime())
+                if (interval != CaptureCadence.PAUSED) {
+                    takePicture()
+                }
+                val last = SystemClock.elapsedRealtime()
+                // Wait out the interval, re-evaluated on every cadence change: a shorter one may be due
+                // already, and a paused cadence waits for movement, re-checked every CADENCE_RECHECK_MS.
+                while (true) {
+                    if (interval != lastInterval) {
+                        LOG.i("Capture cadence {}, speed {} km/h, vibration {}",
+                            if (interval == CaptureCadence.PAUSED) "paused" else "$interval ms",
+                            cadence.speedKmh(SystemClock.elapsedRealtime()), cadence.vibration)
+                        if ((interval == CaptureCadence.PAUSED) != preEventPaused) {
+                            preEventPaused = interval == CaptureCadence.PAUSED
+                            updatePreEventStream()
+                        }
+                        lastInterval = interval
+                    }
+                    val wait = if (interval == CaptureCadence.PAUSED) {
+                        CADENCE_RECHECK_MS
+                    } else {
+                        last + interval - SystemClock.elapsedRealtime()
+                    }
+                    if (wait <= 0) break
+                    withTimeoutOrNull(wait) { cadenceChanged.receive() }
+                    val paused = interval == CaptureCadence.PAUSED
+                    interval = cadence.intervalMs(SystemClock.elapsedRealtime())
+                    if (paused && interval != CaptureCadence.PAUSED) break
+                }
+            } catch (e: CancellationException) {
+                throw e
             } catch (e: Exception) {
-                Log.e(TAG, "captureLoop error", e)
+                LOG.e("captureLoop error", e)
                 delay(5_000L)
             }
         }
@@ -180,76 +529,649 @@ class BackgroundCameraService : Service(), LocationListener {
 
     private fun takePicture() {
         val camera = cameraDevice ?: run {
-            Log.w(TAG, "No camera available for capture")
+            LOG.w("No camera available for capture")
             return
         }
         val captureBuilder = camera.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE)
         captureBuilder.addTarget(imageReader!!.surface)
+        lumaReader?.let { captureBuilder.addTarget(it.surface) }
         captureBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO)
+        // Bursts need the YUV stream: scoring decoded JPEGs would take far longer than a frame interval.
+        val frames = if (lumaReader != null && captureMode == CaptureMode.YUV_LUMA) BURST_FRAMES else 1
         try {
-            captureSession?.capture(captureBuilder.build(), object : CameraCaptureSession.CaptureCallback() {}, handler)
-            Log.d(TAG, "Requested capture")
+            val session = captureSession ?: return
+            val request = captureBuilder.build()
+            // Queued before the capture, so the burst is set up before its first image arrives.
+            handler?.post { startBurst(frames) }
+            if (frames > 1) {
+                session.captureBurst(List(frames) { request }, object : CameraCaptureSession.CaptureCallback() {}, handler)
+                LOG.d("Requested burst of {}", frames)
+            } else {
+                session.capture(request, object : CameraCaptureSession.CaptureCallback() {}, handler)
+                LOG.d("Requested capture")
+            }
         } catch (e: Exception) {
-            Log.e(TAG, "takePicture error", e)
+            LOG.e("takePicture error", e)
         }
     }
 
+    /**
+     * Acquire stage, on the camera thread: copy the JPEG of a capture into a pooled buffer and pass it
+     * on, so that the Image is closed as soon as the caller returns. Nothing here waits for the card.
+     */
     private fun handleImage(image: Image) {
-        // Convert JPEG Image to byte[]
-        val buffer: ByteBuffer = image.planes[0].buffer
-        val bytes = ByteArray(buffer.remaining())
-        buffer.get(bytes)
-
-        // Decode minimal ARGB pixels for luminance check using BitmapFactory
         try {
-            val bmp = BitmapFactory.decodeByteArray(bytes, 0, bytes.size)
-            val width = bmp.width
-            val height = bmp.height
-            val pixels = IntArray(width * height)
-            bmp.getPixels(pixels, 0, width, 0, 0, width, height)
+            val capture = newCapture()
+            val skipped = skippedByTimestamp.remove(image.timestamp)
+            if (skipped != null) {
+                capture.skipped = skipped
+            } else {
+                val source = image.planes[0].buffer
+                val jpeg = jpegBuffers.acquire(source.remaining())
+                if (jpeg != null) {
+                    jpeg.put(source.duplicate()).flip()
+                    capture.jpeg = jpeg
+                } else {
+                    // Every buffer is waiting in a stage: the pipeline is as full as it may get.
+                    capture.dropped = true
+                }
+                if (captureMode == CaptureMode.YUV_LUMA) {
+                    val result = exposureByTimestamp.remove(image.timestamp)
+                    if (result != null) {
+                        capture.exposure = result
+                        capture.hash = hashByTimestamp.remove(image.timestamp) ?: 0L
+                    } else {
+                        putBounded(captureByTimestamp, image.timestamp, capture)
+                    }
+                }
+            }
+            analyzeQueue.offer(capture)
+        } catch (e: Exception) {
+            LOG.e("handleImage error", e)
+        }
+    }
+
+    private fun newCapture(): Capture {
+        val timestamp = SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(Date())
+        val dir = File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "BgCam")
+        if (!dir.exists()) dir.mkdirs()
+        val filename = "IMG_${timestamp}.jpg"
+        return Capture(filename, File(dir, filename), System.currentTimeMillis(),
+            lastLocation?.latitude ?: 0.0, lastLocation?.longitude ?: 0.0)
+    }
+
+    /**
+     * Start the consumers of the analyze, persist and index stages, each on its own single-threaded
+     * dispatcher.
+     */
+    private fun startPipeline() {
+        analyzeQueue.consume(scope, Dispatchers.Default.limitedParallelism(1), ::onStageError) { analyze(it) }
+        persistQueue.consume(scope, Dispatchers.IO.limitedParallelism(1), ::onStageError) { persist(it) }
+        indexQueue.consume(scope, indexDispatcher, ::onStageError) { indexAndNotify(it) }
+    }
+
+    private fun onStageError(capture: Capture, e: Exception) {
+        LOG.e("Pipeline error on {}", capture.filename, e)
+        capture.jpeg?.let {
+            capture.jpeg = null
+            jpegBuffers.release(it)
+        }
+    }
+
+    /**
+     * A capture dropped by a full stage queue: its buffer goes back to the pool, and it is logged
+     * as dropped.
+     */
+    private fun dropCapture(capture: Capture) {
+        capture.jpeg?.let {
+            capture.jpeg = null
+            jpegBuffers.release(it)
+        }
+        capture.dropped = true
+        indexQueue.offer(capture)
+    }
+
+    /**
+     * Analyze stage: in JPEG_DECODE mode, decode the JPEG reduced and analyse its pixels. In YUV_LUMA
+     * mode the Y plane has been analysed on the camera thread already.
+     */
+    private suspend fun analyze(capture: Capture) {
+        val jpeg = capture.jpeg
+        if (jpeg != null && captureMode == CaptureMode.JPEG_DECODE) {
+            val d = analysisDecoder
+            if (d.decode(jpeg)) {
+                decodedExposure.analyze(d.pixels, d.width, d.height)
+                capture.exposure = classifyExposure(decodedExposure)
+                capture.hash = FrameHashIndex.hash(d.pixels, d.width, d.height)
+            } else {
+                LOG.w("Could not decode {} for analysis", capture.filename)
+            }
+        }
+        persistQueue.send(capture)
+    }
+
+    /**
+     * Persist stage: hand the JPEG to the native writer, or write it here if its queue is full. A
+     * queued capture goes on to the index stage from the completion of its write.
+     */
+    private suspend fun persist(capture: Capture) {
+        val jpeg = capture.jpeg
+        if (jpeg != null) {
+            var queued = false
+            try {
+                queued = queueWrite(capture, jpeg)
+                if (!queued) capture.saved = write(capture.file, jpeg)
+            } finally {
+                capture.jpeg = null
+                // A queued write owns the buffer until its completion.
+                if (!queued) jpegBuffers.release(jpeg)
+            }
+            if (queued) return
+            if (!capture.saved) LOG.w("Failed to save image via native POSIX write")
+        }
+        indexQueue.send(capture)
+    }
+
+    /**
+     * Queue the write of [capture] on the native writer, which writes from [jpeg] itself and
+     * returns it to the pool when done.
+     *
+     * @return False if there is no writer or its queue is full; [jpeg] is then still the caller's.
+     */
+    private fun queueWrite(capture: Capture, jpeg: ByteBuffer): Boolean {
+        if (!writerStarted) return false
+        val length = jpeg.remaining()
+        val start = System.nanoTime()
+        val queued = NativeWriter.writeBorrowed(capture.file, jpeg, jpeg.position(), length) ?: return false
+        queued.thenAccept { result ->
+            jpegBuffers.release(jpeg)
+            onImageWritten(capture, result)
+        }
+        LOG.d("Queued {} bytes in {} us", length.toLong(), (System.nanoTime() - start) / 1000)
+        return true
+    }
+
+    /**
+     * Write on this stage's thread, which backs up the persist queue.
+     */
+    private fun write(file: File, jpeg: ByteBuffer): Boolean {
+        val length = jpeg.remaining()
+        val start = System.nanoTime()
+        val ok = NativeLib.saveBuffer(file.absolutePath, jpeg, jpeg.position(), length)
+        if (ok) {
+            DurabilityManager.onClose(file, length.toLong(), DurabilityManager.nativeSyncsImages)
+            LOG.d("Saved {} bytes in {} us", length.toLong(), (System.nanoTime() - start) / 1000)
+        }
+        return ok
+    }
 
-            val isDark = NativeLib.isImageDark(pixels, width, height, 40)
+    /**
+     * Index and notify stage: the events.txt line, the hash of a decoded capture, and the exposure alert.
+     */
+    private fun indexAndNotify(capture: Capture) {
+        val place = "${capture.lat},${capture.lon}"
+        when {
+            capture.exposureOnly -> Unit
+            capture.skipped != null -> {
+                appendEvent("skipped,${capture.timeMs},${place},${capture.skipped}\n")
+                LOG.d("Skipped {}: no scene change or a recent duplicate ({})", capture.filename, capture.skipped)
+            }
+            capture.dropped -> {
+                appendEvent("dropped,${capture.timeMs},${place}\n")
+                LOG.w("Dropped {}: {} {} {}", capture.filename, analyzeQueue, persistQueue, indexQueue)
+                forgetSceneReference()
+            }
+            capture.saved -> {
+                appendEvent("${capture.filename},${capture.timeMs},${place}\n")
+                if (capture.hash != 0L) hashIndex?.add(capture.hash, capture.timeMs)
+            }
+            else -> {
+                appendEvent("failed,${capture.timeMs},${place},${capture.filename}\n")
+                LOG.w("Failed to save {}", capture.filename)
+                forgetSceneReference()
+            }
+        }
+        capture.exposure?.let { reportExposure(capture.filename, it) }
+    }
+
+    /**
+     * A capture chosen as the scene reference on the camera thread was not saved: the next frame
+     * is stored whatever it shows, rather than skipped as unchanged from a frame which is not on
+     * the card.
+     */
+    private fun forgetSceneReference() {
+        if (captureMode == CaptureMode.YUV_LUMA) scene.reset()
+    }
 
-            val timestamp = SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(Date())
-            val dir = File(getExternalFilesDir(Environment.DIRECTORY_PICTURES), "BgCam")
-            if (!dir.exists()) dir.mkdirs()
-            val filename = "IMG_${timestamp}.jpg"
-            val file = File(dir, filename)
+    private fun acquireNext(reader: ImageReader): Image? {
+        return try {
+            reader.acquireNextImage()
+        } catch (e: IllegalStateException) {
+            // All maxImages are held, e.g. by a burst which never completed.
+            LOG.w("Image dropped: {}", e.message)
+            null
+        }
+    }
 
-            val saved = NativeLib.saveBytesToFile(file.absolutePath, bytes)
-            val lat = lastLocation?.latitude ?: 0.0
-            val lon = lastLocation?.longitude ?: 0.0
-            val logDir = FilePathManager.getLogsDir()
-            if (!logDir.exists()) logDir.mkdirs()
-            val logFile = File(logDir, "events.txt")
-            val line = "${filename},${System.currentTimeMillis()},${lat},${lon}\n"
-            NativeLib.appendLog(logFile.absolutePath, line)
+    /**
+     * Start collecting the images of a burst of [frames] captures, or go back to single captures if
+     * [frames] is 1. Whatever is left of the previous burst is settled and released first.
+     */
+    private fun startBurst(frames: Int) {
+        handler?.removeCallbacks(burstTimeout)
+        burst?.let { previous ->
+            if (!previous.decided) decideBurst(previous)
+            previous.release()
+        }
+        burst = if (frames > 1) Burst(frames) else null
+        if (frames > 1) handler?.postDelayed(burstTimeout, BURST_TIMEOUT_MS)
+    }
 
-            if (!saved) {
-                Log.w(TAG, "Failed to save image via native POSIX write")
+    /**
+     * A YUV frame: scored if it belongs to a burst still being collected, and handled right away otherwise.
+     */
+    private fun onLumaImage(image: Image) {
+        val b = burst
+        if (b == null) {
+            handleLumaImage(image)
+            image.close()
+            return
+        }
+        if (b.decided || b.lumas >= b.frames) {
+            // Late frame of a burst which was decided without it.
+            image.close()
+            return
+        }
+        b.lumas++
+        var kept = false
+        try {
+            val start = System.nanoTime()
+            if (exposure.analyze(image)) {
+                val sharpness = FrameSharpness.of(image)
+                val score = FrameSharpness.score(sharpness, exposure)
+                LOG.d("Burst frame {}/{}: sharpness {} score {} in {} us", b.lumas, b.frames, sharpness, score,
+                    (System.nanoTime() - start) / 1000)
+                if (score > b.bestScore) {
+                    b.bestLuma?.close()
+                    b.bestLuma = image
+                    b.bestScore = score
+                    b.bestTimestamp = image.timestamp
+                    b.bestExposure = classifyExposure(exposure)
+                    kept = true
+                }
             }
+        } catch (e: Exception) {
+            LOG.e("burst scoring error", e)
+        }
+        if (!kept) image.close()
+        if (b.lumas == b.frames) decideBurst(b)
+    }
 
-            if (isDark) {
-                // Show an alert via notification
-                val nm = getSystemService(NOTIFICATION_SERVICE) as NotificationManager
-                nm.notify(2, NotificationCompat.Builder(this, "bgcam").setContentTitle("Low Light Detected").setContentText("Camera capture was too dark: $filename").setSmallIcon(R.mipmap.ic_launcher).build())
+    /**
+     * A JPEG: held while its burst is being scored, saved if it is the burst's best, dropped otherwise.
+     */
+    private fun onJpegImage(image: Image) {
+        val b = burst
+        if (b == null) {
+            handleImage(image)
+            image.close()
+        } else if (!b.decided) {
+            b.jpegs[image.timestamp] = image
+        } else {
+            keepIfChosen(b, image)
+            image.close()
+        }
+    }
+
+    /**
+     * Handle the best YUV frame of [b] as the capture's, then the matching JPEG if it is here already.
+     * Also called by the timeout when frames went missing.
+     */
+    private fun decideBurst(b: Burst) {
+        b.decided = true
+        handler?.removeCallbacks(burstTimeout)
+        b.bestLuma?.let { luma ->
+            handleLumaImage(luma, b.bestExposure)
+            luma.close()
+            b.bestLuma = null
+            LOG.d("Burst: kept the sharpest of {} frames (score {})", b.lumas, b.bestScore)
+        }
+        for (jpeg in b.jpegs.values) {
+            keepIfChosen(b, jpeg)
+            jpeg.close()
+        }
+        b.jpegs.clear()
+    }
+
+    private fun keepIfChosen(b: Burst, jpeg: Image) {
+        // Without any scored YUV frame the first JPEG is kept, as for a single capture.
+        if (!b.jpegKept && (jpeg.timestamp == b.bestTimestamp || b.bestScore < 0)) {
+            b.jpegKept = true
+            handleImage(jpeg)
+        }
+    }
+
+    /**
+     * Exposure and scene change of a capture from the Y plane of its YUV stream: no JPEG decode, no pixel copy.
+     */
+    private fun handleLumaImage(image: Image) {
+        try {
+            if (!exposure.analyze(image)) {
+                LOG.w("Exposure analysis rejected the Y plane")
+                return
             }
+            handleLumaImage(image, classifyExposure(exposure))
+        } catch (e: Exception) {
+            LOG.e("handleLumaImage error", e)
+        }
+    }
 
+    /**
+     * Scene change and duplicate check of a capture whose exposure is [result].
+     */
+    private fun handleLumaImage(image: Image, result: Exposure) {
+        try {
+            val pending = captureByTimestamp.remove(image.timestamp)
+            // A JPEG which arrived first is being saved already; it becomes the reference frame. If its
+            // save fails, the index stage resets the reference.
+            val store = scene.evaluate(image, image.timestamp / 1_000_000, force = pending != null)
+            // A changed scene may still repeat a recent capture, e.g. the first frame after a restart.
+            // The hash is indexed by the index stage, once the capture is saved.
+            val hash = FrameHashIndex.hash(image)
+            val duplicate = if (store && pending == null) {
+                hashIndex?.findNear(hash, HASH_DEDUP_WINDOW_MS, HASH_DEDUP_DISTANCE)
+            } else null
+            if (pending != null) {
+                // The capture is on its way already; only its hash and the alert are left. A capture
+                // which reached the index stage meanwhile is not indexed.
+                pending.hash = hash
+                indexQueue.offer(Capture(pending.filename, pending.file, System.currentTimeMillis(), 0.0, 0.0).apply {
+                    exposureOnly = true
+                    exposure = result
+                })
+            } else if (duplicate != null) {
+                putBounded(skippedByTimestamp, image.timestamp,
+                    "duplicate=${duplicate.timeMs} distance=${duplicate.distance}")
+            } else if (store) {
+                putBounded(exposureByTimestamp, image.timestamp, result)
+                putBounded(hashByTimestamp, image.timestamp, hash)
+            } else {
+                putBounded(skippedByTimestamp, image.timestamp,
+                    "mad=%.1f changed=%.3f".format(Locale.US, scene.mad, scene.changedFraction))
+            }
         } catch (e: Exception) {
-            Log.e(TAG, "handleImage error", e)
+            LOG.e("handleLumaImage error", e)
+        }
+    }
+
+    /**
+     * Completion of a queued image write, on the writer's I/O thread: the capture goes on to the
+     * index stage with its outcome.
+     */
+    private fun onImageWritten(capture: Capture, result: WriteResult) {
+        val file = capture.file
+        if (result.ok) {
+            DurabilityManager.onClose(file, result.bytes, DurabilityManager.nativeSyncsImages)
+            LOG.d("Wrote {} bytes to {}: queued {} us, write {} us", result.bytes, file.name,
+                result.queuedNanos / 1000, result.writeNanos / 1000)
+        } else {
+            LOG.w("Failed to write {}: errno {}", file.name, result.error)
+        }
+        capture.saved = result.ok
+        // On the index stage's dispatcher, so that it runs one at a time with the stage; ATOMIC, so
+        // that it still runs when the service is being destroyed (events.txt is then appended to
+        // line by line).
+        scope.launch(indexDispatcher, CoroutineStart.ATOMIC) { indexAndNotify(capture) }
+    }
+
+    /**
+     * Remove the temporary files of image writes interrupted by a crash or power cut. Files younger
+     * than a minute may belong to a write in progress and are left alone.
+     */
+    private fun sweepPartialImages() {
+        val pictures = getExternalFilesDir(Environment.DIRECTORY_PICTURES)
+        // The captures, and the folder of every event.
+        val events = File(pictures, EVENT_DIR).listFiles { f -> f.isDirectory && f.name.startsWith("EVT_") }
+        val dirs = listOf(File(pictures, "BgCam")) + events.orEmpty()
+        var removed = 0
+        for (dir in dirs) {
+            if (!dir.exists()) continue
+            val n = NativeLib.sweepPartialFiles(dir.absolutePath, PARTIAL_MIN_AGE_SECONDS)
+            if (n > 0) removed += n
+        }
+        if (removed > 0) LOG.w("Removed {} interrupted image writes", removed)
+    }
+
+    private fun openEventLog() {
+        val logDir = FilePathManager.getLogsDir()
+        if (!logDir.exists()) logDir.mkdirs()
+        val logFile = File(logDir, "events.txt")
+        // PER_WRITE keeps its meaning: every line is written and fdatasync'ed before append returns.
+        val perWrite = DurabilityManager.policy.mode == DurabilityMode.PER_WRITE
+        eventLog = try {
+            EventAppender(logFile, maxLines = if (perWrite) 1 else EVENT_BATCH_LINES,
+                maxDelayMs = EVENT_BATCH_DELAY_MS, syncOnFlush = DurabilityManager.nativeSyncsOnWrite)
+        } catch (e: IOException) {
+            LOG.w("Cannot open {}, falling back to open per line", logFile, e)
+            null
+        }
+    }
+
+    private fun appendEvent(line: String) {
+        val appender = eventLog
+        if (appender == null) {
+            val logFile = File(FilePathManager.getLogsDir(), "events.txt")
+            if (NativeLib.appendLog(logFile.absolutePath, line)) {
+                DurabilityManager.onWrite(logFile, line.length.toLong(), DurabilityManager.nativeSyncsOnWrite)
+            }
+            return
+        }
+        val written = appender.append(line)
+        when {
+            written > 0 -> DurabilityManager.onWrite(appender.file, written.toLong(), appender.syncOnFlush)
+            // Only buffered: make sure it reaches the file within maxDelayMs even if no capture follows.
+            written == 0 -> if (!eventFlushScheduled) {
+                eventFlushScheduled = true
+                scope.launch(indexDispatcher) {
+                    delay(appender.maxDelayMs)
+                    flushEventLog()
+                }
+            }
+            else -> LOG.w("Failed to append to {}", appender.file)
+        }
+    }
+
+    /**
+     * Flush and close events.txt, on indexDispatcher. Lines appended later are written one at a time.
+     */
+    private fun closeEventLog() {
+        flushEventLog()
+        val appender = eventLog ?: return
+        eventLog = null
+        appender.close()
+    }
+
+    private fun flushEventLog() {
+        eventFlushScheduled = false
+        val appender = eventLog ?: return
+        val written = appender.flush()
+        if (written > 0) {
+            DurabilityManager.onWrite(appender.file, written.toLong(), appender.syncOnFlush)
+        }
+    }
+
+    /**
+     * Classify a frame. A single average hides glare: headlights or a low sun
+     * clip part of the frame while the rest stays dark, so the clipped fraction
+     * and the spread of the grid cells are checked before the mean.
+     */
+    private fun classifyExposure(a: ExposureAnalysis): Exposure {
+        if (!a.valid) return Exposure.NORMAL
+        val result = when {
+            // Uniformly black with no structure at all: lens covered or blocked.
+            a.p95 <= COVERED_P95 && a.p95 - a.p5 <= COVERED_SPREAD -> Exposure.COVERED
+            a.clippedFraction >= GLARE_CLIPPED_FRACTION && a.maxCellMean() - a.minCellMean() >= GLARE_CELL_CONTRAST -> Exposure.GLARE
+            a.mean < DARK_THRESHOLD -> Exposure.LOW_LIGHT
+            else -> Exposure.NORMAL
+        }
+        LOG.d("{} {}", result, a)
+        return result
+    }
+
+    private fun reportExposure(filename: String, result: Exposure) {
+        val title = when (result) {
+            Exposure.LOW_LIGHT -> "Low Light Detected"
+            Exposure.GLARE -> "Glare Detected"
+            Exposure.COVERED -> "Lens Covered"
+            Exposure.NORMAL -> return
+        }
+        // Show an alert via notification
+        val nm = getSystemService(NOTIFICATION_SERVICE) as NotificationManager
+        nm.notify(2, NotificationCompat.Builder(this, "bgcam").setContentTitle(title).setContentText("Camera capture: $filename").setSmallIcon(R.mipmap.ic_launcher).build())
+    }
+
+    /**
+     * Smallest YUV size of at least 320x240; the exposure analysis needs no more.
+     */
+    private fun chooseLumaSize(sizes: Array<Size>?): Size? {
+        return sizes?.filter { it.width >= 320 && it.height >= 240 }?.minByOrNull { it.width * it.height }
+            ?: sizes?.maxByOrNull { it.width * it.height }
+    }
+
+    /**
+     * Smallest JPEG size of at least 640x480, for the pre-event stream.
+     */
+    private fun choosePreEventSize(sizes: Array<Size>?): Size? {
+        return sizes?.filter { it.width >= 640 && it.height >= 480 }?.minByOrNull { it.width * it.height }
+            ?: sizes?.maxByOrNull { it.width * it.height }
+    }
+
+    private fun <V> putBounded(map: LinkedHashMap<Long, V>, timestamp: Long, value: V) {
+        map[timestamp] = value
+        // The other stream's image of a capture may have been dropped.
+        while (map.size > MAX_UNPAIRED) {
+            map.remove(map.keys.first())
         }
     }
 
     // LocationListener
     override fun onLocationChanged(location: Location) {
         lastLocation = location
+        if (location.hasSpeed()) cadence.onSpeed(location.speed, SystemClock.elapsedRealtime())
     }
 
     override fun onProviderEnabled(provider: String) {}
     override fun onProviderDisabled(provider: String) {}
     override fun onStatusChanged(provider: String?, status: Int, extras: Bundle?) {}
 
+    /**
+     * Exposure class of a capture.
+     */
+    enum class Exposure { NORMAL, LOW_LIGHT, GLARE, COVERED }
+
+    /**
+     * One capture on its way through the pipeline; owned by one stage at a time.
+     */
+    private class Capture(val filename: String, val file: File, val timeMs: Long, val lat: Double, val lon: Double) {
+        // The JPEG in a pooled buffer, until it is written or dropped.
+        var jpeg: ByteBuffer? = null
+        // Why it is logged as skipped instead of saved.
+        var skipped: String? = null
+        var exposure: Exposure? = null
+        // dHash of the capture (of its decoded JPEG or of its YUV frame), indexed once saved; 0 if
+        // none. Set on the camera thread for a JPEG which arrived before its YUV frame.
+        @Volatile
+        var hash = 0L
+        // Set by the write, before the capture reaches the index stage.
+        var saved = false
+        var dropped = false
+        // Only the exposure alert of a capture which went through already.
+        var exposureOnly = false
+    }
+
+    /**
+     * Images of one burst: the best YUV frame so far, and the JPEGs waiting for the decision.
+     */
+    private class Burst(val frames: Int) {
+        var lumas = 0
+        var bestLuma: Image? = null
+        var bestScore = -1f
+        var bestTimestamp = 0L
+        var bestExposure = Exposure.NORMAL
+        val jpegs = LinkedHashMap<Long, Image>()
+        var decided = false
+        var jpegKept = false
+
+        fun release() {
+            bestLuma?.close()
+            bestLuma = null
+            jpegs.values.forEach { it.close() }
+            jpegs.clear()
+        }
+    }
+
+    /**
+     * How the luminance of a capture is measured.
+     */
+    enum class CaptureMode {
+        /** Decode the JPEG, reduced to about 160x120, into pooled ARGB pixels (AnalysisDecoder). */
+        JPEG_DECODE,
+
+        /** Y plane of a small YUV_420_888 stream captured together with the JPEG. */
+        YUV_LUMA
+    }
+
     companion object {
         private const val TAG = "BgCamService"
+        private const val DARK_THRESHOLD = 40
+        private const val COVERED_P95 = 24
+        private const val COVERED_SPREAD = 10
+        private const val GLARE_CLIPPED_FRACTION = 0.02f
+        private const val GLARE_CELL_CONTRAST = 120f
+        private const val MAX_UNPAIRED = 4
+        private const val EVENT_BATCH_LINES = 16
+        private const val EVENT_BATCH_DELAY_MS = 2_000L
+        private const val PARTIAL_MIN_AGE_SECONDS = 60L
+        // Queued image writes still pending after this at shutdown are abandoned.
+        private const val WRITER_STOP_TIMEOUT_MS = 5_000L
+        // Queued image writes; each holds a pooled JPEG buffer until it completes.
+        private const val WRITER_MAX_JOBS = 8
+        // A capture is stored if 2% of the 8x8 blocks of its 64x48 thumbnail changed, or the whole
+        // thumbnail by 12 levels on average, and at least every 5 minutes while nothing moves.
+        private const val SCENE_MIN_CHANGED_FRACTION = 0.02f
+        private const val SCENE_MAD_THRESHOLD = 12f
+        private const val SCENE_MAX_SKIP_MS = 5 * 60 * 1000L
+        // A capture within 4 bits of the dHash of one stored in the last 4 minutes is a duplicate.
+        // The window is shorter than SCENE_MAX_SKIP_MS so that the periodic store still happens.
+        private const val HASH_INDEX_FILE = "frame_hashes.idx"
+        private const val HASH_RETENTION_MS = 24 * 60 * 60 * 1000L
+        private const val HASH_DEDUP_WINDOW_MS = 4 * 60 * 1000L
+        private const val HASH_DEDUP_DISTANCE = 4
+        // Frames per capture in YUV_LUMA mode; only the sharpest is stored. The timeout settles a
+        // burst which lost frames.
+        private const val BURST_FRAMES = 3
+        private const val BURST_TIMEOUT_MS = 3_000L
+        // Pre-event buffer: 5 frames per second of 10 s kept, 10 s more written after an event. 4 MB
+        // hold 10 s of 640x480 JPEGs of up to 80 KB.
+        private const val PRE_EVENT_MS = 10_000L
+        private const val POST_EVENT_MS = 10_000L
+        private const val PRE_EVENT_INTERVAL_MS = 200L
+        private const val PRE_EVENT_RING_BYTES = 4 * 1024 * 1024
+        private const val PRE_EVENT_MAX_FRAMES = 64
+        private const val PRE_EVENT_JPEG_QUALITY: Byte = 70
+        private const val EVENT_DIR = "BgCamEvents"
+        // An acceleration 1.5 g away from gravity is an impact; one event per second at most.
+        private const val IMPACT_THRESHOLD = 1.5f * SensorManager.GRAVITY_EARTH
+        private const val IMPACT_COOLDOWN_MS = 1_000L
+        // While the cadence is paused, how often to look again without a change notification.
+        private const val CADENCE_RECHECK_MS = 60_000L
+
+        /** Intent action of an explicit event, e.g. a button: see [triggerEvent]. */
+        const val ACTION_TRIGGER_EVENT = "cam.et.dashcamsystem.action.TRIGGER_EVENT"
+        /** Optional reason of an [ACTION_TRIGGER_EVENT], used in the folder name and events.txt. */
+        const val EXTRA_EVENT_REASON = "reason"
+
+        // Repeated failures, e.g. while the camera is disconnected, are throttled by DashcamLog.
+        private val LOG = DashcamLog.get(TAG)
     }
 }
@@ -0,0 +1,169 @@
+package cam.et.dashcamsystem.app.services
+
+import kotlin.math.exp
+import kotlin.math.sqrt
+
+/**
+ * At or above [minSpeedKmh], capture every [intervalMs].
+ */
+data class CadenceStep(val minSpeedKmh: Float, val intervalMs: Long)
+
+/**
+ * How often to capture, from the GPS speed and the vibration seen by the accelerometer.
+ *
+ * @param steps Speed curve, by ascending [CadenceStep.minSpeedKmh]; the first applies from 0.
+ * @param hysteresisKmh A step is left downwards only this far below its minimum, so that a
+ * speed hovering around a boundary does not flip the cadence.
+ * @param stationaryKmh Below this the GPS speed counts as standing still.
+ * @param motionThreshold Vibration (RMS of the acceleration without gravity, m/s²) at or above
+ * which the car counts as moving, e.g. an engine running or someone bumping it.
+ * @param pauseAfterMs Without movement for this long, captures stop until the car moves again.
+ * @param speedMaxAgeMs A GPS speed older than this is ignored: fixes stop while parked.
+ */
+data class CadencePolicy(
+    val steps: List<CadenceStep> = listOf(
+        CadenceStep(0f, 30_000L),
+        CadenceStep(50f, 10_000L),
+        CadenceStep(80f, 2_000L)
+    ),
+    val hysteresisKmh: Float = 5f,
+    val stationaryKmh: Float = 3f,
+    val motionThreshold: Float = 0.15f,
+    val pauseAfterMs: Long = 10 * 60 * 1000L,
+    val speedMaxAgeMs: Long = 15_000L
+) {
+    init {
+        require(steps.isNotEmpty() && steps.first().minSpeedKmh <= 0f) { "steps must start at 0 km/h: $steps" }
+        require(steps.zipWithNext().all { (a, b) -> a.minSpeedKmh < b.minSpeedKmh }) { "steps not ascending: $steps" }
+        require(steps.all { it.intervalMs > 0 }) { "intervals must be positive: $steps" }
+    }
+}
+
+/**
+ * Capture cadence from GPS speed ([onSpeed]) and accelerometer samples ([onAcceleration]): the
+ * interval of the [CadencePolicy] step for the current speed, the first step while the speed is
+ * unknown, and no captures at all ([PAUSED]) once nothing has moved for
+ * [CadencePolicy.pauseAfterMs].
+ *
+ * Gravity is taken out of the accelerometer samples with a low-pass filter (time constant
+ * [GRAVITY_TAU_MS]), and the remaining vibration is averaged as an energy (time constant
+ * [ENERGY_TAU_MS]). Each sample adds at most [MAX_SAMPLE_ENERGY] times the threshold energy, so
+ * that a single bump, e.g. a door closing, does not count as driving but a running engine does.
+ *
+ * [onChange] is called, on the calling thread, whenever [intervalMs] changes. Thread safe.
+ */
+class CaptureCadence(val policy: CadencePolicy = CadencePolicy(), private val onChange: () -> Unit = {}) {
+    private var speedKmh = -1f
+    private var speedTimeMs = 0L
+    private var step = 0
+    private val gravity = FloatArray(3)
+    private var gravityValid = false
+    private var energy = 0f
+    private var lastSampleMs = 0L
+    private var lastMovingMs = Long.MIN_VALUE
+    private var current = policy.steps[0].intervalMs
+
+    /** Vibration (RMS of the acceleration without gravity, m/s²) averaged over the last seconds. */
+    val vibration: Float
+        @Synchronized get() = sqrt(energy)
+
+    /** GPS speed in km/h, or -1 if there is no recent fix with a speed. */
+    @Synchronized
+    fun speedKmh(nowMs: Long): Float = if (speedKmh >= 0 && nowMs - speedTimeMs <= policy.speedMaxAgeMs) speedKmh else -1f
+
+    /**
+     * A GPS fix with a speed, in m/s.
+     */
+    fun onSpeed(speedMps: Float, nowMs: Long) {
+        val changed = synchronized(this) {
+            speedKmh = speedMps * 3.6f
+            speedTimeMs = nowMs
+            if (speedKmh >= policy.stationaryKmh) lastMovingMs = nowMs
+            update(nowMs)
+        }
+        if (changed) onChange()
+    }
+
+    /**
+     * An accelerometer sample, in m/s² including gravity.
+     */
+    fun onAcceleration(x: Float, y: Float, z: Float, nowMs: Long) {
+        val changed = synchronized(this) {
+            if (!gravityValid) {
+                gravity[0] = x
+                gravity[1] = y
+                gravity[2] = z
+                gravityValid = true
+                lastSampleMs = nowMs
+                return
+            }
+            val dt = (nowMs - lastSampleMs).coerceIn(0L, 1_000L).toFloat()
+            lastSampleMs = nowMs
+            val g = 1f - exp(-dt / GRAVITY_TAU_MS)
+            gravity[0] += g * (x - gravity[0])
+            gravity[1] += g * (y - gravity[1])
+            gravity[2] += g * (z - gravity[2])
+            val lx = x - gravity[0]
+            val ly = y - gravity[1]
+            val lz = z - gravity[2]
+            val e = 1f - exp(-dt / ENERGY_TAU_MS)
+            val threshold = policy.motionThreshold * policy.motionThreshold
+            val sample = (lx * lx + ly * ly + lz * lz).coerceAtMost(MAX_SAMPLE_ENERGY * threshold)
+            energy += e * (sample - energy)
+            if (energy >= threshold) lastMovingMs = nowMs
+            update(nowMs)
+        }
+        if (changed) onChange()
+    }
+
+    /**
+     * Milliseconds between captures at [nowMs], or [PAUSED].
+     */
+    fun intervalMs(nowMs: Long): Long {
+        val changed: Boolean
+        val interval: Long
+        synchronized(this) {
+            changed = update(nowMs)
+            interval = current
+        }
+        if (changed) onChange()
+        return interval
+    }
+
+    /** Forget the last movement, e.g. at start, so that a parked car pauses after pauseAfterMs. */
+    @Synchronized
+    fun reset(nowMs: Long) {
+        lastMovingMs = nowMs
+        speedKmh = -1f
+        step = 0
+        gravityValid = false
+        energy = 0f
+        current = policy.steps[0].intervalMs
+    }
+
+    // Re-evaluate the interval; true if it changed.
+    private fun update(nowMs: Long): Boolean {
+        val speed = speedKmh(nowMs)
+        val steps = policy.steps
+        if (speed < 0) {
+            step = 0
+        } else {
+            while (step + 1 < steps.size && speed >= steps[step + 1].minSpeedKmh) step++
+            while (step > 0 && speed < steps[step].minSpeedKmh - policy.hysteresisKmh) step--
+        }
+        val still = lastMovingMs != Long.MIN_VALUE && nowMs - lastMovingMs >= policy.pauseAfterMs
+        val interval = if (still) PAUSED else steps[step].intervalMs
+        if (interval == current) return false
+        current = interval
+        return true
+    }
+
+    companion object {
+        /** [intervalMs] while the car has not moved for [CadencePolicy.pauseAfterMs]. */
+        const val PAUSED = Long.MAX_VALUE
+
+        const val GRAVITY_TAU_MS = 1_000f
+        const val ENERGY_TAU_MS = 2_000f
+        const val MAX_SAMPLE_ENERGY = 4f
+    }
+}
@@ -0,0 +1,161 @@
+package cam.et.dashcamsystem.app.services
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * What a full [StageQueue] does with an item.
+ */
+enum class DropPolicy {
+    /** Drop the item being offered; the queued ones stay. */
+    DROP_NEWEST,
+
+    /** Drop the oldest queued item to make room, keeping the freshest. */
+    DROP_OLDEST,
+
+    /**
+     * Suspend the sending stage until there is room, so that it backs up in turn. A caller which
+     * cannot suspend, like the camera thread, drops the newest item instead.
+     */
+    BLOCK
+}
+
+/**
+ * Queue depths of the capture pipeline and what it does when persistence falls behind.
+ *
+ * @param analyzeDepth Captures waiting for analysis. The camera thread never waits: if they
+ * are all taken, the newest capture is dropped.
+ * @param persistDepth Captures waiting to be written.
+ * @param indexDepth Captures waiting for their events.txt line and notification. Never dropped.
+ * @param persistPolicy When [persistDepth] captures are waiting to be written.
+ */
+data class PipelineConfig(
+    val analyzeDepth: Int = 2,
+    val persistDepth: Int = 4,
+    val indexDepth: Int = 16,
+    val persistPolicy: DropPolicy = DropPolicy.DROP_OLDEST
+) {
+    init {
+        require(analyzeDepth > 0 && persistDepth > 0 && indexDepth > 0) {
+            "analyzeDepth=$analyzeDepth persistDepth=$persistDepth indexDepth=$indexDepth"
+        }
+    }
+}
+
+/**
+ * A bounded channel between two stages of the capture pipeline, with its [DropPolicy] and
+ * counters. Any number of producers; one consumer, started by [consume].
+ *
+ * @param onDrop Called with every dropped item, e.g. to release its buffer.
+ */
+class StageQueue<T : Any>(
+    val name: String,
+    val capacity: Int,
+    val policy: DropPolicy,
+    private val onDrop: (T) -> Unit = {}
+) {
+    private val channel = Channel<T>(capacity)
+    private val depth = AtomicInteger()
+    private val maxDepth = AtomicInteger()
+    private val passed = AtomicLong()
+    private val dropped = AtomicLong()
+
+    /** Items waiting. */
+    val size: Int get() = depth.get()
+
+    /** Items dropped since creation. */
+    val droppedCount: Long get() = dropped.get()
+
+    /**
+     * Queue [item] without suspending. With [DropPolicy.DROP_OLDEST] the oldest waiting item
+     * makes room; otherwise [item] is dropped if the queue is full.
+     *
+     * @return False if [item] was dropped.
+     */
+    fun offer(item: T): Boolean {
+        if (tryEnqueue(item)) return true
+        if (policy == DropPolicy.DROP_OLDEST) {
+            channel.tryReceive().getOrNull()?.let { oldest ->
+                depth.decrementAndGet()
+                drop(oldest)
+            }
+            // The consumer may have made room meanwhile, or another producer taken it.
+            if (tryEnqueue(item)) return true
+        }
+        drop(item)
+        return false
+    }
+
+    /**
+     * Queue [item], suspending while the queue is full if the policy is [DropPolicy.BLOCK];
+     * as [offer] otherwise.
+     */
+    suspend fun send(item: T) {
+        if (policy != DropPolicy.BLOCK) {
+            offer(item)
+            return
+        }
+        depth.incrementAndGet()
+        try {
+            channel.send(item)
+        } catch (e: CancellationException) {
+            depth.decrementAndGet()
+            throw e
+        }
+        updateMax()
+    }
+
+    /**
+     * Start the consumer: [block] runs for every item, one at a time, on [dispatcher]. An
+     * exception from [block] goes to [onError] and the next item is taken.
+     */
+    fun consume(scope: CoroutineScope, dispatcher: CoroutineDispatcher, onError: (T, Exception) -> Unit,
+                block: suspend (T) -> Unit): Job = scope.launch(dispatcher) {
+        for (item in channel) {
+            depth.decrementAndGet()
+            passed.incrementAndGet()
+            try {
+                block(item)
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                onError(item, e)
+            }
+        }
+    }
+
+    /** No more items; the consumer ends once the queued ones are through. */
+    fun close() {
+        channel.close()
+    }
+
+    private fun tryEnqueue(item: T): Boolean {
+        // Counted first, so that the consumer never sees the depth go negative.
+        depth.incrementAndGet()
+        if (!channel.trySend(item).isSuccess) {
+            depth.decrementAndGet()
+            return false
+        }
+        updateMax()
+        return true
+    }
+
+    private fun updateMax() {
+        val current = depth.get()
+        maxDepth.accumulateAndGet(current) { a, b -> maxOf(a, b) }
+    }
+
+    private fun drop(item: T) {
+        dropped.incrementAndGet()
+        onDrop(item)
+    }
+
+    override fun toString(): String =
+        "$name: ${depth.get()}/$capacity waiting, max ${maxDepth.get()}, ${passed.get()} passed, ${dropped.get()} dropped ($policy)"
+}
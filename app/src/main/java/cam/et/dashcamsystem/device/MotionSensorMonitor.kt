@@ -50,10 +50,16 @@ class MotionSensorMonitor(context: Context) {
         }
     }
 
-    fun start() {
+    /**
+     * Register the listeners.
+     *
+     * @param samplingPeriodUs Sensor rate, a SensorManager.SENSOR_DELAY_* constant or microseconds.
+     * @param withGyroscope False to leave the gyroscope off, e.g. when only the accelerometer is used.
+     */
+    fun start(samplingPeriodUs: Int = SensorManager.SENSOR_DELAY_GAME, withGyroscope: Boolean = true) {
         if (isRunning) return
-        accel?.let { sensorManager.registerListener(sensorListener, it, SensorManager.SENSOR_DELAY_GAME) }
-        gyro?.let { sensorManager.registerListener(sensorListener, it, SensorManager.SENSOR_DELAY_GAME) }
+        accel?.let { sensorManager.registerListener(sensorListener, it, samplingPeriodUs) }
+        if (withGyroscope) gyro?.let { sensorManager.registerListener(sensorListener, it, samplingPeriodUs) }
         isRunning = true
     }
 
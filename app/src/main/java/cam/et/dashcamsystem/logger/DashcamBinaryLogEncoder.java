@@ -0,0 +1,205 @@
+package cam.et.dashcamsystem.logger;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import cam.et.dashcamlog.BinaryLogFormat;
+
+/**
+ * Encodes {@link DashcamLogEvent}s into the binary log format described in
+ * {@link BinaryLogFormat}. Files are decoded back into the text layout with
+ * the dashcamLog module's BinaryLogCli.
+ * <p>
+ * Tags and format strings are interned into a per-file dictionary, times are
+ * stored as varint deltas and format arguments keep their type. Like
+ * {@link DashcamLogFormatter}, the encoder reuses one buffer and only
+ * allocates for new dictionary entries and stack traces.
+ * <p>
+ * Not thread safe: used by the drain thread of {@link DashcamLogWriter} only.
+ */
+final class DashcamBinaryLogEncoder {
+
+    /**
+     * Maximum number of interned format strings per file. Messages with formats
+     * beyond that are stored as rendered text.
+     */
+    static final int MAX_INTERNED_FORMATS = 4096;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final HashMap<String, Integer> mDictionary = new HashMap<>();
+    private final StringBuilder mText = new StringBuilder(256);
+    private ByteBuffer mBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private int mInternedFormats;
+    private long mLastTime;
+
+    /**
+     * Start a new file, or a new section after the file was re-opened: resets
+     * the dictionary and the time base.
+     *
+     * @param baseTime The time base for the first event delta.
+     * @return The header record, positioned for reading. Valid until the next call.
+     */
+    ByteBuffer header(long baseTime) {
+        mDictionary.clear();
+        mInternedFormats = 0;
+        mLastTime = baseTime;
+        final ByteBuffer out = mBuffer;
+        out.clear();
+        out.put((byte) BinaryLogFormat.RECORD_HEADER);
+        out.put(BinaryLogFormat.MAGIC);
+        out.put((byte) BinaryLogFormat.VERSION);
+        BinaryLogFormat.putVarint(out, baseTime);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Encode the event, preceded by the dictionary records of strings used for
+     * the first time.
+     *
+     * @return The records, positioned for reading. Valid until the next call.
+     */
+    ByteBuffer encode(DashcamLogEvent event) {
+        mBuffer.clear();
+
+        final int tagId = intern(event.tag != null ? event.tag : "NemoLog", false);
+        final boolean formatted = event.argCount != DashcamLogEvent.NO_FORMAT && event.message != null;
+        final int formatId = formatted ? intern(event.message, true) : -1;
+
+        int levelByte = event.level != null ? event.level.severity : 0xFF & ~BinaryLogFormat.LEVEL_THROWABLE_FLAG;
+        if (event.throwable != null) {
+            levelByte |= BinaryLogFormat.LEVEL_THROWABLE_FLAG;
+        }
+
+        ensure(3 + 3 * BinaryLogFormat.MAX_VARINT_SIZE);
+        final ByteBuffer out = mBuffer;
+        out.put((byte) (formatId >= 0 ? BinaryLogFormat.RECORD_FORMAT : BinaryLogFormat.RECORD_TEXT));
+        out.put((byte) levelByte);
+        BinaryLogFormat.putVarint(out, tagId);
+        BinaryLogFormat.putVarint(out, BinaryLogFormat.zigzag(event.timeMillis - mLastTime));
+        mLastTime = event.timeMillis;
+
+        if (formatId >= 0) {
+            BinaryLogFormat.putVarint(out, formatId);
+            out.put((byte) event.argCount);
+            for (int i = 0; i < event.argCount; i++) {
+                putArg(event, i);
+            }
+        } else {
+            final StringBuilder text = mText;
+            text.setLength(0);
+            if (formatted) {
+                // Dictionary is full: store the rendered message.
+                DashcamLogFormatter.appendFormatted(text, event);
+            } else if (event.message != null) {
+                text.append(event.message);
+            }
+            putUtf8(text);
+        }
+
+        if (event.throwable != null) {
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            event.throwable.printStackTrace(pw);
+            pw.flush();
+            putUtf8(sw.getBuffer());
+        }
+
+        mBuffer.flip();
+        return mBuffer;
+    }
+
+    /**
+     * @return The dictionary id of the string, or -1 if it is a format and the dictionary is full.
+     */
+    private int intern(String value, boolean isFormat) {
+        final Integer id = mDictionary.get(value);
+        if (id != null) {
+            return id;
+        }
+        if (isFormat) {
+            if (mInternedFormats >= MAX_INTERNED_FORMATS) {
+                return -1;
+            }
+            mInternedFormats++;
+        }
+        final int newId = mDictionary.size();
+        mDictionary.put(value, newId);
+        ensure(1 + BinaryLogFormat.MAX_VARINT_SIZE);
+        mBuffer.put((byte) BinaryLogFormat.RECORD_STRING);
+        BinaryLogFormat.putVarint(mBuffer, newId);
+        putUtf8(value);
+        return newId;
+    }
+
+    private void putArg(DashcamLogEvent event, int arg) {
+        ensure(1 + 8 + BinaryLogFormat.MAX_VARINT_SIZE);
+        final ByteBuffer out = mBuffer;
+        final long value = event.primitiveArgs[arg];
+        switch (event.argTypes[arg]) {
+            case DashcamLogEvent.ARG_LONG:
+                out.put((byte) BinaryLogFormat.ARG_LONG);
+                BinaryLogFormat.putVarint(out, BinaryLogFormat.zigzag(value));
+                break;
+            case DashcamLogEvent.ARG_DOUBLE:
+                out.put((byte) BinaryLogFormat.ARG_DOUBLE);
+                out.putLong(Long.reverseBytes(value));
+                break;
+            case DashcamLogEvent.ARG_BOOLEAN:
+                out.put((byte) (value != 0 ? BinaryLogFormat.ARG_TRUE : BinaryLogFormat.ARG_FALSE));
+                break;
+            default:
+                final Object object = event.objectArgs[arg];
+                if (object == null) {
+                    out.put((byte) BinaryLogFormat.ARG_NULL);
+                } else {
+                    out.put((byte) BinaryLogFormat.ARG_STRING);
+                    putUtf8(object instanceof CharSequence ? (CharSequence) object : object.toString());
+                }
+                break;
+        }
+    }
+
+    private void putUtf8(CharSequence s) {
+        final int length = utf8Length(s);
+        ensure(BinaryLogFormat.MAX_VARINT_SIZE + length);
+        BinaryLogFormat.putVarint(mBuffer, length);
+        DashcamLogFormatter.encodeUtf8(s, mBuffer);
+    }
+
+    /**
+     * @return The number of bytes {@link DashcamLogFormatter#encodeUtf8(CharSequence, ByteBuffer)} writes.
+     */
+    static int utf8Length(CharSequence s) {
+        final int length = s.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes += 1;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void ensure(int extra) {
+        if (mBuffer.remaining() < extra) {
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + extra));
+            mBuffer.flip();
+            bigger.put(mBuffer);
+            mBuffer = bigger;
+        }
+    }
+}
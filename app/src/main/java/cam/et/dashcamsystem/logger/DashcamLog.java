@@ -4,23 +4,39 @@ import android.content.Context;
 import android.content.pm.ApplicationInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.slf4j.helpers.FormattingTuple;
+import org.slf4j.helpers.MessageFormatter;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
 
 public final class DashcamLog {
 
     public enum Level {
-        VERBOSE('V', 4),
-        DEBUG('D', 4),
-        WARNING('W', 3),
-        INFO('I', 3),
-        ERROR('E', 2),
-        FATAL('F', 1);
+        VERBOSE('V', 4, 0),
+        DEBUG('D', 4, 1),
+        WARNING('W', 3, 3),
+        INFO('I', 3, 2),
+        ERROR('E', 2, 4),
+        FATAL('F', 1, 5);
 
         public final char levelChar;
         public final int nblType;
 
-        Level(char c, int nblType) {
+        /** Ordering used for level thresholds, higher is more severe. */
+        public final int severity;
+
+        Level(char c, int nblType, int severity) {
             this.levelChar = c;
             this.nblType = nblType;
+            this.severity = severity;
         }
 
     }
@@ -31,6 +47,60 @@ public final class DashcamLog {
     private static DashcamLogWriter sLogWriter = new DashcamLogWriter();
 
 
+    /**
+     * Lowest severity any sink may accept: the lower of the log writer level
+     * and the level the underlying logger is used from (see
+     * {@link #loggerAccepts(Level)}). Every log call is gated on this single
+     * volatile read before the writer, the logger or the throttle is touched.
+     */
+    private static volatile int sMinSeverity = Level.VERBOSE.severity;
+
+    /**
+     * Rate limit and deduplication of repeated messages, null if disabled.
+     */
+    private static volatile DashcamLogThrottle sThrottle = DashcamLogThrottle.DEFAULT;
+
+    /**
+     * Message formats tracked per logger. Formats beyond that are not throttled,
+     * so the sites already tracked keep their state.
+     */
+    private static final int MAX_SITES = 256;
+
+    /**
+     * Fatal stack fingerprints remembered per logger.
+     */
+    private static final int MAX_FATAL_STACKS = 64;
+
+    /**
+     * How often the summaries of call sites which went quiet are written. A site
+     * is quiet once it dropped nothing for the dedup window, or for this period
+     * without deduplication.
+     */
+    private static final long SUMMARY_FLUSH_MS = 10_000L;
+
+    /**
+     * Call sites with dropped messages whose summary is not written yet.
+     */
+    private static final Set<DashcamLogThrottle.Site> sPendingSummaries = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Writes the pending summaries every {@link #SUMMARY_FLUSH_MS}, started with the first dropped message.
+     */
+    private static volatile ScheduledExecutorService sSummaryTimer;
+
+    /**
+     * Generation of the logger level configuration. Bumped whenever a level
+     * changes, which invalidates the per-tag level cache.
+     */
+    private static final AtomicInteger sLevelGeneration = new AtomicInteger(1);
+
+    /**
+     * Resolved logger levels, keyed by tag.
+     */
+    private static final ConcurrentHashMap<String, TagLevel> sTagLevels = new ConcurrentHashMap<>();
+
+    private static final String SUPPRESSED_FORMAT = "Suppressed {} repeats of \"{}\"";
+
     /**
      * If true, fatal message will call assert
      */
@@ -66,6 +136,7 @@ public final class DashcamLog {
      */
     public static void setDebug(boolean debug) {
         sDebugOverride = debug;
+        updateMinSeverity();
     }
 
     /**
@@ -82,6 +153,7 @@ public final class DashcamLog {
         } catch (Exception ignored) {
             // Leave override unchanged on failure
         }
+        updateMinSeverity();
     }
 
     /**
@@ -98,6 +170,55 @@ public final class DashcamLog {
      */
     public static void setLogWriter(DashcamLogWriter writer) {
         sLogWriter = writer;
+        updateMinSeverity();
+    }
+
+    /**
+     * Access the current log writer, e.g. to flush it or read its drop counters.
+     *
+     * @return The log writer.
+     */
+    public static DashcamLogWriter getLogWriter() {
+        return sLogWriter;
+    }
+
+    /**
+     * Drop the cached logger levels of all tags, e.g. after the logging was
+     * reconfigured. Called by {@link DashcamLogConfigurator} on level changes.
+     */
+    public static void invalidateLevelCache() {
+        sLevelGeneration.incrementAndGet();
+        updateMinSeverity();
+    }
+
+    /**
+     * Called by {@link DashcamLogWriter#setLevel(Level)}.
+     */
+    static void onWriterLevelChanged(DashcamLogWriter writer) {
+        if (writer == sLogWriter) {
+            updateMinSeverity();
+        }
+    }
+
+    private static synchronized void updateMinSeverity() {
+        final int logger = isDebug() ? Level.VERBOSE.severity : Level.WARNING.severity;
+        sMinSeverity = Math.min(sLogWriter.getMinSeverity(), logger);
+    }
+
+    /**
+     * Set the rate limit and deduplication of repeated messages.
+     *
+     * @param throttle The throttle, or null to write every message.
+     */
+    public static void setThrottle(DashcamLogThrottle throttle) {
+        sThrottle = throttle;
+    }
+
+    /**
+     * @return The rate limit and deduplication of repeated messages, null if disabled.
+     */
+    public static DashcamLogThrottle getThrottle() {
+        return sThrottle;
     }
 
     /**
@@ -132,6 +253,27 @@ public final class DashcamLog {
      */
     private final Logger mLogger;
 
+    /**
+     * Cached level of the logger's tag.
+     */
+    private final TagLevel mTagLevel;
+
+    /**
+     * Throttle state per message format of this logger.
+     */
+    private final ConcurrentHashMap<String, DashcamLogThrottle.Site> mSites = new ConcurrentHashMap<>();
+
+    /**
+     * Throttle state of the plain messages of this logger, per level; created on first use.
+     */
+    private final AtomicReferenceArray<DashcamLogThrottle.Site> mMessageSites =
+            new AtomicReferenceArray<>(Level.values().length);
+
+    /**
+     * Fingerprints of the fatal stacks written in full.
+     */
+    private final Set<Long> mFatalStacks = ConcurrentHashMap.newKeySet();
+
     /**
      * Construct logger for the given class.
      *
@@ -142,6 +284,7 @@ public final class DashcamLog {
             throw new IllegalArgumentException();
         }
         mLogger = LoggerFactory.getLogger(clazz);
+        mTagLevel = tagLevel(mLogger.getName());
     }
 
     /**
@@ -154,6 +297,7 @@ public final class DashcamLog {
             throw new IllegalArgumentException();
         }
         mLogger = LoggerFactory.getLogger(name);
+        mTagLevel = tagLevel(mLogger.getName());
     }
 
     /**
@@ -166,91 +310,495 @@ public final class DashcamLog {
     }
 
     /**
-     * Log VERBOSE message in debug builds only.
+     * Log VERBOSE message.
      *
      * @param msg The message you would like logged.
      */
     public void v(String msg) {
-        if (mLogger.isTraceEnabled()) {
+        log(Level.VERBOSE, msg);
+    }
 
-            if (isDebug()) {
-                mLogger.trace(msg);
-            }
+    /**
+     * Log VERBOSE message with one "{}" argument. Formatting is deferred until
+     * the message is accepted by a sink.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void v(String format, int arg) {
+        log(Level.VERBOSE, format, (long) arg);
+    }
+
+    /**
+     * Log VERBOSE message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void v(String format, long arg) {
+        log(Level.VERBOSE, format, arg);
+    }
+
+    /**
+     * Log VERBOSE message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void v(String format, double arg) {
+        log(Level.VERBOSE, format, arg);
+    }
+
+    /**
+     * Log VERBOSE message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void v(String format, long arg1, long arg2) {
+        log(Level.VERBOSE, format, arg1, arg2);
+    }
+
+    /**
+     * Log VERBOSE message with one "{}" argument. A trailing {@link Throwable}
+     * without placeholder is logged with its stack trace.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void v(String format, Object arg) {
+        log(Level.VERBOSE, format, arg);
+    }
+
+    /**
+     * Log VERBOSE message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void v(String format, Object arg1, Object arg2) {
+        log(Level.VERBOSE, format, arg1, arg2);
+    }
+
+    /**
+     * Log VERBOSE message with any number of "{}" arguments.
+     *
+     * @param format The message format.
+     * @param args   The arguments.
+     */
+    public void v(String format, Object... args) {
+        log(Level.VERBOSE, format, args);
+    }
+
+    /**
+     * Log VERBOSE message built by the supplier. The supplier is only called
+     * when the message is accepted by a sink.
+     *
+     * @param supplier Supplies the message.
+     */
+    public void v(Supplier<String> supplier) {
+        if (isEnabled(Level.VERBOSE)) {
+            log(Level.VERBOSE, supplier.get());
         }
     }
 
     /**
-     * Log DEBUG message in debug builds only.
+     * Log DEBUG message.
      *
      * @param msg The message you would like logged.
      */
     public void d(String msg) {
-        if (mLogger.isDebugEnabled() || sLogWriter.isWriting()) {
-            sLogWriter.write(mLogger, Level.DEBUG, msg);
+        log(Level.DEBUG, msg);
+    }
 
-            if (isDebug()) {
-                mLogger.debug(msg);
-            }
+    /**
+     * Log DEBUG message with one "{}" argument. Formatting is deferred until
+     * the message is accepted by a sink.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void d(String format, int arg) {
+        log(Level.DEBUG, format, (long) arg);
+    }
+
+    /**
+     * Log DEBUG message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void d(String format, long arg) {
+        log(Level.DEBUG, format, arg);
+    }
+
+    /**
+     * Log DEBUG message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void d(String format, double arg) {
+        log(Level.DEBUG, format, arg);
+    }
+
+    /**
+     * Log DEBUG message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void d(String format, long arg1, long arg2) {
+        log(Level.DEBUG, format, arg1, arg2);
+    }
+
+    /**
+     * Log DEBUG message with one "{}" argument. A trailing {@link Throwable}
+     * without placeholder is logged with its stack trace.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void d(String format, Object arg) {
+        log(Level.DEBUG, format, arg);
+    }
+
+    /**
+     * Log DEBUG message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void d(String format, Object arg1, Object arg2) {
+        log(Level.DEBUG, format, arg1, arg2);
+    }
+
+    /**
+     * Log DEBUG message with any number of "{}" arguments.
+     *
+     * @param format The message format.
+     * @param args   The arguments.
+     */
+    public void d(String format, Object... args) {
+        log(Level.DEBUG, format, args);
+    }
+
+    /**
+     * Log DEBUG message built by the supplier. The supplier is only called
+     * when the message is accepted by a sink.
+     *
+     * @param supplier Supplies the message.
+     */
+    public void d(Supplier<String> supplier) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, supplier.get());
         }
     }
 
     /**
-     * Log INFO message in debug builds only.
+     * Log INFO message.
      *
      * @param msg The message you would like logged.
      */
     public void i(String msg) {
-        if (mLogger.isInfoEnabled() || sLogWriter.isWriting()) {
-            sLogWriter.write(mLogger, Level.INFO, msg);
+        log(Level.INFO, msg);
+    }
 
-            if (isDebug()) {
-                mLogger.info(msg);
-            }
+    /**
+     * Log INFO message with one "{}" argument. Formatting is deferred until
+     * the message is accepted by a sink.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void i(String format, int arg) {
+        log(Level.INFO, format, (long) arg);
+    }
+
+    /**
+     * Log INFO message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void i(String format, long arg) {
+        log(Level.INFO, format, arg);
+    }
+
+    /**
+     * Log INFO message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void i(String format, double arg) {
+        log(Level.INFO, format, arg);
+    }
+
+    /**
+     * Log INFO message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void i(String format, long arg1, long arg2) {
+        log(Level.INFO, format, arg1, arg2);
+    }
+
+    /**
+     * Log INFO message with one "{}" argument. A trailing {@link Throwable}
+     * without placeholder is logged with its stack trace.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void i(String format, Object arg) {
+        log(Level.INFO, format, arg);
+    }
+
+    /**
+     * Log INFO message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void i(String format, Object arg1, Object arg2) {
+        log(Level.INFO, format, arg1, arg2);
+    }
+
+    /**
+     * Log INFO message with any number of "{}" arguments.
+     *
+     * @param format The message format.
+     * @param args   The arguments.
+     */
+    public void i(String format, Object... args) {
+        log(Level.INFO, format, args);
+    }
+
+    /**
+     * Log INFO message built by the supplier. The supplier is only called
+     * when the message is accepted by a sink.
+     *
+     * @param supplier Supplies the message.
+     */
+    public void i(Supplier<String> supplier) {
+        if (isEnabled(Level.INFO)) {
+            log(Level.INFO, supplier.get());
         }
     }
 
     /**
-     * Log WARN message in debug builds only.
+     * Log WARN message.
      *
      * @param msg The message you would like logged.
      */
     public void w(String msg) {
-        if (mLogger.isWarnEnabled() || sLogWriter.isWriting()) {
-            sLogWriter.write(mLogger, Level.WARNING, msg);
+        log(Level.WARNING, msg);
+    }
 
-            if (isDebug()) {
-                mLogger.warn(msg);
-            }
+    /**
+     * Log WARN message with one "{}" argument. Formatting is deferred until
+     * the message is accepted by a sink.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void w(String format, int arg) {
+        log(Level.WARNING, format, (long) arg);
+    }
+
+    /**
+     * Log WARN message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void w(String format, long arg) {
+        log(Level.WARNING, format, arg);
+    }
+
+    /**
+     * Log WARN message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void w(String format, double arg) {
+        log(Level.WARNING, format, arg);
+    }
+
+    /**
+     * Log WARN message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void w(String format, long arg1, long arg2) {
+        log(Level.WARNING, format, arg1, arg2);
+    }
+
+    /**
+     * Log WARN message with one "{}" argument. A trailing {@link Throwable}
+     * without placeholder is logged with its stack trace.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void w(String format, Object arg) {
+        log(Level.WARNING, format, arg);
+    }
+
+    /**
+     * Log WARN message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void w(String format, Object arg1, Object arg2) {
+        log(Level.WARNING, format, arg1, arg2);
+    }
+
+    /**
+     * Log WARN message with any number of "{}" arguments.
+     *
+     * @param format The message format.
+     * @param args   The arguments.
+     */
+    public void w(String format, Object... args) {
+        log(Level.WARNING, format, args);
+    }
+
+    /**
+     * Log WARN message built by the supplier. The supplier is only called
+     * when the message is accepted by a sink.
+     *
+     * @param supplier Supplies the message.
+     */
+    public void w(Supplier<String> supplier) {
+        if (isEnabled(Level.WARNING)) {
+            log(Level.WARNING, supplier.get());
         }
     }
 
     /**
-     * Log ERROR message in debug builds only.
+     * Log ERROR message.
      *
      * @param msg The message you would like logged.
      */
     public void e(String msg) {
-        if (mLogger.isErrorEnabled() || sLogWriter.isWriting()) {
-            sLogWriter.write(mLogger, Level.ERROR, msg);
+        log(Level.ERROR, msg);
+    }
 
-            if (isDebug()) {
-                mLogger.error(msg);
-            }
-        }
+    /**
+     * Log ERROR message with one "{}" argument. Formatting is deferred until
+     * the message is accepted by a sink.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void e(String format, int arg) {
+        log(Level.ERROR, format, (long) arg);
+    }
+
+    /**
+     * Log ERROR message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void e(String format, long arg) {
+        log(Level.ERROR, format, arg);
+    }
+
+    /**
+     * Log ERROR message with one "{}" argument.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void e(String format, double arg) {
+        log(Level.ERROR, format, arg);
+    }
+
+    /**
+     * Log ERROR message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void e(String format, long arg1, long arg2) {
+        log(Level.ERROR, format, arg1, arg2);
+    }
+
+    /**
+     * Log ERROR message with one "{}" argument. A trailing {@link Throwable}
+     * without placeholder is logged with its stack trace.
+     *
+     * @param format The message format.
+     * @param arg    The argument.
+     */
+    public void e(String format, Object arg) {
+        log(Level.ERROR, format, arg);
+    }
+
+    /**
+     * Log ERROR message with two "{}" arguments.
+     *
+     * @param format The message format.
+     * @param arg1   The first argument.
+     * @param arg2   The second argument.
+     */
+    public void e(String format, Object arg1, Object arg2) {
+        log(Level.ERROR, format, arg1, arg2);
+    }
+
+    /**
+     * Log ERROR message with any number of "{}" arguments.
+     *
+     * @param format The message format.
+     * @param args   The arguments.
+     */
+    public void e(String format, Object... args) {
+        log(Level.ERROR, format, args);
     }
 
+    /**
+     * Log ERROR message built by the supplier. The supplier is only called
+     * when the message is accepted by a sink.
+     *
+     * @param supplier Supplies the message.
+     */
+    public void e(Supplier<String> supplier) {
+        if (isEnabled(Level.ERROR)) {
+            log(Level.ERROR, supplier.get());
+        }
+    }
 
     /**
-     * Log FATAL message in debug builds only.
+     * Log FATAL message; to the slf4j logger in release builds as well.
      *
      * @param msg The message you would like logged.
      */
     public void f(String msg) {
-        if (mLogger.isErrorEnabled() || sLogWriter.isWriting() || sAssertOnFatal) {
+        final DashcamLogWriter writer = sLogWriter;
+        if ((isLoggerEnabled(Level.FATAL) || writer.isEnabled(Level.FATAL) || sAssertOnFatal)
+                && admit(Level.FATAL, msg)) {
             msg += getStackTraceWhenNotAsserting();
-            sLogWriter.write(mLogger, Level.FATAL, msg);
+            if (writer.isEnabled(Level.FATAL)) {
+                writer.write(mLogger, Level.FATAL, msg);
+            }
 
-            if (isDebug()) {
+            if (loggerAccepts(Level.FATAL)) {
                 mLogger.error(msg);
             }
             if (sAssertOnFatal) {
@@ -260,19 +808,566 @@ public final class DashcamLog {
     }
 
 
+    /**
+     * Test whether a message of the given level is accepted by the log writer
+     * or by the underlying logger (see {@link #loggerAccepts(Level)}).
+     *
+     * @param level The level.
+     * @return True if the message would be logged.
+     */
+    public boolean isEnabled(Level level) {
+        return level.severity >= sMinSeverity && (sLogWriter.isEnabled(level) || loggerAccepts(level));
+    }
+
+    private void log(Level level, String msg) {
+        if (level.severity < sMinSeverity) {
+            return;
+        }
+        if (admit(level, msg)) {
+            emit(level, msg);
+        }
+    }
+
+    private void emit(Level level, String msg) {
+        final DashcamLogWriter writer = sLogWriter;
+        if (writer.isEnabled(level)) {
+            writer.write(mLogger, level, msg);
+        }
+        if (loggerAccepts(level)) {
+            loggerWrite(level, msg);
+        }
+    }
+
+    private void log(Level level, String format, long arg) {
+        if (level.severity < sMinSeverity) {
+            return;
+        }
+        if (!admit(level, format, arg, 0, 1)) {
+            return;
+        }
+        final DashcamLogWriter writer = sLogWriter;
+        if (writer.isEnabled(level)) {
+            final DashcamLogEvent event = writer.begin(mLogger, level, format);
+            if (event != null) {
+                event.addLong(arg);
+                writer.commit(event);
+            }
+        }
+        if (loggerAccepts(level)) {
+            loggerFormat(level, format, arg);
+        }
+    }
+
+    private void log(Level level, String format, double arg) {
+        if (level.severity < sMinSeverity) {
+            return;
+        }
+        if (!admit(level, format, Double.doubleToLongBits(arg), 0, 1)) {
+            return;
+        }
+        final DashcamLogWriter writer = sLogWriter;
+        if (writer.isEnabled(level)) {
+            final DashcamLogEvent event = writer.begin(mLogger, level, format);
+            if (event != null) {
+                event.addDouble(arg);
+                writer.commit(event);
+            }
+        }
+        if (loggerAccepts(level)) {
+            loggerFormat(level, format, arg);
+        }
+    }
+
+    private void log(Level level, String format, long arg1, long arg2) {
+        if (level.severity < sMinSeverity) {
+            return;
+        }
+        if (!admit(level, format, arg1, arg2, 2)) {
+            return;
+        }
+        final DashcamLogWriter writer = sLogWriter;
+        if (writer.isEnabled(level)) {
+            final DashcamLogEvent event = writer.begin(mLogger, level, format);
+            if (event != null) {
+                event.addLong(arg1);
+                event.addLong(arg2);
+                writer.commit(event);
+            }
+        }
+        if (loggerAccepts(level)) {
+            loggerFormat(level, format, arg1, arg2);
+        }
+    }
+
+    private void log(Level level, String format, Object arg) {
+        if (level.severity < sMinSeverity) {
+            return;
+        }
+        if (!admit(level, format, arg, null, 1)) {
+            return;
+        }
+        final DashcamLogWriter writer = sLogWriter;
+        if (writer.isEnabled(level)) {
+            final DashcamLogEvent event = writer.begin(mLogger, level, format);
+            if (event != null) {
+                // Published even if an argument fails: an unpublished slot would stall the drain thread.
+                try {
+                    addLastArg(event, format, arg, 0);
+                } finally {
+                    writer.commit(event);
+                }
+            }
+        }
+        if (loggerAccepts(level)) {
+            loggerFormat(level, format, arg);
+        }
+    }
+
+    private void log(Level level, String format, Object arg1, Object arg2) {
+        if (level.severity < sMinSeverity) {
+            return;
+        }
+        if (!admit(level, format, arg1, arg2, 2)) {
+            return;
+        }
+        final DashcamLogWriter writer = sLogWriter;
+        if (writer.isEnabled(level)) {
+            final DashcamLogEvent event = writer.begin(mLogger, level, format);
+            if (event != null) {
+                try {
+                    event.addObject(arg1);
+                    addLastArg(event, format, arg2, 1);
+                } finally {
+                    writer.commit(event);
+                }
+            }
+        }
+        if (loggerAccepts(level)) {
+            loggerFormat(level, format, arg1, arg2);
+        }
+    }
+
+    private void log(Level level, String format, Object[] args) {
+        if (level.severity < sMinSeverity) {
+            return;
+        }
+        if (!admit(level, format, args)) {
+            return;
+        }
+        final DashcamLogWriter writer = sLogWriter;
+        if (writer.isEnabled(level)) {
+            if (args == null || args.length == 0) {
+                writer.write(mLogger, level, format);
+            } else if (args.length > DashcamLogEvent.MAX_ARGS) {
+                // Too many arguments for the event slot: format on the calling thread.
+                final FormattingTuple tuple = MessageFormatter.arrayFormat(format, args);
+                writer.write(mLogger, level, tuple.getMessage(), tuple.getThrowable());
+            } else {
+                final DashcamLogEvent event = writer.begin(mLogger, level, format);
+                if (event != null) {
+                    try {
+                        final int last = args.length - 1;
+                        for (int i = 0; i < last; i++) {
+                            event.addObject(args[i]);
+                        }
+                        addLastArg(event, format, args[last], last);
+                    } finally {
+                        writer.commit(event);
+                    }
+                }
+            }
+        }
+        if (loggerAccepts(level)) {
+            loggerFormat(level, format, args);
+        }
+    }
+
+    /**
+     * Apply the throttle to a plain message. The message is compared with the
+     * last one written at its level, whatever its text.
+     *
+     * @param level The level.
+     * @param msg   The message.
+     * @return True if the message is to be written.
+     */
+    private boolean admit(Level level, String msg) {
+        final DashcamLogThrottle throttle = sThrottle;
+        final DashcamLogThrottle.Site site = throttle == null ? null : messageSite(level);
+        if (site == null) {
+            return true;
+        }
+        final int suppressed;
+        final String summary;
+        synchronized (site) {
+            site.pending.clear().addObject(msg);
+            suppressed = throttle.admit(site, level, System.nanoTime());
+            summary = suppressed > 0 ? site.suppressedKey() : null;
+        }
+        return report(site, level, suppressed, summary);
+    }
+
+    /**
+     * Apply the throttle to a message with {@code count} primitive arguments.
+     */
+    private boolean admit(Level level, String format, long arg1, long arg2, int count) {
+        final DashcamLogThrottle throttle = sThrottle;
+        final DashcamLogThrottle.Site site = throttle == null ? null : site(level, format);
+        if (site == null) {
+            return true;
+        }
+        final int suppressed;
+        final String summary;
+        synchronized (site) {
+            site.pending.clear().addLong(arg1);
+            if (count > 1) {
+                site.pending.addLong(arg2);
+            }
+            suppressed = throttle.admit(site, level, System.nanoTime());
+            summary = suppressed > 0 ? site.suppressedKey() : null;
+        }
+        return report(site, level, suppressed, summary);
+    }
+
+    /**
+     * Apply the throttle to a message with {@code count} object arguments.
+     */
+    private boolean admit(Level level, String format, Object arg1, Object arg2, int count) {
+        final DashcamLogThrottle throttle = sThrottle;
+        final DashcamLogThrottle.Site site = throttle == null ? null : site(level, format);
+        if (site == null) {
+            return true;
+        }
+        final int suppressed;
+        final String summary;
+        synchronized (site) {
+            site.pending.clear().addObject(arg1);
+            if (count > 1) {
+                site.pending.addObject(arg2);
+            }
+            suppressed = throttle.admit(site, level, System.nanoTime());
+            summary = suppressed > 0 ? site.suppressedKey() : null;
+        }
+        return report(site, level, suppressed, summary);
+    }
+
+    private boolean admit(Level level, String format, Object[] args) {
+        final DashcamLogThrottle throttle = sThrottle;
+        final DashcamLogThrottle.Site site = throttle == null ? null : site(level, format);
+        if (site == null) {
+            return true;
+        }
+        final int suppressed;
+        final String summary;
+        synchronized (site) {
+            site.pending.clear();
+            if (args != null) {
+                for (Object arg : args) {
+                    site.pending.addObject(arg);
+                }
+            }
+            suppressed = throttle.admit(site, level, System.nanoTime());
+            summary = suppressed > 0 ? site.suppressedKey() : null;
+        }
+        return report(site, level, suppressed, summary);
+    }
+
+    /**
+     * The throttle state of the call site of a message.
+     *
+     * @param level The level.
+     * @param key   The message format.
+     * @return The site, or null if the message is not throttled.
+     */
+    private DashcamLogThrottle.Site site(Level level, String key) {
+        if (key == null || level.severity >= Level.ERROR.severity || !isEnabled(level)) {
+            // Disabled levels are filtered by the sinks themselves, without touching the sites.
+            return null;
+        }
+        DashcamLogThrottle.Site site = mSites.get(key);
+        if (site == null) {
+            if (mSites.size() >= MAX_SITES) {
+                return null;
+            }
+            final DashcamLogThrottle.Site created = new DashcamLogThrottle.Site(this, key);
+            site = mSites.putIfAbsent(key, created);
+            if (site == null) {
+                site = created;
+            }
+        }
+        return site;
+    }
+
+    /**
+     * The throttle state of the plain messages of a level.
+     *
+     * @param level The level.
+     * @return The site, or null if the message is not throttled.
+     */
+    private DashcamLogThrottle.Site messageSite(Level level) {
+        if (level.severity >= Level.ERROR.severity || !isEnabled(level)) {
+            return null;
+        }
+        final DashcamLogThrottle.Site site = mMessageSites.get(level.ordinal());
+        if (site != null) {
+            return site;
+        }
+        mMessageSites.compareAndSet(level.ordinal(), null, new DashcamLogThrottle.Site(this, null));
+        return mMessageSites.get(level.ordinal());
+    }
+
+    /**
+     * Write the summary of the messages dropped before an admitted one, or
+     * remember the site for {@link #flushSuppressed()} if the message was dropped.
+     *
+     * @param summary What the dropped messages repeated, if {@code suppressed} is positive.
+     * @return True if the message is to be written.
+     */
+    private boolean report(DashcamLogThrottle.Site site, Level level, int suppressed, String summary) {
+        if (suppressed < 0) {
+            if (sPendingSummaries.add(site)) {
+                startSummaryTimer();
+            }
+            return false;
+        }
+        if (suppressed > 0) {
+            writeSummary(level, summary, suppressed);
+        }
+        return true;
+    }
+
+    private void writeSummary(Level level, String key, int suppressed) {
+        final DashcamLogWriter writer = sLogWriter;
+        if (writer.isEnabled(level)) {
+            final DashcamLogEvent event = writer.begin(mLogger, level, SUPPRESSED_FORMAT);
+            if (event != null) {
+                event.addLong(suppressed);
+                event.addObject(key);
+                writer.commit(event);
+            }
+        }
+        if (loggerAccepts(level)) {
+            loggerFormat(level, SUPPRESSED_FORMAT, suppressed, key);
+        }
+    }
+
+    /**
+     * Write the "Suppressed N repeats" summaries of all call sites with
+     * dropped messages, e.g. before the logging stops. Called by
+     * {@link DashcamLogConfigurator#stopLogging()}.
+     */
+    public static void flushSuppressed() {
+        flushSuppressed(Long.MAX_VALUE);
+    }
+
+    /**
+     * Write the summaries of the call sites which dropped no message for
+     * {@code quietNanos}, e.g. of a storm which stopped. A site still dropping
+     * messages keeps counting, and its summary precedes its next written message.
+     */
+    private static void flushSuppressed(long quietNanos) {
+        final long now = System.nanoTime();
+        for (DashcamLogThrottle.Site site : sPendingSummaries) {
+            if (quietNanos != Long.MAX_VALUE && now - site.lastSuppressedNanos() < quietNanos) {
+                continue;
+            }
+            sPendingSummaries.remove(site);
+            final int suppressed;
+            final Level level;
+            final String summary;
+            synchronized (site) {
+                level = site.suppressedLevel();
+                summary = site.suppressedKey();
+                suppressed = site.takeSuppressed();
+            }
+            if (suppressed > 0) {
+                site.owner.writeSummary(level, summary, suppressed);
+            }
+        }
+    }
+
+    private static void startSummaryTimer() {
+        if (sSummaryTimer != null) {
+            return;
+        }
+        synchronized (sPendingSummaries) {
+            if (sSummaryTimer == null) {
+                final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "DashcamLogSummaries");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                timer.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        final DashcamLogThrottle throttle = sThrottle;
+                        final long quietMs = throttle != null && throttle.getDedupWindowMs() > 0
+                                ? throttle.getDedupWindowMs() : SUMMARY_FLUSH_MS;
+                        flushSuppressed(TimeUnit.MILLISECONDS.toNanos(quietMs));
+                    }
+                }, SUMMARY_FLUSH_MS, SUMMARY_FLUSH_MS, TimeUnit.MILLISECONDS);
+                sSummaryTimer = timer;
+            }
+        }
+    }
+
+    /**
+     * Add the last argument. Like slf4j, a trailing throwable which has no
+     * placeholder of its own is logged as the exception of the message.
+     */
+    private static void addLastArg(DashcamLogEvent event, String format, Object arg, int argIndex) {
+        if (arg instanceof Throwable && countPlaceholders(format) <= argIndex) {
+            event.throwable = (Throwable) arg;
+        } else {
+            event.addObject(arg);
+        }
+    }
+
+    private static int countPlaceholders(String format) {
+        int count = 0;
+        if (format != null) {
+            for (int i = format.indexOf("{}"); i >= 0; i = format.indexOf("{}", i + 2)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Test whether a message goes to the slf4j logger (logback, and from there
+     * logcat): every enabled level in debug builds, warnings and above also in
+     * release builds, so that they still reach logcat.
+     */
+    private boolean loggerAccepts(Level level) {
+        return (isDebug() || level.severity >= Level.WARNING.severity) && isLoggerEnabled(level);
+    }
+
+    private boolean isLoggerEnabled(Level level) {
+        return level.severity >= loggerThreshold();
+    }
+
+    /**
+     * @return The lowest severity the logger accepts, resolved once per tag
+     * and level configuration generation.
+     */
+    private int loggerThreshold() {
+        final int generation = sLevelGeneration.get();
+        final long cached = mTagLevel.mResolved;
+        if ((int) (cached >>> 32) == generation) {
+            return (int) cached;
+        }
+        final int threshold;
+        if (mLogger.isTraceEnabled()) {
+            threshold = Level.VERBOSE.severity;
+        } else if (mLogger.isDebugEnabled()) {
+            threshold = Level.DEBUG.severity;
+        } else if (mLogger.isInfoEnabled()) {
+            threshold = Level.INFO.severity;
+        } else if (mLogger.isWarnEnabled()) {
+            threshold = Level.WARNING.severity;
+        } else if (mLogger.isErrorEnabled()) {
+            threshold = Level.ERROR.severity;
+        } else {
+            threshold = Integer.MAX_VALUE;
+        }
+        // Stored with the generation read before resolving: a concurrent
+        // invalidation makes the next call resolve again.
+        mTagLevel.mResolved = ((long) generation << 32) | (threshold & 0xFFFFFFFFL);
+        return threshold;
+    }
+
+    private static TagLevel tagLevel(String tag) {
+        TagLevel tagLevel = sTagLevels.get(tag);
+        if (tagLevel == null) {
+            final TagLevel created = new TagLevel();
+            tagLevel = sTagLevels.putIfAbsent(tag, created);
+            if (tagLevel == null) {
+                tagLevel = created;
+            }
+        }
+        return tagLevel;
+    }
+
+    /**
+     * Logger level of a tag, shared by all instances of the tag.
+     */
+    private static final class TagLevel {
+        /** Generation in the upper, lowest accepted severity in the lower 32 bits. */
+        volatile long mResolved;
+    }
+
+    private void loggerWrite(Level level, String msg) {
+        switch (level) {
+            case VERBOSE:
+                mLogger.trace(msg);
+                break;
+            case DEBUG:
+                mLogger.debug(msg);
+                break;
+            case INFO:
+                mLogger.info(msg);
+                break;
+            case WARNING:
+                mLogger.warn(msg);
+                break;
+            default:
+                mLogger.error(msg);
+                break;
+        }
+    }
+
+    private void loggerFormat(Level level, String format, Object... args) {
+        switch (level) {
+            case VERBOSE:
+                mLogger.trace(format, args);
+                break;
+            case DEBUG:
+                mLogger.debug(format, args);
+                break;
+            case INFO:
+                mLogger.info(format, args);
+                break;
+            case WARNING:
+                mLogger.warn(format, args);
+                break;
+            default:
+                mLogger.error(format, args);
+                break;
+        }
+    }
+
     /**
      * Return stack trace if assert is not enabled.
      * <p>
      * If assert is enabled stack trace is acquired from uncaughtException.
+     * The stack is identified by a fingerprint of its frames, computed on
+     * every call; it is written in full the first time only, and repeats of the
+     * same call path refer to the fingerprint, whatever their message.
      *
      * @return Stack trace if sAssertOnFatal is false. Otherwise empty string.
      */
-    private static String getStackTraceWhenNotAsserting() {
+    private String getStackTraceWhenNotAsserting() {
         if (sAssertOnFatal) {
             return "";
         }
-        StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        final StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+        long fingerprint = 1;
+        for (StackTraceElement element : stack) {
+            fingerprint = 31 * fingerprint + element.hashCode();
+        }
+        final String id = Long.toHexString(fingerprint);
+        if (mFatalStacks.contains(fingerprint)) {
+            return " [stack " + id + ", see first occurrence]";
+        }
+        if (mFatalStacks.size() >= MAX_FATAL_STACKS) {
+            mFatalStacks.clear();
+        }
+        mFatalStacks.add(fingerprint);
+
         StringBuilder b = new StringBuilder();
+        b.append(" [stack ").append(id).append(']');
         for (StackTraceElement element : stack) {
             b.append("\n").append(element.toString());
         }
@@ -0,0 +1,271 @@
+package cam.et.dashcamsystem.logger;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import cam.et.dashcamlog.IndexedLogCompressor;
+import cam.et.dashcamlog.LogIndexFormat;
+import cam.et.dashcamsystem.util.DurabilityManager;
+
+/**
+ * Compresses closed {@link DashcamLogWriter} segments and keeps the logs
+ * directory within its byte budget.
+ * <p>
+ * All work runs on one lowest-priority thread, so compression never competes
+ * with the capture path. The thread exits when idle and is recreated on demand.
+ */
+final class DashcamLogArchiver {
+
+    /** Prefix of the writer's log segments. */
+    static final String SEGMENT_PREFIX = "dashcamlog_";
+
+    static final String GZIP_EXTENSION = ".gz";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    private static final int COPY_BUFFER_SIZE = 32 * 1024;
+
+    private final ExecutorService mExecutor;
+
+    /** The segment the writer currently appends to; never deleted. */
+    private volatile File mActive;
+
+    DashcamLogArchiver() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+                        } catch (RuntimeException ignored) {
+                            // Not on Android (host tests): the Java priority below applies.
+                        }
+                        r.run();
+                    }
+                }, "DashcamLogArchiver");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    /**
+     * Tell the archiver which segment is being written, so it is never deleted.
+     */
+    void setActiveSegment(File active) {
+        mActive = active;
+    }
+
+    /**
+     * Compress a closed segment in the background, then enforce the budget.
+     *
+     * @param segment       The closed segment.
+     * @param maxTotalBytes Byte budget of the segment's directory.
+     */
+    void archive(final File segment, final long maxTotalBytes) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                compress(segment);
+                enforceBudget(segment.getParentFile(), mActive, maxTotalBytes);
+            }
+        });
+    }
+
+    /**
+     * Compress segments left uncompressed by a previous run, remove temporary
+     * files of interrupted compressions and enforce the budget.
+     *
+     * @param dir           The logs directory.
+     * @param maxTotalBytes Byte budget of the directory.
+     */
+    void archiveLeftovers(final File dir, final long maxTotalBytes) {
+        submit(new Runnable() {
+            @Override
+            public void run() {
+                final File active = mActive;
+                final File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File f : files) {
+                        final String name = f.getName();
+                        if (!name.startsWith(SEGMENT_PREFIX) || isActive(f, active)) {
+                            continue;
+                        }
+                        if (name.endsWith(TEMP_EXTENSION)) {
+                            //noinspection ResultOfMethodCallIgnored
+                            f.delete();
+                        } else if (!name.endsWith(GZIP_EXTENSION) && !name.endsWith(LogIndexFormat.EXTENSION)) {
+                            compress(f);
+                        }
+                    }
+                }
+                enforceBudget(dir, active, maxTotalBytes);
+            }
+        });
+    }
+
+    private void submit(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RuntimeException ignored) {
+            // Rejected; leftovers are picked up again at the next start.
+        }
+    }
+
+    private static boolean isActive(File f, File active) {
+        return active != null && (f.equals(active) || f.equals(LogIndexFormat.indexFileOf(active)));
+    }
+
+    /**
+     * Gzip the file into "name.gz" and delete the original. The archive is
+     * written to a temporary file first, so a crash never leaves a truncated .gz.
+     * An indexed segment is compressed block by block, so that its index
+     * keeps working on the compressed file.
+     */
+    static boolean compress(File file) {
+        final File index = LogIndexFormat.indexFileOf(file);
+        if (index.isFile()) {
+            return compressIndexed(file, index);
+        }
+        final File tmp = new File(file.getPath() + GZIP_EXTENSION + TEMP_EXTENSION);
+        final File gz = new File(file.getPath() + GZIP_EXTENSION);
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file);
+             OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), COPY_BUFFER_SIZE))) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return false;
+        }
+        // The original is deleted below, so the archive must be on storage first.
+        if (!DurabilityManager.sync(tmp) || !tmp.renameTo(gz)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return false;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        gz.setLastModified(file.lastModified());
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return true;
+    }
+
+    private static boolean compressIndexed(File file, File index) {
+        final File gz = new File(file.getPath() + GZIP_EXTENSION);
+        final File gzIndex = LogIndexFormat.indexFileOf(gz);
+        final File tmp = new File(gz.getPath() + TEMP_EXTENSION);
+        final File tmpIndex = new File(gzIndex.getPath() + TEMP_EXTENSION);
+        try {
+            IndexedLogCompressor.compress(file, tmp, tmpIndex);
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            //noinspection ResultOfMethodCallIgnored
+            tmpIndex.delete();
+            return false;
+        }
+        // The index first: a .gz without index is still readable, just not seekable.
+        if (!DurabilityManager.sync(tmp) || !DurabilityManager.sync(tmpIndex)
+                || !tmpIndex.renameTo(gzIndex) || !tmp.renameTo(gz)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            //noinspection ResultOfMethodCallIgnored
+            tmpIndex.delete();
+            //noinspection ResultOfMethodCallIgnored
+            gzIndex.delete();
+            return false;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        gz.setLastModified(file.lastModified());
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        //noinspection ResultOfMethodCallIgnored
+        index.delete();
+        return true;
+    }
+
+    /**
+     * Delete the oldest closed segments until all files of the directory fit
+     * into the budget. A segment goes together with its index, and an index
+     * left without its segment is deleted as well. Other files count toward
+     * the budget but are never deleted, and neither is the active segment.
+     */
+    static void enforceBudget(File dir, File active, long maxTotalBytes) {
+        final File[] files = (dir != null) ? dir.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        final List<File> segments = new ArrayList<>();
+        for (File f : files) {
+            if (!f.isFile()) {
+                continue;
+            }
+            total += f.length();
+            if (!f.getName().startsWith(SEGMENT_PREFIX) || isActive(f, active)) {
+                continue;
+            }
+            if (!f.getName().endsWith(LogIndexFormat.EXTENSION)) {
+                segments.add(f);
+            } else if (!segmentOf(f).exists()) {
+                final long length = f.length();
+                if (f.delete()) {
+                    total -= length;
+                }
+            }
+        }
+        if (total <= maxTotalBytes) {
+            return;
+        }
+        // Segment names start with their creation time, so name order is age order.
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        for (File f : segments) {
+            if (total <= maxTotalBytes) {
+                break;
+            }
+            final File index = LogIndexFormat.indexFileOf(f);
+            final long length = f.length();
+            final long indexLength = index.length();
+            if (f.delete()) {
+                total -= length;
+                if (index.delete()) {
+                    total -= indexLength;
+                }
+            }
+        }
+    }
+
+    private static File segmentOf(File index) {
+        final String path = index.getPath();
+        return new File(path.substring(0, path.length() - LogIndexFormat.EXTENSION.length()));
+    }
+}
@@ -0,0 +1,109 @@
+package cam.et.dashcamsystem.logger;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * {@link AsyncAppender} which records {@link DashcamLogMetrics}: events per
+ * level, events discarded at the discarding threshold, queue depth and the
+ * time the logging thread waits in {@link #append(ILoggingEvent)} for room in
+ * a full queue. Appends which find room are not timed. Recording takes no
+ * lock, see {@link DashcamLogMetricsRecorder}.
+ * <p>
+ * Bytes and flush latency are recorded by the stream returned from
+ * {@link #meter(OutputStream)}, which is placed between the attached
+ * appender and its output.
+ */
+public class DashcamLogAsyncAppender extends AsyncAppender {
+
+    private final DashcamLogMetricsRecorder mMetrics;
+    private final LongAdder mDiscarded = new LongAdder();
+
+    /**
+     * Construct appender.
+     *
+     * @param name Name of the appender in the metrics.
+     */
+    public DashcamLogAsyncAppender(String name) {
+        mMetrics = new DashcamLogMetricsRecorder(name);
+        setName(name);
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        // Mirrors the check of AsyncAppenderBase, which discards silently.
+        final int remaining = getRemainingCapacity();
+        if (remaining < getDiscardingThreshold() && isDiscardable(event)) {
+            mDiscarded.increment();
+            super.append(event);
+            return;
+        }
+        mMetrics.recordEvent(levelOf(event.getLevel()));
+        if (remaining == 0 && !isNeverBlock()) {
+            // Waits for the worker to make room.
+            final long start = System.nanoTime();
+            super.append(event);
+            mMetrics.recordBlocked(System.nanoTime() - start);
+        } else {
+            super.append(event);
+        }
+        mMetrics.recordQueueSize(getNumberOfElementsInQueue());
+    }
+
+    /**
+     * Wrap the output of the attached appender to count bytes and time flushes.
+     *
+     * @param output The output stream.
+     * @return The metered stream.
+     */
+    OutputStream meter(OutputStream output) {
+        return new FilterOutputStream(output) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                mMetrics.recordBytes(1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                mMetrics.recordBytes(len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                final long start = System.nanoTime();
+                out.flush();
+                mMetrics.recordFlush(System.nanoTime() - start);
+            }
+        };
+    }
+
+    /**
+     * @return A snapshot of the counters.
+     */
+    public DashcamLogMetrics getMetrics() {
+        return mMetrics.snapshot(getNumberOfElementsInQueue(), getQueueSize(), mDiscarded.sum(), 0);
+    }
+
+    private static DashcamLog.Level levelOf(Level level) {
+        switch (level.levelInt) {
+            case Level.TRACE_INT:
+                return DashcamLog.Level.VERBOSE;
+            case Level.DEBUG_INT:
+                return DashcamLog.Level.DEBUG;
+            case Level.INFO_INT:
+                return DashcamLog.Level.INFO;
+            case Level.WARN_INT:
+                return DashcamLog.Level.WARNING;
+            default:
+                return DashcamLog.Level.ERROR;
+        }
+    }
+}
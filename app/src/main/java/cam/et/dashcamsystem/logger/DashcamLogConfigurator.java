@@ -2,6 +2,7 @@ package cam.et.dashcamsystem.logger;
 
 import android.content.Context;
 import android.content.res.AssetManager;
+import android.os.FileObserver;
 
 import com.github.tony19.logback.android.BuildConfig;
 
@@ -12,7 +13,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.qos.logback.classic.AsyncAppender;
 import ch.qos.logback.classic.Level;
@@ -22,11 +29,14 @@ import ch.qos.logback.classic.android.BasicLogcatConfigurator;
 import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
 import ch.qos.logback.classic.filter.ThresholdFilter;
 import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.classic.spi.LoggerContextListener;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
 import ch.qos.logback.core.FileAppender;
 import ch.qos.logback.core.OutputStreamAppender;
 
+import cam.et.dashcamsystem.util.DurabilityManager;
+
 
 /**
  * Utility methods for configuring the logging.
@@ -35,6 +45,30 @@ public final class DashcamLogConfigurator {
 
     private static final DashcamLog LOG = DashcamLog.get("NemoLog");
 
+    private static final String CONFIG_FILE_NAME = "logback.xml";
+
+    /**
+     * Appenders added by {@link #addCustomAppender(OutputStream, Level, String)}.
+     * They survive reconfiguration.
+     */
+    private static final Set<Appender<ILoggingEvent>> sCustomAppenders = new CopyOnWriteArraySet<>();
+
+    /**
+     * Numbers the custom appenders; never reused, so their names stay unique after removals.
+     */
+    private static final AtomicInteger sCustomAppenderCount = new AtomicInteger();
+
+    private static boolean sLevelListenerInstalled;
+
+    private static FileObserver sConfigObserver;
+
+    /**
+     * The staging context of the applied configuration. Its appenders run in
+     * the live context but stay bound to it (a logback component takes its
+     * context only once), so it is stopped when they are retired.
+     */
+    private static LoggerContext sAppliedContext;
+
     /** Provide direct access to the logger context. */
     public static LoggerContext getLoggerContext() {
         return (LoggerContext) LoggerFactory.getILoggerFactory();
@@ -55,7 +89,13 @@ public final class DashcamLogConfigurator {
      * Stops the logging, flushes buffers and stops all background threads.
      */
     public static void stopLogging() {
+        // Summaries of dropped repeats, while the writers still run.
+        DashcamLog.flushSuppressed();
         getLoggerContext().stop();
+        stopAppliedContext(null);
+        // Drain the queued messages of the file writer and close the log file.
+        DashcamLog.getLogWriter().close();
+        DurabilityManager.commitNow(5000);
     }
 
     /**
@@ -65,6 +105,7 @@ public final class DashcamLogConfigurator {
      */
     public static void checkDefaultConfig() {
         LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        installLevelListener(context);
         Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
         Iterator<Appender<ILoggingEvent>> it = root.iteratorForAppenders();
         if (!it.hasNext()) {
@@ -82,6 +123,10 @@ public final class DashcamLogConfigurator {
 
     /**
      * Re-configure logging from the passed configuration file.
+     * <p>
+     * The new configuration is parsed into a staging context and then swapped
+     * into the running one, see {@link #swapConfiguration(LoggerContext, LoggerContext)}.
+     * Unlike {@link LoggerContext#reset()}, this keeps queued events and custom appenders.
      *
      * @param file The configuration file.
      * @return True if the reconfigure was successful, false if not.
@@ -91,14 +136,16 @@ public final class DashcamLogConfigurator {
             throw new IllegalArgumentException("No such file=" + file);
         }
         LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        LoggerContext staging = newStagingContext(context);
         try {
             JoranConfigurator configurator = new JoranConfigurator();
-            configurator.setContext(context);
-            context.reset();
+            configurator.setContext(staging);
             configurator.doConfigure(file);
         } catch (Exception e) {
+            staging.stop();
             return false;
         }
+        swapConfiguration(context, staging);
         return true;
     }
 
@@ -148,12 +195,14 @@ public final class DashcamLogConfigurator {
         }
 
         LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
+        LoggerContext staging = newStagingContext(loggerContext);
         try {
             JoranConfigurator configurator = new JoranConfigurator();
-            configurator.setContext(loggerContext);
-            loggerContext.reset();
+            configurator.setContext(staging);
             configurator.doConfigure(stream);
+            swapConfiguration(loggerContext, staging);
         } catch (Exception e) {
+            staging.stop();
         } finally {
             try {
                 stream.close();
@@ -197,6 +246,9 @@ public final class DashcamLogConfigurator {
         }
         final LoggerContext context = getLoggerContext();
 
+        // Async appender recording metrics, see getCustomAppenderMetrics()
+        final DashcamLogAsyncAppender async = new DashcamLogAsyncAppender("custom-" + sCustomAppenderCount.getAndIncrement());
+
         // Pattern encoder for formatting the log output
         final PatternLayoutEncoder encoder = new PatternLayoutEncoder();
         encoder.setContext(context);
@@ -209,7 +261,7 @@ public final class DashcamLogConfigurator {
         final OutputStreamAppender<ILoggingEvent> appender = new OutputStreamAppender<>();
         appender.setContext(context);
         appender.setEncoder(encoder);
-        appender.setOutputStream(output);
+        appender.setOutputStream(async.meter(output));
         appender.start();
 
         // Construct new async appender which forwards the logging events to
@@ -219,7 +271,6 @@ public final class DashcamLogConfigurator {
         filter.setLevel(level.levelStr);
         filter.start();
 
-        final AsyncAppender async = new AsyncAppender();
         async.setContext(context);
         async.addFilter(filter);
         async.addAppender(appender);
@@ -227,6 +278,7 @@ public final class DashcamLogConfigurator {
 
         // And finally add the async appender to the root logger
         final Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+        sCustomAppenders.add(async);
         root.addAppender(async);
 
         return async;
@@ -241,6 +293,7 @@ public final class DashcamLogConfigurator {
         if (appender != null) {
             final LoggerContext context = getLoggerContext();
             final Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+            sCustomAppenders.remove(appender);
             if (root.detachAppender(appender)) {
                 appender.stop();
                 appender.detachAndStopAllAppenders();
@@ -248,6 +301,242 @@ public final class DashcamLogConfigurator {
         }
     }
 
+    /**
+     * Take a metrics snapshot of every appender created by
+     * {@link #addCustomAppender(OutputStream, Level, String)}.
+     *
+     * @return The snapshots.
+     */
+    public static List<DashcamLogMetrics> getCustomAppenderMetrics() {
+        final List<DashcamLogMetrics> metrics = new ArrayList<>();
+        for (Appender<ILoggingEvent> appender : sCustomAppenders) {
+            if (appender instanceof DashcamLogAsyncAppender) {
+                metrics.add(((DashcamLogAsyncAppender) appender).getMetrics());
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Watch the application files directory for a custom "logback.xml" and
+     * apply it whenever it is written, e.g. to raise the levels on a running
+     * device without restarting the service. Deleting the file restores the
+     * configuration from assets.
+     *
+     * @param context The application context.
+     */
+    public static synchronized void watchCustomConfig(Context context) {
+        if (sConfigObserver != null) {
+            return;
+        }
+        final File dir = context.getFilesDir();
+        final AssetManager assets = context.getAssets();
+        //noinspection deprecation FileObserver(File) requires API 29.
+        sConfigObserver = new FileObserver(dir.getPath(),
+                FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (!CONFIG_FILE_NAME.equals(path)) {
+                    return;
+                }
+                final File config = new File(dir, CONFIG_FILE_NAME);
+                if ((event & (FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO)) != 0 && config.exists()) {
+                    final boolean ok = reconfigure(config);
+                    LOG.i("Custom logging configuration applied: {}", ok);
+                } else if ((event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0) {
+                    configureFromAssets(assets);
+                    LOG.i("Custom logging configuration removed, using assets");
+                }
+            }
+        };
+        sConfigObserver.startWatching();
+    }
+
+    /**
+     * Stop watching the custom configuration file.
+     */
+    public static synchronized void stopWatchingCustomConfig() {
+        if (sConfigObserver != null) {
+            sConfigObserver.stopWatching();
+            sConfigObserver = null;
+        }
+    }
+
+    /**
+     * Create a context to parse a configuration into, with the properties
+     * (e.g. LOG_DIR) of the running context.
+     */
+    private static LoggerContext newStagingContext(LoggerContext live) {
+        installLevelListener(live);
+        final LoggerContext staging = new LoggerContext();
+        staging.setName(live.getName());
+        for (Map.Entry<String, String> property : live.getCopyOfPropertyMap().entrySet()) {
+            staging.putProperty(property.getKey(), property.getValue());
+        }
+        return staging;
+    }
+
+    /**
+     * Move the levels and appenders of the staging context into the running
+     * context. For every logger the new appenders are attached before the old
+     * ones are detached, so no event finds a logger without appenders, and the
+     * old appenders are stopped only afterwards: an {@link AsyncAppender}
+     * drains its queue when stopped. Custom appenders stay attached.
+     * <p>
+     * A root level set by the configuration also becomes the level of the
+     * {@link DashcamLogWriter}, and the staging context of the previous
+     * configuration is stopped together with its retired appenders.
+     *
+     * @param live    The running context.
+     * @param staging The context the new configuration was parsed into.
+     */
+    private static synchronized void swapConfiguration(LoggerContext live, LoggerContext staging) {
+        final List<Appender<ILoggingEvent>> retired = new ArrayList<>();
+
+        for (Logger logger : live.getLoggerList()) {
+            final Logger staged = staging.exists(logger.getName());
+            if (staged == null) {
+                // Not mentioned by the new configuration: back to the defaults.
+                if (!Logger.ROOT_LOGGER_NAME.equals(logger.getName())) {
+                    logger.setLevel(null);
+                }
+                logger.setAdditive(true);
+                retireAppenders(logger, retired);
+            }
+        }
+
+        for (Logger staged : staging.getLoggerList()) {
+            final Logger logger = live.getLogger(staged.getName());
+            if (!Logger.ROOT_LOGGER_NAME.equals(logger.getName()) || staged.getLevel() != null) {
+                logger.setLevel(staged.getLevel());
+            }
+            logger.setAdditive(staged.isAdditive());
+
+            final List<Appender<ILoggingEvent>> old = new ArrayList<>();
+            final Iterator<Appender<ILoggingEvent>> it = logger.iteratorForAppenders();
+            while (it.hasNext()) {
+                old.add(it.next());
+            }
+            final Iterator<Appender<ILoggingEvent>> fresh = staged.iteratorForAppenders();
+            while (fresh.hasNext()) {
+                logger.addAppender(fresh.next());
+            }
+            for (Appender<ILoggingEvent> appender : old) {
+                if (!sCustomAppenders.contains(appender) && logger.detachAppender(appender)) {
+                    retired.add(appender);
+                }
+            }
+        }
+
+        // The staging loggers keep no appenders, so stopping the context later does not stop them.
+        for (Logger staged : staging.getLoggerList()) {
+            final List<Appender<ILoggingEvent>> moved = new ArrayList<>();
+            final Iterator<Appender<ILoggingEvent>> it = staged.iteratorForAppenders();
+            while (it.hasNext()) {
+                moved.add(it.next());
+            }
+            for (Appender<ILoggingEvent> appender : moved) {
+                staged.detachAppender(appender);
+            }
+        }
+
+        final Level rootLevel = staging.getLogger(Logger.ROOT_LOGGER_NAME).getLevel();
+        if (rootLevel != null) {
+            DashcamLog.getLogWriter().setLevel(toDashcamLevel(rootLevel));
+        }
+
+        DashcamLog.invalidateLevelCache();
+        for (Appender<ILoggingEvent> appender : retired) {
+            appender.stop();
+        }
+        stopAppliedContext(staging);
+    }
+
+    /**
+     * Stop the staging context of the previous configuration, whose appenders
+     * have been retired.
+     *
+     * @param applied The staging context of the configuration now applied, or null.
+     */
+    private static synchronized void stopAppliedContext(LoggerContext applied) {
+        if (sAppliedContext != null && sAppliedContext != applied) {
+            sAppliedContext.stop();
+        }
+        sAppliedContext = applied;
+    }
+
+    /**
+     * Map a logback level onto the levels of {@link DashcamLogWriter}.
+     *
+     * @param level The logback level.
+     * @return The level, or null for OFF.
+     */
+    private static DashcamLog.Level toDashcamLevel(Level level) {
+        switch (level.toInt()) {
+            case Level.ALL_INT:
+            case Level.TRACE_INT:
+                return DashcamLog.Level.VERBOSE;
+            case Level.DEBUG_INT:
+                return DashcamLog.Level.DEBUG;
+            case Level.INFO_INT:
+                return DashcamLog.Level.INFO;
+            case Level.WARN_INT:
+                return DashcamLog.Level.WARNING;
+            case Level.ERROR_INT:
+                return DashcamLog.Level.ERROR;
+            default:
+                return null;
+        }
+    }
+
+    private static void retireAppenders(Logger logger, List<Appender<ILoggingEvent>> retired) {
+        final Iterator<Appender<ILoggingEvent>> it = logger.iteratorForAppenders();
+        final List<Appender<ILoggingEvent>> attached = new ArrayList<>();
+        while (it.hasNext()) {
+            attached.add(it.next());
+        }
+        for (Appender<ILoggingEvent> appender : attached) {
+            if (!sCustomAppenders.contains(appender) && logger.detachAppender(appender)) {
+                retired.add(appender);
+            }
+        }
+    }
+
+    /**
+     * Invalidate the level cache of {@link DashcamLog} whenever a level of
+     * the context changes.
+     */
+    private static synchronized void installLevelListener(LoggerContext context) {
+        if (sLevelListenerInstalled) {
+            return;
+        }
+        sLevelListenerInstalled = true;
+        context.addListener(new LoggerContextListener() {
+            @Override
+            public boolean isResetResistant() {
+                return true;
+            }
+
+            @Override
+            public void onStart(LoggerContext context) {
+            }
+
+            @Override
+            public void onReset(LoggerContext context) {
+                DashcamLog.invalidateLevelCache();
+            }
+
+            @Override
+            public void onStop(LoggerContext context) {
+            }
+
+            @Override
+            public void onLevelChange(Logger logger, Level level) {
+                DashcamLog.invalidateLevelCache();
+            }
+        });
+    }
+
     /**
      * Flush all file appenders.
      */
@@ -277,6 +566,7 @@ public final class DashcamLogConfigurator {
         if (o != null) {
             try {
                 o.flush();
+                DurabilityManager.onWrite(new File(pAppender.getFile()), 0);
             } catch (Exception e) {
             }
         }
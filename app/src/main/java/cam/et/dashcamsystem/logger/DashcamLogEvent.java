@@ -0,0 +1,161 @@
+package cam.et.dashcamsystem.logger;
+
+/**
+ * Mutable log record stored in the slots of {@link DashcamLogRingBuffer}.
+ * <p>
+ * Instances are preallocated by the ring buffer and reused for every message,
+ * so enqueueing a log line does not allocate.
+ * <p>
+ * A record either carries a ready {@link #message}, or a slf4j style format
+ * with "{}" placeholders plus up to {@link #MAX_ARGS} typed arguments. Primitive
+ * arguments are stored unboxed and the format is only rendered by the drain
+ * thread.
+ */
+final class DashcamLogEvent {
+
+    /** Maximum number of arguments stored in a record. */
+    static final int MAX_ARGS = 8;
+
+    /** {@link #argCount} of a record carrying a plain message. */
+    static final int NO_FORMAT = -1;
+
+    static final byte ARG_LONG = 1;
+    static final byte ARG_DOUBLE = 2;
+    static final byte ARG_BOOLEAN = 3;
+    static final byte ARG_OBJECT = 4;
+
+    /** Index of the slot in the ring buffer, or -1 for events outside the ring. */
+    final int index;
+
+    /** Sequence to publish when the producer has filled the slot. */
+    long publishSequence;
+
+    /** Wall clock time of the log call in milliseconds. */
+    long timeMillis;
+
+    /** The log level. */
+    DashcamLog.Level level;
+
+    /** The logger name. */
+    String tag;
+
+    /** The log message, or the format if {@link #argCount} is not {@link #NO_FORMAT}. */
+    String message;
+
+    /** Optional throwable, whose stack trace is appended to the line. */
+    Throwable throwable;
+
+    /** Number of format arguments, or {@link #NO_FORMAT}. */
+    int argCount = NO_FORMAT;
+
+    final byte[] argTypes = new byte[MAX_ARGS];
+
+    /** Values of long, double (raw bits) and boolean (0/1) arguments. */
+    final long[] primitiveArgs = new long[MAX_ARGS];
+
+    final Object[] objectArgs = new Object[MAX_ARGS];
+
+    DashcamLogEvent() {
+        this(-1);
+    }
+
+    DashcamLogEvent(int index) {
+        this.index = index;
+    }
+
+    void set(long timeMillis, DashcamLog.Level level, String tag, String message, Throwable throwable) {
+        this.timeMillis = timeMillis;
+        this.level = level;
+        this.tag = tag;
+        this.message = message;
+        this.throwable = throwable;
+        this.argCount = NO_FORMAT;
+    }
+
+    /**
+     * Start a parameterized record. Add the arguments with the add methods.
+     */
+    void setFormat(long timeMillis, DashcamLog.Level level, String tag, String format) {
+        set(timeMillis, level, tag, format, null);
+        this.argCount = 0;
+    }
+
+    void addLong(long value) {
+        if (argCount < MAX_ARGS) {
+            argTypes[argCount] = ARG_LONG;
+            primitiveArgs[argCount++] = value;
+        }
+    }
+
+    void addDouble(double value) {
+        if (argCount < MAX_ARGS) {
+            argTypes[argCount] = ARG_DOUBLE;
+            primitiveArgs[argCount++] = Double.doubleToRawLongBits(value);
+        }
+    }
+
+    void addBoolean(boolean value) {
+        if (argCount < MAX_ARGS) {
+            argTypes[argCount] = ARG_BOOLEAN;
+            primitiveArgs[argCount++] = value ? 1 : 0;
+        }
+    }
+
+    /**
+     * Add an object argument. Boxed primitives are stored unboxed. Other values
+     * are converted to a string right away, because the caller might mutate
+     * them after the log call and the record is rendered later on the drain
+     * thread, which must never run the caller's code.
+     */
+    void addObject(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            addLong(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            addDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            addBoolean((Boolean) value);
+        } else if (argCount < MAX_ARGS) {
+            if (value != null && !(value instanceof String || value instanceof Character)) {
+                value = toStringSafely(value);
+            }
+            argTypes[argCount] = ARG_OBJECT;
+            objectArgs[argCount++] = value;
+        }
+    }
+
+    /**
+     * String of an argument. A failing toString() is rendered like slf4j
+     * does, instead of failing the log call with a claimed slot.
+     */
+    static String toStringSafely(Object value) {
+        try {
+            return String.valueOf(value);
+        } catch (RuntimeException e) {
+            return "[FAILED toString() of " + value.getClass().getName() + ": " + e + "]";
+        }
+    }
+
+    void copyFrom(DashcamLogEvent other) {
+        set(other.timeMillis, other.level, other.tag, other.message, other.throwable);
+        argCount = other.argCount;
+        if (argCount > 0) {
+            System.arraycopy(other.argTypes, 0, argTypes, 0, argCount);
+            System.arraycopy(other.primitiveArgs, 0, primitiveArgs, 0, argCount);
+            System.arraycopy(other.objectArgs, 0, objectArgs, 0, argCount);
+        }
+    }
+
+    /**
+     * Drop the references so the slot does not keep messages reachable.
+     */
+    void clear() {
+        level = null;
+        tag = null;
+        message = null;
+        throwable = null;
+        for (int i = 0; i < argCount; i++) {
+            objectArgs[i] = null;
+        }
+        argCount = NO_FORMAT;
+    }
+}
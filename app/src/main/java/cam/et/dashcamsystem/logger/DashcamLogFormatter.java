@@ -0,0 +1,240 @@
+package cam.et.dashcamsystem.logger;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+
+/**
+ * Formats {@link DashcamLogEvent}s into the log file line layout
+ * <pre>
+ * yyyy-MM-dd HH:mm:ss.SSS [LEVEL] tag - message
+ * </pre>
+ * without allocating in steady state.
+ * <p>
+ * Every thread gets its own {@link StringBuilder}, {@link Calendar} and
+ * {@link ByteBuffer}. The date prefix is cached per millisecond, and the
+ * "yyyy-MM-dd HH:mm:ss" part is only recomputed when the second changes.
+ * Characters are encoded to UTF-8 straight into the byte buffer. Only lines
+ * with a throwable, or lines longer than any seen before, allocate.
+ */
+final class DashcamLogFormatter {
+
+    /** Length of "yyyy-MM-dd HH:mm:ss.SSS". */
+    static final int DATE_LENGTH = 23;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final byte[][] LEVEL_PREFIXES;
+    private static final byte[] UNKNOWN_LEVEL_PREFIX = ascii(" [UNKNOWN] ");
+    private static final byte[] MESSAGE_SEPARATOR = ascii(" - ");
+
+    static {
+        final DashcamLog.Level[] levels = DashcamLog.Level.values();
+        LEVEL_PREFIXES = new byte[levels.length][];
+        for (DashcamLog.Level level : levels) {
+            LEVEL_PREFIXES[level.ordinal()] = ascii(" [" + level.name() + "] ");
+        }
+    }
+
+    /**
+     * Per-thread formatting state.
+     */
+    private static final class State {
+        final StringBuilder text = new StringBuilder(256);
+        final Calendar calendar = Calendar.getInstance();
+        final byte[] date = new byte[DATE_LENGTH];
+        ByteBuffer bytes = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        long cachedSecond = Long.MIN_VALUE;
+        long cachedMillis = Long.MIN_VALUE;
+    }
+
+    private static final ThreadLocal<State> STATE = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            return new State();
+        }
+    };
+
+    /**
+     * Format the event into the calling thread's reusable buffer.
+     *
+     * @param event The event.
+     * @return The buffer holding the encoded line, positioned for reading. Valid
+     * until the next call on the same thread.
+     */
+    ByteBuffer format(DashcamLogEvent event) {
+        final State state = STATE.get();
+        final StringBuilder text = state.text;
+        text.setLength(0);
+        if (event.argCount == DashcamLogEvent.NO_FORMAT) {
+            if (event.message != null) {
+                text.append(event.message);
+            }
+        } else {
+            appendFormatted(text, event);
+        }
+        text.append('\n');
+        if (event.throwable != null) {
+            appendStackTrace(text, event.throwable);
+        }
+
+        final String tag = event.tag != null ? event.tag : "NemoLog";
+        final byte[] levelPrefix = event.level != null ? LEVEL_PREFIXES[event.level.ordinal()] : UNKNOWN_LEVEL_PREFIX;
+
+        // UTF-8 needs at most three bytes per UTF-16 char.
+        final int maxLength = DATE_LENGTH + levelPrefix.length + 3 * tag.length()
+                + MESSAGE_SEPARATOR.length + 3 * text.length();
+        ByteBuffer out = state.bytes;
+        if (out.capacity() < maxLength) {
+            out = ByteBuffer.allocate(Math.max(maxLength, out.capacity() * 2));
+            state.bytes = out;
+        }
+        out.clear();
+        out.put(formatDate(state, event.timeMillis), 0, DATE_LENGTH);
+        out.put(levelPrefix);
+        encodeUtf8(tag, out);
+        out.put(MESSAGE_SEPARATOR);
+        encodeUtf8(text, out);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Format the timestamp as "yyyy-MM-dd HH:mm:ss.SSS" using the calling thread's cache.
+     *
+     * @return The cached date bytes, {@link #DATE_LENGTH} long. Valid until the next call on the same thread.
+     */
+    byte[] formatDate(long timeMillis) {
+        return formatDate(STATE.get(), timeMillis);
+    }
+
+    private static byte[] formatDate(State state, long timeMillis) {
+        final byte[] date = state.date;
+        if (timeMillis == state.cachedMillis) {
+            return date;
+        }
+        final long second = Math.floorDiv(timeMillis, 1000L);
+        if (second != state.cachedSecond) {
+            final Calendar c = state.calendar;
+            c.setTimeInMillis(timeMillis);
+            putDigits(date, 0, c.get(Calendar.YEAR), 4);
+            date[4] = '-';
+            putDigits(date, 5, c.get(Calendar.MONTH) + 1, 2);
+            date[7] = '-';
+            putDigits(date, 8, c.get(Calendar.DAY_OF_MONTH), 2);
+            date[10] = ' ';
+            putDigits(date, 11, c.get(Calendar.HOUR_OF_DAY), 2);
+            date[13] = ':';
+            putDigits(date, 14, c.get(Calendar.MINUTE), 2);
+            date[16] = ':';
+            putDigits(date, 17, c.get(Calendar.SECOND), 2);
+            date[19] = '.';
+            state.cachedSecond = second;
+        }
+        putDigits(date, 20, (int) Math.floorMod(timeMillis, 1000L), 3);
+        state.cachedMillis = timeMillis;
+        return date;
+    }
+
+    private static void putDigits(byte[] dst, int offset, int value, int width) {
+        for (int i = offset + width - 1; i >= offset; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+    }
+
+    /**
+     * Render a slf4j style format: every "{}" is replaced by the next argument,
+     * "\{}" yields a literal "{}", and placeholders without an argument are
+     * kept as they are.
+     */
+    static void appendFormatted(StringBuilder text, DashcamLogEvent event) {
+        final String format = event.message;
+        if (format == null) {
+            return;
+        }
+        final int length = format.length();
+        int start = 0;
+        int arg = 0;
+        for (int i = 0; i + 1 < length; i++) {
+            if (format.charAt(i) != '{' || format.charAt(i + 1) != '}') {
+                continue;
+            }
+            if (i > 0 && format.charAt(i - 1) == '\\') {
+                text.append(format, start, i - 1).append("{}");
+            } else if (arg < event.argCount) {
+                text.append(format, start, i);
+                appendArg(text, event, arg++);
+            } else {
+                text.append(format, start, i + 2);
+            }
+            start = i + 2;
+            i++;
+        }
+        text.append(format, start, length);
+    }
+
+    private static void appendArg(StringBuilder text, DashcamLogEvent event, int arg) {
+        final long value = event.primitiveArgs[arg];
+        switch (event.argTypes[arg]) {
+            case DashcamLogEvent.ARG_LONG:
+                text.append(value);
+                break;
+            case DashcamLogEvent.ARG_DOUBLE:
+                text.append(Double.longBitsToDouble(value));
+                break;
+            case DashcamLogEvent.ARG_BOOLEAN:
+                text.append(value != 0);
+                break;
+            default:
+                text.append(event.objectArgs[arg]);
+                break;
+        }
+    }
+
+    private static void appendStackTrace(StringBuilder text, Throwable t) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        t.printStackTrace(pw);
+        pw.flush();
+        text.append(sw.getBuffer());
+    }
+
+    /**
+     * Encode the characters as UTF-8. The buffer must have room for three bytes per char.
+     */
+    static void encodeUtf8(CharSequence s, ByteBuffer out) {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18)));
+                out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate.
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        final byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+}
@@ -0,0 +1,189 @@
+package cam.et.dashcamsystem.logger;
+
+/**
+ * Snapshot of the counters of a logging sink, i.e. the {@link DashcamLogWriter}
+ * or an appender created by {@link DashcamLogConfigurator#addCustomAppender}.
+ * <p>
+ * Counters are cumulative since the sink was created; rates are computed
+ * between two snapshots of the same sink with the {@code since} arguments.
+ */
+public final class DashcamLogMetrics {
+
+    /**
+     * Summary of a latency histogram. Percentiles are upper bounds of
+     * power-of-two buckets, so they are exact within a factor of two.
+     */
+    public static final class Latency {
+        private final long mCount;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+        private final long mP50Nanos;
+        private final long mP99Nanos;
+
+        Latency(long count, long totalNanos, long maxNanos, long p50Nanos, long p99Nanos) {
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+            mP50Nanos = p50Nanos;
+            mP99Nanos = p99Nanos;
+        }
+
+        /** @return Number of recorded samples. */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** @return Sum of all samples. */
+        public long getTotalNanos() {
+            return mTotalNanos;
+        }
+
+        /** @return Largest sample. */
+        public long getMaxNanos() {
+            return mMaxNanos;
+        }
+
+        /** @return Median, rounded up to its histogram bucket. */
+        public long getP50Nanos() {
+            return mP50Nanos;
+        }
+
+        /** @return 99th percentile, rounded up to its histogram bucket. */
+        public long getP99Nanos() {
+            return mP99Nanos;
+        }
+    }
+
+    private final String mSource;
+    private final long mStartMillis;
+    private final long mTimeMillis;
+    private final long[] mLevelEvents;
+    private final long mBytesWritten;
+    private final int mQueueSize;
+    private final int mQueueCapacity;
+    private final int mQueueHighWater;
+    private final long mDropped;
+    private final long mWriteErrors;
+    private final Latency mFlushLatency;
+    private final Latency mBlockedTime;
+
+    DashcamLogMetrics(String source, long startMillis, long timeMillis, long[] levelEvents, long bytesWritten,
+                      int queueSize, int queueCapacity, int queueHighWater, long dropped, long writeErrors,
+                      Latency flushLatency, Latency blockedTime) {
+        mSource = source;
+        mStartMillis = startMillis;
+        mTimeMillis = timeMillis;
+        mLevelEvents = levelEvents;
+        mBytesWritten = bytesWritten;
+        mQueueSize = queueSize;
+        mQueueCapacity = queueCapacity;
+        mQueueHighWater = queueHighWater;
+        mDropped = dropped;
+        mWriteErrors = writeErrors;
+        mFlushLatency = flushLatency;
+        mBlockedTime = blockedTime;
+    }
+
+    /** @return Name of the sink. */
+    public String getSource() {
+        return mSource;
+    }
+
+    /** @return Time the counters started. */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    /** @return Time of the snapshot. */
+    public long getTimeMillis() {
+        return mTimeMillis;
+    }
+
+    /**
+     * @param level The level.
+     * @return Number of accepted messages of the level.
+     */
+    public long getEvents(DashcamLog.Level level) {
+        return mLevelEvents[level.ordinal()];
+    }
+
+    /**
+     * @return Number of accepted messages of all levels.
+     */
+    public long getEvents() {
+        long total = 0;
+        for (long count : mLevelEvents) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Messages per second of the level.
+     *
+     * @param level The level.
+     * @param since An earlier snapshot of the same sink, or null to average since the start.
+     * @return The rate.
+     */
+    public double getEventsPerSecond(DashcamLog.Level level, DashcamLogMetrics since) {
+        final long events = getEvents(level) - (since != null ? since.getEvents(level) : 0);
+        final long from = (since != null) ? since.mTimeMillis : mStartMillis;
+        return rate(events, mTimeMillis - from);
+    }
+
+    /**
+     * Messages per second of all levels.
+     *
+     * @param since An earlier snapshot of the same sink, or null to average since the start.
+     * @return The rate.
+     */
+    public double getEventsPerSecond(DashcamLogMetrics since) {
+        final long events = getEvents() - (since != null ? since.getEvents() : 0);
+        final long from = (since != null) ? since.mTimeMillis : mStartMillis;
+        return rate(events, mTimeMillis - from);
+    }
+
+    private static double rate(long events, long elapsedMillis) {
+        return (elapsedMillis > 0) ? events * 1000.0 / elapsedMillis : 0;
+    }
+
+    /** @return Bytes handed to the output. */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /** @return Messages queued at the time of the snapshot. */
+    public int getQueueSize() {
+        return mQueueSize;
+    }
+
+    /** @return Capacity of the queue. */
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /** @return Largest queue size seen. */
+    public int getQueueHighWater() {
+        return mQueueHighWater;
+    }
+
+    /** @return Messages discarded because the queue was full. */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /** @return Messages which could not be written. */
+    public long getWriteErrors() {
+        return mWriteErrors;
+    }
+
+    /** @return Time spent flushing the output. */
+    public Latency getFlushLatency() {
+        return mFlushLatency;
+    }
+
+    /** @return Time logging threads spent waiting for room in the queue. */
+    public Latency getBlockedTime() {
+        return mBlockedTime;
+    }
+}
@@ -0,0 +1,120 @@
+package cam.et.dashcamsystem.logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free counters behind {@link DashcamLogMetrics}. Recording costs an
+ * uncontended atomic add; histograms use power-of-two buckets.
+ */
+final class DashcamLogMetricsRecorder {
+
+    private final String mSource;
+    private final long mStartMillis = System.currentTimeMillis();
+    private final LongAdder[] mLevelEvents;
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicInteger mQueueHighWater = new AtomicInteger();
+    private final Histogram mFlushLatency = new Histogram();
+    private final Histogram mBlockedTime = new Histogram();
+
+    DashcamLogMetricsRecorder(String source) {
+        mSource = source;
+        final int levels = DashcamLog.Level.values().length;
+        mLevelEvents = new LongAdder[levels];
+        for (int i = 0; i < levels; i++) {
+            mLevelEvents[i] = new LongAdder();
+        }
+    }
+
+    void recordEvent(DashcamLog.Level level) {
+        if (level != null) {
+            mLevelEvents[level.ordinal()].increment();
+        }
+    }
+
+    void recordBytes(long bytes) {
+        mBytesWritten.addAndGet(bytes);
+    }
+
+    void recordQueueSize(int size) {
+        int max;
+        while (size > (max = mQueueHighWater.get())) {
+            if (mQueueHighWater.compareAndSet(max, size)) {
+                break;
+            }
+        }
+    }
+
+    void recordFlush(long nanos) {
+        mFlushLatency.record(nanos);
+    }
+
+    void recordBlocked(long nanos) {
+        mBlockedTime.record(nanos);
+    }
+
+    DashcamLogMetrics snapshot(int queueSize, int queueCapacity, long dropped, long writeErrors) {
+        final long[] levelEvents = new long[mLevelEvents.length];
+        for (int i = 0; i < levelEvents.length; i++) {
+            levelEvents[i] = mLevelEvents[i].sum();
+        }
+        recordQueueSize(queueSize);
+        return new DashcamLogMetrics(mSource, mStartMillis, System.currentTimeMillis(), levelEvents,
+                mBytesWritten.get(), queueSize, queueCapacity, mQueueHighWater.get(), dropped, writeErrors,
+                mFlushLatency.snapshot(), mBlockedTime.snapshot());
+    }
+
+    /**
+     * Latency histogram with one bucket per power of two nanoseconds.
+     */
+    static final class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(64);
+        private final AtomicLong mTotal = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            mBuckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+            mTotal.addAndGet(nanos);
+            long max;
+            while (nanos > (max = mMax.get())) {
+                if (mMax.compareAndSet(max, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        DashcamLogMetrics.Latency snapshot() {
+            final long[] buckets = new long[mBuckets.length()];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+            final long max = mMax.get();
+            return new DashcamLogMetrics.Latency(count, mTotal.get(), max,
+                    percentile(buckets, count, 0.50, max), percentile(buckets, count, 0.99, max));
+        }
+
+        private static long percentile(long[] buckets, long count, double fraction, long max) {
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    // Upper bound of the bucket, but never above the largest sample.
+                    final long bound = (i >= 62) ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                    return Math.min(bound, max);
+                }
+            }
+            return max;
+        }
+    }
+}
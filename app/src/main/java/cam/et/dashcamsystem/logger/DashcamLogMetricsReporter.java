@@ -0,0 +1,155 @@
+package cam.et.dashcamsystem.logger;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import cam.et.dashcamsystem.util.FilePathManager;
+
+/**
+ * Periodically appends {@link DashcamLogMetrics} of the {@link DashcamLogWriter}
+ * and the custom appenders to a CSV file in the results directory, one row
+ * per sink and period. Every row carries the build fingerprint, so files of
+ * different firmware builds can be compared directly.
+ */
+public final class DashcamLogMetricsReporter {
+
+    private static final String HEADER = "time,firmware,source,events,verbose_per_sec,debug_per_sec,info_per_sec,"
+            + "warning_per_sec,error_per_sec,fatal_per_sec,bytes,queue,queue_capacity,queue_high_water,dropped,"
+            + "write_errors,flush_count,flush_p50_us,flush_p99_us,flush_max_us,blocked_count,blocked_total_us,"
+            + "blocked_p99_us,blocked_max_us\n";
+
+    private static ScheduledExecutorService sExecutor;
+    private static File sFile;
+
+    /** Previous snapshot per source, for the rates. */
+    private static final Map<String, DashcamLogMetrics> sPrevious = new HashMap<>();
+
+    private DashcamLogMetricsReporter() {
+    }
+
+    /**
+     * Start dumping the metrics.
+     *
+     * @param periodMs Time between two dumps.
+     */
+    public static synchronized void start(long periodMs) {
+        if (sExecutor != null) {
+            return;
+        }
+        sExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "DashcamLogMetrics");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        sExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        }, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop dumping the metrics.
+     */
+    public static synchronized void stop() {
+        if (sExecutor != null) {
+            sExecutor.shutdown();
+            sExecutor = null;
+        }
+    }
+
+    /**
+     * Append the current metrics to the results file now.
+     *
+     * @return True if the rows were written.
+     */
+    public static synchronized boolean dump() {
+        final List<DashcamLogMetrics> metrics = new ArrayList<>();
+        metrics.add(DashcamLog.getLogWriter().getMetrics());
+        try {
+            metrics.addAll(DashcamLogConfigurator.getCustomAppenderMetrics());
+        } catch (Throwable ignored) {
+            // logback not initialized: the writer alone is reported.
+        }
+
+        final StringBuilder rows = new StringBuilder();
+        for (DashcamLogMetrics m : metrics) {
+            appendRow(rows, m, sPrevious.get(m.getSource()));
+            sPrevious.put(m.getSource(), m);
+        }
+
+        try {
+            if (sFile == null) {
+                sFile = FilePathManager.INSTANCE.getResultFile(
+                        FilePathManager.INSTANCE.timestampedName("logmetrics", "csv"), "csv");
+                rows.insert(0, HEADER);
+            }
+            try (Writer out = new OutputStreamWriter(new FileOutputStream(sFile, true), StandardCharsets.UTF_8)) {
+                out.write(rows.toString());
+            }
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+        return true;
+    }
+
+    static void appendRow(StringBuilder b, DashcamLogMetrics m, DashcamLogMetrics previous) {
+        b.append(m.getTimeMillis()).append(',');
+        b.append(csv(Build.FINGERPRINT)).append(',');
+        b.append(csv(m.getSource())).append(',');
+        b.append(m.getEvents());
+        final DashcamLog.Level[] levels = {
+                DashcamLog.Level.VERBOSE, DashcamLog.Level.DEBUG, DashcamLog.Level.INFO,
+                DashcamLog.Level.WARNING, DashcamLog.Level.ERROR, DashcamLog.Level.FATAL};
+        for (DashcamLog.Level level : levels) {
+            b.append(',').append(String.format(Locale.US, "%.2f", m.getEventsPerSecond(level, previous)));
+        }
+        b.append(',').append(m.getBytesWritten());
+        b.append(',').append(m.getQueueSize());
+        b.append(',').append(m.getQueueCapacity());
+        b.append(',').append(m.getQueueHighWater());
+        b.append(',').append(m.getDropped());
+        b.append(',').append(m.getWriteErrors());
+        final DashcamLogMetrics.Latency flush = m.getFlushLatency();
+        b.append(',').append(flush.getCount());
+        b.append(',').append(flush.getP50Nanos() / 1000);
+        b.append(',').append(flush.getP99Nanos() / 1000);
+        b.append(',').append(flush.getMaxNanos() / 1000);
+        final DashcamLogMetrics.Latency blocked = m.getBlockedTime();
+        b.append(',').append(blocked.getCount());
+        b.append(',').append(blocked.getTotalNanos() / 1000);
+        b.append(',').append(blocked.getP99Nanos() / 1000);
+        b.append(',').append(blocked.getMaxNanos() / 1000);
+        b.append('\n');
+    }
+
+    private static String csv(String value) {
+        if (value == null) {
+            return "";
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
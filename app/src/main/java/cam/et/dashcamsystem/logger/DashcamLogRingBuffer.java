@@ -0,0 +1,151 @@
+package cam.et.dashcamsystem.logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi-producer ring buffer of preallocated {@link DashcamLogEvent} slots.
+ * <p>
+ * Every slot carries a sequence number which tells whether it is free for the
+ * producer at a given position or holds a published event for the consumer at
+ * that position. Producers and consumers claim positions with a CAS, so any
+ * thread may claim and any thread may poll; {@link DashcamLogWriter} uses a
+ * single drain thread as consumer, while producers may also discard the oldest
+ * event to make room when the buffer is full.
+ */
+final class DashcamLogRingBuffer {
+
+    private final DashcamLogEvent[] mSlots;
+    private final AtomicLongArray mSequences;
+    private final int mMask;
+
+    /** Next position to be claimed by a producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** Next position to be claimed by a consumer. */
+    private final AtomicLong mHead = new AtomicLong();
+
+    /**
+     * Construct the ring buffer.
+     *
+     * @param capacity The requested capacity, rounded up to the next power of two.
+     */
+    DashcamLogRingBuffer(int capacity) {
+        if (capacity < 2 || capacity > (1 << 20)) {
+            throw new IllegalArgumentException("capacity=" + capacity);
+        }
+        final int size = Integer.highestOneBit(capacity - 1) << 1;
+        mSlots = new DashcamLogEvent[size];
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSlots[i] = new DashcamLogEvent(i);
+            mSequences.set(i, i);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * @return The number of slots.
+     */
+    int capacity() {
+        return mSlots.length;
+    }
+
+    /**
+     * @return Approximate number of queued events.
+     */
+    int size() {
+        final long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mSlots.length));
+    }
+
+    /**
+     * @return True if there are no published events.
+     */
+    boolean isEmpty() {
+        return mTail.get() == mHead.get();
+    }
+
+    /**
+     * @return The position of the next event to be claimed. Used to wait for flushes.
+     */
+    long tailPosition() {
+        return mTail.get();
+    }
+
+    /**
+     * @return The position of the next event to be consumed. Used to wait for flushes.
+     */
+    long headPosition() {
+        return mHead.get();
+    }
+
+    /**
+     * Claim the next free slot. The producer fills the returned event and then
+     * passes it to {@link #publish(DashcamLogEvent)}; until then the consumer
+     * waits at this position, so the two calls must not be separated by code
+     * that can fail.
+     *
+     * @return The slot, or null if the buffer is full.
+     */
+    DashcamLogEvent claim() {
+        long pos = mTail.get();
+        for (; ; ) {
+            final int index = (int) pos & mMask;
+            final long seq = mSequences.get(index);
+            final long diff = seq - pos;
+            if (diff == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) {
+                    final DashcamLogEvent slot = mSlots[index];
+                    slot.publishSequence = pos + 1;
+                    return slot;
+                }
+                pos = mTail.get();
+            } else if (diff < 0) {
+                // The slot still holds an event from the previous lap: full.
+                return null;
+            } else {
+                pos = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Make a slot returned by {@link #claim()} visible to the consumer.
+     */
+    void publish(DashcamLogEvent slot) {
+        mSequences.lazySet(slot.index, slot.publishSequence);
+    }
+
+    /**
+     * Take the oldest event, copying it into the passed event.
+     *
+     * @param out Receives the event. May be null to discard the event.
+     * @return True if an event was taken, false if the buffer is empty.
+     */
+    boolean poll(DashcamLogEvent out) {
+        long pos = mHead.get();
+        for (; ; ) {
+            final int index = (int) pos & mMask;
+            final long seq = mSequences.get(index);
+            final long diff = seq - (pos + 1);
+            if (diff == 0) {
+                if (mHead.compareAndSet(pos, pos + 1)) {
+                    final DashcamLogEvent slot = mSlots[index];
+                    if (out != null) {
+                        out.copyFrom(slot);
+                    }
+                    slot.clear();
+                    mSequences.lazySet(index, pos + mMask + 1);
+                    return true;
+                }
+                pos = mHead.get();
+            } else if (diff < 0) {
+                // Not yet published: empty, or a producer is still filling the slot.
+                return false;
+            } else {
+                pos = mHead.get();
+            }
+        }
+    }
+}
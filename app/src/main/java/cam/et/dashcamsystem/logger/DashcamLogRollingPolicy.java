@@ -0,0 +1,49 @@
+package cam.et.dashcamsystem.logger;
+
+/**
+ * Rollover and retention limits of the {@link DashcamLogWriter} log files.
+ * <p>
+ * The active segment is closed and a new one started when it reaches
+ * {@link #getMaxFileBytes()} or is older than {@link #getMaxFileAgeMs()}.
+ * Closed segments are gzipped in the background, and the oldest ones are
+ * deleted while the logs directory holds more than {@link #getMaxTotalBytes()}.
+ */
+public final class DashcamLogRollingPolicy {
+
+    /** 5 MB segments, rolled at least every 6 hours, 100 MB logs directory budget. */
+    public static final DashcamLogRollingPolicy DEFAULT =
+            new DashcamLogRollingPolicy(5L * 1024 * 1024, 6L * 60 * 60 * 1000, 100L * 1024 * 1024);
+
+    private final long mMaxFileBytes;
+    private final long mMaxFileAgeMs;
+    private final long mMaxTotalBytes;
+
+    /**
+     * Construct rolling policy.
+     *
+     * @param maxFileBytes  Size after which the active segment is rolled.
+     * @param maxFileAgeMs  Age after which the active segment is rolled.
+     * @param maxTotalBytes Byte budget of the whole logs directory.
+     */
+    public DashcamLogRollingPolicy(long maxFileBytes, long maxFileAgeMs, long maxTotalBytes) {
+        if (maxFileBytes <= 0 || maxFileAgeMs <= 0 || maxTotalBytes < maxFileBytes) {
+            throw new IllegalArgumentException("maxFileBytes=" + maxFileBytes
+                    + " maxFileAgeMs=" + maxFileAgeMs + " maxTotalBytes=" + maxTotalBytes);
+        }
+        mMaxFileBytes = maxFileBytes;
+        mMaxFileAgeMs = maxFileAgeMs;
+        mMaxTotalBytes = maxTotalBytes;
+    }
+
+    public long getMaxFileBytes() {
+        return mMaxFileBytes;
+    }
+
+    public long getMaxFileAgeMs() {
+        return mMaxFileAgeMs;
+    }
+
+    public long getMaxTotalBytes() {
+        return mMaxTotalBytes;
+    }
+}
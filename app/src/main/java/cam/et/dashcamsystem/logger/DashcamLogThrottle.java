@@ -0,0 +1,291 @@
+package cam.et.dashcamsystem.logger;
+
+/**
+ * Rate limit and deduplication settings of {@link DashcamLog} call sites.
+ * <p>
+ * A call site is a logger and a message format. Every call site owns a token
+ * bucket of {@link #getBurst()} messages, refilled with
+ * {@link #getPermitsPerSecond()} messages per second. In addition, if a
+ * {@link #getDedupWindowMs()} is set, a message which repeats the last written
+ * message of its call site with equal arguments is dropped within the window.
+ * Arguments are compared by value: primitives, strings, boxed values and enums
+ * with equals(), throwables by type and message; any other object never counts
+ * as a repeat.
+ * <p>
+ * Plain messages without format, often built by string concatenation, share
+ * one call site per logger and level. It has no token bucket and only drops a
+ * message which repeats the last written text.
+ * <p>
+ * ERROR and FATAL messages are neither rate limited nor deduplicated.
+ * <p>
+ * Dropped messages are counted. The next message written for the call site is
+ * preceded by one "Suppressed N repeats" summary line, and
+ * {@link DashcamLog#flushSuppressed()} writes the summaries of call sites which
+ * went quiet.
+ */
+public final class DashcamLogThrottle {
+
+    /**
+     * Bursts of 20 messages, 2 messages per second, no deduplication: periodic
+     * identical lines, e.g. one per capture, are all written.
+     */
+    public static final DashcamLogThrottle DEFAULT = new DashcamLogThrottle(20, 2.0, 0L);
+
+    /** As {@link #DEFAULT}, and identical messages collapsed for a minute. */
+    public static final DashcamLogThrottle DEDUP = new DashcamLogThrottle(20, 2.0, 60_000L);
+
+    private final int mBurst;
+    private final double mPermitsPerSecond;
+    private final long mDedupWindowMs;
+    private final double mPermitsPerNano;
+    private final long mDedupWindowNanos;
+
+    /**
+     * Construct throttle.
+     *
+     * @param burst            Messages a call site may write at once.
+     * @param permitsPerSecond Sustained messages per second and call site.
+     * @param dedupWindowMs    Time an identical message is collapsed for, 0 to disable deduplication.
+     */
+    public DashcamLogThrottle(int burst, double permitsPerSecond, long dedupWindowMs) {
+        if (burst < 1 || !(permitsPerSecond > 0) || dedupWindowMs < 0) {
+            throw new IllegalArgumentException("burst=" + burst
+                    + " permitsPerSecond=" + permitsPerSecond + " dedupWindowMs=" + dedupWindowMs);
+        }
+        mBurst = burst;
+        mPermitsPerSecond = permitsPerSecond;
+        mDedupWindowMs = dedupWindowMs;
+        mPermitsPerNano = permitsPerSecond / 1e9;
+        mDedupWindowNanos = dedupWindowMs * 1_000_000L;
+    }
+
+    public int getBurst() {
+        return mBurst;
+    }
+
+    public double getPermitsPerSecond() {
+        return mPermitsPerSecond;
+    }
+
+    public long getDedupWindowMs() {
+        return mDedupWindowMs;
+    }
+
+    /**
+     * Decide whether a message of the call site is written. The caller holds
+     * the lock of the site and has put the arguments of the message into
+     * {@link Site#pending}.
+     *
+     * @param site     The call site state.
+     * @param level    The level of the message.
+     * @param nowNanos {@link System#nanoTime()}.
+     * @return -1 if the message is dropped, otherwise the number of messages
+     * dropped since the last written one.
+     */
+    int admit(Site site, DashcamLog.Level level, long nowNanos) {
+        if (level.severity >= DashcamLog.Level.ERROR.severity) {
+            return 0;
+        }
+        synchronized (site) {
+            if (site.key == null) {
+                site.mTokens = 1;
+            } else if (site.mHasLast) {
+                final double tokens = site.mTokens + (nowNanos - site.mRefillNanos) * mPermitsPerNano;
+                site.mTokens = Math.min(mBurst, tokens);
+            } else {
+                site.mTokens = mBurst;
+            }
+            site.mRefillNanos = nowNanos;
+
+            final boolean repeat = site.mHasLast
+                    && nowNanos - site.mLastWrittenNanos < mDedupWindowNanos
+                    && site.pending.sameAs(site.mLast);
+            if (repeat || site.mTokens < 1) {
+                if (site.mSuppressed++ == 0) {
+                    site.mSuppressedLevel = level;
+                    site.mSuppressedKey = site.describe(site.pending);
+                } else if (level.severity > site.mSuppressedLevel.severity) {
+                    site.mSuppressedLevel = level;
+                }
+                site.mLastSuppressedNanos = nowNanos;
+                return -1;
+            }
+
+            site.mTokens -= 1;
+            site.mHasLast = true;
+            // The written arguments become the reference; the old reference array is reused next.
+            final Args last = site.mLast;
+            site.mLast = site.pending;
+            site.pending = last;
+            site.mLastWrittenNanos = nowNanos;
+            final int suppressed = site.mSuppressed;
+            site.mSuppressed = 0;
+            return suppressed;
+        }
+    }
+
+    /**
+     * Throttle state of one call site.
+     */
+    static final class Site {
+        /** The logger and message format of the site, null for the plain messages of a level. */
+        final DashcamLog owner;
+        final String key;
+        /** Arguments of the message being admitted; filled under the lock of the site. */
+        Args pending = new Args();
+        private Args mLast = new Args();
+        private double mTokens;
+        private long mRefillNanos;
+        private boolean mHasLast;
+        private long mLastWrittenNanos;
+        private int mSuppressed;
+        private DashcamLog.Level mSuppressedLevel;
+        private String mSuppressedKey;
+        private long mLastSuppressedNanos;
+
+        Site(DashcamLog owner, String key) {
+            this.owner = owner;
+            this.key = key;
+        }
+
+        /**
+         * Take the count of dropped messages, e.g. to write their summary when
+         * the site went quiet.
+         *
+         * @return The count, 0 if none.
+         */
+        synchronized int takeSuppressed() {
+            final int suppressed = mSuppressed;
+            mSuppressed = 0;
+            return suppressed;
+        }
+
+        /** Highest level of the messages counted by {@link #takeSuppressed()}. */
+        synchronized DashcamLog.Level suppressedLevel() {
+            return mSuppressedLevel;
+        }
+
+        /** The format, or the plain message, the messages counted by {@link #takeSuppressed()} repeated. */
+        synchronized String suppressedKey() {
+            return mSuppressedKey;
+        }
+
+        /** {@link System#nanoTime()} of the last dropped message. */
+        synchronized long lastSuppressedNanos() {
+            return mLastSuppressedNanos;
+        }
+
+        private String describe(Args args) {
+            return key != null ? key : String.valueOf(args.mObjects[0]);
+        }
+    }
+
+    /**
+     * Arguments of a message, kept to compare the next message of the site
+     * with. Values are only referenced, so filling it does not allocate.
+     */
+    static final class Args {
+        private static final byte PRIMITIVE = 1;
+        private static final byte VALUE = 2;
+        private static final byte THROWABLE = 3;
+        /** Not comparable, e.g. a mutable object: never a repeat. */
+        private static final byte OTHER = 4;
+
+        private final byte[] mKinds = new byte[DashcamLogEvent.MAX_ARGS];
+        private final long[] mPrimitives = new long[DashcamLogEvent.MAX_ARGS];
+        private final Object[] mObjects = new Object[DashcamLogEvent.MAX_ARGS];
+        private final Object[] mMessages = new Object[DashcamLogEvent.MAX_ARGS];
+        private int mCount;
+        /** Arguments beyond the capacity, which are not compared. */
+        private boolean mTruncated;
+
+        Args clear() {
+            for (int i = 0; i < mCount; i++) {
+                mObjects[i] = null;
+                mMessages[i] = null;
+            }
+            mCount = 0;
+            mTruncated = false;
+            return this;
+        }
+
+        Args addLong(long value) {
+            if (slot()) {
+                mKinds[mCount] = PRIMITIVE;
+                mPrimitives[mCount++] = value;
+            }
+            return this;
+        }
+
+        Args addObject(Object value) {
+            if (!slot()) {
+                return this;
+            }
+            if (value instanceof Throwable) {
+                final String message;
+                try {
+                    message = ((Throwable) value).getMessage();
+                } catch (RuntimeException e) {
+                    // Not comparable; the writer counts the failure when it formats the stack trace.
+                    mKinds[mCount++] = OTHER;
+                    return this;
+                }
+                mKinds[mCount] = THROWABLE;
+                mObjects[mCount] = value.getClass();
+                mMessages[mCount++] = message;
+            } else if (value == null || value instanceof String || value instanceof Long || value instanceof Integer
+                    || value instanceof Short || value instanceof Byte || value instanceof Double
+                    || value instanceof Float || value instanceof Boolean || value instanceof Character
+                    || value instanceof Enum) {
+                mKinds[mCount] = VALUE;
+                mObjects[mCount++] = value;
+            } else {
+                mKinds[mCount++] = OTHER;
+            }
+            return this;
+        }
+
+        private boolean slot() {
+            if (mCount < mKinds.length) {
+                return true;
+            }
+            mTruncated = true;
+            return false;
+        }
+
+        boolean sameAs(Args other) {
+            if (mCount != other.mCount || mTruncated || other.mTruncated) {
+                return false;
+            }
+            for (int i = 0; i < mCount; i++) {
+                if (mKinds[i] != other.mKinds[i]) {
+                    return false;
+                }
+                switch (mKinds[i]) {
+                    case PRIMITIVE:
+                        if (mPrimitives[i] != other.mPrimitives[i]) {
+                            return false;
+                        }
+                        break;
+                    case THROWABLE:
+                        if (mObjects[i] != other.mObjects[i] || !equals(mMessages[i], other.mMessages[i])) {
+                            return false;
+                        }
+                        break;
+                    case VALUE:
+                        if (!equals(mObjects[i], other.mObjects[i])) {
+                            return false;
+                        }
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean equals(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
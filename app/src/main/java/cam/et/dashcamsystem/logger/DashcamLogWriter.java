@@ -2,37 +2,158 @@ package cam.et.dashcamsystem.logger;
 
 import org.slf4j.Logger;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.nio.charset.StandardCharsets;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
+import cam.et.dashcamlog.BinaryLogFormat;
+import cam.et.dashcamlog.LogIndexFormat;
+import cam.et.dashcamlog.LogIndexWriter;
+import cam.et.dashcamsystem.util.DurabilityManager;
 import cam.et.dashcamsystem.util.FilePathManager;
 
 /**
  * A hook to be used with NemoLog
  * <p>
  * Override this implementation and set it to NemoLog to receive debug messages
+ * <p>
+ * The default implementation does not touch the file system on the calling
+ * thread. Messages are stored into a bounded {@link DashcamLogRingBuffer} and a
+ * single background drain thread keeps the log file open and writes them in
+ * batches. When the buffer is full the configured {@link OverflowPolicy} decides
+ * whether the caller waits or which message is dropped.
  */
 public class DashcamLogWriter {
 
-    // Filename includes a timestamp generated once per class load (i.e. once per app execution).
-    private static final String FILENAME;
+    /**
+     * What to do when a message is written while the ring buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Wait on the calling thread until the drain thread has made room. */
+        BLOCK,
+        /** Discard the oldest queued message to make room for the new one. */
+        DROP_OLDEST,
+        /** Discard the new message. */
+        DROP_NEWEST
+    }
+
+    /**
+     * How messages are stored in the log file.
+     */
+    public enum Encoding {
+        /** Text lines, "yyyy-MM-dd HH:mm:ss.SSS [LEVEL] tag - message". */
+        TEXT,
+        /**
+         * Compact binary records, see {@link cam.et.dashcamlog.BinaryLogFormat}.
+         * Decoded back into the text layout with the dashcamLog module's BinaryLogCli.
+         */
+        BINARY
+    }
+
+    /** Default number of messages the ring buffer can hold. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /** Size of the buffered stream in front of the log file. */
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+
+    /** Maximum number of messages written between two checks of the running state. */
+    private static final int DRAIN_BATCH = 256;
+
+    /** How long the idle drain thread sleeps before re-checking the buffer. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    /** How long a blocked producer waits before retrying. */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
 
-    private static final Object LOCK = new Object();
+    /** Default timeout for {@link #flush()} and {@link #close()}. */
+    private static final long DEFAULT_FLUSH_TIMEOUT_MS = 2000;
+
+    /** {@link #mMinSeverity} value which disables the writer. */
+    private static final int SEVERITY_OFF = Integer.MAX_VALUE;
+
+    private final DashcamLogRingBuffer mRing;
+    private final OverflowPolicy mPolicy;
+    private final Encoding mEncoding;
+
+    private final AtomicLong mDroppedOldest = new AtomicLong();
+    private final AtomicLong mDroppedNewest = new AtomicLong();
+    private final AtomicLong mWriteErrors = new AtomicLong();
+    private final DashcamLogMetricsRecorder mMetrics = new DashcamLogMetricsRecorder("DashcamLogWriter");
+
+    /** Guards starting and stopping the drain thread. */
+    private final Object mLifecycleLock = new Object();
+
+    /** Severity of the lowest level written, see {@link #setLevel(DashcamLog.Level)}. */
+    private volatile int mMinSeverity = DashcamLog.Level.DEBUG.severity;
+
+    private volatile boolean mRunning;
+    private volatile Thread mDrainThread;
+
+    /** True while the drain thread is parked waiting for messages. */
+    private volatile boolean mDrainParked;
+
+    /** Ring buffer position up to which messages have been handed to the file. */
+    private volatile long mFlushedPosition;
+
+    private final DashcamLogFormatter mFormatter = new DashcamLogFormatter();
+    private final DashcamBinaryLogEncoder mBinaryEncoder = new DashcamBinaryLogEncoder();
+    private final DashcamLogArchiver mArchiver = new DashcamLogArchiver();
+
+    private volatile DashcamLogRollingPolicy mRollingPolicy = DashcamLogRollingPolicy.DEFAULT;
+
+    // Owned by the drain thread.
+    private OutputStream mStream;
+    /** Sparse time index of a text segment, null if it could not be created. */
+    private LogIndexWriter mIndex;
+    private File mSegmentFile;
+    private long mSegmentBytes;
+    /** Size of the active segment at the last flush, see {@link DurabilityManager}. */
+    private long mFlushedBytes;
+    private long mSegmentStartMillis;
+    private String mSegmentBase;
+    private int mSegmentIndex;
+    private boolean mLeftoversArchived;
+
+    /**
+     * Construct writer with {@link #DEFAULT_CAPACITY} and {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    public DashcamLogWriter() {
+        this(DEFAULT_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    }
 
-    static {
-        // Generate a filename-safe timestamp for this execution (no spaces/colons).
-        String ts = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-        FILENAME = "dashcamlog_" + ts + ".txt";
+    /**
+     * Construct writer.
+     *
+     * @param capacity The number of messages that can be queued, rounded up to a power of two.
+     * @param policy   What to do when the queue is full.
+     */
+    public DashcamLogWriter(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, Encoding.TEXT);
     }
 
-    private static String timeStamp() {
-        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault()).format(new Date());
+    /**
+     * Construct writer.
+     *
+     * @param capacity The number of messages that can be queued, rounded up to a power of two.
+     * @param policy   What to do when the queue is full.
+     * @param encoding How messages are stored in the log file.
+     */
+    public DashcamLogWriter(int capacity, OverflowPolicy policy, Encoding encoding) {
+        if (policy == null || encoding == null) {
+            throw new IllegalArgumentException();
+        }
+        mRing = new DashcamLogRingBuffer(capacity);
+        mPolicy = policy;
+        mEncoding = encoding;
     }
 
     /**
@@ -50,45 +171,119 @@ public class DashcamLogWriter {
     }
 
     private void writeInternal(Logger logger, DashcamLog.Level level, String message, Throwable t) {
-        String tag = (logger != null && logger.getName() != null) ? logger.getName() : "NemoLog";
-        String lvl = (level != null) ? level.name() : "UNKNOWN";
-        String msg = (message != null) ? message : "";
+        final DashcamLogEvent event = claim();
+        if (event != null) {
+            event.set(System.currentTimeMillis(), level, tagOf(logger), message, t);
+            commit(event);
+        }
+    }
 
-        String line = String.format(Locale.getDefault(), "%s [%s] %s - %s\n", timeStamp(), lvl, tag, msg);
+    /**
+     * Start a parameterized message. The caller adds the arguments to the
+     * returned event and passes it to {@link #commit(DashcamLogEvent)}; the
+     * format is rendered later by the drain thread.
+     *
+     * @return The event to fill, or null if the message was dropped.
+     */
+    DashcamLogEvent begin(Logger logger, DashcamLog.Level level, String format) {
+        final DashcamLogEvent event = claim();
+        if (event != null) {
+            event.setFormat(System.currentTimeMillis(), level, tagOf(logger), format);
+        }
+        return event;
+    }
 
-        // If there is a throwable, capture its stacktrace
-        if (t != null) {
-            StringWriter sw = new StringWriter();
-            PrintWriter pw = new PrintWriter(sw);
-            t.printStackTrace(pw);
-            pw.flush();
-            line += sw.toString();
+    /**
+     * Publish an event returned by {@link #begin(Logger, DashcamLog.Level, String)}.
+     */
+    void commit(DashcamLogEvent event) {
+        mMetrics.recordEvent(event.level);
+        mRing.publish(event);
+        if (mDrainParked) {
+            wakeDrainThread();
         }
+    }
 
-        // Use the application-managed logs directory provided by FilePathManager.
-        try {
-            File dir = FilePathManager.INSTANCE.getLogsDir();
-            // FilePathManager guarantees a directory; if it somehow returns null, bail out.
-            if (dir == null) return;
-            synchronized (LOCK) {
-                if (!dir.exists()) {
-                    // Try to create directory; if creation fails, give up silently.
-                    if (!dir.mkdirs() && !dir.exists()) {
-                        return;
+    private static String tagOf(Logger logger) {
+        return (logger != null && logger.getName() != null) ? logger.getName() : "NemoLog";
+    }
+
+    /**
+     * Claim a ring buffer slot, applying the overflow policy when the buffer is full.
+     *
+     * @return The slot, or null if the new message is dropped.
+     */
+    private DashcamLogEvent claim() {
+        if (!mRunning) {
+            start();
+        }
+        DashcamLogEvent event = mRing.claim();
+        if (event != null) {
+            return event;
+        }
+        switch (mPolicy) {
+            case DROP_NEWEST:
+                mDroppedNewest.incrementAndGet();
+                return null;
+            case DROP_OLDEST:
+                do {
+                    if (mRing.poll(null)) {
+                        mDroppedOldest.incrementAndGet();
                     }
-                }
-                File out = new File(dir, FILENAME);
-                try (FileOutputStream fos = new FileOutputStream(out, true)) {
-                    fos.write(line.getBytes(StandardCharsets.UTF_8));
-                    fos.flush();
-                } catch (Exception ignored) {
-                    // unable to write; give up
-                }
+                    event = mRing.claim();
+                } while (event == null);
+                return event;
+            case BLOCK:
+            default:
+                final long blockedSince = System.nanoTime();
+                do {
+                    wakeDrainThread();
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                    event = mRing.claim();
+                } while (event == null);
+                mMetrics.recordBlocked(System.nanoTime() - blockedSince);
+                return event;
+        }
+    }
+
+    /**
+     * Set the lowest level written to the log file. Messages below it are
+     * rejected by {@link #isEnabled(DashcamLog.Level)} before any formatting.
+     *
+     * @param level The lowest level to write, or null to write nothing.
+     */
+    public void setLevel(DashcamLog.Level level) {
+        mMinSeverity = (level != null) ? level.severity : SEVERITY_OFF;
+        DashcamLog.onWriterLevelChanged(this);
+    }
+
+    /** Severity of the lowest level written, {@link Integer#MAX_VALUE} if nothing is written. */
+    int getMinSeverity() {
+        return mMinSeverity;
+    }
+
+    /**
+     * @return The lowest level written to the log file, or null if nothing is written.
+     */
+    public DashcamLog.Level getLevel() {
+        final int severity = mMinSeverity;
+        for (DashcamLog.Level level : DashcamLog.Level.values()) {
+            if (level.severity == severity) {
+                return level;
             }
-        } catch (Throwable ignored) {
-            // FilePathManager not available or failed; do not attempt legacy candidate paths.
         }
+        return null;
+    }
 
+    /**
+     * Test whether messages of the given level are written. This is the hot
+     * path check of every log call and costs a single volatile read.
+     *
+     * @param level The level.
+     * @return True if messages of the level are written.
+     */
+    public boolean isEnabled(DashcamLog.Level level) {
+        return level.severity >= mMinSeverity;
     }
 
     /**
@@ -96,8 +291,7 @@ public class DashcamLogWriter {
      * determine whether log message needs to be formated or not.
      */
     public boolean isWriting() {
-        // Return true so NemoLog will forward messages to this writer and formatting occurs.
-        return true;
+        return mMinSeverity != SEVERITY_OFF;
     }
 
     /**
@@ -110,4 +304,384 @@ public class DashcamLogWriter {
         return true;
     }
 
+    /**
+     * @return The encoding of the log file.
+     */
+    public Encoding getEncoding() {
+        return mEncoding;
+    }
+
+    /**
+     * Set the rollover and retention limits. Applies from the next message on.
+     *
+     * @param policy The rolling policy.
+     */
+    public void setRollingPolicy(DashcamLogRollingPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException();
+        }
+        mRollingPolicy = policy;
+    }
+
+    /**
+     * @return The rollover and retention limits.
+     */
+    public DashcamLogRollingPolicy getRollingPolicy() {
+        return mRollingPolicy;
+    }
+
+    /**
+     * @return The overflow policy of this writer.
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * @return Number of queued messages discarded by {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    public long getDroppedOldestCount() {
+        return mDroppedOldest.get();
+    }
+
+    /**
+     * @return Number of new messages discarded by {@link OverflowPolicy#DROP_NEWEST}.
+     */
+    public long getDroppedNewestCount() {
+        return mDroppedNewest.get();
+    }
+
+    /**
+     * @return Total number of discarded messages.
+     */
+    public long getDroppedCount() {
+        return mDroppedOldest.get() + mDroppedNewest.get();
+    }
+
+    /**
+     * @return Number of messages which could not be written to the log file.
+     */
+    public long getWriteErrorCount() {
+        return mWriteErrors.get();
+    }
+
+    /**
+     * @return Approximate number of messages waiting to be written.
+     */
+    public int getQueueSize() {
+        return mRing.size();
+    }
+
+    /**
+     * Take a snapshot of the counters: messages per level, bytes written,
+     * queue depth, drops, file flush latency and time callers spent blocked.
+     *
+     * @return The snapshot.
+     */
+    public DashcamLogMetrics getMetrics() {
+        return mMetrics.snapshot(mRing.size(), mRing.capacity(), getDroppedCount(), mWriteErrors.get());
+    }
+
+    /**
+     * Wait until every message written before this call has been handed to the log file.
+     *
+     * @return True if everything was flushed, false on timeout.
+     */
+    public boolean flush() {
+        return flush(DEFAULT_FLUSH_TIMEOUT_MS);
+    }
+
+    /**
+     * Wait until every message written before this call has been handed to the log file.
+     *
+     * @param timeoutMs Maximum time to wait.
+     * @return True if everything was flushed, false on timeout.
+     */
+    public boolean flush(long timeoutMs) {
+        final long target = mRing.tailPosition();
+        if (mFlushedPosition >= target) {
+            return true;
+        }
+        final Thread drain = mDrainThread;
+        if (drain == null || drain == Thread.currentThread()) {
+            return mRing.isEmpty();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (mFlushedPosition < target) {
+            if (System.nanoTime() - deadline >= 0 || !drain.isAlive()) {
+                return false;
+            }
+            LockSupport.unpark(drain);
+            LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /**
+     * Flush queued messages, close the log file and stop the drain thread.
+     * <p>
+     * Writing after close is allowed, it restarts the drain thread. If the
+     * drain thread does not finish in time, it is kept and no second one is
+     * started until it has exited; messages queue up in the meantime.
+     */
+    public void close() {
+        final Thread drain;
+        synchronized (mLifecycleLock) {
+            drain = mDrainThread;
+            if (drain == null) {
+                return;
+            }
+            mRunning = false;
+            LockSupport.unpark(drain);
+            try {
+                drain.join(DEFAULT_FLUSH_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (!drain.isAlive()) {
+                mDrainThread = null;
+            }
+        }
+    }
+
+    private void start() {
+        synchronized (mLifecycleLock) {
+            if (mRunning) {
+                return;
+            }
+            final Thread previous = mDrainThread;
+            if (previous != null && previous.isAlive()) {
+                // Still finishing the segment after a timed out close(): two threads would interleave it.
+                return;
+            }
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drainLoop();
+                }
+            }, "DashcamLogWriter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            mDrainThread = thread;
+            mRunning = true;
+            thread.start();
+        }
+    }
+
+    private void wakeDrainThread() {
+        final Thread drain = mDrainThread;
+        if (drain != null) {
+            LockSupport.unpark(drain);
+        }
+    }
+
+    private void drainLoop() {
+        final DashcamLogEvent event = new DashcamLogEvent();
+        for (; ; ) {
+            mMetrics.recordQueueSize(mRing.size());
+            int drained = 0;
+            while (drained < DRAIN_BATCH && mRing.poll(event)) {
+                writeEvent(event);
+                event.clear();
+                drained++;
+            }
+            if (drained == DRAIN_BATCH) {
+                continue;
+            }
+
+            // Queue is empty: push the batch to the file.
+            if (mStream != null) {
+                final long flushStart = System.nanoTime();
+                flushStream();
+                mMetrics.recordFlush(System.nanoTime() - flushStart);
+            }
+            mFlushedPosition = mRing.headPosition();
+
+            if (!mRunning && mRing.isEmpty()) {
+                break;
+            }
+
+            mDrainParked = true;
+            if (mRing.isEmpty() && mRunning) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            mDrainParked = false;
+        }
+        finishSegment();
+    }
+
+    private void writeEvent(DashcamLogEvent event) {
+        final OutputStream out = openStream();
+        if (out == null) {
+            mWriteErrors.incrementAndGet();
+            return;
+        }
+        final long offset = mSegmentBytes;
+        final int length;
+        try {
+            final ByteBuffer data = (mEncoding == Encoding.BINARY) ? mBinaryEncoder.encode(event) : mFormatter.format(event);
+            length = data.remaining();
+            out.write(data.array(), data.arrayOffset() + data.position(), length);
+            mSegmentBytes += length;
+            mMetrics.recordBytes(length);
+        } catch (IOException e) {
+            mWriteErrors.incrementAndGet();
+            finishSegment();
+            return;
+        } catch (RuntimeException e) {
+            // E.g. a throwable whose getMessage() fails while its stack trace is formatted:
+            // the message is lost, the drain thread goes on with the next one.
+            mWriteErrors.incrementAndGet();
+            return;
+        }
+        if (mIndex != null) {
+            try {
+                mIndex.add(event.timeMillis, event.level != null ? event.level.severity : -1, offset, length);
+            } catch (IOException e) {
+                // The entries written so far stay valid, the rest of the segment is scanned.
+                closeIndex();
+            }
+        }
+
+        final DashcamLogRollingPolicy policy = mRollingPolicy;
+        if (mSegmentBytes >= policy.getMaxFileBytes()
+                || event.timeMillis - mSegmentStartMillis >= policy.getMaxFileAgeMs()) {
+            finishSegment();
+        }
+    }
+
+    private OutputStream openStream() {
+        if (mStream != null) {
+            return mStream;
+        }
+        // Use the application-managed logs directory provided by FilePathManager.
+        try {
+            File dir = FilePathManager.INSTANCE.getLogsDir();
+            // FilePathManager guarantees a directory; if it somehow returns null, bail out.
+            if (dir == null) return null;
+            if (!dir.exists()) {
+                // Try to create directory; if creation fails, give up silently.
+                if (!dir.mkdirs() && !dir.exists()) {
+                    return null;
+                }
+            }
+            final long now = System.currentTimeMillis();
+            mSegmentFile = newSegmentFile(dir, now);
+            mSegmentBytes = 0;
+            mFlushedBytes = 0;
+            mSegmentStartMillis = now;
+            mArchiver.setActiveSegment(mSegmentFile);
+            mStream = new BufferedOutputStream(new FileOutputStream(mSegmentFile, true), STREAM_BUFFER_SIZE);
+            if (mEncoding == Encoding.TEXT) {
+                openIndex();
+            }
+            if (mEncoding == Encoding.BINARY) {
+                // Every segment starts with its own dictionary.
+                final ByteBuffer header = mBinaryEncoder.header(now);
+                mStream.write(header.array(), header.arrayOffset() + header.position(), header.remaining());
+                mSegmentBytes += header.remaining();
+            }
+            if (!mLeftoversArchived) {
+                mLeftoversArchived = true;
+                mArchiver.archiveLeftovers(dir, mRollingPolicy.getMaxTotalBytes());
+            }
+        } catch (Throwable ignored) {
+            // FilePathManager not available or failed; do not attempt legacy candidate paths.
+            finishSegment();
+        }
+        return mStream;
+    }
+
+    /**
+     * Start the sparse time index next to the text segment. The log viewer
+     * uses it to seek to a time range instead of reading the whole file.
+     * Binary segments are not indexed: their records can only be decoded
+     * from the start of the file.
+     */
+    private void openIndex() {
+        try {
+            mIndex = new LogIndexWriter(new BufferedOutputStream(
+                    new FileOutputStream(LogIndexFormat.indexFileOf(mSegmentFile))),
+                    LogIndexFormat.DEFAULT_INTERVAL_BYTES);
+        } catch (IOException e) {
+            mIndex = null;
+        }
+    }
+
+    private void closeIndex() {
+        if (mIndex != null) {
+            try {
+                mIndex.close();
+            } catch (IOException ignored) {
+            }
+            mIndex = null;
+        }
+    }
+
+    /**
+     * Create the name of a new segment: "dashcamlog_yyyyMMdd_HHmmss[_nnn].txt",
+     * so that name order is age order.
+     */
+    private File newSegmentFile(File dir, long timeMillis) {
+        // Generate a filename-safe timestamp (no spaces/colons).
+        final String base = DashcamLogArchiver.SEGMENT_PREFIX
+                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date(timeMillis));
+        final String extension = (mEncoding == Encoding.BINARY) ? BinaryLogFormat.EXTENSION : "txt";
+        // Never reuse the index of a segment of the same second, even if it was deleted meanwhile.
+        int n = base.equals(mSegmentBase) ? mSegmentIndex + 1 : 0;
+        File file;
+        while ((file = segmentFile(dir, base, n, extension)).exists()
+                || new File(file.getPath() + DashcamLogArchiver.GZIP_EXTENSION).exists()) {
+            n++;
+        }
+        mSegmentBase = base;
+        mSegmentIndex = n;
+        return file;
+    }
+
+    private static File segmentFile(File dir, String base, int n, String extension) {
+        return new File(dir, (n == 0 ? base : base + "_" + String.format(Locale.US, "%03d", n)) + "." + extension);
+    }
+
+    /**
+     * Close the active segment and hand it to the archiver.
+     */
+    private void finishSegment() {
+        closeStream();
+        if (mSegmentFile != null) {
+            DurabilityManager.onClose(mSegmentFile, mSegmentBytes - mFlushedBytes);
+            mArchiver.setActiveSegment(null);
+            mArchiver.archive(mSegmentFile, mRollingPolicy.getMaxTotalBytes());
+            mSegmentFile = null;
+        }
+    }
+
+    private void flushStream() {
+        if (mStream != null) {
+            try {
+                mStream.flush();
+                if (mIndex != null) {
+                    mIndex.flush();
+                }
+                if (mSegmentBytes > mFlushedBytes) {
+                    DurabilityManager.onWrite(mSegmentFile, mSegmentBytes - mFlushedBytes);
+                    mFlushedBytes = mSegmentBytes;
+                }
+            } catch (IOException e) {
+                mWriteErrors.incrementAndGet();
+                finishSegment();
+            }
+        }
+    }
+
+    private void closeStream() {
+        closeIndex();
+        if (mStream != null) {
+            try {
+                mStream.close();
+            } catch (IOException ignored) {
+            }
+            mStream = null;
+        }
+    }
 }
@@ -0,0 +1,59 @@
+package cam.et.dashcamsystem.nativelib
+
+import java.io.Closeable
+import java.io.File
+import java.io.IOException
+
+/**
+ * Appends lines to [file] through a descriptor which stays open, instead of
+ * open/write/close per line as [NativeLib.appendLog] does.
+ *
+ * Lines are collected in a native buffer of [capacity] bytes and written
+ * in one write when [maxLines] are pending, when the oldest pending line is
+ * older than [maxDelayMs] (checked on [append]), or on [flush]/[close]. Pending
+ * lines are also flushed from a SIGTERM handler; they are lost on SIGKILL or a
+ * native crash, so [maxLines] and [maxDelayMs] bound what can be lost.
+ *
+ * @param syncOnFlush fdatasync after every batch, for DurabilityMode.PER_WRITE.
+ * @throws IOException If the file cannot be opened.
+ */
+class EventAppender(
+    val file: File,
+    val maxLines: Int = 16,
+    val maxDelayMs: Long = 2_000L,
+    val syncOnFlush: Boolean = false,
+    capacity: Int = 64 * 1024
+) : Closeable {
+    private var handle: Long = NativeLib.openAppender(file.absolutePath, capacity, maxLines, maxDelayMs, syncOnFlush)
+
+    init {
+        if (handle == 0L) throw IOException("Cannot open $file")
+    }
+
+    /**
+     * Buffer a line; the caller includes the line terminator.
+     *
+     * @return Bytes written to the file by this call (a batch), 0 if the line was only buffered, -1 on error.
+     */
+    @Synchronized
+    fun append(line: String): Int = if (handle == 0L) -1 else NativeLib.appendLine(handle, line)
+
+    /**
+     * Write the pending lines.
+     *
+     * @return Bytes written, -1 on error.
+     */
+    @Synchronized
+    fun flush(): Int = if (handle == 0L) -1 else NativeLib.flushAppender(handle)
+
+    /**
+     * Flush and close the descriptor. Further calls return -1.
+     */
+    @Synchronized
+    override fun close() {
+        if (handle != 0L) {
+            NativeLib.closeAppender(handle)
+            handle = 0L
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cam.et.dashcamsystem.nativelib
+
+import android.media.Image
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Reusable result of [NativeLib.analyzeExposure]: histogram, percentiles,
+ * crushed/clipped fractions and per-cell means on a [cols] x [rows] grid.
+ *
+ * The native side writes into one direct buffer which is allocated once, and
+ * the getters read it in place, so analysing a frame allocates nothing. The
+ * layout mirrors luma_exposure.h. Not thread safe; one instance per thread.
+ *
+ * @param cols Grid columns.
+ * @param rows Grid rows.
+ * @param crushedLevel Luminance at or below which a pixel counts as crushed.
+ * @param clippedLevel Luminance at or above which a pixel counts as clipped.
+ */
+class ExposureAnalysis(
+    val cols: Int = 8,
+    val rows: Int = 6,
+    val crushedLevel: Int = 8,
+    val clippedLevel: Int = 250
+) {
+    private val buffer: ByteBuffer = ByteBuffer.allocateDirect(CELLS_OFFSET + cols * rows * 4)
+        .order(ByteOrder.nativeOrder())
+
+    /** True once a frame has been analysed successfully. */
+    var valid = false
+        private set
+
+    /**
+     * Analyse the Y plane of a YUV_420_888 image.
+     *
+     * @return False if the plane was rejected; the previous result is then invalid.
+     */
+    fun analyze(image: Image): Boolean {
+        val y = image.planes[0]
+        valid = NativeLib.analyzeExposure(y.buffer, image.width, image.height, y.rowStride, y.pixelStride,
+            cols, rows, crushedLevel, clippedLevel, buffer)
+        return valid
+    }
+
+    /**
+     * Analyse ARGB_8888 pixels, e.g. of a decoded JPEG.
+     */
+    fun analyze(pixels: IntArray, width: Int, height: Int): Boolean {
+        valid = NativeLib.analyzeExposureArgb(pixels, width, height, cols, rows, crushedLevel, clippedLevel, buffer)
+        return valid
+    }
+
+    val pixelCount: Int get() = buffer.getInt(COUNT_OFFSET)
+    val mean: Float get() = buffer.getFloat(MEAN_OFFSET)
+    val min: Int get() = buffer.getInt(MIN_OFFSET)
+    val max: Int get() = buffer.getInt(MAX_OFFSET)
+    val p5: Int get() = buffer.getInt(P5_OFFSET)
+    val p50: Int get() = buffer.getInt(P50_OFFSET)
+    val p95: Int get() = buffer.getInt(P95_OFFSET)
+
+    /** Fraction of pixels at or below [crushedLevel]. */
+    val crushedFraction: Float get() = buffer.getFloat(CRUSHED_OFFSET)
+
+    /** Fraction of pixels at or above [clippedLevel]. */
+    val clippedFraction: Float get() = buffer.getFloat(CLIPPED_OFFSET)
+
+    /** Number of pixels with the luminance. */
+    fun histogram(level: Int): Int = buffer.getInt(HISTOGRAM_OFFSET + level * 4)
+
+    /** Mean luminance of a grid cell. */
+    fun cellMean(col: Int, row: Int): Float = buffer.getFloat(CELLS_OFFSET + (row * cols + col) * 4)
+
+    /** Darkest cell mean. */
+    fun minCellMean(): Float {
+        var result = Float.MAX_VALUE
+        for (i in 0 until cols * rows) result = minOf(result, buffer.getFloat(CELLS_OFFSET + i * 4))
+        return result
+    }
+
+    /** Brightest cell mean. */
+    fun maxCellMean(): Float {
+        var result = 0f
+        for (i in 0 until cols * rows) result = maxOf(result, buffer.getFloat(CELLS_OFFSET + i * 4))
+        return result
+    }
+
+    override fun toString(): String {
+        return if (!valid) "ExposureAnalysis{invalid}" else
+            "ExposureAnalysis{mean=$mean p5=$p5 p50=$p50 p95=$p95 crushed=$crushedFraction " +
+                "clipped=$clippedFraction cells=${minCellMean()}..${maxCellMean()}}"
+    }
+
+    private companion object {
+        const val COUNT_OFFSET = 4
+        const val MEAN_OFFSET = 8
+        const val MIN_OFFSET = 12
+        const val MAX_OFFSET = 16
+        const val P5_OFFSET = 20
+        const val P50_OFFSET = 24
+        const val P95_OFFSET = 28
+        const val CRUSHED_OFFSET = 32
+        const val CLIPPED_OFFSET = 36
+        const val HISTOGRAM_OFFSET = 48
+        const val CELLS_OFFSET = HISTOGRAM_OFFSET + 256 * 4
+    }
+}
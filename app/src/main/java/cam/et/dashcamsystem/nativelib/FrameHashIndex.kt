@@ -0,0 +1,80 @@
+package cam.et.dashcamsystem.nativelib
+
+import android.media.Image
+import java.io.Closeable
+import java.io.File
+
+/**
+ * Perceptual hashes of the stored frames, for finding near-duplicates of a new
+ * frame among those of the last [retentionMs] (frame_hash.cpp).
+ *
+ * The hash is a 64-bit dHash of the luminance: frames of the same scene differ
+ * in a few bits even across exposure changes and sensor noise, different scenes
+ * in many. Lookups go through a multi-index on 16-bit chunks of the hash, so they
+ * take microseconds instead of a scan over every stored frame.
+ *
+ * With a [file], added hashes are appended to it and restored by the next
+ * [open], so that duplicates are found across a restart of the service. Times
+ * are wall clock milliseconds. Not thread safe beyond the synchronized methods.
+ */
+class FrameHashIndex private constructor(val retentionMs: Long, private var handle: Long) : Closeable {
+
+    /** A stored frame close to a query: its hash, time, and Hamming distance to the query (0..64). */
+    data class Match(val hash: Long, val timeMs: Long, val distance: Int)
+
+    private val match = LongArray(3)
+
+    /** Number of hashes within the retention. */
+    val size: Int
+        @Synchronized get() = if (handle != 0L) NativeLib.hashIndexSize(handle) else 0
+
+    /**
+     * Record the hash of a stored frame. Hashes older than [retentionMs] are dropped on the way.
+     */
+    @Synchronized
+    fun add(hash: Long, timeMs: Long = System.currentTimeMillis()) {
+        if (handle != 0L) NativeLib.addHash(handle, hash, timeMs)
+    }
+
+    /**
+     * The closest hash added in the last [windowMs] within [maxDistance] bits of [hash]
+     * (at most [MAX_DISTANCE]), the newest one on a tie; null if there is none.
+     */
+    @Synchronized
+    fun findNear(hash: Long, windowMs: Long, maxDistance: Int,
+                 nowMs: Long = System.currentTimeMillis()): Match? {
+        if (handle == 0L) return null
+        if (!NativeLib.findNearHash(handle, hash, nowMs, windowMs, maxDistance, match)) return null
+        return Match(match[0], match[1], match[2].toInt())
+    }
+
+    @Synchronized
+    override fun close() {
+        if (handle != 0L) {
+            NativeLib.closeHashIndex(handle)
+            handle = 0L
+        }
+    }
+
+    companion object {
+        /** Largest distance [findNear] supports. */
+        const val MAX_DISTANCE = 11
+
+        /**
+         * Open the index persisted in [file], or an in-memory one without a file. Reads the
+         * file and rewrites it with the hashes still within [retentionMs]; call it off the
+         * main thread. If the file cannot be written the index still works, in memory.
+         */
+        fun open(file: File?, retentionMs: Long, nowMs: Long = System.currentTimeMillis()): FrameHashIndex =
+            FrameHashIndex(retentionMs, NativeLib.openHashIndex(file?.absolutePath, retentionMs, nowMs))
+
+        /** dHash of the Y plane of a YUV_420_888 [image]; 0 if the plane is unusable. */
+        fun hash(image: Image): Long {
+            val y = image.planes[0]
+            return NativeLib.hashYPlane(y.buffer, image.width, image.height, y.rowStride, y.pixelStride)
+        }
+
+        /** dHash of ARGB_8888 [pixels]; 0 if they are unusable. */
+        fun hash(pixels: IntArray, width: Int, height: Int): Long = NativeLib.hashArgb(pixels, width, height)
+    }
+}
@@ -0,0 +1,29 @@
+package cam.et.dashcamsystem.nativelib
+
+import android.media.Image
+
+/**
+ * Sharpness of a frame for choosing the best of a burst (luma_sharpness.cpp).
+ *
+ * The sharpness is the variance of the Laplacian of the Y plane, downsampled
+ * to at most [DEFAULT_MAX_WIDTH] pixels across: motion blur from vibration
+ * lowers it, and the downsample keeps sensor noise from raising it. Clipped
+ * areas and their borders are left out. It costs well under a millisecond for
+ * a VGA plane, so a burst can be scored as it arrives.
+ */
+object FrameSharpness {
+    const val DEFAULT_MAX_WIDTH = 160
+
+    /** Sharpness of the Y plane of a YUV_420_888 [image], in squared luminance levels; 0 if unusable. */
+    fun of(image: Image, maxWidth: Int = DEFAULT_MAX_WIDTH): Float {
+        val y = image.planes[0]
+        return NativeLib.lumaSharpness(y.buffer, image.width, image.height, y.rowStride, y.pixelStride, maxWidth)
+    }
+
+    /**
+     * Burst score of a frame: its [sharpness] less the share of crushed and clipped pixels
+     * in [exposure], the analysis of the same frame. Higher is better.
+     */
+    fun score(sharpness: Float, exposure: ExposureAnalysis): Float =
+        NativeLib.burstScore(sharpness, exposure.crushedFraction, exposure.clippedFraction)
+}
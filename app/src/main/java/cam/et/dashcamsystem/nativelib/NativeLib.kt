@@ -1,18 +1,95 @@
 package cam.et.dashcamsystem.nativelib
 
+import java.nio.ByteBuffer
+
 object NativeLib {
     init {
         // library already loaded in MainActivity but safe to load again
         System.loadLibrary("dashcamsystem")
     }
 
-    // pixels in ARGB_8888 order
-    external fun isImageDark(pixels: IntArray, width: Int, height: Int, threshold: Int): Boolean
+    // One-pass exposure analysis into out, a direct buffer laid out as described in ExposureAnalysis
+    external fun analyzeExposure(yPlane: ByteBuffer, width: Int, height: Int, rowStride: Int, pixelStride: Int,
+                                 cols: Int, rows: Int, crushedLevel: Int, clippedLevel: Int, out: ByteBuffer): Boolean
+
+    external fun analyzeExposureArgb(pixels: IntArray, width: Int, height: Int,
+                                     cols: Int, rows: Int, crushedLevel: Int, clippedLevel: Int, out: ByteBuffer): Boolean
+
+    // Scene change detector keeping a thumbnail of the last stored frame; see SceneDetector
+    external fun createSceneDetector(thumbWidth: Int, thumbHeight: Int, blockSize: Int, blockThreshold: Float,
+                                     minChangedFraction: Float, madThreshold: Float, maxSkipMs: Long): Long
+
+    // True if the frame is to be stored (and became the reference). diff (size >= 3, optional) receives
+    // mean absolute difference, changed block fraction and mean luminance shift.
+    external fun evaluateScene(handle: Long, yPlane: ByteBuffer, width: Int, height: Int, rowStride: Int, pixelStride: Int,
+                               timestampMs: Long, force: Boolean, diff: FloatArray?): Boolean
+
+    external fun resetSceneDetector(handle: Long)
+
+    external fun releaseSceneDetector(handle: Long)
+
+    // Laplacian variance of the Y plane downsampled to at most maxWidth, see FrameSharpness
+    external fun lumaSharpness(yPlane: ByteBuffer, width: Int, height: Int, rowStride: Int, pixelStride: Int, maxWidth: Int): Float
+
+    external fun burstScore(sharpness: Float, crushedFraction: Float, clippedFraction: Float): Float
+
+    // 64-bit dHash of a frame, see FrameHashIndex
+    external fun hashYPlane(yPlane: ByteBuffer, width: Int, height: Int, rowStride: Int, pixelStride: Int): Long
+
+    external fun hashArgb(pixels: IntArray, width: Int, height: Int): Long
+
+    // Index of recent frame hashes, persisted to path (null: in memory only)
+    external fun openHashIndex(path: String?, retentionMs: Long, nowMs: Long): Long
+
+    external fun addHash(handle: Long, hash: Long, timeMs: Long)
+
+    // match (size >= 3) receives hash, time and Hamming distance of the closest entry
+    external fun findNearHash(handle: Long, hash: Long, nowMs: Long, windowMs: Long, maxDistance: Int, match: LongArray?): Boolean
+
+    external fun hashIndexSize(handle: Long): Int
+
+    external fun closeHashIndex(handle: Long)
 
     // Save raw bytes to path using POSIX file operations
     external fun saveBytesToFile(path: String, bytes: ByteArray): Boolean
 
+    // Save length bytes from offset of a direct buffer, e.g. Image.planes[0].buffer, without copying them
+    external fun saveBuffer(path: String, buffer: ByteBuffer, offset: Int, length: Int): Boolean
+
     // Append a UTF-8 log line to a file
     external fun appendLog(path: String, line: String): Boolean
+
+    // Appender which keeps the file open and writes lines in batches, flushed on SIGTERM.
+    // Returns a handle, 0 on failure. append/flush/close return the bytes written to the file, -1 on error.
+    external fun openAppender(path: String, capacity: Int, maxLines: Int, maxDelayMs: Long, syncOnFlush: Boolean): Long
+
+    external fun appendLine(handle: Long, line: String): Int
+
+    external fun flushAppender(handle: Long): Int
+
+    external fun closeAppender(handle: Long): Int
+
+    // Background writer, see NativeWriter. Completions call callbackClass.onWriteComplete on the I/O thread.
+    external fun startWriter(callbackClass: Class<*>, threads: Int, maxJobs: Int, maxBytes: Long, blockMs: Long): Boolean
+
+    // Copies the range, so the buffer may be released on return. False if rejected (queue full or not started).
+    external fun submitWrite(id: Long, path: String, buffer: ByteBuffer, offset: Int, length: Int, append: Boolean): Boolean
+
+    // No copy: the buffer must stay untouched until the completion, which also comes for abandoned writes.
+    external fun submitWriteBorrowed(id: Long, path: String, buffer: ByteBuffer, offset: Int, length: Int, append: Boolean): Boolean
+
+    external fun writerStats(out: LongArray): Boolean
+
+    external fun stopWriter(timeoutMs: Long): Boolean
+
+    // Images (saveBytesToFile, saveBuffer, submitWrite) go to <path>.partial, are fsync'ed and renamed over path
+    external fun setAtomicWrites(enabled: Boolean)
+
+    // Remove the *.partial files of interrupted atomic writes in dir which are at least minAgeSeconds old.
+    // Returns the number removed, -1 if dir cannot be read.
+    external fun sweepPartialFiles(dir: String, minAgeSeconds: Long): Int
+
+    // fsync inside saveBytesToFile/appendLog/submitWrite; turned off when DurabilityManager batches fsyncs
+    external fun setSyncOnWrite(enabled: Boolean)
 }
 
@@ -0,0 +1,128 @@
+package cam.et.dashcamsystem.nativelib
+
+import java.io.File
+import java.nio.ByteBuffer
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Outcome of a background write.
+ *
+ * @param error errno of the failed call, 0 on success.
+ * @param queuedNanos Time from submit to the start of the write.
+ * @param writeNanos Time of open, write, fsync and close.
+ */
+data class WriteResult(
+    val ok: Boolean,
+    val error: Int,
+    val bytes: Long,
+    val queuedNanos: Long,
+    val writeNanos: Long
+)
+
+/**
+ * Backpressure and latency of the writer. Percentiles are upper bounds of power-of-two buckets.
+ */
+data class WriterStats(
+    val submitted: Long,
+    val completed: Long,
+    val failed: Long,
+    val rejected: Long,
+    val blockedSubmits: Long,
+    val blockedNanos: Long,
+    val depth: Long,
+    val maxDepth: Long,
+    val queuedBytes: Long,
+    val queuedP50Nanos: Long,
+    val queuedP99Nanos: Long,
+    val writeP50Nanos: Long,
+    val writeP99Nanos: Long,
+    val writeMaxNanos: Long
+)
+
+/**
+ * Native file writer with a bounded queue and its own I/O threads, so that the
+ * camera thread does not wait for the storage (write_queue.cpp).
+ *
+ * [write] copies the data into the queue and returns a future which completes
+ * on the I/O thread; dependent actions run there too and should be short. If
+ * the queue is still full after [start]'s blockMs, the write is rejected and
+ * the caller decides, e.g. to write synchronously.
+ */
+object NativeWriter {
+    private val pending = ConcurrentHashMap<Long, CompletableFuture<WriteResult>>()
+    private val nextId = AtomicLong()
+
+    /**
+     * Start the I/O threads; does nothing if already started.
+     *
+     * @param maxJobs Queued jobs before submit blocks.
+     * @param maxBytes Queued bytes before submit blocks.
+     * @param blockMs How long submit waits for room before rejecting.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun start(threads: Int = 1, maxJobs: Int = 8, maxBytes: Long = 32L * 1024 * 1024, blockMs: Long = 50L): Boolean =
+        NativeLib.startWriter(NativeWriter::class.java, threads, maxJobs, maxBytes, blockMs)
+
+    /**
+     * Queue [length] bytes from [offset] of a direct buffer for writing to [file].
+     * The buffer may be released as soon as this returns.
+     *
+     * @return The completion, or null if the write was rejected.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun write(file: File, buffer: ByteBuffer, offset: Int, length: Int, append: Boolean = false): CompletableFuture<WriteResult>? =
+        submit { id -> NativeLib.submitWrite(id, file.absolutePath, buffer, offset, length, append) }
+
+    /**
+     * As [write], but the I/O thread writes from [buffer] itself instead of a copy. The buffer
+     * must be neither changed nor released until the returned future completes; it does complete
+     * for every accepted write, also for one abandoned by [stop].
+     *
+     * @return The completion, or null if the write was rejected; the buffer is then free again.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun writeBorrowed(file: File, buffer: ByteBuffer, offset: Int, length: Int, append: Boolean = false): CompletableFuture<WriteResult>? =
+        submit { id -> NativeLib.submitWriteBorrowed(id, file.absolutePath, buffer, offset, length, append) }
+
+    // Registered first: the completion may come before the submit returns.
+    private inline fun submit(submit: (Long) -> Boolean): CompletableFuture<WriteResult>? {
+        val id = nextId.incrementAndGet()
+        val future = CompletableFuture<WriteResult>()
+        pending[id] = future
+        if (!submit(id)) {
+            pending.remove(id)
+            return null
+        }
+        return future
+    }
+
+    @JvmStatic
+    fun stats(): WriterStats? {
+        val v = LongArray(14)
+        if (!NativeLib.writerStats(v)) return null
+        return WriterStats(v[0], v[1], v[2], v[3], v[4], v[5], v[6], v[7], v[8], v[9], v[10], v[11], v[12], v[13])
+    }
+
+    /**
+     * Wait up to [timeoutMs] for the queued writes and stop the I/O threads. Writes still queued
+     * after the timeout are not made: their futures complete with ok false and error ECANCELED.
+     * Returns once the writes in progress are done, which may take as long as a slow card needs
+     * for one write; call it off the main thread.
+     *
+     * @return False if writes were still pending after the timeout.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun stop(timeoutMs: Long = 5_000L): Boolean = NativeLib.stopWriter(timeoutMs)
+
+    /** Called from the native I/O thread. */
+    @JvmStatic
+    fun onWriteComplete(id: Long, ok: Boolean, error: Int, bytes: Long, queuedNanos: Long, writeNanos: Long) {
+        pending.remove(id)?.complete(WriteResult(ok, error, bytes, queuedNanos, writeNanos))
+    }
+}
@@ -0,0 +1,70 @@
+package cam.et.dashcamsystem.nativelib
+
+import android.media.Image
+import java.io.Closeable
+
+/**
+ * Decides whether a frame differs enough from the last stored one to be
+ * stored, from the Y plane of a YUV_420_888 image (scene_change.cpp).
+ *
+ * Frames are reduced to a [thumbWidth] x [thumbHeight] thumbnail and compared
+ * with the thumbnail of the last stored frame, block by block, after taking out
+ * the mean luminance shift so that exposure changes alone do not count. A frame
+ * is stored if at least [minChangedFraction] of the blocks changed by more than
+ * [blockThreshold], if the mean absolute difference reaches [madThreshold], or
+ * if [maxSkipMs] have passed since the last stored frame.
+ *
+ * The result of the last [evaluate] is kept in the getters. Not thread safe
+ * beyond [close].
+ */
+class SceneDetector(
+    val thumbWidth: Int = 64,
+    val thumbHeight: Int = 48,
+    val blockSize: Int = 8,
+    val blockThreshold: Float = 10f,
+    val minChangedFraction: Float = 0.02f,
+    val madThreshold: Float = 12f,
+    val maxSkipMs: Long = 5 * 60 * 1000L
+) : Closeable {
+    private var handle = NativeLib.createSceneDetector(thumbWidth, thumbHeight, blockSize, blockThreshold,
+        minChangedFraction, madThreshold, maxSkipMs)
+    private val diff = FloatArray(3)
+
+    /** Mean absolute difference of the last evaluated frame, 0..255. */
+    val mad: Float get() = diff[0]
+
+    /** Fraction of changed blocks of the last evaluated frame. */
+    val changedFraction: Float get() = diff[1]
+
+    /** Mean luminance of the last evaluated frame minus the reference. */
+    val shift: Float get() = diff[2]
+
+    /**
+     * Compare the Y plane of [image] with the last stored frame.
+     *
+     * @param timestampMs Monotonic time of the frame, for [maxSkipMs].
+     * @param force Store the frame whatever the difference, e.g. because it was saved already.
+     * @return True if the frame is to be stored; it is then the new reference.
+     */
+    @Synchronized
+    fun evaluate(image: Image, timestampMs: Long, force: Boolean = false): Boolean {
+        if (handle == 0L) return true
+        val y = image.planes[0]
+        return NativeLib.evaluateScene(handle, y.buffer, image.width, image.height, y.rowStride, y.pixelStride,
+            timestampMs, force, diff)
+    }
+
+    /** Forget the reference; the next frame is stored. */
+    @Synchronized
+    fun reset() {
+        if (handle != 0L) NativeLib.resetSceneDetector(handle)
+    }
+
+    @Synchronized
+    override fun close() {
+        if (handle != 0L) {
+            NativeLib.releaseSceneDetector(handle)
+            handle = 0L
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package cam.et.dashcamsystem.util
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import java.nio.ByteBuffer
+
+/**
+ * Decodes JPEGs for frame analysis at a reduced size, into a pooled [Bitmap] and a pooled
+ * pixel array.
+ *
+ * The bounds are read first and [BitmapFactory.Options.inSampleSize] is chosen as the largest
+ * power of two that keeps the frame at least [targetWidth] x [targetHeight], so the decoded
+ * frame is under twice the target in each direction; the JPEG decoder scales by 1/2, 1/4 and
+ * 1/8 in the DCT, so a reduced decode is also much faster than a full one. The data is read
+ * from the buffer in place ([ByteBufferInputStream]). Once the pools have grown to the frame
+ * size, a decode allocates nothing on the Java heap: the bitmap is reused as
+ * [BitmapFactory.Options.inBitmap] and the pixels are copied into [pixels].
+ *
+ * The result is valid until the next [decode]. Not thread safe; one instance per thread.
+ */
+class AnalysisDecoder(val targetWidth: Int = 160, val targetHeight: Int = 120) {
+    private val options = BitmapFactory.Options().apply {
+        inPreferredConfig = Bitmap.Config.ARGB_8888
+        inMutable = true
+        // Otherwise every decode allocates its own.
+        inTempStorage = ByteArray(16 * 1024)
+    }
+    private var bitmap: Bitmap? = null
+
+    /** ARGB_8888 pixels of the last decoded frame, row by row; may be longer than [width] * [height]. */
+    var pixels = IntArray(0)
+        private set
+
+    var width = 0
+        private set
+
+    var height = 0
+        private set
+
+    /** Times a pool had to grow (a new bitmap or pixel array), for the statistics. */
+    var allocations = 0
+        private set
+
+    /** Bytes held by the pools, besides the decoder's 16 KB temporary storage. */
+    val pooledBytes: Long
+        get() = (bitmap?.allocationByteCount ?: 0).toLong() + pixels.size * 4L
+
+    /**
+     * Decode the remaining bytes of [jpeg] (the buffer's position is left alone).
+     *
+     * @return False if the data could not be decoded.
+     */
+    fun decode(jpeg: ByteBuffer): Boolean {
+        val stream = ByteBufferInputStream(jpeg.duplicate())
+        options.inJustDecodeBounds = true
+        options.inSampleSize = 1
+        options.inBitmap = null
+        BitmapFactory.decodeStream(stream, null, options)
+        if (options.outWidth <= 0 || options.outHeight <= 0) return false
+
+        options.inJustDecodeBounds = false
+        options.inSampleSize = sampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight)
+        options.inBitmap = bitmap
+        stream.reset()
+        val decoded = try {
+            BitmapFactory.decodeStream(stream, null, options)
+        } catch (e: IllegalArgumentException) {
+            // The pooled bitmap is too small for this frame: decode into a new one.
+            options.inBitmap = null
+            stream.reset()
+            BitmapFactory.decodeStream(stream, null, options)
+        } ?: return false
+        if (decoded !== bitmap) {
+            bitmap?.recycle()
+            bitmap = decoded
+            allocations++
+        }
+
+        width = decoded.width
+        height = decoded.height
+        if (pixels.size < width * height) {
+            pixels = IntArray(width * height)
+            allocations++
+        }
+        decoded.getPixels(pixels, 0, width, 0, 0, width, height)
+        return true
+    }
+
+    /** Free the pools; the next [decode] allocates them again. */
+    fun release() {
+        bitmap?.recycle()
+        bitmap = null
+        pixels = IntArray(0)
+    }
+
+    companion object {
+        /**
+         * Largest power-of-two sample size which keeps a [width] x [height] frame at least
+         * [targetWidth] x [targetHeight]; 1 if it is smaller already.
+         */
+        fun sampleSize(width: Int, height: Int, targetWidth: Int, targetHeight: Int): Int {
+            var sample = 1
+            while (width / (sample * 2) >= targetWidth && height / (sample * 2) >= targetHeight) sample *= 2
+            return sample
+        }
+
+        /**
+         * Bytes of the pooled bitmap and pixel array for a [width] x [height] JPEG decoded with
+         * [sample]: ARGB_8888, the decoder rounding the scaled size up.
+         */
+        fun pooledBytes(width: Int, height: Int, sample: Int): Long {
+            val w = (width + sample - 1) / sample
+            val h = (height + sample - 1) / sample
+            return 2L * w * h * 4
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package cam.et.dashcamsystem.util
+
+import java.io.InputStream
+import java.nio.ByteBuffer
+
+/**
+ * An [InputStream] over the remaining bytes of a [ByteBuffer], e.g. the direct plane
+ * buffer of a JPEG [android.media.Image], so that it can be decoded without a copy
+ * into a heap array. Reads advance [buffer]'s position; pass a duplicate to keep the
+ * original's. [mark] and [reset] are supported, with no read limit. Not thread safe.
+ */
+class ByteBufferInputStream(private val buffer: ByteBuffer) : InputStream() {
+    private var markPosition = buffer.position()
+
+    override fun read(): Int = if (buffer.hasRemaining()) buffer.get().toInt() and 0xff else -1
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (off < 0 || len < 0 || len > b.size - off) throw IndexOutOfBoundsException()
+        if (len == 0) return 0
+        if (!buffer.hasRemaining()) return -1
+        val n = minOf(len, buffer.remaining())
+        buffer.get(b, off, n)
+        return n
+    }
+
+    override fun skip(n: Long): Long {
+        val skipped = n.coerceIn(0L, buffer.remaining().toLong()).toInt()
+        buffer.position(buffer.position() + skipped)
+        return skipped.toLong()
+    }
+
+    override fun available(): Int = buffer.remaining()
+
+    override fun markSupported(): Boolean = true
+
+    override fun mark(readlimit: Int) {
+        markPosition = buffer.position()
+    }
+
+    override fun reset() {
+        buffer.position(markPosition)
+    }
+}
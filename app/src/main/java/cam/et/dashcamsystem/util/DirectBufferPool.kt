@@ -0,0 +1,45 @@
+package cam.et.dashcamsystem.util
+
+import java.nio.ByteBuffer
+
+/**
+ * A fixed number of direct buffers, grown on demand, for handing image data from one thread to
+ * another without keeping the camera's Image open. At most [count] buffers are out at a time;
+ * [acquire] returns null beyond that, which bounds the memory in flight. Thread safe.
+ */
+class DirectBufferPool(val count: Int) {
+    private val free = ArrayDeque<ByteBuffer>()
+    private var outstanding = 0
+
+    /** Largest buffer allocated, in bytes. */
+    @Volatile
+    var largest = 0
+        private set
+
+    /**
+     * A cleared buffer of at least [size] bytes, or null if all [count] buffers are in use.
+     */
+    @Synchronized
+    fun acquire(size: Int): ByteBuffer? {
+        if (outstanding >= count) return null
+        outstanding++
+        // The largest free buffer, so that a small one is only replaced when none fits.
+        val pooled = free.maxByOrNull { it.capacity() }
+        if (pooled != null) free.remove(pooled)
+        val buffer = if (pooled != null && pooled.capacity() >= size) {
+            pooled
+        } else {
+            // Some headroom, since JPEG sizes vary from frame to frame.
+            ByteBuffer.allocateDirect(size + size / 8).also { largest = maxOf(largest, it.capacity()) }
+        }
+        buffer.clear()
+        return buffer
+    }
+
+    @Synchronized
+    fun release(buffer: ByteBuffer) {
+        check(outstanding > 0) { "released more buffers than acquired" }
+        outstanding--
+        free.addLast(buffer)
+    }
+}
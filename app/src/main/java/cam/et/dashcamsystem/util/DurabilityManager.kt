@@ -0,0 +1,303 @@
+package cam.et.dashcamsystem.util
+
+import cam.et.dashcamsystem.logger.DashcamLog
+import cam.et.dashcamsystem.nativelib.NativeLib
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+
+/**
+ * When written data is forced to storage with fsync.
+ */
+enum class DurabilityMode {
+    /** fsync before every write returns. Safest, but every write waits for the card. */
+    PER_WRITE,
+
+    /** fsync of all files written meanwhile, every [DurabilityPolicy.intervalMs] or [DurabilityPolicy.maxPendingBytes]. */
+    GROUP_COMMIT,
+
+    /** fsync only when a file is closed, e.g. a saved image or a rolled log segment. */
+    ON_CLOSE
+}
+
+/**
+ * Durability policy of images, events.txt and the log files.
+ *
+ * @param atomicImages Write images to a temporary file, fsync it and rename it into place, so that a
+ * power cut never leaves a truncated image. Images are then synced when saved, whatever the [mode].
+ */
+data class DurabilityPolicy(
+    val mode: DurabilityMode,
+    val intervalMs: Long = 1_000L,
+    val maxPendingBytes: Long = 4L * 1024 * 1024,
+    val atomicImages: Boolean = true
+) {
+    init {
+        require(intervalMs > 0 && maxPendingBytes > 0) { "intervalMs=$intervalMs maxPendingBytes=$maxPendingBytes" }
+    }
+
+    companion object {
+        /** Group commit once per second or every 4 MB. */
+        @JvmField
+        val DEFAULT = DurabilityPolicy(DurabilityMode.GROUP_COMMIT)
+    }
+}
+
+/**
+ * Commit latency statistics. Percentiles are upper bounds of power-of-two buckets.
+ */
+data class CommitStats(
+    val commits: Long,
+    val files: Long,
+    val bytes: Long,
+    val totalNanos: Long,
+    val maxNanos: Long,
+    val p50Nanos: Long,
+    val p99Nanos: Long
+)
+
+/**
+ * Single background committer which batches fsyncs of the files written by
+ * the capture path (images, events.txt) and the logger.
+ *
+ * Writers report data with [onWrite] and finished files with [onClose]; the
+ * [DurabilityPolicy] decides whether the fsync happens inline, batched on the
+ * committer thread, or only for closed files. Files are synced by path, so no
+ * file descriptors are held between commits: fsync through any descriptor
+ * forces the file's dirty pages.
+ */
+object DurabilityManager {
+
+    private const val STATS_LOG_INTERVAL_MS = 5 * 60 * 1000L
+
+    private val LOG = DashcamLog.get("DurabilityManager")
+
+    private val lock = Any()
+
+    /** Paths of the files with data not yet forced to storage. */
+    private val pending = LinkedHashSet<String>()
+    private var pendingBytes = 0L
+
+    private val buckets = LongArray(64)
+    private var commits = 0L
+    private var committedFiles = 0L
+    private var committedBytes = 0L
+    private var totalNanos = 0L
+    private var maxNanos = 0L
+    private var lastStatsLogMillis = System.currentTimeMillis()
+    private var commitsAtLastLog = 0L
+
+    private val executor: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "DurabilityCommitter").apply {
+            isDaemon = true
+            priority = Thread.NORM_PRIORITY - 1
+        }
+    }
+    private var tick: ScheduledFuture<*>? = null
+
+    @Volatile
+    var policy: DurabilityPolicy = DurabilityPolicy.DEFAULT
+        private set
+
+    /** True if the native writers of NativeLib fsync each write themselves. */
+    @Volatile
+    var nativeSyncsOnWrite = true
+        private set
+
+    /** True if the native image writers fsync each image themselves (PER_WRITE or atomic images). */
+    @Volatile
+    var nativeSyncsImages = true
+        private set
+
+    init {
+        applyPolicy(policy)
+    }
+
+    /**
+     * Change the durability policy. Data pending under the old policy is committed.
+     */
+    fun setPolicy(newPolicy: DurabilityPolicy) {
+        synchronized(lock) {
+            policy = newPolicy
+            applyPolicy(newPolicy)
+        }
+        executor.execute { commit() }
+    }
+
+    private fun applyPolicy(newPolicy: DurabilityPolicy) {
+        tick?.cancel(false)
+        tick = if (newPolicy.mode == DurabilityMode.GROUP_COMMIT) {
+            executor.scheduleWithFixedDelay({ commit() }, newPolicy.intervalMs, newPolicy.intervalMs, TimeUnit.MILLISECONDS)
+        } else {
+            null
+        }
+        try {
+            // The native writers fsync themselves only in PER_WRITE mode.
+            NativeLib.setSyncOnWrite(newPolicy.mode == DurabilityMode.PER_WRITE)
+            nativeSyncsOnWrite = newPolicy.mode == DurabilityMode.PER_WRITE
+            NativeLib.setAtomicWrites(newPolicy.atomicImages)
+            nativeSyncsImages = nativeSyncsOnWrite || newPolicy.atomicImages
+        } catch (e: Throwable) {
+            // Native library not available: only Kotlin/Java writers are covered.
+        }
+    }
+
+    /**
+     * Report data written to a file which stays open, e.g. an appended log.
+     *
+     * @param file The file.
+     * @param bytes Number of bytes written.
+     * @param alreadySynced True if the writer fsynced itself (native writers in PER_WRITE mode).
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun onWrite(file: File, bytes: Long, alreadySynced: Boolean = false) {
+        val current = policy
+        when (current.mode) {
+            DurabilityMode.PER_WRITE -> if (!alreadySynced) commitInline(file, bytes)
+            DurabilityMode.GROUP_COMMIT -> {
+                val full = synchronized(lock) {
+                    pending.add(file.path)
+                    pendingBytes += bytes
+                    pendingBytes >= current.maxPendingBytes
+                }
+                if (full) {
+                    executor.execute { commit() }
+                }
+            }
+            DurabilityMode.ON_CLOSE -> Unit
+        }
+    }
+
+    /**
+     * Report a file which is complete, e.g. a saved image or a rolled log segment.
+     *
+     * @param file The file.
+     * @param bytes Number of bytes written since the last report.
+     * @param alreadySynced True if the writer fsynced itself (native writers in PER_WRITE mode).
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun onClose(file: File, bytes: Long = 0L, alreadySynced: Boolean = false) {
+        when (policy.mode) {
+            DurabilityMode.PER_WRITE -> if (!alreadySynced) commitInline(file, bytes)
+            DurabilityMode.GROUP_COMMIT, DurabilityMode.ON_CLOSE -> {
+                synchronized(lock) {
+                    pending.add(file.path)
+                    pendingBytes += bytes
+                }
+                if (policy.mode == DurabilityMode.ON_CLOSE) {
+                    executor.execute { commit() }
+                }
+            }
+        }
+    }
+
+    /**
+     * Commit everything pending and wait for it, e.g. before the service stops.
+     *
+     * @param timeoutMs Maximum time to wait.
+     * @return True if the commit finished in time.
+     */
+    @JvmStatic
+    fun commitNow(timeoutMs: Long = 5_000L): Boolean {
+        return try {
+            executor.submit { commit() }.get(timeoutMs, TimeUnit.MILLISECONDS)
+            true
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    /**
+     * fsync the file right away on the calling thread.
+     *
+     * @return True on success.
+     */
+    @JvmStatic
+    fun sync(file: File): Boolean {
+        return try {
+            FileInputStream(file).use { it.fd.sync() }
+            true
+        } catch (e: IOException) {
+            false
+        }
+    }
+
+    /** @return Commit latency statistics since start. */
+    fun stats(): CommitStats = synchronized(lock) {
+        CommitStats(commits, committedFiles, committedBytes, totalNanos, maxNanos,
+            percentile(0.50), percentile(0.99))
+    }
+
+    private fun commitInline(file: File, bytes: Long) {
+        val start = System.nanoTime()
+        sync(file)
+        record(1, bytes, System.nanoTime() - start)
+    }
+
+    /** Runs on the committer thread. */
+    private fun commit() {
+        val batch: List<String>
+        val bytes: Long
+        synchronized(lock) {
+            if (pending.isEmpty()) {
+                return
+            }
+            batch = ArrayList(pending)
+            bytes = pendingBytes
+            pending.clear()
+            pendingBytes = 0
+        }
+        val start = System.nanoTime()
+        for (path in batch) {
+            // Files deleted meanwhile (e.g. compressed log segments) need no sync.
+            sync(File(path))
+        }
+        record(batch.size, bytes, System.nanoTime() - start)
+        logStats()
+    }
+
+    private fun record(files: Int, bytes: Long, nanos: Long) {
+        synchronized(lock) {
+            commits++
+            committedFiles += files
+            committedBytes += bytes
+            totalNanos += nanos
+            maxNanos = maxOf(maxNanos, nanos)
+            buckets[63 - java.lang.Long.numberOfLeadingZeros(nanos or 1L)]++
+        }
+    }
+
+    private fun percentile(fraction: Double): Long {
+        if (commits == 0L) return 0L
+        val rank = Math.ceil(commits * fraction).toLong()
+        var seen = 0L
+        for (i in buckets.indices) {
+            seen += buckets[i]
+            if (seen >= rank) {
+                return minOf(if (i >= 62) Long.MAX_VALUE else (1L shl (i + 1)) - 1, maxNanos)
+            }
+        }
+        return maxNanos
+    }
+
+    /**
+     * Report the commit latency now and then. Rare on purpose: the log line
+     * itself is data for the next commit.
+     */
+    private fun logStats() {
+        val now = System.currentTimeMillis()
+        if (now - lastStatsLogMillis < STATS_LOG_INTERVAL_MS) return
+        val s = stats()
+        lastStatsLogMillis = now
+        val newCommits = s.commits - commitsAtLastLog
+        commitsAtLastLog = s.commits
+        LOG.i("{} commits ({} files total), latency p50={}us p99={}us max={}us, mode={}",
+            newCommits, s.files, s.p50Nanos / 1000, s.p99Nanos / 1000, s.maxNanos / 1000, policy.mode)
+    }
+}
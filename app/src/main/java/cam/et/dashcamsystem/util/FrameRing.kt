@@ -0,0 +1,135 @@
+package cam.et.dashcamsystem.util
+
+import java.nio.ByteBuffer
+
+/**
+ * The most recent frames, e.g. small JPEGs of a continuous stream, in one direct buffer of
+ * [capacityBytes] allocated up front, so that memory use is fixed and [put] allocates nothing.
+ *
+ * Frames are numbered by a sequence and laid out one after the other; a frame which does not fit
+ * before the end of the slab starts again at 0. Adding a frame evicts the oldest ones whose bytes it
+ * needs, and the oldest one once [maxFrames] are held.
+ *
+ * To read frames out while new ones keep coming, [pin] the oldest wanted one: from there on frames
+ * are not evicted, and new frames which would need their bytes are refused instead, until the
+ * reader moves the pin forwards or [unpin]s. A pinned frame can be read from a view of the slab
+ * ([view] once, [frame] per frame) without holding any lock. Thread safe.
+ */
+class FrameRing(val capacityBytes: Int, val maxFrames: Int) {
+    private val slab = ByteBuffer.allocateDirect(capacityBytes)
+    private val writer = slab.duplicate()
+    private val offsets = IntArray(maxFrames)
+    private val lengths = IntArray(maxFrames)
+    private val times = LongArray(maxFrames)
+    // Sequences [head, next) are held; frame s is at index s % maxFrames.
+    private var head = 0L
+    private var next = 0L
+    private var writePos = 0
+    private var pinned = NOT_PINNED
+
+    /** Frames refused: larger than the slab, or in the way of a pinned frame. */
+    var refused = 0L
+        private set
+
+    init {
+        require(capacityBytes > 0 && maxFrames > 0) { "capacity $capacityBytes bytes, $maxFrames frames" }
+    }
+
+    /** Sequence of the next frame to be added. */
+    val nextSequence: Long
+        @Synchronized get() = next
+
+    /** Number of frames held. */
+    val size: Int
+        @Synchronized get() = (next - head).toInt()
+
+    /**
+     * Copy the remaining bytes of [src] in as the newest frame, without moving its position.
+     *
+     * @param timeMs Time of the frame; the same clock as the other calls.
+     * @return False if the frame was refused.
+     */
+    @Synchronized
+    fun put(src: ByteBuffer, timeMs: Long): Boolean {
+        val length = src.remaining()
+        if (length > capacityBytes) {
+            refused++
+            return false
+        }
+        val wraps = writePos + length > capacityBytes
+        val start = if (wraps) 0 else writePos
+        // Oldest first: with a wrap, the frames between writePos and the end of the slab go first.
+        while (head < next && (next - head >= maxFrames || overlaps(head, start, length)
+                    || (wraps && offsets[index(head)] >= writePos))) {
+            if (pinned != NOT_PINNED && head >= pinned) {
+                refused++
+                return false
+            }
+            head++
+        }
+        // Empty: start at the beginning rather than wrap sooner.
+        val at = if (head == next) 0 else start
+        val i = index(next)
+        val position = src.position()
+        writer.limit(at + length).position(at)
+        writer.put(src)
+        src.position(position)
+        offsets[i] = at
+        lengths[i] = length
+        times[i] = timeMs
+        writePos = at + length
+        next++
+        return true
+    }
+
+    /**
+     * Pin the oldest frame at or after [fromMs], or [nextSequence] if there is none.
+     *
+     * @return The pinned sequence.
+     */
+    @Synchronized
+    fun pin(fromMs: Long): Long {
+        var s = head
+        while (s < next && times[index(s)] < fromMs) s++
+        pinned = s
+        return s
+    }
+
+    /** Move the pin to [sequence], e.g. past the frames read; never backwards. */
+    @Synchronized
+    fun pinAt(sequence: Long) {
+        if (pinned != NOT_PINNED && sequence > pinned) pinned = sequence
+    }
+
+    @Synchronized
+    fun unpin() {
+        pinned = NOT_PINNED
+    }
+
+    /** A view of the slab for [frame]; one per reader, made once. */
+    fun view(): ByteBuffer = synchronized(this) { slab.duplicate() }
+
+    /**
+     * Set the position and limit of [view] to the bytes of frame [sequence].
+     *
+     * @return The time of the frame, or -1 if it is not held (yet or any more).
+     */
+    @Synchronized
+    fun frame(sequence: Long, view: ByteBuffer): Long {
+        if (sequence < head || sequence >= next) return -1
+        val i = index(sequence)
+        view.limit(offsets[i] + lengths[i]).position(offsets[i])
+        return times[i]
+    }
+
+    private fun index(sequence: Long) = (sequence % maxFrames).toInt()
+
+    private fun overlaps(sequence: Long, start: Int, length: Int): Boolean {
+        val i = index(sequence)
+        return offsets[i] < start + length && start < offsets[i] + lengths[i]
+    }
+
+    companion object {
+        private const val NOT_PINNED = -1L
+    }
+}
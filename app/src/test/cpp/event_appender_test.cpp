@@ -0,0 +1,197 @@
+// Host test of EventAppender, and a benchmark against open/write/close per line
+// as NativeLib.appendLog does it.
+//
+//   ./build/host-tests/event_appender_test [directory on the storage to measure]
+
+#include "event_appender.h"
+
+#include <chrono>
+#include <csignal>
+#include <cstdio>
+#include <cstring>
+#include <fcntl.h>
+#include <string>
+#include <sys/wait.h>
+#include <unistd.h>
+
+namespace {
+
+int gFailures = 0;
+
+#define EXPECT(cond, ...)                                         \
+    do {                                                          \
+        if (!(cond)) {                                            \
+            std::printf("FAIL %s:%d: ", __FILE__, __LINE__);      \
+            std::printf(__VA_ARGS__);                             \
+            std::printf("\n");                                    \
+            gFailures++;                                          \
+        }                                                         \
+    } while (0)
+
+std::string gDir = "/tmp";
+
+std::string tempPath(const char* name) {
+    std::string path = gDir + "/event_appender_" + std::to_string(getpid()) + "_" + name;
+    unlink(path.c_str());
+    return path;
+}
+
+std::string readFile(const std::string& path) {
+    std::string content;
+    FILE* file = std::fopen(path.c_str(), "rb");
+    if (file == nullptr) return content;
+    char buffer[4096];
+    size_t n;
+    while ((n = std::fread(buffer, 1, sizeof(buffer), file)) > 0) content.append(buffer, n);
+    std::fclose(file);
+    return content;
+}
+
+std::string eventLine(int i) {
+    return "IMG_20240101_" + std::to_string(100000 + i) + ".jpg," + std::to_string(1704067200000LL + i * 30000LL)
+           + ",52.520008,13.404954\n";
+}
+
+long append(EventAppender* appender, const std::string& line) {
+    return appender->append(line.data(), line.size());
+}
+
+void testBatchesByLineCount() {
+    const std::string path = tempPath("batch");
+    EventAppender::Options options;
+    options.maxLines = 4;
+    options.maxDelayMs = 60000;
+    EventAppender* appender = EventAppender::open(path.c_str(), options);
+    EXPECT(appender != nullptr, "open %s", path.c_str());
+    if (appender == nullptr) return;
+    std::string expected;
+    for (int i = 0; i < 3; ++i) {
+        expected += eventLine(i);
+        EXPECT(append(appender, eventLine(i)) == 0, "line %d written before the batch is full", i);
+    }
+    EXPECT(readFile(path).empty(), "file written before the batch is full");
+    expected += eventLine(3);
+    EXPECT(append(appender, eventLine(3)) == (long) expected.size(), "batch not written");
+    EXPECT(readFile(path) == expected, "batch content");
+    expected += eventLine(4);
+    append(appender, eventLine(4));
+    EXPECT(appender->close() == (long) eventLine(4).size(), "close did not flush");
+    EXPECT(readFile(path) == expected, "content after close");
+    unlink(path.c_str());
+}
+
+void testBufferFull() {
+    // A buffer which is not a multiple of the line length, so that lines regularly do not fit.
+    const std::string path = tempPath("full");
+    EventAppender::Options options;
+    options.capacity = 100;
+    options.maxLines = 1000;
+    options.maxDelayMs = 60000;
+    EventAppender* appender = EventAppender::open(path.c_str(), options);
+    if (appender == nullptr) return;
+    std::string expected;
+    for (int i = 0; i < 200; ++i) {
+        const std::string line = "line " + std::to_string(i) + (i % 3 == 0 ? " with some more text\n" : "\n");
+        expected += line;
+        EXPECT(append(appender, line) >= 0, "append %d", i);
+        EXPECT(appender->pending() <= options.capacity, "pending %zu", appender->pending());
+    }
+    appender->close();
+    EXPECT(readFile(path) == expected, "content after full buffers");
+    unlink(path.c_str());
+}
+
+void testLineLargerThanBuffer() {
+    const std::string path = tempPath("large");
+    EventAppender::Options options;
+    options.capacity = 32;
+    EventAppender* appender = EventAppender::open(path.c_str(), options);
+    if (appender == nullptr) return;
+    const std::string small = "small\n";
+    const std::string large = std::string(100, 'x') + "\n";
+    append(appender, small);
+    EXPECT(append(appender, large) == (long) (small.size() + large.size()), "large line not written with the batch");
+    appender->close();
+    EXPECT(readFile(path) == small + large, "order of buffered and direct lines");
+    unlink(path.c_str());
+}
+
+void testFlushesOnSigterm() {
+    const std::string path = tempPath("sigterm");
+    const pid_t child = fork();
+    if (child == 0) {
+        EventAppender::Options options;
+        options.maxLines = 1000;
+        options.maxDelayMs = 60000;
+        EventAppender* appender = EventAppender::open(path.c_str(), options);
+        if (appender == nullptr) _exit(2);
+        for (int i = 0; i < 10; ++i) append(appender, eventLine(i));
+        kill(getpid(), SIGTERM);
+        _exit(3);  // not reached: the default disposition is chained after the flush
+    }
+    int status = 0;
+    waitpid(child, &status, 0);
+    EXPECT(WIFSIGNALED(status) && WTERMSIG(status) == SIGTERM, "child did not terminate by SIGTERM, status %d", status);
+    std::string expected;
+    for (int i = 0; i < 10; ++i) expected += eventLine(i);
+    EXPECT(readFile(path) == expected, "pending lines not flushed on SIGTERM");
+    unlink(path.c_str());
+}
+
+// Before: what NativeLib.appendLog does per line.
+void appendPerOpen(const std::string& path, const std::string& line, bool sync) {
+    const int fd = open(path.c_str(), O_WRONLY | O_CREAT | O_APPEND, 0644);
+    if (fd < 0) return;
+    if (write(fd, line.data(), line.size()) < 0) std::printf("write failed\n");
+    if (sync) fsync(fd);
+    close(fd);
+}
+
+double perLineMicros(int lines, bool sync, bool persistent, int maxLines) {
+    const std::string path = tempPath("bench");
+    const auto start = std::chrono::steady_clock::now();
+    if (persistent) {
+        EventAppender::Options options;
+        options.maxLines = maxLines;
+        options.syncOnFlush = sync;
+        EventAppender* appender = EventAppender::open(path.c_str(), options);
+        if (appender == nullptr) return 0;
+        for (int i = 0; i < lines; ++i) append(appender, eventLine(i));
+        appender->close();
+    } else {
+        for (int i = 0; i < lines; ++i) appendPerOpen(path, eventLine(i), sync);
+    }
+    const double micros = std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count();
+    unlink(path.c_str());
+    return micros / lines;
+}
+
+void benchmark() {
+    const int lines = 2000;
+    std::printf("%d event lines in %s, us per line:\n", lines, gDir.c_str());
+    std::printf("  open/write/close per line        %8.2f\n", perLineMicros(lines, false, false, 1));
+    std::printf("  appender, write per line         %8.2f\n", perLineMicros(lines, false, true, 1));
+    std::printf("  appender, batches of 16          %8.2f\n", perLineMicros(lines, false, true, 16));
+    const int synced = 200;
+    std::printf("%d event lines with fsync/fdatasync, us per line:\n", synced);
+    std::printf("  open/write/fsync/close per line  %8.2f\n", perLineMicros(synced, true, false, 1));
+    std::printf("  appender, fdatasync per line     %8.2f\n", perLineMicros(synced, true, true, 1));
+    std::printf("  appender, fdatasync per 16 lines %8.2f\n", perLineMicros(synced, true, true, 16));
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    if (argc > 1) gDir = argv[1];
+    testBatchesByLineCount();
+    testBufferFull();
+    testLineLargerThanBuffer();
+    testFlushesOnSigterm();
+    benchmark();
+    if (gFailures != 0) {
+        std::printf("%d failure(s)\n", gFailures);
+        return 1;
+    }
+    std::printf("all tests passed\n");
+    return 0;
+}
@@ -0,0 +1,222 @@
+// Host test of the atomic image writes and the sweeper, and a benchmark of
+// plain (O_TRUNC) against atomic preallocated writes, with the number of
+// extents per file where the file system reports them (FIEMAP).
+//
+//   ./build/host-tests/file_write_test [directory on the storage to measure]
+
+#include "file_write.h"
+
+#include <algorithm>
+#include <cerrno>
+#include <chrono>
+#include <csignal>
+#include <cstdio>
+#include <cstring>
+#include <dirent.h>
+#include <fcntl.h>
+#include <linux/fiemap.h>
+#include <linux/fs.h>
+#include <random>
+#include <string>
+#include <sys/ioctl.h>
+#include <sys/stat.h>
+#include <sys/wait.h>
+#include <unistd.h>
+#include <vector>
+
+namespace {
+
+int gFailures = 0;
+
+#define EXPECT(cond, ...)                                         \
+    do {                                                          \
+        if (!(cond)) {                                            \
+            std::printf("FAIL %s:%d: ", __FILE__, __LINE__);      \
+            std::printf(__VA_ARGS__);                             \
+            std::printf("\n");                                    \
+            gFailures++;                                          \
+        }                                                         \
+    } while (0)
+
+std::string gBase = "/tmp";
+
+std::string makeDir(const char* name) {
+    const std::string dir = gBase + "/file_write_" + std::to_string(getpid()) + "_" + name;
+    mkdir(dir.c_str(), 0755);
+    return dir;
+}
+
+std::vector<std::string> list(const std::string& dir) {
+    std::vector<std::string> names;
+    DIR* d = opendir(dir.c_str());
+    if (d == nullptr) return names;
+    while (dirent* e = readdir(d)) {
+        if (strcmp(e->d_name, ".") != 0 && strcmp(e->d_name, "..") != 0) names.push_back(e->d_name);
+    }
+    closedir(d);
+    std::sort(names.begin(), names.end());
+    return names;
+}
+
+void removeDir(const std::string& dir) {
+    for (const auto& name : list(dir)) unlink((dir + "/" + name).c_str());
+    rmdir(dir.c_str());
+}
+
+off_t sizeOf(const std::string& path) {
+    struct stat st;
+    return stat(path.c_str(), &st) == 0 ? st.st_size : -1;
+}
+
+std::vector<uint8_t> jpeg(size_t size, int seed) {
+    std::vector<uint8_t> data(size);
+    std::mt19937 random(seed);
+    for (auto& b : data) b = (uint8_t) random();
+    return data;
+}
+
+void testAtomicReplace() {
+    const std::string dir = makeDir("replace");
+    const std::string path = dir + "/IMG_1.jpg";
+    const auto first = jpeg(100000, 1);
+    const auto second = jpeg(5000, 2);
+    EXPECT(file_write(path.c_str(), first.data(), first.size(), kWriteAtomic) == 0, "first write");
+    EXPECT(file_write(path.c_str(), second.data(), second.size(), kWriteAtomic) == 0, "second write");
+    EXPECT(sizeOf(path) == (off_t) second.size(), "size %lld after replace", (long long) sizeOf(path));
+    EXPECT(list(dir) == std::vector<std::string>{"IMG_1.jpg"}, "leftover files");
+    EXPECT(file_write((dir + "/missing/IMG_2.jpg").c_str(), first.data(), first.size(), kWriteAtomic) == ENOENT,
+           "missing directory");
+    EXPECT(list(dir).size() == 1, "partial left after a failed write");
+    removeDir(dir);
+}
+
+void testSweep() {
+    const std::string dir = makeDir("sweep");
+    const auto data = jpeg(10, 3);
+    file_write((dir + "/IMG_1.jpg").c_str(), data.data(), data.size(), 0);
+    file_write((dir + "/IMG_2.jpg.partial").c_str(), data.data(), data.size(), 0);
+    file_write((dir + "/.partial").c_str(), data.data(), data.size(), 0);
+    EXPECT(file_sweep_partial(dir.c_str(), 3600) == 0, "recent partial removed");
+    EXPECT(file_sweep_partial(dir.c_str(), 0) == 1, "partial not removed");
+    EXPECT((list(dir) == std::vector<std::string>{".partial", "IMG_1.jpg"}), "files after sweep");
+    EXPECT(file_sweep_partial((dir + "/missing").c_str(), 0) == -1, "missing directory");
+    removeDir(dir);
+}
+
+// A writer killed at random points (a stand-in for a power cut, which also
+// loses the page cache): with atomic writes every image under its final name is
+// complete, with plain writes some are truncated.
+int crashRun(int flags, int* truncated, int* partials) {
+    const std::string dir = makeDir(flags & kWriteAtomic ? "crash_atomic" : "crash_plain");
+    const size_t size = 2 * 1024 * 1024;
+    const auto data = jpeg(size, 4);
+    std::mt19937 random(7);
+    for (int round = 0; round < 20; ++round) {
+        const pid_t child = fork();
+        if (child == 0) {
+            for (int i = 0;; ++i) {
+                const std::string path = dir + "/IMG_" + std::to_string(round) + "_" + std::to_string(i) + ".jpg";
+                file_write(path.c_str(), data.data(), data.size(), flags);
+            }
+        }
+        usleep(2000 + random() % 20000);
+        kill(child, SIGKILL);
+        waitpid(child, nullptr, 0);
+    }
+    *truncated = 0;
+    *partials = 0;
+    int complete = 0;
+    for (const auto& name : list(dir)) {
+        const size_t suffix = strlen(kPartialSuffix);
+        if (name.size() > suffix && name.compare(name.size() - suffix, suffix, kPartialSuffix) == 0) {
+            (*partials)++;
+        } else if (sizeOf(dir + "/" + name) == (off_t) size) {
+            complete++;
+        } else {
+            (*truncated)++;
+        }
+    }
+    if (*partials > 0) EXPECT(file_sweep_partial(dir.c_str(), 0) == *partials, "sweep after crash");
+    removeDir(dir);
+    return complete;
+}
+
+void testCrashConsistency() {
+    int truncated = 0;
+    int partials = 0;
+    const int atomicComplete = crashRun(kWriteAtomic, &truncated, &partials);
+    EXPECT(truncated == 0, "%d truncated images with atomic writes", truncated);
+    std::printf("killed writer, atomic: %d complete, %d truncated, %d partials swept\n", atomicComplete, truncated,
+                partials);
+    const int plainComplete = crashRun(0, &truncated, &partials);
+    std::printf("killed writer, plain:  %d complete, %d truncated\n", plainComplete, truncated);
+}
+
+// Extents of the file, -1 if the file system does not report them.
+int extents(const std::string& path) {
+    const int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0) return -1;
+    fiemap map = {};
+    map.fm_length = FIEMAP_MAX_OFFSET;
+    map.fm_flags = FIEMAP_FLAG_SYNC;
+    const int result = ioctl(fd, FS_IOC_FIEMAP, &map);
+    close(fd);
+    return result == 0 ? (int) map.fm_mapped_extents : -1;
+}
+
+void benchmarkRun(const char* label, int flags) {
+    const std::string dir = makeDir("bench");
+    const int files = 30;
+    // Two writers interleaved, as the image queue and the logger do on the card.
+    const auto image = jpeg(3 * 1024 * 1024, 5);
+    const auto log = jpeg(64 * 1024, 6);
+    double total = 0;
+    double worst = 0;
+    for (int i = 0; i < files; ++i) {
+        const auto start = std::chrono::steady_clock::now();
+        file_write((dir + "/IMG_" + std::to_string(i) + ".jpg").c_str(), image.data(), image.size(), flags);
+        const double ms = std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count();
+        total += ms;
+        worst = std::max(worst, ms);
+        file_write((dir + "/log.txt").c_str(), log.data(), log.size(), kWriteAppend);
+    }
+    int extentSum = 0;
+    int measured = 0;
+    for (int i = 0; i < files; ++i) {
+        const int n = extents(dir + "/IMG_" + std::to_string(i) + ".jpg");
+        if (n >= 0) {
+            extentSum += n;
+            measured++;
+        }
+    }
+    if (measured > 0) {
+        std::printf("  %-22s %7.2f ms/file, max %7.2f ms, %.2f extents/file\n", label, total / files, worst,
+                    (double) extentSum / measured);
+    } else {
+        std::printf("  %-22s %7.2f ms/file, max %7.2f ms, extents n/a\n", label, total / files, worst);
+    }
+    removeDir(dir);
+}
+
+void benchmark() {
+    std::printf("30 x 3 MB images in %s:\n", gBase.c_str());
+    benchmarkRun("plain", 0);
+    benchmarkRun("plain + fsync", kWriteSync);
+    benchmarkRun("atomic (fallocate)", kWriteAtomic);
+}
+
+} // namespace
+
+int main(int argc, char** argv) {
+    if (argc > 1) gBase = argv[1];
+    testAtomicReplace();
+    testSweep();
+    testCrashConsistency();
+    benchmark();
+    if (gFailures != 0) {
+        std::printf("%d failure(s)\n", gFailures);
+        return 1;
+    }
+    std::printf("all tests passed\n");
+    return 0;
+}
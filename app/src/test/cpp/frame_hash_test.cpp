@@ -0,0 +1,224 @@
+// Host test of the frame dHash and the persistent multi-index against a
+// linear scan, and query times for a month of captures.
+//
+//   ./build/host-tests/frame_hash_test
+
+#include "frame_hash.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <random>
+#include <string>
+#include <unistd.h>
+#include <vector>
+
+namespace {
+
+int gFailures = 0;
+
+#define EXPECT(cond, ...)                                         \
+    do {                                                          \
+        if (!(cond)) {                                            \
+            std::printf("FAIL %s:%d: ", __FILE__, __LINE__);      \
+            std::printf(__VA_ARGS__);                             \
+            std::printf("\n");                                    \
+            gFailures++;                                          \
+        }                                                         \
+    } while (0)
+
+const int kWidth = 320;
+const int kHeight = 240;
+const int64_t kMinute = 60 * 1000;
+
+// Smooth random scene (a few blobs) with noise and an exposure offset.
+std::vector<uint8_t> scene(int seed, int offset, int noise, std::mt19937& random) {
+    std::mt19937 layout(seed);
+    std::vector<uint8_t> plane((size_t) kWidth * kHeight);
+    int cx[6], cy[6], level[6];
+    for (int i = 0; i < 6; ++i) {
+        cx[i] = (int) (layout() % kWidth);
+        cy[i] = (int) (layout() % kHeight);
+        level[i] = (int) (layout() % 120) - 60;
+    }
+    std::uniform_int_distribution<int> n(-noise, noise);
+    for (int y = 0; y < kHeight; ++y) {
+        for (int x = 0; x < kWidth; ++x) {
+            double v = 110;
+            for (int i = 0; i < 6; ++i) {
+                const double dx = x - cx[i];
+                const double dy = y - cy[i];
+                v += level[i] * 4000.0 / (4000.0 + dx * dx + dy * dy);
+            }
+            const int p = (int) v + offset + n(random);
+            plane[(size_t) y * kWidth + x] = (uint8_t) std::min(255, std::max(0, p));
+        }
+    }
+    return plane;
+}
+
+uint64_t hashOf(const std::vector<uint8_t>& plane) {
+    return frame_dhash({plane.data(), kWidth, kHeight, kWidth, 1});
+}
+
+void testHashIsStable() {
+    std::mt19937 random(1);
+    int worstSame = 0;
+    int closestOther = 64;
+    for (int seed = 0; seed < 20; ++seed) {
+        const uint64_t base = hashOf(scene(seed, 0, 0, random));
+        worstSame = std::max(worstSame, frame_hash_distance(base, hashOf(scene(seed, 0, 6, random))));
+        worstSame = std::max(worstSame, frame_hash_distance(base, hashOf(scene(seed, 20, 6, random))));
+        closestOther = std::min(closestOther, frame_hash_distance(base, hashOf(scene(seed + 100, 0, 6, random))));
+    }
+    std::printf("dhash distance: same scene with noise/exposure <= %d, other scenes >= %d\n", worstSame, closestOther);
+    EXPECT(worstSame <= 4, "same scene distance %d", worstSame);
+    EXPECT(closestOther > worstSame, "other scene distance %d", closestOther);
+
+    std::vector<uint32_t> argb((size_t) kWidth * kHeight);
+    const auto plane = scene(3, 0, 0, random);
+    for (size_t i = 0; i < argb.size(); ++i) argb[i] = 0xff000000u | plane[i] * 0x010101u;
+    EXPECT(frame_hash_distance(frame_dhash_argb(argb.data(), kWidth, kHeight), hashOf(plane)) <= 1, "argb hash");
+}
+
+// Brute force reference of findNear.
+bool linearNear(const std::vector<std::pair<uint64_t, int64_t>>& all, uint64_t hash, int64_t now, int64_t window,
+                int maxDistance, FrameHashIndex::Match* match) {
+    bool found = false;
+    FrameHashIndex::Match best = {0, 0, maxDistance + 1};
+    for (const auto& e : all) {
+        if (e.second > now || now - e.second > window) continue;
+        const int d = frame_hash_distance(hash, e.first);
+        if (d > maxDistance) continue;
+        if (d < best.distance || (d == best.distance && e.second > best.timeMs)) {
+            best = {e.first, e.second, d};
+            found = true;
+        }
+    }
+    if (found) *match = best;
+    return found;
+}
+
+uint64_t flipBits(uint64_t hash, int bits, std::mt19937_64& random) {
+    for (int i = 0; i < bits; ++i) hash ^= (uint64_t) 1 << (random() % 64);
+    return hash;
+}
+
+void testIndexMatchesLinearScan() {
+    std::mt19937_64 random(2);
+    FrameHashIndex index(60 * kMinute);
+    std::vector<std::pair<uint64_t, int64_t>> all;
+    std::vector<uint64_t> bases;
+    for (int i = 0; i < 20; ++i) bases.push_back(random());
+    int64_t now = 0;
+    int mismatches = 0;
+    int hits = 0;
+    for (int i = 0; i < 3000; ++i) {
+        now += 30000;
+        index.prune(now);
+        all.erase(std::remove_if(all.begin(), all.end(), [&](const std::pair<uint64_t, int64_t>& e) {
+            return now - e.second >= 60 * kMinute;
+        }), all.end());
+        const uint64_t query = flipBits(bases[random() % bases.size()], (int) (random() % 10), random);
+        for (int distance : {0, 3, 5, 7, 11}) {
+            for (int64_t window : {5 * kMinute, 30 * kMinute}) {
+                FrameHashIndex::Match a = {}, b = {};
+                const bool fa = index.findNear(query, now, window, distance, &a);
+                const bool fb = linearNear(all, query, now, window, distance, &b);
+                hits += fb;
+                if (fa != fb || (fa && (a.distance != b.distance || a.timeMs != b.timeMs))) {
+                    if (mismatches++ == 0) {
+                        std::printf("first mismatch: distance %d window %lld: index %d/%d/%lld, linear %d/%d/%lld\n",
+                                    distance, (long long) window, fa, a.distance, (long long) a.timeMs, fb, b.distance,
+                                    (long long) b.timeMs);
+                    }
+                }
+            }
+        }
+        index.add(query, now);
+        all.emplace_back(query, now);
+    }
+    EXPECT(mismatches == 0, "%d queries differ from the linear scan", mismatches);
+    EXPECT(index.size() == all.size(), "size %zu vs %zu", index.size(), all.size());
+    EXPECT(hits > 1000, "only %d hits", hits);
+}
+
+void testPersistence() {
+    const std::string path = "/tmp/frame_hash_" + std::to_string(getpid()) + ".idx";
+    unlink(path.c_str());
+    const int64_t now = 1700000000000LL;
+    {
+        FrameHashIndex index(60 * kMinute);
+        EXPECT(index.load(path, now), "load of a new file");
+        index.add(0x1111, now - 90 * kMinute);  // already beyond retention at the next load
+        index.add(0x2222, now - 10 * kMinute);
+        index.add(0x3333, now);
+    }
+    // A torn record after a power cut.
+    FILE* file = std::fopen(path.c_str(), "ab");
+    std::fwrite("\x44\x44\x44", 1, 3, file);
+    std::fclose(file);
+    {
+        FrameHashIndex index(60 * kMinute);
+        EXPECT(index.load(path, now + kMinute), "reload");
+        EXPECT(index.size() == 2, "size %zu after reload", index.size());
+        FrameHashIndex::Match match = {};
+        EXPECT(index.findNear(0x2223, now + kMinute, 30 * kMinute, 2, &match) && match.hash == 0x2222,
+               "entry lost across restart");
+        EXPECT(!index.findNear(0x1111, now + kMinute, 1000 * kMinute, 0, &match), "expired entry kept");
+        index.add(0x4444, now + kMinute);
+    }
+    FILE* compacted = std::fopen(path.c_str(), "rb");
+    std::fseek(compacted, 0, SEEK_END);
+    const long size = std::ftell(compacted);
+    std::fclose(compacted);
+    EXPECT(size == 8 + 3 * 16, "file size %ld after compaction and one append", size);
+    std::string partial = path + ".partial";
+    EXPECT(access(partial.c_str(), F_OK) != 0, "partial file left");
+    unlink(path.c_str());
+}
+
+// A month of captures every 30 s, queried for the last 10 minutes.
+void benchmark() {
+    std::mt19937_64 random(3);
+    FrameHashIndex index(31LL * 24 * 60 * kMinute);
+    std::vector<std::pair<uint64_t, int64_t>> all;
+    int64_t now = 0;
+    for (int i = 0; i < 31 * 24 * 120; ++i) {
+        now += 30000;
+        const uint64_t hash = random();
+        index.add(hash, now);
+        all.emplace_back(hash, now);
+    }
+    std::vector<uint64_t> queries;
+    for (int i = 0; i < 1000; ++i) queries.push_back(flipBits(all[random() % all.size()].first, 3, random));
+    FrameHashIndex::Match match;
+    size_t candidates = 0;
+    auto start = std::chrono::steady_clock::now();
+    for (uint64_t q : queries) {
+        index.findNear(q, now, 31LL * 24 * 60 * kMinute, 5, &match);
+        candidates += index.lastCandidates();
+    }
+    const double indexed = std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count();
+    start = std::chrono::steady_clock::now();
+    int found = 0;
+    for (uint64_t q : queries) found += linearNear(all, q, now, 31LL * 24 * 60 * kMinute, 5, &match);
+    const double linear = std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count();
+    std::printf("%zu hashes: multi-index %.2f us/query (%zu candidates), linear scan %.1f us/query, %d found\n",
+                all.size(), indexed / queries.size(), candidates / queries.size(), linear / queries.size(), found);
+}
+
+} // namespace
+
+int main() {
+    testHashIsStable();
+    testIndexMatchesLinearScan();
+    testPersistence();
+    benchmark();
+    if (gFailures != 0) {
+        std::printf("%d failure(s)\n", gFailures);
+        return 1;
+    }
+    std::printf("all tests passed\n");
+    return 0;
+}
@@ -0,0 +1,134 @@
+// Host test of the one-pass exposure analysis against a brute force reference.
+//
+//   ./build/host-tests/luma_exposure_test
+
+#include "luma_exposure.h"
+#include "luma_kernels.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cmath>
+#include <cstdio>
+#include <cstring>
+#include <random>
+#include <vector>
+
+namespace {
+
+int gFailures = 0;
+
+#define EXPECT(cond, ...)                                         \
+    do {                                                          \
+        if (!(cond)) {                                            \
+            std::printf("FAIL %s:%d: ", __FILE__, __LINE__);      \
+            std::printf(__VA_ARGS__);                             \
+            std::printf("\n");                                    \
+            gFailures++;                                          \
+        }                                                         \
+    } while (0)
+
+template <typename T>
+T get(const std::vector<uint8_t>& out, size_t offset) {
+    T value;
+    std::memcpy(&value, out.data() + offset, sizeof(value));
+    return value;
+}
+
+int referencePercentile(std::vector<uint8_t> values, double fraction) {
+    std::sort(values.begin(), values.end());
+    const size_t rank = std::max<size_t>(1, (size_t) (fraction * values.size() + 0.5));
+    return values[rank - 1];
+}
+
+void testMatchesReference(int width, int height, int pixelStride, const ExposureParams& p) {
+    std::mt19937 random(width * 31 + height);
+    std::vector<uint8_t> y(width * height);
+    for (int row = 0; row < height; ++row) {
+        for (int x = 0; x < width; ++x) {
+            // Dark frame with a clipped light source in the upper left.
+            const bool light = x < width / 4 && row < height / 4;
+            y[(size_t) row * width + x] = light ? (uint8_t) (245 + random() % 11) : (uint8_t) (random() % 40);
+        }
+    }
+    const int rowStride = width * pixelStride + 3;
+    std::vector<uint8_t> plane((size_t) rowStride * height);
+    for (int row = 0; row < height; ++row) {
+        for (int x = 0; x < width; ++x) plane[(size_t) row * rowStride + (size_t) x * pixelStride] = y[(size_t) row * width + x];
+    }
+
+    std::vector<uint8_t> out(exposure::bufferSize(p.cols, p.rows));
+    EXPECT(luma_analyze_exposure({plane.data(), width, height, rowStride, pixelStride}, p, out.data(), out.size()),
+           "analysis rejected %dx%d", width, height);
+
+    uint64_t sum = 0;
+    uint64_t crushed = 0;
+    uint64_t clipped = 0;
+    for (uint8_t v : y) {
+        sum += v;
+        crushed += v <= p.crushedLevel;
+        clipped += v >= p.clippedLevel;
+    }
+    const double n = (double) y.size();
+    EXPECT(get<int32_t>(out, exposure::kCountOffset) == width * height, "count");
+    EXPECT(std::fabs(get<float>(out, exposure::kMeanOffset) - sum / n) < 1e-3, "mean");
+    EXPECT(get<int32_t>(out, exposure::kMinOffset) == *std::min_element(y.begin(), y.end()), "min");
+    EXPECT(get<int32_t>(out, exposure::kMaxOffset) == *std::max_element(y.begin(), y.end()), "max");
+    EXPECT(get<int32_t>(out, exposure::kP5Offset) == referencePercentile(y, 0.05), "p5");
+    EXPECT(get<int32_t>(out, exposure::kP50Offset) == referencePercentile(y, 0.50), "p50");
+    EXPECT(get<int32_t>(out, exposure::kP95Offset) == referencePercentile(y, 0.95), "p95");
+    EXPECT(std::fabs(get<float>(out, exposure::kCrushedOffset) - crushed / n) < 1e-6, "crushed");
+    EXPECT(std::fabs(get<float>(out, exposure::kClippedOffset) - clipped / n) < 1e-6, "clipped");
+    for (int row = 0; row < p.rows; ++row) {
+        for (int col = 0; col < p.cols; ++col) {
+            uint64_t cellSum = 0;
+            uint64_t cellCount = 0;
+            for (int yy = row * height / p.rows; yy < (row + 1) * height / p.rows; ++yy) {
+                for (int x = col * width / p.cols; x < (col + 1) * width / p.cols; ++x) {
+                    cellSum += y[(size_t) yy * width + x];
+                    cellCount++;
+                }
+            }
+            const float cell = get<float>(out, exposure::kCellsOffset + ((size_t) row * p.cols + col) * 4);
+            EXPECT(std::fabs(cell - (double) cellSum / cellCount) < 1e-3, "cell %d,%d", col, row);
+        }
+    }
+}
+
+void testRejectsSmallBuffer() {
+    std::vector<uint8_t> y(64 * 48, 10);
+    std::vector<uint8_t> out(exposure::bufferSize(8, 6) - 1);
+    EXPECT(!luma_analyze_exposure({y.data(), 64, 48, 64, 1}, {8, 6, 8, 250}, out.data(), out.size()),
+           "small buffer accepted");
+}
+
+void benchmark() {
+    const int width = 640;
+    const int height = 480;
+    std::vector<uint8_t> y(width * height);
+    std::mt19937 random(5);
+    for (auto& v : y) v = (uint8_t) random();
+    std::vector<uint8_t> out(exposure::bufferSize(8, 6));
+    double best = 1e18;
+    for (int round = 0; round < 20; ++round) {
+        const auto start = std::chrono::steady_clock::now();
+        luma_analyze_exposure({y.data(), width, height, width, 1}, {8, 6, 8, 250}, out.data(), out.size());
+        best = std::min(best, std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count());
+    }
+    std::printf("exposure analysis %dx%d, 8x6 grid: %.1f us (%s)\n", width, height, best, luma_kernels().name);
+}
+
+} // namespace
+
+int main() {
+    testMatchesReference(320, 240, 1, {8, 6, 8, 250});
+    testMatchesReference(333, 101, 2, {5, 3, 10, 245});
+    testMatchesReference(17, 9, 1, {17, 9, 0, 255});
+    testRejectsSmallBuffer();
+    benchmark();
+    if (gFailures != 0) {
+        std::printf("%d failure(s)\n", gFailures);
+        return 1;
+    }
+    std::printf("all tests passed\n");
+    return 0;
+}
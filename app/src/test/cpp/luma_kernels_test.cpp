@@ -0,0 +1,147 @@
+// Host test of the luminance kernels: every kernel the CPU can run must match
+// the scalar reference exactly, and the throughput of each is printed.
+//
+//   cmake -S app/src/test/cpp -B build/host-tests && cmake --build build/host-tests
+//   ./build/host-tests/luma_kernels_test
+
+#include "luma_kernels.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <random>
+#include <vector>
+
+namespace {
+
+int gFailures = 0;
+
+#define EXPECT(cond, ...)                                         \
+    do {                                                          \
+        if (!(cond)) {                                            \
+            std::printf("FAIL %s:%d: ", __FILE__, __LINE__);      \
+            std::printf(__VA_ARGS__);                             \
+            std::printf("\n");                                    \
+            gFailures++;                                          \
+        }                                                         \
+    } while (0)
+
+// The formula of the original scalar loop, in exact arithmetic.
+double referenceLuma(uint32_t pixel) {
+    return 0.299 * ((pixel >> 16) & 0xFF) + 0.587 * ((pixel >> 8) & 0xFF) + 0.114 * (pixel & 0xFF);
+}
+
+bool sameStats(const LumaStats& a, const LumaStats& b) {
+    return a.sum == b.sum && a.count == b.count && a.min == b.min && a.max == b.max
+           && std::memcmp(a.histogram, b.histogram, sizeof(a.histogram)) == 0;
+}
+
+void testFixedPointFormula() {
+    double maxError = 0;
+    for (uint32_t r = 0; r < 256; r += 5) {
+        for (uint32_t g = 0; g < 256; g += 3) {
+            for (uint32_t b = 0; b < 256; ++b) {
+                const uint32_t pixel = 0xFF000000u | (r << 16) | (g << 8) | b;
+                const double error = luma_of_argb(pixel) - referenceLuma(pixel);
+                maxError = std::max(maxError, error < 0 ? -error : error);
+            }
+        }
+    }
+    EXPECT(maxError <= 1.0, "fixed point luma differs by %.3f", maxError);
+}
+
+void testKernelsMatchScalar(const LumaKernels* const* kernels, size_t n) {
+    std::mt19937 random(1);
+    // Odd sizes exercise the scalar tails of the vector loops.
+    const size_t sizes[] = {0, 1, 15, 16, 17, 31, 33, 64, 1000, 4096 + 7, 640 * 480};
+    for (size_t size : sizes) {
+        std::vector<uint32_t> argb(size);
+        std::vector<uint8_t> gray(size);
+        for (size_t i = 0; i < size; ++i) {
+            argb[i] = random();
+            gray[i] = (uint8_t) random();
+        }
+        if (size > 10) {
+            // Extremes, in the middle of a vector.
+            argb[5] = 0xFF000000u;
+            argb[size - 5] = 0xFFFFFFFFu;
+            gray[7] = 0;
+            gray[size - 7] = 255;
+        }
+        LumaStats expectedArgb;
+        LumaStats expectedGray;
+        luma_stats_reset(&expectedArgb);
+        luma_stats_reset(&expectedGray);
+        luma_kernels_scalar().argb(argb.data(), size, &expectedArgb);
+        luma_kernels_scalar().gray(gray.data(), size, &expectedGray);
+        for (size_t k = 0; k < n; ++k) {
+            LumaStats stats;
+            luma_stats_reset(&stats);
+            kernels[k]->argb(argb.data(), size, &stats);
+            EXPECT(sameStats(stats, expectedArgb), "%s argb size=%zu", kernels[k]->name, size);
+
+            luma_stats_reset(&stats);
+            kernels[k]->gray(gray.data(), size, &stats);
+            EXPECT(sameStats(stats, expectedGray), "%s gray size=%zu", kernels[k]->name, size);
+
+            // Statistics accumulate over calls, e.g. row by row.
+            luma_stats_reset(&stats);
+            kernels[k]->gray(gray.data(), size / 2, &stats);
+            kernels[k]->gray(gray.data() + size / 2, size - size / 2, &stats);
+            EXPECT(sameStats(stats, expectedGray), "%s gray in two parts size=%zu", kernels[k]->name, size);
+        }
+    }
+}
+
+template <typename T, typename Kernel>
+double pixelsPerNs(Kernel kernel, const std::vector<T>& data) {
+    LumaStats stats;
+    double best = 0;
+    for (int round = 0; round < 5; ++round) {
+        luma_stats_reset(&stats);
+        const auto start = std::chrono::steady_clock::now();
+        for (int i = 0; i < 10; ++i) {
+            kernel(data.data(), data.size(), &stats);
+        }
+        const double ns = std::chrono::duration<double, std::nano>(std::chrono::steady_clock::now() - start).count();
+        best = std::max(best, 10.0 * data.size() / ns);
+    }
+    // Keep the result alive.
+    if (stats.count == 0) std::printf("?");
+    return best;
+}
+
+void benchmark(const LumaKernels* const* kernels, size_t n) {
+    // 12 MP, the size of a full resolution capture.
+    const size_t size = 4000 * 3000;
+    std::mt19937 random(2);
+    std::vector<uint32_t> argb(size);
+    std::vector<uint8_t> gray(size);
+    for (size_t i = 0; i < size; ++i) {
+        argb[i] = random();
+        gray[i] = (uint8_t) argb[i];
+    }
+    std::printf("%-8s %12s %12s\n", "kernel", "argb px/ns", "gray px/ns");
+    for (size_t k = 0; k < n; ++k) {
+        std::printf("%-8s %12.3f %12.3f\n", kernels[k]->name,
+                    pixelsPerNs(kernels[k]->argb, argb), pixelsPerNs(kernels[k]->gray, gray));
+    }
+    std::printf("selected: %s\n", luma_kernels().name);
+}
+
+} // namespace
+
+int main() {
+    const LumaKernels* kernels[8];
+    const size_t n = luma_kernels_available(kernels, 8);
+    testFixedPointFormula();
+    testKernelsMatchScalar(kernels, n);
+    benchmark(kernels, n);
+    if (gFailures != 0) {
+        std::printf("%d failure(s)\n", gFailures);
+        return 1;
+    }
+    std::printf("all tests passed\n");
+    return 0;
+}
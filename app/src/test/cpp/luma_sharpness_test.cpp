@@ -0,0 +1,193 @@
+// Host test of the Laplacian variance sharpness on synthetic Y planes with
+// motion blur, sensor noise and clipping, and its cost per frame.
+//
+//   ./build/host-tests/luma_sharpness_test
+
+#include "luma_sharpness.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <random>
+#include <vector>
+
+namespace {
+
+int gFailures = 0;
+
+#define EXPECT(cond, ...)                                         \
+    do {                                                          \
+        if (!(cond)) {                                            \
+            std::printf("FAIL %s:%d: ", __FILE__, __LINE__);      \
+            std::printf(__VA_ARGS__);                             \
+            std::printf("\n");                                    \
+            gFailures++;                                          \
+        }                                                         \
+    } while (0)
+
+const int kWidth = 640;
+const int kHeight = 480;
+
+// A road scene with detail at several scales: sky gradient, lane marks,
+// buildings with windows, and a plate-sized high contrast pattern.
+std::vector<int> sharpScene() {
+    std::vector<int> scene((size_t) kWidth * kHeight);
+    for (int y = 0; y < kHeight; ++y) {
+        for (int x = 0; x < kWidth; ++x) {
+            int v;
+            if (y < kHeight / 3) {
+                v = 170 - y / 4;
+            } else if (y < kHeight / 2) {
+                v = ((x / 40) % 2) ? 90 : 120;
+                if ((x % 40) > 8 && (x % 40) < 20 && (y % 24) > 6 && (y % 24) < 16) v = 200;
+            } else {
+                v = 70;
+                if (std::abs(x - kWidth / 2) < 4 && (y / 20) % 2 == 0) v = 220;
+            }
+            if (x >= 300 && x < 340 && y >= 300 && y < 320) v = ((x / 3 + y / 3) % 2) ? 30 : 230;
+            scene[(size_t) y * kWidth + x] = v;
+        }
+    }
+    return scene;
+}
+
+// Horizontal motion blur over length pixels, exposure gain, noise, clamped to 8 bits.
+std::vector<uint8_t> render(const std::vector<int>& scene, int length, float gain, int noise, std::mt19937& random,
+                            int pixelStride = 1) {
+    std::vector<uint8_t> plane((size_t) kWidth * kHeight * pixelStride);
+    std::uniform_int_distribution<int> n(-noise, noise);
+    for (int y = 0; y < kHeight; ++y) {
+        const int* row = scene.data() + (size_t) y * kWidth;
+        for (int x = 0; x < kWidth; ++x) {
+            int sum = 0;
+            int count = 0;
+            for (int i = 0; i < std::max(1, length); ++i) {
+                const int sx = x + i - length / 2;
+                if (sx < 0 || sx >= kWidth) continue;
+                sum += row[sx];
+                count++;
+            }
+            const int v = (int) (gain * sum / count) + n(random);
+            plane[((size_t) y * kWidth + x) * pixelStride] = (uint8_t) std::min(255, std::max(0, v));
+        }
+    }
+    return plane;
+}
+
+LumaPlane planeOf(const std::vector<uint8_t>& data, int pixelStride = 1) {
+    return {data.data(), kWidth, kHeight, kWidth * pixelStride, pixelStride};
+}
+
+// Fraction of pixels at or above 250, as the exposure analysis counts them.
+float clippedFraction(const std::vector<uint8_t>& plane) {
+    return (float) std::count_if(plane.begin(), plane.end(), [](uint8_t v) { return v >= 250; }) / plane.size();
+}
+
+void testBlurLowersSharpness() {
+    std::mt19937 random(1);
+    const auto scene = sharpScene();
+    float previous = 1e30f;
+    for (int length : {0, 3, 6, 12, 24}) {
+        const float s = luma_sharpness(planeOf(render(scene, length, 1, 4, random)), 160);
+        std::printf("motion blur %2d px: sharpness %.1f\n", length, s);
+        EXPECT(s < previous, "blur %d: %.1f not below %.1f", length, s, previous);
+        previous = s;
+    }
+}
+
+void testNoiseIsNotDetail() {
+    std::mt19937 random(2);
+    const auto scene = sharpScene();
+    // A noisy sharp frame still beats a clean frame with a little blur.
+    const float noisySharp = luma_sharpness(planeOf(render(scene, 0, 1, 8, random)), 160);
+    const float cleanBlurred = luma_sharpness(planeOf(render(scene, 6, 1, 0, random)), 160);
+    EXPECT(noisySharp > cleanBlurred, "noisy sharp %.1f, clean blurred %.1f", noisySharp, cleanBlurred);
+}
+
+void testBurstChoice() {
+    std::mt19937 random(3);
+    const auto scene = sharpScene();
+    // Vibration blurs all but the second frame of the burst.
+    const int lengths[] = {10, 0, 5};
+    int best = -1;
+    float bestScore = -1;
+    for (int i = 0; i < 3; ++i) {
+        const float score = luma_burst_score(luma_sharpness(planeOf(render(scene, lengths[i], 1, 4, random)), 160), 0, 0);
+        if (score > bestScore) {
+            bestScore = score;
+            best = i;
+        }
+    }
+    EXPECT(best == 1, "frame %d chosen", best);
+
+    // A sharp frame with the sun in a quarter of it loses to a slightly blurred one without:
+    // the edge of the clipped area is not detail.
+    auto glare = render(scene, 0, 1, 4, random);
+    for (int y = 0; y < kHeight; ++y) {
+        for (int x = 0; x < kWidth; ++x) {
+            const int dx = x - 160;
+            const int dy = y - 160;
+            if (dx * dx + dy * dy < 156 * 156) glare[(size_t) y * kWidth + x] = 255;
+        }
+    }
+    const auto normal = render(scene, 3, 1, 4, random);
+    const float glareScore = luma_burst_score(luma_sharpness(planeOf(glare), 160), 0, clippedFraction(glare));
+    const float normalScore = luma_burst_score(luma_sharpness(planeOf(normal), 160), 0, clippedFraction(normal));
+    EXPECT(normalScore > glareScore, "normal %.1f, glare %.1f (clipped %.2f)", normalScore, glareScore,
+           clippedFraction(glare));
+    EXPECT(luma_burst_score(100, 0.7f, 0.4f) == 0, "fully unusable frame scored");
+}
+
+void testPixelStrideAndEdges() {
+    std::mt19937 random(4);
+    const auto scene = sharpScene();
+    std::mt19937 a(5), b(5);
+    const float packed = luma_sharpness(planeOf(render(scene, 0, 1, 4, a)), 160);
+    const float strided = luma_sharpness(planeOf(render(scene, 0, 1, 4, b, 2), 2), 160);
+    EXPECT(packed == strided, "pixel stride 2: %.2f vs %.2f", strided, packed);
+    const float full = luma_sharpness(planeOf(render(scene, 0, 1, 0, random)), kWidth);
+    EXPECT(full > 0, "no downsample");
+    const std::vector<uint8_t> flat((size_t) kWidth * kHeight, 128);
+    EXPECT(luma_sharpness(planeOf(flat), 160) == 0, "flat frame");
+    EXPECT(luma_sharpness({flat.data(), 4, 4, 4, 1}, 1) == 0, "too small after downsample");
+    EXPECT(luma_sharpness({nullptr, kWidth, kHeight, kWidth, 1}, 160) == 0, "null plane");
+}
+
+void benchmark() {
+    std::mt19937 random(6);
+    const struct {
+        int width;
+        int height;
+        int maxWidth;
+    } cases[] = {{640, 480, 160}, {640, 480, 320}, {1920, 1080, 320}};
+    for (const auto& c : cases) {
+        std::vector<uint8_t> plane((size_t) c.width * c.height);
+        for (auto& v : plane) v = (uint8_t) random();
+        const LumaPlane p = {plane.data(), c.width, c.height, c.width, 1};
+        double best = 1e18;
+        float sink = 0;
+        for (int round = 0; round < 30; ++round) {
+            const auto start = std::chrono::steady_clock::now();
+            sink += luma_sharpness(p, c.maxWidth);
+            best = std::min(best, std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count());
+        }
+        std::printf("sharpness %dx%d, max width %d: %.0f us per frame (%.0f)\n", c.width, c.height, c.maxWidth, best,
+                    sink > 0 ? 1.0 : 0.0);
+    }
+}
+
+} // namespace
+
+int main() {
+    testBlurLowersSharpness();
+    testNoiseIsNotDetail();
+    testBurstChoice();
+    testPixelStrideAndEdges();
+    benchmark();
+    if (gFailures != 0) {
+        std::printf("%d failure(s)\n", gFailures);
+        return 1;
+    }
+    std::printf("all tests passed\n");
+    return 0;
+}
@@ -0,0 +1,170 @@
+// Host test of the scene change detector on synthetic Y planes: sensor noise,
+// exposure changes, small and large moving objects, and the forced frames.
+//
+//   ./build/host-tests/scene_change_test
+
+#include "scene_change.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <random>
+#include <vector>
+
+namespace {
+
+int gFailures = 0;
+
+#define EXPECT(cond, ...)                                         \
+    do {                                                          \
+        if (!(cond)) {                                            \
+            std::printf("FAIL %s:%d: ", __FILE__, __LINE__);      \
+            std::printf(__VA_ARGS__);                             \
+            std::printf("\n");                                    \
+            gFailures++;                                          \
+        }                                                         \
+    } while (0)
+
+const int kWidth = 320;
+const int kHeight = 240;
+
+// A parked car's view: gradient sky, a road, some structure; plus noise,
+// an exposure offset and an optional bright rectangle (a passing object).
+struct Scene {
+    int offset = 0;
+    int noise = 4;
+    int objectX = -1;
+    int objectY = 0;
+    int objectSize = 0;
+};
+
+std::vector<uint8_t> render(const Scene& scene, std::mt19937& random, int pixelStride = 1) {
+    std::vector<uint8_t> plane((size_t) kWidth * kHeight * pixelStride);
+    std::uniform_int_distribution<int> noise(-scene.noise, scene.noise);
+    for (int y = 0; y < kHeight; ++y) {
+        for (int x = 0; x < kWidth; ++x) {
+            int v = y < kHeight / 2 ? 160 - y / 2 : 60 + ((x / 16 + y / 16) % 2) * 30;
+            if (scene.objectX >= 0 && x >= scene.objectX && x < scene.objectX + scene.objectSize
+                    && y >= scene.objectY && y < scene.objectY + scene.objectSize) {
+                v = 230;
+            }
+            v += scene.offset + noise(random);
+            plane[((size_t) y * kWidth + x) * pixelStride] = (uint8_t) std::min(255, std::max(0, v));
+        }
+    }
+    return plane;
+}
+
+LumaPlane planeOf(const std::vector<uint8_t>& data, int pixelStride = 1) {
+    return {data.data(), kWidth, kHeight, kWidth * pixelStride, pixelStride};
+}
+
+void testStaticSceneIsSkipped() {
+    std::mt19937 random(1);
+    SceneDetector detector{SceneDetector::Options()};
+    Scene scene;
+    EXPECT(detector.evaluate(planeOf(render(scene, random)), 0, false, nullptr), "first frame not stored");
+    int stored = 0;
+    SceneDiff diff;
+    float worstMad = 0;
+    for (int i = 1; i <= 100; ++i) {
+        stored += detector.evaluate(planeOf(render(scene, random)), i * 30000LL / 100, false, &diff);
+        worstMad = std::max(worstMad, diff.mad);
+    }
+    EXPECT(stored == 0, "%d noisy copies of a static scene stored (worst mad %.2f)", stored, worstMad);
+}
+
+void testExposureChangeIsSkipped() {
+    std::mt19937 random(2);
+    SceneDetector detector{SceneDetector::Options()};
+    Scene scene;
+    detector.evaluate(planeOf(render(scene, random)), 0, false, nullptr);
+    scene.offset = 25;
+    SceneDiff diff;
+    EXPECT(!detector.evaluate(planeOf(render(scene, random)), 1000, false, &diff),
+           "exposure shift stored: mad %.2f changed %.3f shift %.1f", diff.mad, diff.changedFraction, diff.shift);
+    EXPECT(diff.shift > 20 && diff.shift < 30, "shift %.1f", diff.shift);
+}
+
+void testObjectsAreStored() {
+    std::mt19937 random(3);
+    SceneDetector detector{SceneDetector::Options()};
+    Scene scene;
+    detector.evaluate(planeOf(render(scene, random)), 0, false, nullptr);
+    // A pedestrian-sized object: 24x24 pixels of 320x240, under 1% of the frame.
+    scene.objectX = 100;
+    scene.objectY = 150;
+    scene.objectSize = 24;
+    SceneDiff diff;
+    EXPECT(detector.evaluate(planeOf(render(scene, random)), 1000, false, &diff),
+           "small object skipped: mad %.2f changed %.3f", diff.mad, diff.changedFraction);
+    // The stored frame is the reference now: the object standing still is skipped.
+    EXPECT(!detector.evaluate(planeOf(render(scene, random)), 2000, false, &diff), "unchanged frame stored");
+    scene.objectX = 200;
+    EXPECT(detector.evaluate(planeOf(render(scene, random)), 3000, false, &diff), "moved object skipped");
+    scene.objectX = 0;
+    scene.objectY = 0;
+    scene.objectSize = 200;
+    EXPECT(detector.evaluate(planeOf(render(scene, random)), 4000, false, &diff), "large object skipped");
+    EXPECT(diff.changedFraction > 0.3f, "changed %.3f", diff.changedFraction);
+}
+
+void testForcedFrames() {
+    std::mt19937 random(4);
+    SceneDetector::Options options;
+    options.maxSkipMs = 60000;
+    SceneDetector detector(options);
+    Scene scene;
+    detector.evaluate(planeOf(render(scene, random)), 0, false, nullptr);
+    EXPECT(!detector.evaluate(planeOf(render(scene, random)), 59999, false, nullptr), "stored before maxSkipMs");
+    EXPECT(detector.evaluate(planeOf(render(scene, random)), 60000, false, nullptr), "not stored after maxSkipMs");
+    EXPECT(detector.evaluate(planeOf(render(scene, random)), 60001, true, nullptr), "forced frame not stored");
+    detector.reset();
+    EXPECT(detector.evaluate(planeOf(render(scene, random)), 60002, false, nullptr), "not stored after reset");
+    const std::vector<uint8_t> tiny(16 * 16, 0);
+    EXPECT(detector.evaluate({tiny.data(), 16, 16, 16, 1}, 60003, false, nullptr), "unusable plane not stored");
+}
+
+void testPixelStride() {
+    std::mt19937 random(5);
+    SceneDetector detector{SceneDetector::Options()};
+    Scene scene;
+    const auto first = render(scene, random, 2);
+    detector.evaluate(planeOf(first, 2), 0, false, nullptr);
+    EXPECT(!detector.evaluate(planeOf(render(scene, random, 2), 2), 1000, false, nullptr), "static scene, stride 2");
+    scene.objectX = 50;
+    scene.objectY = 50;
+    scene.objectSize = 30;
+    EXPECT(detector.evaluate(planeOf(render(scene, random, 2), 2), 2000, false, nullptr), "object, stride 2");
+}
+
+void benchmark() {
+    std::mt19937 random(6);
+    SceneDetector detector{SceneDetector::Options()};
+    const auto frame = render(Scene(), random);
+    detector.evaluate(planeOf(frame), 0, false, nullptr);
+    double best = 1e18;
+    for (int round = 0; round < 50; ++round) {
+        const auto start = std::chrono::steady_clock::now();
+        detector.evaluate(planeOf(frame), round, false, nullptr);
+        best = std::min(best, std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count());
+    }
+    std::printf("scene change %dx%d -> 64x48: %.1f us per frame\n", kWidth, kHeight, best);
+}
+
+} // namespace
+
+int main() {
+    testStaticSceneIsSkipped();
+    testExposureChangeIsSkipped();
+    testObjectsAreStored();
+    testForcedFrames();
+    testPixelStride();
+    benchmark();
+    if (gFailures != 0) {
+        std::printf("%d failure(s)\n", gFailures);
+        return 1;
+    }
+    std::printf("all tests passed\n");
+    return 0;
+}
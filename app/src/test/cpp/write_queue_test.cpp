@@ -0,0 +1,275 @@
+// Host stress test of WriteQueue, and what the camera thread waits for per frame
+// with synchronous writes and with the queue, on a simulated slow SD card.
+//
+//   ./build/host-tests/write_queue_test
+
+#include "write_queue.h"
+
+#include <algorithm>
+#include <atomic>
+#include <cerrno>
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <mutex>
+#include <random>
+#include <string>
+#include <thread>
+#include <unistd.h>
+#include <vector>
+
+namespace {
+
+int gFailures = 0;
+
+#define EXPECT(cond, ...)                                         \
+    do {                                                          \
+        if (!(cond)) {                                            \
+            std::printf("FAIL %s:%d: ", __FILE__, __LINE__);      \
+            std::printf(__VA_ARGS__);                             \
+            std::printf("\n");                                    \
+            gFailures++;                                          \
+        }                                                         \
+    } while (0)
+
+WriteQueue::Job job(int64_t id, size_t size) {
+    WriteQueue::Job j;
+    j.id = id;
+    j.path = "/dev/null";
+    j.data.assign(size, (uint8_t) id);
+    return j;
+}
+
+void sleepUs(int64_t us) {
+    std::this_thread::sleep_for(std::chrono::microseconds(us));
+}
+
+// Several producers, several I/O threads, a writer of random speed: every
+// accepted job completes exactly once and the counters add up.
+void testEveryJobCompletesOnce() {
+    const int producers = 4;
+    const int perProducer = 500;
+    std::vector<std::atomic<int>> completions(producers * perProducer);
+    std::atomic<int64_t> accepted{0};
+    std::atomic<int64_t> rejected{0};
+    {
+        WriteQueue::Options options;
+        options.threads = 3;
+        options.maxJobs = 16;
+        options.blockMs = 1;
+        WriteQueue queue(options, [&](const WriteQueue::Result& r) { completions[r.id]++; },
+                         [](const WriteQueue::Job& j) {
+                             thread_local std::mt19937 random(std::hash<std::thread::id>()(std::this_thread::get_id()));
+                             sleepUs(random() % 200);
+                             return j.data.size() == 100 ? 0 : EIO;
+                         });
+        std::vector<std::thread> threads;
+        for (int p = 0; p < producers; ++p) {
+            threads.emplace_back([&, p] {
+                for (int i = 0; i < perProducer; ++i) {
+                    const int64_t id = p * perProducer + i;
+                    if (queue.submit(job(id, id % 10 == 0 ? 99 : 100))) accepted++; else rejected++;
+                }
+            });
+        }
+        for (auto& t : threads) t.join();
+        EXPECT(queue.drain(10000), "drain timed out");
+        const WriteQueue::Stats stats = queue.stats();
+        EXPECT(stats.submitted == accepted, "submitted %lld accepted %lld", (long long) stats.submitted, (long long) accepted.load());
+        EXPECT(stats.rejected == rejected, "rejected %lld vs %lld", (long long) stats.rejected, (long long) rejected.load());
+        EXPECT(stats.completed == accepted, "completed %lld", (long long) stats.completed);
+        EXPECT(stats.depth == 0 && stats.queuedBytes == 0, "depth %lld bytes %lld", (long long) stats.depth, (long long) stats.queuedBytes);
+        EXPECT(stats.maxDepth <= (int64_t) options.maxJobs + options.threads, "maxDepth %lld", (long long) stats.maxDepth);
+        EXPECT(stats.failed > 0 && stats.failed < stats.completed, "failed %lld", (long long) stats.failed);
+        std::printf("stress: %lld accepted, %lld rejected, %lld blocked submits, max depth %lld\n",
+                    (long long) accepted.load(), (long long) rejected.load(), (long long) stats.blockedSubmits,
+                    (long long) stats.maxDepth);
+    }
+    int wrong = 0;
+    for (auto& c : completions) wrong += c.load() > 1;
+    EXPECT(wrong == 0, "%d jobs completed more than once", wrong);
+    int total = 0;
+    for (auto& c : completions) total += c.load();
+    EXPECT(total == accepted, "completions %d accepted %lld", total, (long long) accepted.load());
+}
+
+// A writer which is slower than the producer: submit waits blockMs, then rejects.
+void testBackpressure() {
+    WriteQueue::Options options;
+    options.maxJobs = 2;
+    options.blockMs = 5;
+    WriteQueue queue(options, nullptr, [](const WriteQueue::Job&) {
+        sleepUs(30000);
+        return 0;
+    });
+    int accepted = 0;
+    for (int i = 0; i < 10; ++i) accepted += queue.submit(job(i, 10));
+    const WriteQueue::Stats stats = queue.stats();
+    EXPECT(accepted >= 3 && accepted < 10, "accepted %d", accepted);
+    EXPECT(stats.rejected == 10 - accepted, "rejected %lld", (long long) stats.rejected);
+    EXPECT(stats.blockedNs >= stats.rejected * 4000000, "blocked %lld ns", (long long) stats.blockedNs);
+    queue.drain(5000);
+}
+
+void testByteBound() {
+    std::atomic<bool> release{false};
+    WriteQueue::Options options;
+    options.maxJobs = 100;
+    options.maxBytes = 1000;
+    options.blockMs = 1;
+    WriteQueue queue(options, nullptr, [&](const WriteQueue::Job&) {
+        while (!release) sleepUs(100);
+        return 0;
+    });
+    // The first job may be taken by the I/O thread; its bytes still count until it completes.
+    EXPECT(queue.submit(job(0, 600)), "first job");
+    EXPECT(!queue.submit(job(1, 600)), "second job beyond maxBytes");
+    EXPECT(queue.submit(job(2, 400)), "job within maxBytes");
+    release = true;
+    queue.drain(5000);
+    // Larger than maxBytes, but alone.
+    EXPECT(queue.submit(job(3, 5000)), "large job into empty queue");
+    queue.drain(5000);
+}
+
+void testDestructorWritesPending() {
+    std::atomic<int> written{0};
+    {
+        WriteQueue::Options options;
+        options.maxJobs = 50;
+        WriteQueue queue(options, nullptr, [&](const WriteQueue::Job&) {
+            sleepUs(500);
+            written++;
+            return 0;
+        });
+        for (int i = 0; i < 20; ++i) queue.submit(job(i, 10));
+    }
+    EXPECT(written == 20, "written %d of 20 before the destructor returned", written.load());
+}
+
+// After abandon(), the destructor waits for the write in progress only; the
+// other jobs complete once each, failed with ECANCELED.
+void testAbandonFailsPending() {
+    std::atomic<int> written{0};
+    std::atomic<int> cancelled{0};
+    size_t abandoned = 0;
+    const auto start = std::chrono::steady_clock::now();
+    {
+        WriteQueue::Options options;
+        options.maxJobs = 50;
+        WriteQueue queue(options, [&](const WriteQueue::Result& r) { if (r.error == ECANCELED) cancelled++; },
+                         [&](const WriteQueue::Job&) {
+                             sleepUs(20000);
+                             written++;
+                             return 0;
+                         });
+        for (int i = 0; i < 20; ++i) queue.submit(job(i, 10));
+        EXPECT(!queue.drain(1), "drained 20 slow writes in 1 ms");
+        abandoned = queue.abandon();
+        EXPECT(!queue.submit(job(20, 10)), "job accepted after abandon()");
+    }
+    const auto ms = std::chrono::duration_cast<std::chrono::milliseconds>(std::chrono::steady_clock::now() - start).count();
+    EXPECT(written + cancelled == 20, "written %d cancelled %d of 20", written.load(), cancelled.load());
+    EXPECT(cancelled == (int) abandoned && abandoned >= 18, "abandoned %zu cancelled %d", abandoned, cancelled.load());
+    EXPECT(ms < 200, "destructor took %lld ms", (long long) ms);
+}
+
+void testWritesFiles() {
+    const std::string path = "/tmp/write_queue_" + std::to_string(getpid());
+    {
+        WriteQueue queue(WriteQueue::Options(), nullptr);
+        WriteQueue::Job first;
+        first.path = path;
+        first.data.assign({'a', 'b', 'c'});
+        first.flags = WriteQueue::kSync;
+        queue.submit(std::move(first));
+        queue.drain(5000);
+        // Borrowed bytes, written without a copy.
+        static const uint8_t tail[] = {'d', 'e'};
+        WriteQueue::Job second;
+        second.path = path;
+        second.borrowed = tail;
+        second.borrowedSize = sizeof(tail);
+        second.flags = WriteQueue::kAppend;
+        queue.submit(std::move(second));
+        WriteQueue::Job missing;
+        missing.path = "/nonexistent/dir/file";
+        missing.data.assign({'x'});
+        queue.submit(std::move(missing));
+        queue.drain(5000);
+        EXPECT(queue.stats().failed == 1, "failed %lld", (long long) queue.stats().failed);
+    }
+    char content[16] = {};
+    FILE* file = std::fopen(path.c_str(), "rb");
+    const size_t n = file ? std::fread(content, 1, sizeof(content), file) : 0;
+    if (file) std::fclose(file);
+    EXPECT(n == 5 && std::memcmp(content, "abcde", 5) == 0, "content '%.*s'", (int) n, content);
+    unlink(path.c_str());
+}
+
+// Camera thread at 10 fps, 3 MB JPEGs, an SD card at 40 MB/s with occasional
+// 200 ms stalls (garbage collection in the card). Measures the time the camera
+// thread spends per frame: the whole write, or the copy into the queue.
+void benchmark() {
+    const size_t frame = 3 * 1024 * 1024;
+    const int frames = 40;
+    auto slowCard = [](const WriteQueue::Job& j) {
+        sleepUs((int64_t) j.data.size() / 40);
+        if (j.id % 15 == 7) sleepUs(200000);
+        return 0;
+    };
+    std::vector<uint8_t> image(frame, 0x5a);
+
+    std::vector<double> syncMs;
+    for (int i = 0; i < frames; ++i) {
+        const auto start = std::chrono::steady_clock::now();
+        slowCard(job(i, frame));
+        syncMs.push_back(std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count());
+        sleepUs(std::max(0.0, 100000 - syncMs.back() * 1000));
+    }
+
+    std::vector<double> queuedMs;
+    WriteQueue::Options options;
+    options.maxJobs = 8;
+    options.blockMs = 50;
+    WriteQueue queue(options, nullptr, slowCard);
+    for (int i = 0; i < frames; ++i) {
+        const auto start = std::chrono::steady_clock::now();
+        WriteQueue::Job j;
+        j.id = i;
+        j.data.assign(image.begin(), image.end());  // the copy out of the Image plane
+        queue.submit(std::move(j));
+        queuedMs.push_back(std::chrono::duration<double, std::milli>(std::chrono::steady_clock::now() - start).count());
+        sleepUs(std::max(0.0, 100000 - queuedMs.back() * 1000));
+    }
+    queue.drain(10000);
+    const WriteQueue::Stats stats = queue.stats();
+
+    auto p = [](std::vector<double> v, double f) {
+        std::sort(v.begin(), v.end());
+        return v[std::min(v.size() - 1, (size_t) (f * v.size()))];
+    };
+    std::printf("camera thread per 3 MB frame, ms: sync p50 %.1f p99 %.1f max %.1f; queued p50 %.2f p99 %.2f max %.2f\n",
+                p(syncMs, 0.5), p(syncMs, 0.99), p(syncMs, 1), p(queuedMs, 0.5), p(queuedMs, 0.99), p(queuedMs, 1));
+    std::printf("queue: max depth %lld, rejected %lld, wait p99 <= %.0f ms, write p99 <= %.0f ms\n",
+                (long long) stats.maxDepth, (long long) stats.rejected, stats.queuedP99Ns / 1e6, stats.writeP99Ns / 1e6);
+    EXPECT(stats.rejected == 0, "frames rejected at 10 fps");
+}
+
+} // namespace
+
+int main() {
+    testEveryJobCompletesOnce();
+    testBackpressure();
+    testByteBound();
+    testDestructorWritesPending();
+    testAbandonFailsPending();
+    testWritesFiles();
+    benchmark();
+    if (gFailures != 0) {
+        std::printf("%d failure(s)\n", gFailures);
+        return 1;
+    }
+    std::printf("all tests passed\n");
+    return 0;
+}
@@ -0,0 +1,124 @@
+package cam.et.dashcamsystem.app.services
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Random
+import kotlin.math.sin
+
+/**
+ * Host JVM tests for [CaptureCadence]: the speed curve, parking pause and wake-up, and the
+ * captures of a simulated day against the fixed 30 s cadence.
+ */
+class CaptureCadenceTest {
+
+    private fun kmh(speed: Float) = speed / 3.6f
+
+    @Test
+    fun speedSteps_withHysteresis() {
+        val cadence = CaptureCadence()
+        cadence.reset(0)
+        assertEquals(30_000L, cadence.intervalMs(0))
+        cadence.onSpeed(kmh(40f), 1_000)
+        assertEquals(30_000L, cadence.intervalMs(1_000))
+        cadence.onSpeed(kmh(60f), 2_000)
+        assertEquals(10_000L, cadence.intervalMs(2_000))
+        cadence.onSpeed(kmh(95f), 3_000)
+        assertEquals(2_000L, cadence.intervalMs(3_000))
+        // Hovering just under 80 km/h keeps the highway cadence.
+        cadence.onSpeed(kmh(77f), 4_000)
+        assertEquals(2_000L, cadence.intervalMs(4_000))
+        cadence.onSpeed(kmh(74f), 5_000)
+        assertEquals(10_000L, cadence.intervalMs(5_000))
+        cadence.onSpeed(kmh(20f), 6_000)
+        assertEquals(30_000L, cadence.intervalMs(6_000))
+        // A stale fix falls back to the first step.
+        cadence.onSpeed(kmh(100f), 7_000)
+        assertEquals(30_000L, cadence.intervalMs(7_000 + cadence.policy.speedMaxAgeMs + 1))
+    }
+
+    @Test
+    fun parked_pausesAndWakesOnMotion() {
+        var changes = 0
+        val cadence = CaptureCadence { changes++ }
+        cadence.reset(0)
+        // Gravity only, with sensor noise: not movement.
+        val random = Random(1)
+        var t = 0L
+        while (t < 11 * 60_000L) {
+            cadence.onAcceleration(noise(random), noise(random), 9.81f + noise(random), t)
+            t += 200
+        }
+        assertEquals(CaptureCadence.PAUSED, cadence.intervalMs(t))
+        assertTrue(cadence.vibration < cadence.policy.motionThreshold)
+        val pausedChanges = changes
+        // Engine started: a few seconds of vibration resume the cadence.
+        repeat(50) {
+            cadence.onAcceleration(noise(random), 0.6f * sin(it * 1.3f), 9.81f + 0.6f * sin(it * 2.1f), t)
+            t += 100
+        }
+        assertEquals(30_000L, cadence.intervalMs(t))
+        assertTrue(changes > pausedChanges)
+    }
+
+    @Test
+    fun singleBump_doesNotCountAsDriving() {
+        val cadence = CaptureCadence()
+        cadence.reset(0)
+        var t = 0L
+        while (t < 11 * 60_000L) {
+            // A door closing after 9 minutes: one strong sample.
+            val bump = if (t == 9 * 60_000L) 2f else 0f
+            cadence.onAcceleration(bump, 0f, 9.81f, t)
+            t += 200
+        }
+        assertEquals(CaptureCadence.PAUSED, cadence.intervalMs(t))
+    }
+
+    /**
+     * A day: 8 h parked, 1 h in town, 30 min on the highway, 4 h parked, 30 min in town.
+     */
+    @Test
+    fun day_capturesLessParkedAndMoreOnTheHighway() {
+        val segments = listOf(8 * 60 to 0f, 60 to 35f, 30 to 110f, 4 * 60 to 0f, 30 to 35f)
+        val cadence = CaptureCadence()
+        cadence.reset(0)
+        val random = Random(2)
+        var t = 0L
+        var nextCapture = 0L
+        var adaptive = 0
+        var adaptiveHighway = 0
+        var adaptiveParked = 0
+        var fixed = 0
+        var fixedParked = 0
+        for ((minutes, speed) in segments) {
+            val end = t + minutes * 60_000L
+            while (t < end) {
+                val moving = speed > 0
+                val shake = if (moving) 0.5f else 0.02f
+                cadence.onAcceleration(shake * noise(random) * 20, shake * noise(random) * 20, 9.81f, t)
+                // GPS fixes every 5 s while moving; none while parked (minimum distance).
+                if (moving && t % 5_000L == 0L) cadence.onSpeed(kmh(speed), t)
+                val interval = cadence.intervalMs(t)
+                if (interval != CaptureCadence.PAUSED && t >= nextCapture) {
+                    adaptive++
+                    if (speed > 80) adaptiveHighway++
+                    if (!moving) adaptiveParked++
+                    nextCapture = t + interval
+                }
+                if (t % 30_000L == 0L) {
+                    fixed++
+                    if (!moving) fixedParked++
+                }
+                t += 200
+            }
+        }
+        println("day: fixed 30 s cadence $fixed captures ($fixedParked parked, 60 on the highway), " +
+            "adaptive $adaptive ($adaptiveParked parked, $adaptiveHighway on the highway)")
+        assertTrue("parked $adaptiveParked vs $fixedParked", adaptiveParked * 20 < fixedParked)
+        assertTrue("highway $adaptiveHighway", adaptiveHighway >= 800)
+        assertTrue("adaptive $adaptive vs fixed $fixed", adaptive < fixed)
+    }
+
+    private fun noise(random: Random) = (random.nextGaussian() * 0.02).toFloat()
+}
@@ -0,0 +1,110 @@
+package cam.et.dashcamsystem.app.services
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+/**
+ * Host JVM tests for [StageQueue]: drop policies, depth accounting and a stalled consumer.
+ */
+class StageQueueTest {
+
+    @Test
+    fun dropNewest_keepsTheQueuedItems() = runBlocking {
+        val dropped = mutableListOf<Int>()
+        val queue = StageQueue<Int>("test", 2, DropPolicy.DROP_NEWEST) { dropped.add(it) }
+        assertTrue(queue.offer(1))
+        assertTrue(queue.offer(2))
+        assertFalse(queue.offer(3))
+        assertEquals(listOf(3), dropped)
+        assertEquals(listOf(1, 2), drain(queue, 2))
+    }
+
+    @Test
+    fun dropOldest_keepsTheFreshest() = runBlocking {
+        val dropped = mutableListOf<Int>()
+        val queue = StageQueue<Int>("test", 2, DropPolicy.DROP_OLDEST) { dropped.add(it) }
+        for (i in 1..5) assertTrue(queue.offer(i))
+        assertEquals(listOf(1, 2, 3), dropped)
+        assertEquals(2, queue.size)
+        assertEquals(3L, queue.droppedCount)
+        assertEquals(listOf(4, 5), drain(queue, 2))
+    }
+
+    @Test
+    fun block_suspendsTheSenderUntilThereIsRoom() = runBlocking {
+        val queue = StageQueue<Int>("test", 1, DropPolicy.BLOCK)
+        queue.send(1)
+        val second = launch { queue.send(2) }
+        // The sender waits instead of dropping.
+        repeat(10) { yield() }
+        assertFalse(second.isCompleted)
+        assertEquals(listOf(1, 2), drain(queue, 2))
+        second.join()
+        assertEquals(0L, queue.droppedCount)
+        // Offered from a thread which cannot wait, a full BLOCK queue drops the newest.
+        queue.send(3)
+        assertFalse(queue.offer(4))
+    }
+
+    @Test
+    fun stalledConsumer_boundsTheQueue() = runBlocking {
+        val released = mutableListOf<Int>()
+        val queue = StageQueue<Int>("persist", 4, DropPolicy.DROP_OLDEST) { synchronized(released) { released.add(it) } }
+        val gate = CompletableDeferred<Unit>()
+        val consumed = mutableListOf<Int>()
+        val job = queue.consume(this, Dispatchers.Default, { _, _ -> }) {
+            gate.await()
+            synchronized(consumed) { consumed.add(it) }
+        }
+        // The consumer takes one item and stalls on it; four wait; the rest are dropped oldest first.
+        queue.offer(0)
+        withTimeout(5_000) { while (queue.size != 0) delay(1) }
+        for (i in 1..20) queue.offer(i)
+        assertEquals(4, queue.size)
+        assertEquals((1..16).toList(), released)
+        gate.complete(Unit)
+        queue.close()
+        job.join()
+        assertEquals(listOf(0, 17, 18, 19, 20), consumed)
+        assertEquals(0, queue.size)
+    }
+
+    @Test
+    fun consumer_survivesAFailingItem() = runBlocking {
+        val queue = StageQueue<Int>("test", 4, DropPolicy.DROP_NEWEST)
+        val failed = mutableListOf<Int>()
+        val consumed = mutableListOf<Int>()
+        val job = queue.consume(this, Dispatchers.Default, { item, _ -> failed.add(item) }) {
+            if (it == 2) throw IllegalStateException("bad item")
+            consumed.add(it)
+        }
+        for (i in 1..3) queue.offer(i)
+        queue.close()
+        job.join()
+        assertEquals(listOf(2), failed)
+        assertEquals(listOf(1, 3), consumed)
+    }
+
+    private suspend fun drain(queue: StageQueue<Int>, count: Int): List<Int> {
+        val items = mutableListOf<Int>()
+        val done = CompletableDeferred<Unit>()
+        val scope = CoroutineScope(Dispatchers.Default)
+        val job = queue.consume(scope, Dispatchers.Default, { _, _ -> }) {
+            items.add(it)
+            if (items.size == count) done.complete(Unit)
+        }
+        withTimeout(5_000) { done.await() }
+        job.cancel()
+        return items
+    }
+}
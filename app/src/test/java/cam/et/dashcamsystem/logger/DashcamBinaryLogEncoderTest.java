@@ -0,0 +1,145 @@
+package cam.et.dashcamsystem.logger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import cam.et.dashcamlog.BinaryLogDecoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip and size/speed benchmark of {@link DashcamBinaryLogEncoder}
+ * against the text layout of {@link DashcamLogFormatter}.
+ */
+public class DashcamBinaryLogEncoderTest {
+
+    private static final long BASE_TIME = 1700000000000L;
+
+    /**
+     * Fill the event with the i-th message of a mix resembling the capture service logs.
+     */
+    private static void fill(DashcamLogEvent event, int i) {
+        final long time = BASE_TIME + i * 37L;
+        switch (i % 5) {
+            case 0:
+                event.set(time, DashcamLog.Level.DEBUG, "BgCamService", "Requested capture", null);
+                break;
+            case 1:
+                event.setFormat(time, DashcamLog.Level.INFO, "BgCamService", "Saved {} ({} bytes) luminance={}");
+                event.addObject("IMG_20231114_221320_" + (i % 100) + ".jpg");
+                event.addLong(3_500_000 + i);
+                event.addLong(i % 256);
+                break;
+            case 2:
+                event.setFormat(time, DashcamLog.Level.DEBUG, "LocationMonitor", "Location lat={} lon={} speed={}");
+                event.addDouble(52.52 + i * 1e-6);
+                event.addDouble(13.405 - i * 1e-6);
+                event.addDouble(i % 40 * 0.5);
+                break;
+            case 3:
+                event.setFormat(time, DashcamLog.Level.WARNING, "SystemUsageMonitor", "cpu={}% mem={}MB throttled={}");
+                event.addLong(i % 100);
+                event.addLong(512 + i % 64);
+                event.addBoolean(i % 2 == 0);
+                break;
+            default:
+                event.setFormat(time, DashcamLog.Level.ERROR, "BgCamService", "No camera available for capture, retry {}");
+                event.addLong(i);
+                break;
+        }
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer data) {
+        out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+    }
+
+    @Test
+    public void decode_reproducesTextLayout() throws IOException {
+        final DashcamLogFormatter formatter = new DashcamLogFormatter();
+        final DashcamBinaryLogEncoder encoder = new DashcamBinaryLogEncoder();
+        final DashcamLogEvent event = new DashcamLogEvent();
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+
+        write(binary, encoder.header(BASE_TIME));
+        for (int i = 0; i < 1000; i++) {
+            fill(event, i);
+            if (i == 500) {
+                event.throwable = new IllegalStateException("camera closed");
+                // A re-opened file starts a new dictionary section.
+                write(binary, encoder.header(BASE_TIME + 1));
+            }
+            write(text, formatter.format(event));
+            write(binary, encoder.encode(event));
+        }
+
+        final StringBuilder decoded = new StringBuilder();
+        try (BinaryLogDecoder decoder = new BinaryLogDecoder(new ByteArrayInputStream(binary.toByteArray()))) {
+            String line;
+            while ((line = decoder.readLine()) != null) {
+                decoded.append(line);
+            }
+            assertEquals(1000, decoder.getLineCount());
+        }
+        assertEquals(new String(text.toByteArray(), StandardCharsets.UTF_8), decoded.toString());
+    }
+
+    @Test
+    public void decode_stopsAtTruncatedRecord() throws IOException {
+        final DashcamBinaryLogEncoder encoder = new DashcamBinaryLogEncoder();
+        final DashcamLogEvent event = new DashcamLogEvent();
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        write(binary, encoder.header(BASE_TIME));
+        fill(event, 1);
+        write(binary, encoder.encode(event));
+        final byte[] bytes = binary.toByteArray();
+
+        try (BinaryLogDecoder decoder = new BinaryLogDecoder(new ByteArrayInputStream(bytes, 0, bytes.length - 3))) {
+            assertNull(decoder.readLine());
+        }
+    }
+
+    @Test
+    public void benchmark_bytesAndLinesPerSecond() {
+        final int lines = 200_000;
+        final DashcamLogFormatter formatter = new DashcamLogFormatter();
+        final DashcamBinaryLogEncoder encoder = new DashcamBinaryLogEncoder();
+        final DashcamLogEvent event = new DashcamLogEvent();
+        encoder.header(BASE_TIME);
+
+        long textBytes = 0;
+        long binaryBytes = 0;
+        long textNanos = Long.MAX_VALUE;
+        long binaryNanos = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            textBytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < lines; i++) {
+                fill(event, i);
+                textBytes += formatter.format(event).remaining();
+            }
+            textNanos = Math.min(textNanos, System.nanoTime() - start);
+
+            binaryBytes = encoder.header(BASE_TIME).remaining();
+            start = System.nanoTime();
+            for (int i = 0; i < lines; i++) {
+                fill(event, i);
+                binaryBytes += encoder.encode(event).remaining();
+            }
+            binaryNanos = Math.min(binaryNanos, System.nanoTime() - start);
+        }
+
+        System.out.printf("text:   %.1f bytes/line, %.0f lines/sec%n",
+                (double) textBytes / lines, lines * 1e9 / textNanos);
+        System.out.printf("binary: %.1f bytes/line, %.0f lines/sec%n",
+                (double) binaryBytes / lines, lines * 1e9 / binaryNanos);
+        assertTrue("binary should be less than half the size of text", binaryBytes * 2 < textBytes);
+    }
+}
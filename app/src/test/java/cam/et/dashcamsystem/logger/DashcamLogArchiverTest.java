@@ -0,0 +1,68 @@
+package cam.et.dashcamsystem.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Host JVM tests for the disk budget of {@link DashcamLogArchiver}.
+ */
+public class DashcamLogArchiverTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("archiver").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    private File file(String name, int length) throws IOException {
+        final File f = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(new byte[length]);
+        }
+        return f;
+    }
+
+    @Test
+    public void enforceBudget_deletesSegmentsWithTheirIndex() throws IOException {
+        final File oldest = file("dashcamlog_20260101_000000.txt.gz", 1000);
+        final File oldestIndex = file("dashcamlog_20260101_000000.txt.gz.idx", 100);
+        final File older = file("dashcamlog_20260102_000000.txt.gz", 1000);
+        final File olderIndex = file("dashcamlog_20260102_000000.txt.gz.idx", 100);
+        final File orphanIndex = file("dashcamlog_20251231_000000.txt.gz.idx", 100);
+        final File active = file("dashcamlog_20260103_000000.txt", 1000);
+        final File activeIndex = file("dashcamlog_20260103_000000.txt.idx", 100);
+        final File other = file("events.txt", 500);
+
+        // 3900 bytes in all; without the orphan and the oldest segment 2700.
+        DashcamLogArchiver.enforceBudget(mDir, active, 2800);
+
+        assertFalse(orphanIndex.exists());
+        assertFalse(oldest.exists());
+        assertFalse("index left without its segment", oldestIndex.exists());
+        assertTrue(older.exists() && olderIndex.exists());
+        assertTrue(active.exists() && activeIndex.exists() && other.exists());
+    }
+}
@@ -0,0 +1,85 @@
+package cam.et.dashcamsystem.logger;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Host JVM tests for {@link DashcamLogFormatter}.
+ */
+public class DashcamLogFormatterTest {
+
+    private static String decode(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void format_matchesTextLayout() {
+        final DashcamLogFormatter formatter = new DashcamLogFormatter();
+        final DashcamLogEvent event = new DashcamLogEvent();
+        final long[] times = {1700000000000L, 1700000000999L, 1700000001000L, 1700000001007L};
+        final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        for (long time : times) {
+            event.set(time, DashcamLog.Level.WARNING, "BgCamService", "Caf\u00e9 \u6e2c\u8a66 \ud83d\ude97", null);
+            final String expected = sdf.format(new Date(time)) + " [WARNING] BgCamService - Caf\u00e9 \u6e2c\u8a66 \ud83d\ude97\n";
+            assertEquals(expected, decode(formatter.format(event)));
+        }
+    }
+
+    @Test
+    public void format_rendersPlaceholders() {
+        final DashcamLogFormatter formatter = new DashcamLogFormatter();
+        final DashcamLogEvent event = new DashcamLogEvent();
+        event.setFormat(0, DashcamLog.Level.INFO, "T", "a={} b={} c={} d={} \\{} e={}");
+        event.addLong(-42);
+        event.addDouble(0.5);
+        event.addObject(Boolean.TRUE);
+        event.addObject(new StringBuilder("sb"));
+        final String line = decode(formatter.format(event));
+        assertEquals("a=-42 b=0.5 c=true d=sb {} e={}\n", line.substring(line.indexOf(" - ") + 3));
+    }
+
+    @Test
+    public void format_steadyStateAllocatesNothing() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        final DashcamLogFormatter formatter = new DashcamLogFormatter();
+        final DashcamLogEvent event = new DashcamLogEvent();
+        final String message = "Requested capture for camera 0 with template STILL_CAPTURE";
+        final long base = 1700000000000L;
+        final int lines = 100_000;
+
+        // Warm up: fills the thread state, grows the buffer and lets the JIT compile.
+        long sink = 0;
+        for (int i = 0; i < lines; i++) {
+            event.set(base + i, DashcamLog.Level.INFO, "BgCamService", message, null);
+            sink += formatter.format(event).remaining();
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < lines; i++) {
+            event.set(base + i, DashcamLog.Level.INFO, "BgCamService", message, null);
+            sink += formatter.format(event).remaining();
+        }
+        final long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // The second MXBean call itself may allocate a little; anything proportional to lines fails.
+        assertEquals("bytes/line=" + ((double) allocated / lines), 0, allocated / lines);
+        assertEquals(true, sink > 0);
+    }
+}
@@ -0,0 +1,272 @@
+package cam.et.dashcamsystem.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Host JVM tests for {@link DashcamLog} in front of a {@link DashcamLogWriter}.
+ */
+public class DashcamLogTest {
+
+    private DashcamLogWriter mPreviousWriter;
+    private DashcamLogThrottle mPreviousThrottle;
+    private DashcamLogWriter mWriter;
+
+    /** An argument whose toString() fails. */
+    private static final class Broken {
+        @Override
+        public String toString() {
+            throw new IllegalStateException("broken");
+        }
+    }
+
+    /** A throwable whose stack trace cannot be printed. */
+    private static final class BrokenThrowable extends RuntimeException {
+        @Override
+        public String getMessage() {
+            throw new IllegalStateException("broken");
+        }
+    }
+
+    /** Records the format of every message started, and the plain messages written. */
+    private static final class RecordingWriter extends DashcamLogWriter {
+        final List<String> formats = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingWriter() {
+            super(64, OverflowPolicy.DROP_OLDEST);
+        }
+
+        @Override
+        DashcamLogEvent begin(Logger logger, DashcamLog.Level level, String format) {
+            formats.add(format);
+            return super.begin(logger, level, format);
+        }
+
+        @Override
+        public void write(Logger logger, DashcamLog.Level level, String message) {
+            messages.add(message);
+            super.write(logger, level, message);
+        }
+
+        int count(String format) {
+            int n = 0;
+            synchronized (formats) {
+                for (String f : formats) {
+                    if (f.equals(format)) {
+                        n++;
+                    }
+                }
+            }
+            return n;
+        }
+    }
+
+    private RecordingWriter record() {
+        mWriter.close();
+        final RecordingWriter writer = new RecordingWriter();
+        mWriter = writer;
+        DashcamLog.setLogWriter(writer);
+        return writer;
+    }
+
+    @Before
+    public void setUp() {
+        mPreviousWriter = DashcamLog.getLogWriter();
+        mPreviousThrottle = DashcamLog.getThrottle();
+        mWriter = new DashcamLogWriter(8, DashcamLogWriter.OverflowPolicy.DROP_OLDEST);
+        DashcamLog.setLogWriter(mWriter);
+        DashcamLog.setThrottle(null);
+    }
+
+    @After
+    public void tearDown() {
+        mWriter.close();
+        DashcamLog.setLogWriter(mPreviousWriter);
+        DashcamLog.setThrottle(mPreviousThrottle);
+    }
+
+    @Test
+    public void event_rendersAFailingToString() {
+        final DashcamLogEvent event = new DashcamLogEvent();
+        event.setFormat(0, DashcamLog.Level.INFO, "T", "a={} b={}");
+        event.addObject(new Broken());
+        event.addObject(DashcamLog.Level.INFO);
+        assertEquals(2, event.argCount);
+        final String rendered = String.valueOf(event.objectArgs[0]);
+        assertTrue(rendered, rendered.startsWith("[FAILED toString()"));
+        assertEquals("INFO", event.objectArgs[1]);
+    }
+
+    @Test
+    public void throwingToString_doesNotStallTheWriter() throws InterruptedException {
+        final DashcamLog log = DashcamLog.get("DashcamLogTest");
+        // Far more messages than the ring holds: a slot left unpublished would hang DROP_OLDEST here.
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 100; i++) {
+                    log.w("bad {}", new Broken());
+                    log.w("bad {} {}", i, new Broken());
+                    log.w("bad {} {} {}", i, i, new Broken());
+                    log.i("good {}", i);
+                }
+            }
+        });
+        producer.start();
+        producer.join(5_000);
+        assertFalse("logging hangs after a failing toString()", producer.isAlive());
+        assertTrue("the drain thread is stuck", mWriter.flush(5_000));
+    }
+
+    @Test
+    public void throwingThrowable_isCountedAndSkipped() {
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.throwable");
+        final long errors = mWriter.getWriteErrorCount();
+        log.w("failed", new BrokenThrowable());
+        log.i("after {}", 1);
+        assertTrue("the drain thread died", mWriter.flush(5_000));
+        assertEquals(errors + 1, mWriter.getWriteErrorCount());
+    }
+
+    @Test
+    public void dedup_toleratesAThrowingThrowable() {
+        final RecordingWriter writer = record();
+        DashcamLog.setThrottle(DashcamLogThrottle.DEDUP);
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.dedupThrowable");
+        log.w("failed", new BrokenThrowable());
+        log.w("failed", new BrokenThrowable());
+        assertEquals(2, writer.count("failed"));
+    }
+
+    @Test
+    public void dedup_comparesArgumentValuesNotHashes() {
+        final RecordingWriter writer = record();
+        DashcamLog.setThrottle(DashcamLogThrottle.DEDUP);
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.dedup");
+        // 31 * 0 + 31 == 31 * 1 + 0: the same hash, different messages.
+        log.w("pair {} {}", 0, 31);
+        log.w("pair {} {}", 1, 0);
+        log.w("text {}", "Aa");
+        log.w("text {}", "BB");
+        assertEquals(2, writer.count("pair {} {}"));
+        assertEquals(2, writer.count("text {}"));
+        // Equal values repeat.
+        log.w("text {}", "BB");
+        log.w("text {}", "BB");
+        assertEquals(2, writer.count("text {}"));
+        DashcamLog.flushSuppressed();
+        assertEquals(1, writer.count("Suppressed {} repeats of \"{}\""));
+        DashcamLog.flushSuppressed();
+        assertEquals(1, writer.count("Suppressed {} repeats of \"{}\""));
+    }
+
+    @Test
+    public void dedup_neverDropsErrors() {
+        final RecordingWriter writer = record();
+        DashcamLog.setThrottle(DashcamLogThrottle.DEDUP);
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.errors");
+        for (int i = 0; i < 5; i++) {
+            log.e("failed {}", "same");
+        }
+        assertEquals(5, writer.count("failed {}"));
+    }
+
+    @Test
+    public void defaultThrottle_writesPeriodicRepeats() {
+        final RecordingWriter writer = record();
+        DashcamLog.setThrottle(DashcamLogThrottle.DEFAULT);
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.default");
+        for (int i = 0; i < 5; i++) {
+            log.i("saved {}", "same");
+        }
+        assertEquals(5, writer.count("saved {}"));
+    }
+
+    @Test
+    public void throttle_neverRateLimitsErrors() {
+        final RecordingWriter writer = record();
+        DashcamLog.setThrottle(DashcamLogThrottle.DEFAULT);
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.burst");
+        for (int i = 0; i < 50; i++) {
+            log.e("failed {}", i);
+        }
+        assertEquals(50, writer.count("failed {}"));
+    }
+
+    @Test
+    public void dedup_collapsesRepeatedPlainMessages() {
+        final RecordingWriter writer = record();
+        DashcamLog.setThrottle(DashcamLogThrottle.DEDUP);
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.plain");
+        for (int i = 0; i < 5; i++) {
+            log.w("No camera available for capture");
+        }
+        assertEquals(1, writer.messages.size());
+        DashcamLog.flushSuppressed();
+        assertEquals(1, writer.count("Suppressed {} repeats of \"{}\""));
+    }
+
+    @Test
+    public void concatenatedMessages_doNotResetTheSitesOfFormats() {
+        final RecordingWriter writer = record();
+        DashcamLog.setThrottle(DashcamLogThrottle.DEDUP);
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.concat");
+        log.w("busy {}", "same");
+        // Distinct texts, more than the site table holds: all written, and none of them takes a site.
+        for (int i = 0; i < 300; i++) {
+            log.w("frame " + i);
+        }
+        assertEquals(300, writer.messages.size());
+        log.w("busy {}", "same");
+        assertEquals(1, writer.count("busy {}"));
+    }
+
+    @Test
+    public void writerLevel_movesTheSeverityGate() {
+        final RecordingWriter writer = record();
+        DashcamLog.setDebug(false);
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.gate");
+        writer.setLevel(DashcamLog.Level.INFO);
+        log.d("debug {}", 1);
+        assertFalse(log.isEnabled(DashcamLog.Level.DEBUG));
+        writer.setLevel(DashcamLog.Level.VERBOSE);
+        log.d("debug {}", 2);
+        assertTrue(log.isEnabled(DashcamLog.Level.DEBUG));
+        assertEquals(1, writer.count("debug {}"));
+    }
+
+    @Test
+    public void fatal_writesTheStackOfEveryCallPath() {
+        final RecordingWriter writer = record();
+        final DashcamLog log = DashcamLog.get("DashcamLogTest.fatal");
+        for (int i = 0; i < 2; i++) {
+            fatalFromA(log);
+            fatalFromB(log);
+        }
+        assertEquals(4, writer.messages.size());
+        assertTrue(writer.messages.get(0).contains("fatalFromA"));
+        assertTrue(writer.messages.get(1).contains("fatalFromB"));
+        assertTrue(writer.messages.get(2), writer.messages.get(2).contains("see first occurrence"));
+        assertTrue(writer.messages.get(3), writer.messages.get(3).contains("see first occurrence"));
+    }
+
+    private static void fatalFromA(DashcamLog log) {
+        log.f("boom");
+    }
+
+    private static void fatalFromB(DashcamLog log) {
+        log.f("boom");
+    }
+}
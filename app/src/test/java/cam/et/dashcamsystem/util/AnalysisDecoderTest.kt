@@ -0,0 +1,98 @@
+package cam.et.dashcamsystem.util
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assume
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+
+/**
+ * Host JVM tests for the sizing of [AnalysisDecoder] and for [ByteBufferInputStream]. BitmapFactory
+ * itself needs a device: the memory and time of a real decode are measured by
+ * AnalysisDecoderInstrumentedTest.
+ */
+class AnalysisDecoderTest {
+
+    @Test
+    fun sampleSize_keepsTheTargetSize() {
+        assertEquals(1, AnalysisDecoder.sampleSize(160, 120, 160, 120))
+        assertEquals(1, AnalysisDecoder.sampleSize(100, 80, 160, 120))
+        assertEquals(2, AnalysisDecoder.sampleSize(320, 240, 160, 120))
+        assertEquals(8, AnalysisDecoder.sampleSize(1920, 1080, 160, 120))
+        assertEquals(16, AnalysisDecoder.sampleSize(4032, 3024, 160, 120))
+        // Portrait: the shorter side decides.
+        assertEquals(16, AnalysisDecoder.sampleSize(3024, 4032, 160, 120))
+        assertEquals(32, AnalysisDecoder.sampleSize(8000, 6000, 160, 120))
+    }
+
+    @Test
+    fun pooledBytes_roundsTheScaledSizeUp() {
+        assertEquals(2L * 160 * 120 * 4, AnalysisDecoder.pooledBytes(1280, 960, 8))
+        assertEquals(2L * 240 * 135 * 4, AnalysisDecoder.pooledBytes(1920, 1080, 8))
+        assertEquals(2L * 252 * 189 * 4, AnalysisDecoder.pooledBytes(4032, 3024, 16))
+        assertEquals(2L * 255 * 192 * 4, AnalysisDecoder.pooledBytes(8160, 6120, 32))
+    }
+
+    @Test
+    fun stream_readsMarksAndResets() {
+        val data = ByteArray(1000) { it.toByte() }
+        val buffer = ByteBuffer.allocateDirect(data.size).put(data)
+        buffer.flip()
+        buffer.position(10)
+        val stream = ByteBufferInputStream(buffer.duplicate())
+        assertEquals(990, stream.available())
+        assertEquals(10, stream.read())
+        val chunk = ByteArray(20)
+        assertEquals(20, stream.read(chunk, 0, 20))
+        assertArrayEquals(data.copyOfRange(11, 31), chunk)
+        stream.reset()
+        assertEquals(10, stream.read())
+        stream.mark(0)
+        assertEquals(100, stream.skip(100))
+        assertEquals(111, stream.read())
+        stream.reset()
+        assertEquals(11, stream.read())
+        assertEquals(988, stream.skip(5000))
+        assertEquals(-1, stream.read())
+        assertEquals(-1, stream.read(chunk, 0, 20))
+        assertEquals(10, buffer.position())
+    }
+
+    @Test
+    fun stream_readingAJpegAllocatesNothing() {
+        val bean = ManagementFactory.getThreadMXBean()
+        Assume.assumeTrue(bean is com.sun.management.ThreadMXBean)
+        val threads = bean as com.sun.management.ThreadMXBean
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported)
+        threads.isThreadAllocatedMemoryEnabled = true
+
+        val jpeg = ByteBuffer.allocateDirect(3 * 1024 * 1024)
+        val chunk = ByteArray(16 * 1024)
+        fun readAll(): Int {
+            val stream = ByteBufferInputStream(jpeg.duplicate())
+            var total = 0
+            while (true) {
+                val n = stream.read(chunk, 0, chunk.size)
+                if (n < 0) return total
+                total += n
+            }
+        }
+        readAll()
+        val thread = Thread.currentThread().id
+        val before = threads.getThreadAllocatedBytes(thread)
+        val total = readAll()
+        val streamed = threads.getThreadAllocatedBytes(thread) - before
+
+        val beforeCopy = threads.getThreadAllocatedBytes(thread)
+        val copy = ByteArray(jpeg.remaining())
+        jpeg.duplicate().get(copy)
+        val copied = threads.getThreadAllocatedBytes(thread) - beforeCopy
+
+        println("3 MB JPEG: streamed with $streamed bytes allocated, heap copy $copied bytes")
+        assertEquals(jpeg.capacity(), total)
+        assertTrue("streaming allocated $streamed bytes", streamed < 1024)
+        assertTrue(copied >= copy.size)
+    }
+}
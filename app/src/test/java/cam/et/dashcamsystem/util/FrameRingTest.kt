@@ -0,0 +1,115 @@
+package cam.et.dashcamsystem.util
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assume
+import org.junit.Test
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.util.Random
+
+/**
+ * Host JVM tests for [FrameRing]: eviction against a reference list, pinned frames surviving
+ * while frames keep coming, and no allocation per frame.
+ */
+class FrameRingTest {
+
+    // A frame of [length] bytes whose content identifies it.
+    private fun frame(sequence: Int, length: Int): ByteBuffer {
+        val buffer = ByteBuffer.allocateDirect(length)
+        for (i in 0 until length) buffer.put((sequence * 31 + i).toByte())
+        buffer.flip()
+        return buffer
+    }
+
+    private fun assertFrame(ring: FrameRing, view: ByteBuffer, sequence: Long, expected: ByteBuffer) {
+        assertTrue("frame $sequence not held", ring.frame(sequence, view) >= 0)
+        assertEquals("frame $sequence", expected, view)
+    }
+
+    @Test
+    fun put_keepsTheNewestFramesThatFit() {
+        val random = Random(1)
+        val ring = FrameRing(64 * 1024, 32)
+        val view = ring.view()
+        val frames = ArrayList<ByteBuffer>()
+        for (s in 0 until 2000) {
+            val data = frame(s, 500 + random.nextInt(8000))
+            assertTrue(ring.put(data, s * 200L))
+            assertEquals(0, data.position())
+            frames.add(data)
+            val held = ring.size
+            assertTrue(held in 1..32)
+            // The held frames are the newest ones, with their own bytes.
+            for (k in s - held + 1..s) assertFrame(ring, view, k.toLong(), frames[k])
+            if (s >= held) assertEquals(-1L, ring.frame((s - held).toLong(), view))
+            // Nothing newer could have been kept as well.
+            val total = (s - held + 1..s).sumOf { frames[it].remaining() }
+            assertTrue("frames $held of $total bytes",
+                held == s + 1 || held == 32 || total + 2 * 8500 > ring.capacityBytes)
+        }
+        assertEquals(0L, ring.refused)
+        assertFalse(ring.put(frame(0, 64 * 1024 + 1), 0))
+        assertEquals(1L, ring.refused)
+    }
+
+    @Test
+    fun pin_keepsFramesUntilRead() {
+        val ring = FrameRing(10_000, 16)
+        val view = ring.view()
+        val frames = (0 until 40).map { frame(it, 1_000) }
+        for (s in 0 until 20) ring.put(frames[s], s * 100L)
+        assertEquals(10, ring.size)
+        // Frames from 1.5 s on: 15..19 held, 20.. still to come.
+        val first = ring.pin(1_500)
+        assertEquals(15L, first)
+        for (s in 20 until 25) assertTrue(ring.put(frames[s], s * 100L))
+        // The slab holds 15..24; 25 would need the bytes of 15.
+        assertFalse(ring.put(frames[25], 2_500))
+        assertEquals(1L, ring.refused)
+        for (s in 15L until 20L) assertFrame(ring, view, s, frames[s.toInt()])
+        ring.pinAt(20)
+        assertTrue(ring.put(frames[26], 2_600))
+        assertEquals(-1L, ring.frame(15, view))
+        assertFrame(ring, view, 20, frames[20])
+        assertFrame(ring, view, 25, frames[26])
+        ring.unpin()
+        for (s in 27 until 40) assertTrue(ring.put(frames[s], s * 100L))
+        assertEquals(1L, ring.refused)
+        // A pin after the newest frame waits for the next one.
+        assertEquals(ring.nextSequence, ring.pin(10_000))
+    }
+
+    @Test
+    fun put_allocatesNothing() {
+        val bean = ManagementFactory.getThreadMXBean()
+        Assume.assumeTrue(bean is com.sun.management.ThreadMXBean)
+        val threads = bean as com.sun.management.ThreadMXBean
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported)
+        threads.isThreadAllocatedMemoryEnabled = true
+
+        // 10 s of 640x480 JPEGs at 5 fps.
+        val ring = FrameRing(4 * 1024 * 1024, 64)
+        val frames = (0 until 8).map { frame(it, 40_000 + it * 5_000) }
+        val view = ring.view()
+        var sink = 0L
+        fun run(count: Int) {
+            for (i in 0 until count) {
+                ring.put(frames[i % frames.size], i * 200L)
+                sink += ring.frame(ring.nextSequence - 1, view)
+            }
+        }
+        run(1_000)
+        val thread = Thread.currentThread().id
+        val before = threads.getThreadAllocatedBytes(thread)
+        val start = System.nanoTime()
+        run(10_000)
+        val nanos = System.nanoTime() - start
+        val allocated = threads.getThreadAllocatedBytes(thread) - before
+        println("frame ring: ${nanos / 10_000 / 1000.0} us per 40-75 KB frame, $allocated bytes allocated for 10000 frames")
+        // The MXBean calls themselves may allocate a little; anything proportional to the frames fails.
+        assertEquals("bytes/frame=" + allocated / 10_000.0, 0, allocated / 10_000)
+        assertTrue(sink > 0)
+    }
+}
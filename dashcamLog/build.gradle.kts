@@ -0,0 +1,20 @@
+plugins {
+    `java-library`
+    application
+}
+
+// Pure JVM module: shared by the app (encoder side) and usable on a
+// workstation to decode binary dashcam logs, e.g.
+//   ./gradlew :dashcamLog:run --args="dashcamlog_20250101_120000.dlog"
+java {
+    sourceCompatibility = JavaVersion.VERSION_11
+    targetCompatibility = JavaVersion.VERSION_11
+}
+
+application {
+    mainClass.set("cam.et.dashcamlog.BinaryLogCli")
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
@@ -0,0 +1,69 @@
+package cam.et.dashcamlog;
+
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.TimeZone;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Command line decoder for binary dashcam logs.
+ * <pre>
+ * usage: BinaryLogCli [--utc] [-o output.txt] file.dlog...
+ * </pre>
+ * The decoded text is written to standard output unless an output file is given.
+ * Rolled segments compressed to "file.dlog.gz" are decompressed on the fly.
+ */
+public final class BinaryLogCli {
+
+    private BinaryLogCli() {
+    }
+
+    public static void main(String[] args) {
+        TimeZone timeZone = TimeZone.getDefault();
+        String output = null;
+        int first = 0;
+        while (first < args.length && args[first].startsWith("-")) {
+            if ("--utc".equals(args[first])) {
+                timeZone = TimeZone.getTimeZone("UTC");
+                first++;
+            } else if ("-o".equals(args[first]) && first + 1 < args.length) {
+                output = args[first + 1];
+                first += 2;
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (first >= args.length) {
+            usage();
+            return;
+        }
+
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                output != null ? new FileOutputStream(output) : System.out, StandardCharsets.UTF_8), 64 * 1024)) {
+            for (int i = first; i < args.length; i++) {
+                InputStream in = new FileInputStream(args[i]);
+                if (args[i].endsWith(".gz")) {
+                    in = new GZIPInputStream(in, 64 * 1024);
+                }
+                try (BinaryLogDecoder decoder = new BinaryLogDecoder(in, timeZone)) {
+                    decoder.decodeTo(out);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("decode failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: BinaryLogCli [--utc] [-o output.txt] file." + BinaryLogFormat.EXTENSION + "[.gz]...");
+        System.exit(2);
+    }
+}
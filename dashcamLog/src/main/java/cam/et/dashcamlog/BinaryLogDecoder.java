@@ -0,0 +1,241 @@
+package cam.et.dashcamlog;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Decodes a binary dashcam log (see {@link BinaryLogFormat}) back into the
+ * text layout of the text log files:
+ * <pre>
+ * yyyy-MM-dd HH:mm:ss.SSS [LEVEL] tag - message
+ * </pre>
+ * A file which ends inside a record, e.g. after a power cut, decodes up to the
+ * last complete event.
+ */
+public final class BinaryLogDecoder implements Closeable {
+
+    private final DataInputStream mIn;
+    private final SimpleDateFormat mDateFormat;
+    private final List<String> mDictionary = new ArrayList<>();
+    private final StringBuilder mLine = new StringBuilder(256);
+
+    private long mLastTime;
+    private boolean mHeaderSeen;
+    private long mLineCount;
+
+    /**
+     * Construct decoder printing times in the default time zone.
+     *
+     * @param in The binary log stream.
+     */
+    public BinaryLogDecoder(InputStream in) {
+        this(in, TimeZone.getDefault());
+    }
+
+    /**
+     * Construct decoder.
+     *
+     * @param in       The binary log stream.
+     * @param timeZone The time zone used to print times.
+     */
+    public BinaryLogDecoder(InputStream in, TimeZone timeZone) {
+        if (in == null || timeZone == null) {
+            throw new IllegalArgumentException();
+        }
+        mIn = new DataInputStream(in instanceof BufferedInputStream ? in : new BufferedInputStream(in, 64 * 1024));
+        mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        mDateFormat.setTimeZone(timeZone);
+    }
+
+    /**
+     * Decode the next event.
+     *
+     * @return The event in the text layout including the line feed and a
+     * possible stack trace, or null at the end of the log.
+     * @throws IOException If the stream is not a binary dashcam log.
+     */
+    public String readLine() throws IOException {
+        try {
+            for (; ; ) {
+                final int type = mIn.read();
+                if (type < 0) {
+                    return null;
+                }
+                if (type == BinaryLogFormat.RECORD_HEADER) {
+                    readHeader();
+                    continue;
+                }
+                if (!mHeaderSeen) {
+                    throw new IOException("Not a binary dashcam log");
+                }
+                switch (type) {
+                    case BinaryLogFormat.RECORD_STRING:
+                        readString();
+                        break;
+                    case BinaryLogFormat.RECORD_FORMAT:
+                    case BinaryLogFormat.RECORD_TEXT:
+                        mLineCount++;
+                        return readEvent(type == BinaryLogFormat.RECORD_FORMAT);
+                    default:
+                        throw new IOException("Unknown record type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // Truncated trailing record.
+            return null;
+        }
+    }
+
+    /**
+     * @return Number of events decoded so far.
+     */
+    public long getLineCount() {
+        return mLineCount;
+    }
+
+    /**
+     * Decode every event of the log and write it to the writer.
+     *
+     * @return Number of decoded events.
+     */
+    public long decodeTo(Writer out) throws IOException {
+        String line;
+        while ((line = readLine()) != null) {
+            out.write(line);
+        }
+        out.flush();
+        return mLineCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private void readHeader() throws IOException {
+        final byte[] magic = new byte[BinaryLogFormat.MAGIC.length];
+        mIn.readFully(magic);
+        if (!Arrays.equals(magic, BinaryLogFormat.MAGIC)) {
+            throw new IOException("Not a binary dashcam log");
+        }
+        final int version = mIn.readUnsignedByte();
+        if (version != BinaryLogFormat.VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        mLastTime = BinaryLogFormat.readVarint(mIn);
+        mDictionary.clear();
+        mHeaderSeen = true;
+    }
+
+    private void readString() throws IOException {
+        final int id = (int) BinaryLogFormat.readVarint(mIn);
+        final String value = readUtf8();
+        if (id != mDictionary.size()) {
+            throw new IOException("Unexpected string id " + id);
+        }
+        mDictionary.add(value);
+    }
+
+    private String readEvent(boolean formatted) throws IOException {
+        final int levelByte = mIn.readUnsignedByte();
+        final String tag = lookup(BinaryLogFormat.readVarint(mIn));
+        mLastTime += BinaryLogFormat.unzigzag(BinaryLogFormat.readVarint(mIn));
+
+        final StringBuilder line = mLine;
+        line.setLength(0);
+        line.append(mDateFormat.format(new Date(mLastTime)))
+                .append(" [").append(BinaryLogFormat.levelName(levelByte & ~BinaryLogFormat.LEVEL_THROWABLE_FLAG))
+                .append("] ").append(tag).append(" - ");
+        if (formatted) {
+            final String format = lookup(BinaryLogFormat.readVarint(mIn));
+            final int argc = mIn.readUnsignedByte();
+            final String[] args = new String[argc];
+            for (int i = 0; i < argc; i++) {
+                args[i] = readArg();
+            }
+            appendFormatted(line, format, args);
+        } else {
+            line.append(readUtf8());
+        }
+        line.append('\n');
+        if ((levelByte & BinaryLogFormat.LEVEL_THROWABLE_FLAG) != 0) {
+            line.append(readUtf8());
+        }
+        return line.toString();
+    }
+
+    private String readArg() throws IOException {
+        final int type = mIn.readUnsignedByte();
+        switch (type) {
+            case BinaryLogFormat.ARG_LONG:
+                return Long.toString(BinaryLogFormat.unzigzag(BinaryLogFormat.readVarint(mIn)));
+            case BinaryLogFormat.ARG_DOUBLE:
+                return Double.toString(Double.longBitsToDouble(Long.reverseBytes(mIn.readLong())));
+            case BinaryLogFormat.ARG_FALSE:
+                return "false";
+            case BinaryLogFormat.ARG_TRUE:
+                return "true";
+            case BinaryLogFormat.ARG_STRING:
+                return readUtf8();
+            case BinaryLogFormat.ARG_NULL:
+                return "null";
+            default:
+                throw new IOException("Unknown argument type " + type);
+        }
+    }
+
+    private String readUtf8() throws IOException {
+        final long length = BinaryLogFormat.readVarint(mIn);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Bad string length " + length);
+        }
+        final byte[] bytes = new byte[(int) length];
+        mIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private String lookup(long id) throws IOException {
+        if (id < 0 || id >= mDictionary.size()) {
+            throw new IOException("Unknown string id " + id);
+        }
+        return mDictionary.get((int) id);
+    }
+
+    /**
+     * Same substitution as the app side formatter: "{}" takes the next argument,
+     * "\{}" is a literal "{}", placeholders without an argument stay as they are.
+     */
+    static void appendFormatted(StringBuilder text, String format, String[] args) {
+        final int length = format.length();
+        int start = 0;
+        int arg = 0;
+        for (int i = 0; i + 1 < length; i++) {
+            if (format.charAt(i) != '{' || format.charAt(i + 1) != '}') {
+                continue;
+            }
+            if (i > 0 && format.charAt(i - 1) == '\\') {
+                text.append(format, start, i - 1).append("{}");
+            } else if (arg < args.length) {
+                text.append(format, start, i).append(args[arg++]);
+            } else {
+                text.append(format, start, i + 2);
+            }
+            start = i + 2;
+            i++;
+        }
+        text.append(format, start, length);
+    }
+}
@@ -0,0 +1,124 @@
+package cam.et.dashcamlog;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Constants and primitive codecs of the binary dashcam log format.
+ * <p>
+ * A file is a sequence of records, each starting with a record type byte:
+ * <pre>
+ * HEADER      0x00 "DCLG" version:u8 baseTime:varint
+ * STRING      0x01 id:varint length:varint utf8[length]
+ * FORMAT      0x02 level:u8 tag:varint dt:zigzag format:varint argc:u8 arg*  [throwable]
+ * TEXT        0x03 level:u8 tag:varint dt:zigzag length:varint utf8[length]  [throwable]
+ * </pre>
+ * Tags and format strings are interned: a STRING record defines an id the
+ * first time a string is used in the file, events refer to it by id. Event
+ * times are zigzag encoded deltas to the previous event (the first one to the
+ * header base time). The level byte holds the level severity; if
+ * {@link #LEVEL_THROWABLE_FLAG} is set, a length prefixed UTF-8 stack trace
+ * follows the event. Arguments are stored as a type byte plus value:
+ * <pre>
+ * LONG        zigzag varint
+ * DOUBLE      8 bytes IEEE 754, little endian
+ * FALSE/TRUE  no value
+ * STRING      length:varint utf8[length]
+ * NULL        no value
+ * </pre>
+ * A HEADER record may also appear in the middle of a file, when the writer
+ * re-opened it; it resets the dictionary and the time base.
+ */
+public final class BinaryLogFormat {
+
+    public static final byte[] MAGIC = {'D', 'C', 'L', 'G'};
+    public static final int VERSION = 1;
+
+    /** File name extension of binary log files. */
+    public static final String EXTENSION = "dlog";
+
+    public static final int RECORD_HEADER = 0x00;
+    public static final int RECORD_STRING = 0x01;
+    public static final int RECORD_FORMAT = 0x02;
+    public static final int RECORD_TEXT = 0x03;
+
+    public static final int ARG_LONG = 1;
+    public static final int ARG_DOUBLE = 2;
+    public static final int ARG_FALSE = 3;
+    public static final int ARG_TRUE = 4;
+    public static final int ARG_STRING = 5;
+    public static final int ARG_NULL = 6;
+
+    /** Set in the level byte when a stack trace follows the event. */
+    public static final int LEVEL_THROWABLE_FLAG = 0x80;
+
+    /** Level names indexed by level severity, as printed in the text layout. */
+    private static final String[] LEVEL_NAMES = {"VERBOSE", "DEBUG", "INFO", "WARNING", "ERROR", "FATAL"};
+
+    /** Maximum encoded size of a varint. */
+    public static final int MAX_VARINT_SIZE = 10;
+
+    private BinaryLogFormat() {
+    }
+
+    /**
+     * @param severity The level severity.
+     * @return The level name of the text layout.
+     */
+    public static String levelName(int severity) {
+        return (severity >= 0 && severity < LEVEL_NAMES.length) ? LEVEL_NAMES[severity] : "UNKNOWN";
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Write an unsigned LEB128 varint.
+     */
+    public static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * @return The number of bytes {@link #putVarint(ByteBuffer, long)} writes for the value.
+     */
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Read an unsigned LEB128 varint.
+     *
+     * @throws EOFException If the stream ends inside the varint.
+     */
+    public static long readVarint(InputStream in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
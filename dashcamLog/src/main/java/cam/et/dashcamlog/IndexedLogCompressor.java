@@ -0,0 +1,119 @@
+package cam.et.dashcamlog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzips an indexed text log so that it stays seekable: every index block
+ * becomes a gzip member of its own, and the index is rewritten with the
+ * offsets of the members. The result is a regular multi-member gzip file,
+ * readable by any gzip tool.
+ */
+public final class IndexedLogCompressor {
+
+    private static final int COPY_BUFFER_SIZE = 32 * 1024;
+
+    private IndexedLogCompressor() {
+    }
+
+    /**
+     * Compress the log and its index.
+     *
+     * @param log      The text log with its index next to it.
+     * @param gz       The compressed log.
+     * @param gzIndex  The index of the compressed log.
+     */
+    public static void compress(File log, File gz, File gzIndex) throws IOException {
+        final File index = LogIndexFormat.indexFileOf(log);
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        try (DataInputStream entries = new DataInputStream(new FileInputStream(index));
+             InputStream in = new FileInputStream(log);
+             CountingOutputStream out = new CountingOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(gz), COPY_BUFFER_SIZE));
+             LogIndexWriter indexOut = new LogIndexWriter(
+                     new BufferedOutputStream(new FileOutputStream(gzIndex)), Long.MAX_VALUE)) {
+            entries.readFully(new byte[LogIndexFormat.HEADER_SIZE]);
+            long position = 0;
+            for (; ; ) {
+                final long minTime;
+                try {
+                    minTime = entries.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                final long maxTime = entries.readLong();
+                final long offset = entries.readLong();
+                final int length = entries.readInt();
+                final int levels = entries.readInt();
+                if (offset != position) {
+                    // Unindexed gap, e.g. after a crash: keep it in a member of its own.
+                    copyMember(in, out, offset - position, buffer);
+                }
+                final long memberOffset = out.mCount;
+                copyMember(in, out, length, buffer);
+                indexOut.addBlock(minTime, maxTime, memberOffset, (int) (out.mCount - memberOffset), levels);
+                position = offset + length;
+            }
+            // Tail which was never indexed.
+            final long tail = log.length() - position;
+            if (tail > 0) {
+                copyMember(in, out, tail, buffer);
+            }
+        }
+    }
+
+    private static void copyMember(InputStream in, CountingOutputStream out, long length, byte[] buffer)
+            throws IOException {
+        final GZIPOutputStream member = new GZIPOutputStream(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                // Keep the file open for the next member.
+                flush();
+            }
+        }, COPY_BUFFER_SIZE);
+        while (length > 0) {
+            final int n = in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            member.write(buffer, 0, n);
+            length -= n;
+        }
+        member.finish();
+        member.close();
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package cam.et.dashcamlog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Time range queries on text log segments ("dashcamlog_*.txt", plain or
+ * gzipped) with the help of their sparse index, see {@link LogIndexFormat}.
+ * <p>
+ * The index and the log are memory mapped; a query binary searches the index
+ * for the first block which may hold the start of the range and only reads
+ * the blocks up to the end of the range, skipping blocks without any of the
+ * requested levels. The cost of a query therefore depends on the size of the
+ * range, not on the size of the file. Without an index the whole file is
+ * scanned.
+ * <p>
+ * Lines which do not start with a timestamp, e.g. stack traces, belong to the
+ * record before them.
+ */
+public final class IndexedLogReader implements Closeable {
+
+    /** Length of the "yyyy-MM-dd HH:mm:ss.SSS" prefix of a record. */
+    private static final int DATE_LENGTH = 23;
+
+    private final File mLog;
+    private final boolean mCompressed;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final ByteBuffer mIndex;
+    private final int mEntries;
+    private final SimpleDateFormat mDateFormat;
+
+    /**
+     * Construct reader with the default time zone, which is what the log writer uses.
+     *
+     * @param log The log segment.
+     */
+    public IndexedLogReader(File log) throws IOException {
+        this(log, TimeZone.getDefault());
+    }
+
+    /**
+     * Construct reader.
+     *
+     * @param log      The log segment.
+     * @param timeZone Time zone the log was written in.
+     */
+    public IndexedLogReader(File log, TimeZone timeZone) throws IOException {
+        mLog = log;
+        mCompressed = log.getName().endsWith(".gz");
+        mFile = new RandomAccessFile(log, "r");
+        mChannel = mFile.getChannel();
+        mIndex = mapIndex(LogIndexFormat.indexFileOf(log));
+        mEntries = (mIndex != null) ? (mIndex.capacity() - LogIndexFormat.HEADER_SIZE) / LogIndexFormat.ENTRY_SIZE : 0;
+        mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        mDateFormat.setTimeZone(timeZone);
+    }
+
+    private static ByteBuffer mapIndex(File index) throws IOException {
+        if (!index.isFile() || index.length() < LogIndexFormat.HEADER_SIZE) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+            final MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, index.length());
+            for (int i = 0; i < LogIndexFormat.MAGIC.length; i++) {
+                if (map.get(i) != LogIndexFormat.MAGIC[i]) {
+                    return null;
+                }
+            }
+            if (map.get(LogIndexFormat.MAGIC.length) != LogIndexFormat.VERSION) {
+                return null;
+            }
+            return map;
+        }
+    }
+
+    /**
+     * @return True if the log has a usable index.
+     */
+    public boolean isIndexed() {
+        return mIndex != null;
+    }
+
+    /**
+     * Pass the lines of the records in the time range to the consumer.
+     *
+     * @param fromMillis First time of the range, inclusive.
+     * @param toMillis   Last time of the range, inclusive.
+     * @param levelMask  Levels to return, see {@link LogIndexFormat#levelMask(int...)}.
+     * @param tag        Tag to return, or null for all tags.
+     * @param consumer   Receives the lines, without line terminator.
+     * @return Number of matching records.
+     */
+    public int query(long fromMillis, long toMillis, int levelMask, String tag, Consumer<String> consumer)
+            throws IOException {
+        final Query query = new Query(date(fromMillis), date(toMillis), levelMask,
+                tag != null ? tag.getBytes(StandardCharsets.UTF_8) : null, consumer);
+        final long length = mChannel.size();
+        if (mIndex == null) {
+            scan(query, 0, length);
+            return query.mMatches;
+        }
+
+        int entry = firstEntry(fromMillis);
+        long indexedEnd = 0;
+        for (; entry < mEntries; entry++) {
+            final int base = LogIndexFormat.HEADER_SIZE + entry * LogIndexFormat.ENTRY_SIZE;
+            final long minTime = mIndex.getLong(base);
+            final long offset = mIndex.getLong(base + 16);
+            final int blockLength = mIndex.getInt(base + 24);
+            final int levels = mIndex.getInt(base + 28);
+            indexedEnd = offset + blockLength;
+            if (minTime > toMillis) {
+                return query.mMatches;
+            }
+            if ((levels & levelMask) != 0) {
+                scan(query, offset, offset + blockLength);
+            }
+        }
+        if (mEntries > 0) {
+            final int last = LogIndexFormat.HEADER_SIZE + (mEntries - 1) * LogIndexFormat.ENTRY_SIZE;
+            indexedEnd = mIndex.getLong(last + 16) + mIndex.getInt(last + 24);
+        }
+        // Not yet indexed tail of the log.
+        if (indexedEnd < length) {
+            scan(query, indexedEnd, length);
+        }
+        return query.mMatches;
+    }
+
+    /**
+     * @return The first entry whose maxTime is at least the time.
+     */
+    private int firstEntry(long timeMillis) {
+        int low = 0;
+        int high = mEntries;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final long maxTime = mIndex.getLong(LogIndexFormat.HEADER_SIZE + mid * LogIndexFormat.ENTRY_SIZE + 8);
+            if (maxTime < timeMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private byte[] date(long timeMillis) {
+        return mDateFormat.format(new Date(timeMillis)).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private void scan(Query query, long start, long end) throws IOException {
+        if (end <= start) {
+            return;
+        }
+        if (mCompressed) {
+            scanCompressed(query, start, end);
+            return;
+        }
+        for (long position = start; position < end; ) {
+            // Mappings are limited to 2 GB; a region ends at a line boundary.
+            final long size = Math.min(end - position, Integer.MAX_VALUE);
+            final MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            final int consumed = scanLines(query, map, (int) size, position + size >= end);
+            if (consumed == 0) {
+                break;
+            }
+            position += consumed;
+        }
+    }
+
+    private void scanCompressed(Query query, long start, long end) throws IOException {
+        final MappedByteBuffer map = mChannel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        final ByteArrayOutputStream block = new ByteArrayOutputStream(LogIndexFormat.DEFAULT_INTERVAL_BYTES * 2);
+        try (InputStream in = new GZIPInputStream(new ByteBufferInputStream(map))) {
+            final byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                block.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            // Truncated member of a segment being compressed: use what was inflated.
+        }
+        final byte[] data = block.toByteArray();
+        scanLines(query, ByteBuffer.wrap(data), data.length, true);
+    }
+
+    /**
+     * Scan the lines of the buffer.
+     *
+     * @param last True if the buffer ends the region, so a line without terminator is complete.
+     * @return Number of bytes consumed, up to the end of the last complete line.
+     */
+    private int scanLines(Query query, ByteBuffer buffer, int size, boolean last) {
+        int lineStart = 0;
+        for (int i = 0; i < size; i++) {
+            if (buffer.get(i) == '\n') {
+                query.line(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        if (last && lineStart < size) {
+            query.line(buffer, lineStart, size);
+            lineStart = size;
+        }
+        return lineStart;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    @Override
+    public String toString() {
+        return "IndexedLogReader{" + mLog + ", entries=" + mEntries + "}";
+    }
+
+    /**
+     * Filter state of one query.
+     */
+    private static final class Query {
+        private final byte[] mFrom;
+        private final byte[] mTo;
+        private final int mLevelMask;
+        private final byte[] mTag;
+        private final Consumer<String> mConsumer;
+        private boolean mInRecord;
+        private int mMatches;
+
+        Query(byte[] from, byte[] to, int levelMask, byte[] tag, Consumer<String> consumer) {
+            mFrom = from;
+            mTo = to;
+            mLevelMask = levelMask;
+            mTag = tag;
+            mConsumer = consumer;
+        }
+
+        void line(ByteBuffer buffer, int start, int end) {
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+            if (isRecordStart(buffer, start, end)) {
+                mInRecord = matches(buffer, start, end);
+                if (mInRecord) {
+                    mMatches++;
+                }
+            }
+            if (mInRecord) {
+                final byte[] bytes = new byte[end - start];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = buffer.get(start + i);
+                }
+                mConsumer.accept(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+
+        private static boolean isRecordStart(ByteBuffer b, int start, int end) {
+            return end - start > DATE_LENGTH + 2
+                    && isDigit(b.get(start)) && b.get(start + 4) == '-' && b.get(start + 10) == ' '
+                    && b.get(start + 19) == '.' && b.get(start + DATE_LENGTH + 1) == '[';
+        }
+
+        private static boolean isDigit(byte c) {
+            return c >= '0' && c <= '9';
+        }
+
+        private boolean matches(ByteBuffer b, int start, int end) {
+            if (compareDate(b, start, mFrom) < 0 || compareDate(b, start, mTo) > 0) {
+                return false;
+            }
+            final int levelStart = start + DATE_LENGTH + 2;
+            final int severity = LogIndexFormat.severityOf(b.get(levelStart));
+            if (severity < 0 || (mLevelMask & (1 << severity)) == 0) {
+                return false;
+            }
+            if (mTag == null) {
+                return true;
+            }
+            // "... [LEVEL] tag - message"
+            int tagStart = levelStart;
+            while (tagStart < end && b.get(tagStart) != ']') {
+                tagStart++;
+            }
+            tagStart += 2;
+            if (tagStart + mTag.length + 3 > end) {
+                return false;
+            }
+            for (int i = 0; i < mTag.length; i++) {
+                if (b.get(tagStart + i) != mTag[i]) {
+                    return false;
+                }
+            }
+            return b.get(tagStart + mTag.length) == ' ' && b.get(tagStart + mTag.length + 1) == '-';
+        }
+
+        private static int compareDate(ByteBuffer b, int start, byte[] date) {
+            for (int i = 0; i < DATE_LENGTH; i++) {
+                final int diff = b.get(start + i) - date[i];
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Stream over a buffer, for inflating mapped gzip members.
+     */
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package cam.et.dashcamlog;
+
+import java.io.File;
+
+/**
+ * Constants of the sparse time index kept next to text log segments.
+ * <p>
+ * The index of "dashcamlog_X.txt" is "dashcamlog_X.txt.idx". It starts with
+ * an 8 byte header ("DCLI", version:u8, 3 bytes padding) followed by fixed
+ * size big endian entries, one per block of about {@link #DEFAULT_INTERVAL_BYTES}:
+ * <pre>
+ * minTime:i64 maxTime:i64 offset:i64 length:i32 levels:i32
+ * </pre>
+ * A block always starts at a line boundary. minTime is the earliest event
+ * time of the block and maxTime the latest event time of the block and all
+ * blocks before it, so maxTime never decreases and can be binary searched.
+ * levels has bit {@code 1 << severity} set for every level in the block.
+ * <p>
+ * offset and length refer to the file as stored: when a segment is gzipped,
+ * every block becomes a gzip member of its own and the index is rewritten
+ * with the compressed offsets ("dashcamlog_X.txt.gz.idx"). Data after the
+ * last block, e.g. of the segment still being written, is not indexed.
+ */
+public final class LogIndexFormat {
+
+    public static final byte[] MAGIC = {'D', 'C', 'L', 'I'};
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 8;
+    public static final int ENTRY_SIZE = 32;
+
+    /** Suffix appended to the log file name. */
+    public static final String EXTENSION = ".idx";
+
+    /** Default distance between two index entries. */
+    public static final int DEFAULT_INTERVAL_BYTES = 64 * 1024;
+
+    /** Level mask accepting every level. */
+    public static final int ALL_LEVELS = -1;
+
+    private LogIndexFormat() {
+    }
+
+    /**
+     * @param log The log file.
+     * @return The index file of the log file.
+     */
+    public static File indexFileOf(File log) {
+        return new File(log.getPath() + EXTENSION);
+    }
+
+    /**
+     * @param severities Level severities, see {@link BinaryLogFormat#levelName(int)}.
+     * @return Level mask accepting the given levels.
+     */
+    public static int levelMask(int... severities) {
+        int mask = 0;
+        for (int severity : severities) {
+            mask |= 1 << severity;
+        }
+        return mask;
+    }
+
+    /**
+     * Severity of a level name of the text layout, identified by its first character.
+     *
+     * @param c The first character of the level name.
+     * @return The severity, or -1 if unknown.
+     */
+    public static int severityOf(int c) {
+        switch (c) {
+            case 'V':
+                return 0;
+            case 'D':
+                return 1;
+            case 'I':
+                return 2;
+            case 'W':
+                return 3;
+            case 'E':
+                return 4;
+            case 'F':
+                return 5;
+            default:
+                return -1;
+        }
+    }
+}
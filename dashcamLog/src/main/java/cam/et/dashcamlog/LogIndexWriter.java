@@ -0,0 +1,121 @@
+package cam.et.dashcamlog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the sparse time index of a text log, see {@link LogIndexFormat}.
+ * <p>
+ * The log writer reports every record with {@link #add(long, int, long, int)};
+ * an entry is written whenever a block has grown past the interval. Not
+ * thread safe.
+ */
+public final class LogIndexWriter implements Closeable {
+
+    private final OutputStream mOut;
+    private final long mIntervalBytes;
+    private final ByteBuffer mEntry = ByteBuffer.allocate(LogIndexFormat.ENTRY_SIZE);
+
+    private boolean mBlockOpen;
+    private long mBlockOffset;
+    private long mBlockEnd;
+    private long mBlockMinTime;
+    private long mMaxTime = Long.MIN_VALUE;
+    private int mBlockLevels;
+
+    /**
+     * Construct index writer and write the header.
+     *
+     * @param out           The index output. Closed by {@link #close()}.
+     * @param intervalBytes Minimum size of a block.
+     */
+    public LogIndexWriter(OutputStream out, long intervalBytes) throws IOException {
+        if (out == null || intervalBytes <= 0) {
+            throw new IllegalArgumentException();
+        }
+        mOut = out;
+        mIntervalBytes = intervalBytes;
+        final byte[] header = new byte[LogIndexFormat.HEADER_SIZE];
+        System.arraycopy(LogIndexFormat.MAGIC, 0, header, 0, LogIndexFormat.MAGIC.length);
+        header[LogIndexFormat.MAGIC.length] = (byte) LogIndexFormat.VERSION;
+        mOut.write(header);
+    }
+
+    /**
+     * Report a record of the log.
+     *
+     * @param timeMillis The event time.
+     * @param severity   The level severity.
+     * @param offset     Offset of the record in the log, records are reported in file order.
+     * @param length     Length of the record.
+     */
+    public void add(long timeMillis, int severity, long offset, int length) throws IOException {
+        if (mBlockOpen && offset - mBlockOffset >= mIntervalBytes) {
+            writeBlock();
+        }
+        if (!mBlockOpen) {
+            mBlockOpen = true;
+            mBlockOffset = offset;
+            mBlockMinTime = timeMillis;
+            mBlockLevels = 0;
+        }
+        mBlockMinTime = Math.min(mBlockMinTime, timeMillis);
+        mMaxTime = Math.max(mMaxTime, timeMillis);
+        if (severity >= 0 && severity < 32) {
+            mBlockLevels |= 1 << severity;
+        }
+        mBlockEnd = offset + length;
+    }
+
+    /**
+     * Add a block as a whole, e.g. when an index is rewritten for a compressed log.
+     */
+    public void addBlock(long minTime, long maxTime, long offset, int length, int levels) throws IOException {
+        if (mBlockOpen) {
+            writeBlock();
+        }
+        writeEntry(minTime, maxTime, offset, length, levels);
+    }
+
+    /**
+     * Write the entry of the current block, e.g. before the log is closed.
+     */
+    public void finish() throws IOException {
+        if (mBlockOpen) {
+            writeBlock();
+        }
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    private void writeBlock() throws IOException {
+        mBlockOpen = false;
+        writeEntry(mBlockMinTime, mMaxTime, mBlockOffset, (int) (mBlockEnd - mBlockOffset), mBlockLevels);
+    }
+
+    private void writeEntry(long minTime, long maxTime, long offset, int length, int levels) throws IOException {
+        mEntry.clear();
+        mEntry.putLong(minTime);
+        mEntry.putLong(maxTime);
+        mEntry.putLong(offset);
+        mEntry.putInt(length);
+        mEntry.putInt(levels);
+        mOut.write(mEntry.array(), 0, LogIndexFormat.ENTRY_SIZE);
+    }
+
+    /**
+     * Write the last block and close the output.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package cam.et.dashcamlog;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Correctness and scaling benchmark of {@link IndexedLogReader}.
+ */
+public class IndexedLogReaderTest {
+
+    private static final long BASE_TIME = 1700000000000L;
+    private static final long STEP_MILLIS = 10;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final String[] TAGS = {"BgCamService", "LocationMonitor", "SystemUsageMonitor"};
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = Files.createTempDirectory("indexedlog").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        final File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    private static int severityOf(int line) {
+        return (line % 97 == 0) ? 4 : (line % 13 == 0) ? 3 : (line % 3 == 0) ? 2 : 1;
+    }
+
+    /**
+     * Write a text log in the layout of the dashcam log writer with its index.
+     *
+     * @return Number of lines.
+     */
+    private static int writeLog(File log, long bytes) throws IOException {
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(UTC);
+        int lines = 0;
+        long offset = 0;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(log), 1 << 16);
+             LogIndexWriter index = new LogIndexWriter(new BufferedOutputStream(
+                     new FileOutputStream(LogIndexFormat.indexFileOf(log))), LogIndexFormat.DEFAULT_INTERVAL_BYTES)) {
+            final StringBuilder b = new StringBuilder(256);
+            while (offset < bytes) {
+                final long time = BASE_TIME + lines * STEP_MILLIS;
+                final int severity = severityOf(lines);
+                b.setLength(0);
+                b.append(format.format(new Date(time))).append(" [").append(BinaryLogFormat.levelName(severity))
+                        .append("] ").append(TAGS[lines % TAGS.length]).append(" - message ").append(lines)
+                        .append(" cpu=").append(lines % 100).append("% mem=").append(512 + lines % 64).append("MB\n");
+                if (severity == 4) {
+                    b.append("java.lang.IllegalStateException: camera closed\n\tat Foo.bar(Foo.java:1)\n");
+                }
+                final byte[] data = b.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(data);
+                index.add(time, severity, offset, data.length);
+                offset += data.length;
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Reference result: all records of the range, by reading the whole file.
+     */
+    private static List<String> scan(File log, long from, long to, int levelMask, String tag) throws IOException {
+        final List<String> result = new ArrayList<>();
+        final SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        format.setTimeZone(UTC);
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(log), StandardCharsets.UTF_8))) {
+            boolean inRecord = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.startsWith("java.") && !line.startsWith("\t")) {
+                    final long time;
+                    try {
+                        time = format.parse(line.substring(0, 23)).getTime();
+                    } catch (java.text.ParseException e) {
+                        throw new IOException(e);
+                    }
+                    final int severity = LogIndexFormat.severityOf(line.charAt(25));
+                    inRecord = time >= from && time <= to && (levelMask & (1 << severity)) != 0
+                            && (tag == null || line.contains("] " + tag + " - "));
+                }
+                if (inRecord) {
+                    result.add(line);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<String> query(File log, long from, long to, int levelMask, String tag) throws IOException {
+        final List<String> result = new ArrayList<>();
+        try (IndexedLogReader reader = new IndexedLogReader(log, UTC)) {
+            reader.query(from, to, levelMask, tag, result::add);
+        }
+        return result;
+    }
+
+    @Test
+    public void query_matchesFullScan() throws IOException {
+        final File log = new File(mDir, "dashcamlog_1.txt");
+        final int lines = writeLog(log, 4L * 1024 * 1024);
+        final File gz = new File(log.getPath() + ".gz");
+        IndexedLogCompressor.compress(log, gz, LogIndexFormat.indexFileOf(gz));
+        assertTrue(gz.length() < log.length() / 3);
+
+        final Random random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            final long from = BASE_TIME + random.nextInt(lines) * STEP_MILLIS;
+            final long to = from + random.nextInt(120_000);
+            final int levelMask = (i % 2 == 0) ? LogIndexFormat.ALL_LEVELS : LogIndexFormat.levelMask(3, 4);
+            final String tag = (i % 3 == 0) ? TAGS[1] : null;
+            final List<String> expected = scan(log, from, to, levelMask, tag);
+            assertEquals(expected, query(log, from, to, levelMask, tag));
+            assertEquals(expected, query(gz, from, to, levelMask, tag));
+        }
+    }
+
+    @Test
+    public void query_readsUnindexedTail() throws IOException {
+        final File log = new File(mDir, "dashcamlog_2.txt");
+        writeLog(log, 200 * 1024);
+        // Drop the index entries: the reader has to scan the unindexed rest.
+        final File index = LogIndexFormat.indexFileOf(log);
+        try (java.io.RandomAccessFile f = new java.io.RandomAccessFile(index, "rw")) {
+            f.setLength(LogIndexFormat.HEADER_SIZE + LogIndexFormat.ENTRY_SIZE);
+        }
+        final long from = BASE_TIME;
+        final long to = BASE_TIME + 3_600_000;
+        assertEquals(scan(log, from, to, LogIndexFormat.ALL_LEVELS, null),
+                query(log, from, to, LogIndexFormat.ALL_LEVELS, null));
+    }
+
+    /**
+     * Query time of one minute ranges must not grow with the file size.
+     * Writes the size of the large file twice over, so it only runs when that
+     * size is given, e.g. -Ddashcamlog.benchmarkMegabytes=500.
+     */
+    @Test
+    public void benchmark_queryTimeIndependentOfFileSize() throws IOException {
+        final Long largeMegabytes = Long.getLong("dashcamlog.benchmarkMegabytes");
+        Assume.assumeTrue("set dashcamlog.benchmarkMegabytes to run", largeMegabytes != null);
+        final double small = benchmark(new File(mDir, "dashcamlog_small.txt"), largeMegabytes / 10);
+        final double large = benchmark(new File(mDir, "dashcamlog_large.txt"), largeMegabytes);
+        System.out.printf("query 1 min: %d MB %.3f ms, %d MB %.3f ms%n",
+                largeMegabytes / 10, small, largeMegabytes, large);
+        assertTrue("query time grows with file size", large < small * 4 + 1.0);
+    }
+
+    private static double benchmark(File log, long megabytes) throws IOException {
+        final int lines = writeLog(log, megabytes * 1024 * 1024);
+        final Random random = new Random(2);
+        final int[] matches = new int[1];
+        long best = Long.MAX_VALUE;
+        try (IndexedLogReader reader = new IndexedLogReader(log, UTC)) {
+            for (int round = 0; round < 3; round++) {
+                final long start = System.nanoTime();
+                for (int i = 0; i < 50; i++) {
+                    final long from = BASE_TIME + random.nextInt(lines) * STEP_MILLIS;
+                    matches[0] += reader.query(from, from + 60_000, LogIndexFormat.ALL_LEVELS, null, line -> {
+                    });
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+        }
+        assertTrue(matches[0] > 0);
+        //noinspection ResultOfMethodCallIgnored
+        log.delete();
+        return best / 50 / 1e6;
+    }
+}
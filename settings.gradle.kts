@@ -22,3 +22,4 @@ dependencyResolutionManagement {
 rootProject.name = "DashcamSystem"
 include(":app")
 include(":dashcamCore")
+include(":dashcamLog")